@@ -0,0 +1,389 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.jhighlight.renderer.RenderOptions;
+import org.codelibs.jhighlight.renderer.Renderer;
+import org.codelibs.jhighlight.renderer.XhtmlRenderer;
+import org.codelibs.jhighlight.renderer.XhtmlRendererFactory;
+import org.codelibs.jhighlight.tools.FileUtils;
+
+/**
+ * Highlights the files of a command-line run, optionally with several
+ * threads.
+ * <p>At most a few files per thread are in progress at any time, the
+ * submission of new files waits for the oldest one to complete. Files are
+ * reported in the order in which they were submitted, whatever the order in
+ * which they complete, which keeps the verbose output identical from one
+ * run to the next.
+ * <p>A file that can't be highlighted doesn't stop the run, its failure is
+ * collected and reported at the end.
+ * <p>With external stylesheets, the stylesheet of each type is written by
+ * the submitting thread the first time a file of that type is submitted
+ * for a stylesheet directory, and the documents refer to it by a relative
+ * address. The stylesheets of the other themes are written next to it,
+ * the documents are the same for all themes.
+ *
+ * @since 2.0.1
+ */
+final class HighlightBatch
+{
+	private static final int	PENDING_PER_THREAD = 4;
+
+	private final String			mEncoding;
+	private final boolean			mFragment;
+	private final String[]			mThemes;
+	private final boolean			mParallel;
+	private final boolean			mVerbose;
+	private final PrintStream		mOut;
+	private final ExecutorService	mExecutor;
+	private final int				mMaximumPending;
+
+	private final ArrayDeque<Task>	mPending = new ArrayDeque<Task>();
+	private final List<String>		mFailures = new ArrayList<String>();
+	private final Set<File>			mStylesheets = new HashSet<File>();
+	private final long				mStartTime = System.nanoTime();
+	private int						mFileCount = 0;
+	private long					mByteCount = 0;
+
+	/**
+	 * Creates a new <code>HighlightBatch</code>.
+	 *
+	 * @param threads the number of threads that highlight files, with
+	 * <code>1</code> the files are highlighted by the calling thread
+	 * @param encoding the encoding of the files; or <code>null</code>
+	 * @param fragment <code>true</code> if fragments should be generated
+	 * @param themes the themes whose stylesheets are written next to the
+	 * external stylesheets of the default theme
+	 * @param parallel <code>true</code> if each large file should be scanned
+	 * by several threads
+	 * @param verbose <code>true</code> if every file should be reported
+	 * @param out the stream to which the reports are written
+	 */
+	HighlightBatch(int threads, String encoding, boolean fragment, String[] themes, boolean parallel, boolean verbose, PrintStream out)
+	{
+		if (threads < 1)	throw new IllegalArgumentException("threads should be at least 1.");
+		if (null == themes)	throw new IllegalArgumentException("themes can't be null.");
+
+		mEncoding = encoding;
+		mFragment = fragment;
+		mThemes = themes;
+		mParallel = parallel;
+		mVerbose = verbose;
+		mOut = out;
+		if (1 == threads)
+		{
+			mExecutor = null;
+			mMaximumPending = 1;
+		}
+		else
+		{
+			mExecutor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+			mMaximumPending = threads * PENDING_PER_THREAD;
+		}
+	}
+
+	/**
+	 * Highlights a file, waiting first if too many files are in progress.
+	 *
+	 * @param name the name of the file, as it's reported and rendered
+	 * @param in the source file
+	 * @param out the file to which the XHTML is written
+	 * @param stylesheetDir the directory of the external stylesheets; or
+	 * <code>null</code> if the CSS class definitions are part of every
+	 * document
+	 */
+	void submit(String name, File in, File out, File stylesheetDir)
+	{
+		RenderOptions options = null;
+		if (stylesheetDir != null)
+		{
+			try
+			{
+				options = writeStylesheet(name, out, stylesheetDir);
+			}
+			catch (IOException e)
+			{
+				// keeps the reports in the order of submission
+				while (!mPending.isEmpty())
+				{
+					complete(mPending.poll());
+				}
+				mFailures.add(name + ": " + e.getMessage());
+				if (mVerbose)
+				{
+					mOut.println(name + " ... failed: " + e.getMessage());
+				}
+				return;
+			}
+		}
+		
+		if (mParallel)
+		{
+			options = (null == options ? RenderOptions.DEFAULT : options).withParallel(true);
+		}
+		
+		Task task = new Task(name, in, out, mEncoding, mFragment, options);
+		if (null == mExecutor)
+		{
+			if (mVerbose)
+			{
+				mOut.print(name + " ... ");
+			}
+			task.run();
+			complete(task);
+			return;
+		}
+
+		while (mPending.size() >= mMaximumPending)
+		{
+			complete(mPending.poll());
+		}
+
+		mExecutor.execute(task);
+		mPending.add(task);
+
+		while (!mPending.isEmpty() &&
+			   mPending.peek().isDone())
+		{
+			complete(mPending.poll());
+		}
+	}
+
+	/**
+	 * Waits for the files in progress and stops the threads.
+	 */
+	void finish()
+	{
+		try
+		{
+			while (!mPending.isEmpty())
+			{
+				complete(mPending.poll());
+			}
+		}
+		finally
+		{
+			if (mExecutor != null)
+			{
+				mExecutor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Returns the failures, one per file that couldn't be highlighted.
+	 *
+	 * @return the name of each file followed by the reason of its failure
+	 */
+	List<String> getFailures()
+	{
+		return mFailures;
+	}
+
+	/** @return the number of files that were highlighted */
+	int getFileCount()
+	{
+		return mFileCount;
+	}
+
+	/**
+	 * Describes the throughput of the files that were highlighted so far.
+	 *
+	 * @return the summary
+	 */
+	String getSummary()
+	{
+		double seconds = Math.max(System.nanoTime() - mStartTime, 1) / 1e9;
+		double megabytes = mByteCount / (1024.0 * 1024.0);
+		return String.format(Locale.ENGLISH, "Highlighted %d files (%.2f MB) in %.2f s: %.1f files/s, %.2f MB/s.",
+			mFileCount, megabytes, seconds, mFileCount / seconds, megabytes / seconds);
+	}
+
+	private void complete(Task task)
+	{
+		boolean inline = null == mExecutor;
+		try
+		{
+			mByteCount += task.get().longValue();
+			mFileCount++;
+			if (mVerbose)
+			{
+				mOut.println(inline ? "done." : task.getName() + " ... done.");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			fail(task, inline, e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			fail(task, inline, cause);
+		}
+	}
+
+	private void fail(Task task, boolean inline, Throwable cause)
+	{
+		String reason = String.valueOf(cause.getMessage());
+		mFailures.add(task.getName() + ": " + reason);
+		if (mVerbose)
+		{
+			mOut.println(inline ? "failed: " + reason : task.getName() + " ... failed: " + reason);
+		}
+	}
+
+	/**
+	 * Writes the stylesheet of the type of a file, unless it was written
+	 * before.
+	 *
+	 * @return the options that refer to the stylesheet from the document;
+	 * or <code>null</code> if the renderer doesn't support external
+	 * stylesheets
+	 */
+	private RenderOptions writeStylesheet(String name, File out, File stylesheetDir)
+	throws IOException
+	{
+		String type = FileUtils.getExtension(name);
+		Renderer renderer = null == type ? null : XhtmlRendererFactory.getRenderer(type);
+		if (!(renderer instanceof XhtmlRenderer))
+		{
+			// the highlighting itself reports the failure
+			return null;
+		}
+		
+		RenderOptions options = RenderOptions.DEFAULT;
+		File stylesheet = new File(stylesheetDir, XhtmlRendererFactory.getStylesheetName(type)).getAbsoluteFile();
+		if (mStylesheets.add(stylesheet))
+		{
+			stylesheet.getParentFile().mkdirs();
+			
+			try
+			{
+				writeStylesheet(stylesheet, ((XhtmlRenderer)renderer).getStylesheet(options));
+				for (String theme : mThemes)
+				{
+					writeStylesheet(new File(stylesheetDir, XhtmlRendererFactory.getStylesheetName(type, theme)), ((XhtmlRenderer)renderer).getStylesheet(options, theme));
+				}
+			}
+			catch (IOException e)
+			{
+				mStylesheets.remove(stylesheet);
+				throw e;
+			}
+		}
+		
+		Path document_dir = out.getAbsoluteFile().getParentFile().toPath();
+		String address = document_dir.relativize(stylesheet.toPath()).toString();
+		return options.withStylesheet(address.replace(File.separatorChar, '/'));
+	}
+
+	private void writeStylesheet(File stylesheet, String css)
+	throws IOException
+	{
+		try (OutputStream output = new FileOutputStream(stylesheet))
+		{
+			output.write(null == mEncoding ? css.getBytes() : css.getBytes(mEncoding));
+		}
+		catch (IOException e)
+		{
+			throw new IOException("The stylesheet '" + stylesheet + "' couldn't be written: " + e.getMessage(), e);
+		}
+	}
+
+	private static long highlightFile(String name, File in, File out, String encoding, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		String type = FileUtils.getExtension(name);
+		Renderer renderer = null == type ? null : XhtmlRendererFactory.getRenderer(type);
+		if (null == renderer)
+		{
+			throw new IOException("No renderer supports the type of '" + name + "'.");
+		}
+
+		out.getParentFile().mkdirs();
+
+		if (renderer instanceof XhtmlRenderer)
+		{
+			// the file is mapped instead of being read through a stream
+			try (OutputStream output = new FileOutputStream(out))
+			{
+				((XhtmlRenderer)renderer).highlight(name, in.toPath(), output, encoding, fragment, null == options ? RenderOptions.DEFAULT : options);
+			}
+		}
+		else
+		{
+			try (InputStream input = new FileInputStream(in);
+				 OutputStream output = new FileOutputStream(out))
+			{
+				renderer.highlight(name, input, output, encoding, fragment);
+			}
+		}
+
+		return in.length();
+	}
+
+	private static final class Task extends FutureTask<Long>
+	{
+		private final String mName;
+
+		Task(final String name, final File in, final File out, final String encoding, final boolean fragment, final RenderOptions options)
+		{
+			super(new Callable<Long>() {
+					public Long call()
+					throws IOException
+					{
+						return Long.valueOf(highlightFile(name, in, out, encoding, fragment, options));
+					}
+				});
+			mName = name;
+		}
+
+		String getName()
+		{
+			return mName;
+		}
+	}
+
+	private static final class WorkerThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "jhighlight-" + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
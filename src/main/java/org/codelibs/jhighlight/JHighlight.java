@@ -8,15 +8,18 @@
 package org.codelibs.jhighlight;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
+import org.codelibs.jhighlight.renderer.XhtmlRenderer;
 import org.codelibs.jhighlight.renderer.XhtmlRendererFactory;
 import org.codelibs.jhighlight.tools.FileUtils;
+import org.codelibs.jhighlight.tools.NameFilter;
 
 /**
  * Provides console access to the source code syntax highlighting for Java,
@@ -25,9 +28,9 @@ import org.codelibs.jhighlight.tools.FileUtils;
  * <code>.html</code>, <code>.htm</code>, <code>.xhtml</code>,
  * <code>.xml</code> and <code>.lzx</code>.
  * <p>Execute the highlighting with the following syntax:
- * <pre>java org.codelibs.jhighlight.JHighlight [--verbose] [--fragment] [-d destdir] [-e encoding] file|dir ...</pre>
+ * <pre>java org.codelibs.jhighlight.JHighlight [--verbose] [--fragment] [--stylesheet] [--themes name,...] [--threads count] [--parallel] [-d destdir] [-e encoding] file|dir ...</pre>
  * <p>or
- * <pre>java -jar jhighlight.jar [--verbose] [--fragment] [-d destdir] [-e encoding] file|dir ...</pre>
+ * <pre>java -jar jhighlight.jar [--verbose] [--fragment] [--stylesheet] [--themes name,...] [--threads count] [--parallel] [-d destdir] [-e encoding] file|dir ...</pre>
  * <table>
  * <caption>Command-line options</caption>
  * <tr>
@@ -39,6 +42,22 @@ import org.codelibs.jhighlight.tools.FileUtils;
  * <td>Output fragments instead of complete documents.</td>
  * </tr>
  * <tr>
+ * <td><code>--stylesheet</code></td>
+ * <td>Refer to one stylesheet per file type instead of including the CSS in every document.</td>
+ * </tr>
+ * <tr>
+ * <td><code>--themes</code></td>
+ * <td>Also write the stylesheets of these themes, implies <code>--stylesheet</code>.</td>
+ * </tr>
+ * <tr>
+ * <td><code>--threads</code></td>
+ * <td>Highlight the files with several threads</td>
+ * </tr>
+ * <tr>
+ * <td><code>--parallel</code></td>
+ * <td>Scan each large file with all the processors</td>
+ * </tr>
+ * <tr>
  * <td><code>-d</code></td>
  * <td>Specify the destination directory</td>
  * </tr>
@@ -47,6 +66,15 @@ import org.codelibs.jhighlight.tools.FileUtils;
  * <td>Specify the encoding of the files</td>
  * </tr>
  * </table>
+ * <p>A file that can't be highlighted doesn't stop the others, the failures
+ * are reported at the end of the run. With several threads, the files are
+ * still reported in the same order, followed by a summary of the
+ * throughput.
+ * <p>The stylesheets are written to the destination directory, or to each
+ * directory that's highlighted when there's none, with names like
+ * <code>jhighlight-java.css</code>. The stylesheets of other themes, like
+ * <code>jhighlight-java-dark.css</code>, can be swapped in without
+ * highlighting the files again.
  * <p><a href="https://rife.dev.java.net">RIFE</a> template tags are also
  * supported and will be clearly highlighted.
  *
@@ -70,6 +98,10 @@ public class JHighlight
 		boolean     verbose = false;
 		String		encoding = null;
 		boolean     fragment = false;
+		boolean		stylesheet = false;
+		String[]	themes = new String[0];
+		boolean		parallel = false;
+		int			threads = 1;
 		ArrayList   names = new ArrayList();
 		
 		boolean valid_arguments = true;
@@ -81,6 +113,8 @@ public class JHighlight
 		{
 			boolean next_is_destdir = false;
 			boolean next_is_encoding = false;
+			boolean next_is_threads = false;
+			boolean next_is_themes = false;
 			String argument;
 			for (int i = 0; i < arguments.length; i++)
 			{
@@ -99,6 +133,41 @@ public class JHighlight
 					continue;
 				}
 				
+				if (next_is_threads)
+				{
+					try
+					{
+						threads = Integer.parseInt(argument);
+					}
+					catch (NumberFormatException e)
+					{
+						threads = 0;
+					}
+					if (threads < 1)
+					{
+						valid_arguments = false;
+					}
+					next_is_threads = false;
+					continue;
+				}
+				
+				if (next_is_themes)
+				{
+					themes = argument.split(",");
+					for (int j = 0; j < themes.length; j++)
+					{
+						themes[j] = themes[j].trim();
+						if (!XhtmlRenderer.isTheme(themes[j]))
+						{
+							System.err.println("The theme '" + themes[j] + "' doesn't exist.");
+							valid_arguments = false;
+						}
+					}
+					stylesheet = true;
+					next_is_themes = false;
+					continue;
+				}
+				
 				if (argument.equals("-d"))
 				{
 					next_is_destdir = true;
@@ -123,6 +192,30 @@ public class JHighlight
 					continue;
 				}
 				
+				if (argument.equals("--stylesheet"))
+				{
+					stylesheet = true;
+					continue;
+				}
+				
+				if (argument.equals("--themes"))
+				{
+					next_is_themes = true;
+					continue;
+				}
+				
+				if (argument.equals("--threads"))
+				{
+					next_is_threads = true;
+					continue;
+				}
+				
+				if (argument.equals("--parallel"))
+				{
+					parallel = true;
+					continue;
+				}
+				
 				names.add(argument);
 			}
 		}
@@ -135,15 +228,20 @@ public class JHighlight
 		if (!valid_arguments)
 		{
 			System.err.println("Usage :");
-			System.err.println("  java " + JHighlight.class.getName() + " [--verbose] [--fragment] [-d destdir] [-e encoding] file|dir ...");
+			System.err.println("  java " + JHighlight.class.getName() + " [--verbose] [--fragment] [--stylesheet] [--themes name,...] [--threads count] [--parallel] [-d destdir] [-e encoding] file|dir ...");
 			System.err.println("or");
-			System.err.println("  java -jar jhighlight-" + JHighlightVersion.getVersion() + ".jar [--verbose] [--fragment] [-d destdir] [-e encoding] file|dir ...");
+			System.err.println("  java -jar jhighlight-" + JHighlightVersion.getVersion() + ".jar [--verbose] [--fragment] [--stylesheet] [--themes name,...] [--threads count] [--parallel] [-d destdir] [-e encoding] file|dir ...");
 			System.err.println("Generates highlighted XHTML files from all Java and XML source files");
 			System.err.println("in the specified directories.");
-			System.err.println("  --verbose  Output messages about what the parser is doing");
-			System.err.println("  --fragment Output fragments instead of complete documents");
-			System.err.println("  -d         Specify the destination directory");
-			System.err.println("  -e         Specify the encoding of the files");
+			System.err.println("  --verbose    Output messages about what the parser is doing");
+			System.err.println("  --fragment   Output fragments instead of complete documents");
+			System.err.println("  --stylesheet Refer to one stylesheet per file type instead of");
+			System.err.println("               including the CSS in every document");
+			System.err.println("  --themes     Also write the stylesheets of these themes");
+			System.err.println("  --threads    Highlight the files with several threads");
+			System.err.println("  --parallel   Scan each large file with all the processors");
+			System.err.println("  -d           Specify the destination directory");
+			System.err.println("  -e           Specify the encoding of the files");
 			System.exit(1);
 		}
 		
@@ -165,6 +263,39 @@ public class JHighlight
 			}
 		}
 		
+		HighlightBatch	batch = new HighlightBatch(threads, encoding, fragment, themes, parallel, verbose, System.out);
+		try
+		{
+			highlightLocations(names, destdir, stylesheet, batch);
+		}
+		finally
+		{
+			batch.finish();
+		}
+		
+		if (verbose || threads > 1)
+		{
+			System.out.println(batch.getSummary());
+		}
+		
+		List<String>	failures = batch.getFailures();
+		if (!failures.isEmpty())
+		{
+			System.err.println(failures.size() + " file(s) couldn't be highlighted:");
+			for (String failure : failures)
+			{
+				System.err.println("  " + failure);
+			}
+			throw new IOException(failures.size() + " file(s) couldn't be highlighted.");
+		}
+	}
+	
+	private static void highlightLocations(ArrayList names, File destdir, boolean stylesheet, HighlightBatch batch)
+	throws IOException
+	{
+		NameFilter	filter = null;
+		NameFilter	pruned = null;
+		
 		Iterator    names_it = names.iterator();
 		String      name;
 		while (names_it.hasNext())
@@ -193,76 +324,75 @@ public class JHighlight
 					out = new File(destdir, location.getName() + ".html");
 				}
 				
-				highlightFile(location.getName(), location, out, encoding, fragment, verbose);
+				batch.submit(location.getName(), location, out, stylesheet ? out.getAbsoluteFile().getParentFile() : null);
 			}
 			else
 			{
-				Set			supported_types = XhtmlRendererFactory.getSupportedTypes();
-				Pattern[]	included = new Pattern[supported_types.size()];
-				Pattern[]	excluded = new Pattern[supported_types.size()+5];
-				excluded[0] = Pattern.compile(".*SCCS.*");
-				excluded[0] = Pattern.compile(".*svn.*");
-				excluded[0] = Pattern.compile(".*CVS.*");
-				excluded[0] = Pattern.compile(".*jetty.*");
-				excluded[0] = Pattern.compile(".*tomcat.*");
-				
-				Iterator 	types_it = supported_types.iterator();
-				String		type;
-				int			counter = 0;
-				while (types_it.hasNext())
+				if (null == filter)
 				{
-					type = (String)types_it.next();
-					included[counter] = Pattern.compile(".*\\."+type+"$");
-					excluded[counter+5] = Pattern.compile(".*\\."+type+"\\.html\\.*");
-
-					counter++;
+					filter = createFilter();
+					// every file below a directory that matches one of these
+					// patterns matches it too, so such directories aren't
+					// traversed
+					pruned = new NameFilter(createExcludedLocations(), null);
 				}
-
-				ArrayList file_names = FileUtils.getFileList(location, included, excluded);
 				
-				Iterator    file_names_it = file_names.iterator();
-				String      file_name;
-				while (file_names_it.hasNext())
-				{
-					file_name = (String)file_names_it.next();
-					
-					File in = new File(location.getAbsolutePath() + File.separator + file_name);
-					File out = null;
-					if (null == destdir)
-					{
-						out = new File(location.getAbsolutePath() + File.separator + file_name + ".html");
-					}
-					else
-					{
-						out = new File(destdir, location.getName() + File.separator + file_name + ".html");
-					}
-					
-					highlightFile(location.getName() + File.separator + file_name, in, out, encoding, fragment, verbose);
-				}
+				final File			source_dir = location;
+				final File			target_dir = destdir;
+				final File			stylesheet_dir = stylesheet ? (null == destdir ? location : destdir) : null;
+				final HighlightBatch	target_batch = batch;
+				FileUtils.visitFiles(location.toPath(), filter, pruned, true, new Consumer<String>() {
+						public void accept(String file_name)
+						{
+							File in = new File(source_dir.getAbsolutePath() + File.separator + file_name);
+							File out = null;
+							if (null == target_dir)
+							{
+								out = new File(source_dir.getAbsolutePath() + File.separator + file_name + ".html");
+							}
+							else
+							{
+								out = new File(target_dir, source_dir.getName() + File.separator + file_name + ".html");
+							}
+							
+							target_batch.submit(source_dir.getName() + File.separator + file_name, in, out, stylesheet_dir);
+						}
+					});
 			}
 		}
 	}
 	
-	private static void highlightFile(String name, File in, File out, String encoding, boolean fragment, boolean verbose)
-	throws IOException
+	private static Pattern[] createExcludedLocations()
+	{
+		return new Pattern[] {
+			Pattern.compile(".*SCCS.*"),
+			Pattern.compile(".*svn.*"),
+			Pattern.compile(".*CVS.*"),
+			Pattern.compile(".*jetty.*"),
+			Pattern.compile(".*tomcat.*")
+		};
+	}
+	
+	private static NameFilter createFilter()
 	{
-		out.getParentFile().mkdirs();
+		Set			supported_types = XhtmlRendererFactory.getSupportedTypes();
+		Pattern[]	excluded_locations = createExcludedLocations();
+		Pattern[]	included = new Pattern[supported_types.size()];
+		Pattern[]	excluded = new Pattern[supported_types.size()+excluded_locations.length];
+		System.arraycopy(excluded_locations, 0, excluded, 0, excluded_locations.length);
 		
-		if (verbose)
+		Iterator 	types_it = supported_types.iterator();
+		String		type;
+		int			counter = 0;
+		while (types_it.hasNext())
 		{
-			System.out.print(name + " ... ");
+			type = (String)types_it.next();
+			included[counter] = Pattern.compile(".*\\."+type+"$");
+			excluded[counter+excluded_locations.length] = Pattern.compile(".*\\."+type+"\\.html\\.*");
+			
+			counter++;
 		}
 		
-		XhtmlRendererFactory.getRenderer(FileUtils.getExtension(name))
-			.highlight(name,
-					   in.toURL().openStream(),
-					   new FileOutputStream(out),
-					   encoding,
-					   fragment);
-		
-		if (verbose)
-		{
-			System.out.println("done.");
-		}
+		return new NameFilter(included, excluded);
 	}
 }
@@ -0,0 +1,233 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.codelibs.jhighlight.renderer.Renderer;
+
+/**
+ * Decorates a renderer with a {@link RenderCache}.
+ * <p>Every highlighting is identified by the digest of its source code, the
+ * type of the renderer, the name of the source file, the encoding and
+ * whether it's a fragment. Identical highlightings are only rendered once
+ * as long as their result stays in the cache.
+ * <p>The source code is read completely before the cache is consulted.
+ *
+ * @since 2.0.1
+ */
+public class CachingRenderer implements Renderer
+{
+	private final Renderer		mRenderer;
+	private final String		mType;
+	private final String		mOptions;
+	private final RenderCache	mCache;
+
+	/**
+	 * Creates a new <code>CachingRenderer</code>.
+	 *
+	 * @param renderer the renderer that renders the results that are missing
+	 * @param type the type of the renderer, see
+	 * {@link org.codelibs.jhighlight.renderer.XhtmlRendererFactory}
+	 * @param cache the cache of the results, it can be shared by several
+	 * renderers
+	 */
+	public CachingRenderer(Renderer renderer, String type, RenderCache cache)
+	{
+		this(renderer, type, null, cache);
+	}
+
+	/**
+	 * Creates a new <code>CachingRenderer</code> for a renderer that has
+	 * options that change its results.
+	 *
+	 * @param renderer the renderer that renders the results that are missing
+	 * @param type the type of the renderer
+	 * @param options a description of the options of the renderer, renderers
+	 * of the same type with different options shouldn't share it; or
+	 * <code>null</code> if there's none
+	 * @param cache the cache of the results
+	 */
+	public CachingRenderer(Renderer renderer, String type, String options, RenderCache cache)
+	{
+		if (null == renderer)	throw new IllegalArgumentException("renderer can't be null.");
+		if (null == type)		throw new IllegalArgumentException("type can't be null.");
+		if (null == cache)		throw new IllegalArgumentException("cache can't be null.");
+
+		mRenderer = renderer;
+		mType = type;
+		mOptions = options;
+		mCache = cache;
+	}
+
+	/**
+	 * Returns the cache of this renderer.
+	 *
+	 * @return the cache
+	 */
+	public RenderCache getCache()
+	{
+		return mCache;
+	}
+
+	public void highlight(String name, InputStream in, OutputStream out, String encoding, boolean fragment)
+	throws IOException
+	{
+		byte[] content = IOUtils.toByteArray(in);
+		out.write(render(name, content, encoding, fragment));
+		out.flush();
+		out.close();
+	}
+
+	public String highlight(String name, String in, String encoding, boolean fragment)
+	throws IOException
+	{
+		byte[] content = in.getBytes(encoding);
+		return new String(render(name, content, encoding, fragment), encoding);
+	}
+
+	public void highlight(String name, Reader in, Writer out, boolean fragment)
+	throws IOException
+	{
+		highlight(name, IOUtils.toString(in), out, fragment);
+		out.flush();
+	}
+
+	public void highlight(final String name, final CharSequence in, Appendable out, final boolean fragment)
+	throws IOException
+	{
+		RenderKey key = new RenderKey(RenderKey.digest(in), mType, name, null, fragment, mOptions);
+		byte[] result = mCache.get(key, new RenderCache.Loader() {
+				public byte[] load()
+				throws IOException
+				{
+					StringWriter writer = new StringWriter();
+					mRenderer.highlight(name, in, writer, fragment);
+					return toBytes(writer.toString());
+				}
+			});
+
+		appendChars(result, out);
+	}
+
+	private byte[] render(final String name, final byte[] content, final String encoding, final boolean fragment)
+	throws IOException
+	{
+		RenderKey key = new RenderKey(RenderKey.digest(content, 0, content.length), mType, name, encoding, fragment, mOptions);
+		return mCache.get(key, new RenderCache.Loader() {
+				public byte[] load()
+				throws IOException
+				{
+					try (final ByteArrayOutputStream out = new ByteArrayOutputStream())
+					{
+						mRenderer.highlight(name, new ByteArrayInputStream(content), out, encoding, fragment);
+						return out.toByteArray();
+					}
+				}
+			});
+	}
+
+	/**
+	 * Stores characters in UTF-8, one character at a time: a surrogate is
+	 * encoded on its own like in CESU-8, which keeps any sequence of
+	 * characters intact, including unpaired surrogates. The markup of a
+	 * highlighting then mostly takes a single byte per character.
+	 */
+	private static byte[] toBytes(String chars)
+	{
+		int length = chars.length();
+		int size = length;
+		char c;
+		for (int i = 0; i < length; i++)
+		{
+			c = chars.charAt(i);
+			if (c >= 0x800)
+			{
+				size += 2;
+			}
+			else if (c >= 0x80)
+			{
+				size += 1;
+			}
+		}
+
+		byte[] bytes = new byte[size];
+		int position = 0;
+		for (int i = 0; i < length; i++)
+		{
+			c = chars.charAt(i);
+			if (c < 0x80)
+			{
+				bytes[position++] = (byte)c;
+			}
+			else if (c < 0x800)
+			{
+				bytes[position++] = (byte)(0xC0 | (c >>> 6));
+				bytes[position++] = (byte)(0x80 | (c & 0x3F));
+			}
+			else
+			{
+				bytes[position++] = (byte)(0xE0 | (c >>> 12));
+				bytes[position++] = (byte)(0x80 | ((c >>> 6) & 0x3F));
+				bytes[position++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+
+		return bytes;
+	}
+
+	private static void appendChars(byte[] bytes, Appendable out)
+	throws IOException
+	{
+		char[] buffer = new char[Math.min(bytes.length, 4096)];
+		int position = 0;
+		int count;
+		int b;
+		while (position < bytes.length)
+		{
+			count = 0;
+			while (count < buffer.length &&
+				   position < bytes.length)
+			{
+				b = bytes[position++] & 0xFF;
+				if (b < 0x80)
+				{
+					buffer[count++] = (char)b;
+				}
+				else if (b < 0xE0)
+				{
+					buffer[count++] = (char)(((b & 0x1F) << 6) | (bytes[position++] & 0x3F));
+				}
+				else
+				{
+					buffer[count++] = (char)(((b & 0x0F) << 12) | ((bytes[position] & 0x3F) << 6) | (bytes[position + 1] & 0x3F));
+					position += 2;
+				}
+			}
+
+			if (out instanceof Writer)
+			{
+				((Writer)out).write(buffer, 0, count);
+			}
+			else if (out instanceof StringBuilder)
+			{
+				((StringBuilder)out).append(buffer, 0, count);
+			}
+			else
+			{
+				out.append(new String(buffer, 0, count));
+			}
+		}
+	}
+}
@@ -0,0 +1,737 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.codelibs.jhighlight.highlighter.TokenBuffer;
+
+/**
+ * Keeps highlighting results in memory-mapped segment files, so that they
+ * survive restarts and can be shared by several processes on the same host.
+ * <p>Records are appended to the current segment, a new segment is started
+ * when it's full and the oldest segment is deleted when there are too many.
+ * Each record holds its serialized {@link RenderKey}, its result and a
+ * checksum; the in-memory index maps a 64-bit fingerprint of the key to the
+ * location of the record and the key is verified on every lookup.
+ * <p>Only one instance can write to a directory at a time, which is
+ * enforced by a file lock. Instances that can't acquire the lock are
+ * read-only and pick up the records of the writer when a lookup misses.
+ * Lookups never block on the writer, records are only published once they
+ * are completely written.
+ *
+ * @since 2.0.1
+ */
+public class PersistentRenderCache implements Closeable
+{
+	/** The default size of a segment file, in bytes. */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/** The default maximum number of segment files. */
+	public static final int DEFAULT_MAXIMUM_SEGMENTS = 16;
+	/** The options of the keys under which token streams are stored. */
+	public static final String TOKENS_OPTIONS = "tokens";
+
+	private static final String LOCK_FILE = "writer.lock";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".jhc";
+
+	private static final int SEGMENT_MAGIC = 0x4A484353;
+	private static final int SEGMENT_VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int VERSION_OFFSET = 4;
+	private static final int END_OFFSET = 8;
+	private static final int SEALED_OFFSET = 12;
+
+	private static final int RECORD_MAGIC = 0x4A485245;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	private final Path		mDirectory;
+	private final int		mSegmentSize;
+	private final int		mMaximumSegments;
+	private FileChannel		mLockChannel;
+	private FileLock		mLock;
+
+	private final ConcurrentHashMap<Long, Long>			mIndex = new ConcurrentHashMap<Long, Long>();
+	private final ConcurrentHashMap<Integer, Segment>	mSegmentsById = new ConcurrentHashMap<Integer, Segment>();
+	private final ArrayList<Segment>					mSegments = new ArrayList<Segment>();
+	private volatile boolean							mClosed = false;
+
+	/**
+	 * Opens the cache that's stored in a directory, with the default segment
+	 * size and maximum number of segments.
+	 *
+	 * @param directory the directory of the segment files, it's created if
+	 * it doesn't exist
+	 * @exception IOException when the directory or its segments couldn't be
+	 * opened
+	 */
+	public PersistentRenderCache(Path directory)
+	throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAXIMUM_SEGMENTS);
+	}
+
+	/**
+	 * Opens the cache that's stored in a directory.
+	 *
+	 * @param directory the directory of the segment files, it's created if
+	 * it doesn't exist
+	 * @param segmentSize the size of the segment files that are created, in
+	 * bytes; a result that doesn't fit in a segment isn't stored
+	 * @param maximumSegments the maximum number of segment files, the oldest
+	 * one is deleted when a new one is needed
+	 * @exception IOException when the directory or its segments couldn't be
+	 * opened
+	 */
+	public PersistentRenderCache(Path directory, int segmentSize, int maximumSegments)
+	throws IOException
+	{
+		if (null == directory)					throw new IllegalArgumentException("directory can't be null.");
+		if (segmentSize < HEADER_SIZE * 2)		throw new IllegalArgumentException("segmentSize should be at least " + (HEADER_SIZE * 2) + ".");
+		if (maximumSegments < 1)				throw new IllegalArgumentException("maximumSegments should be at least 1.");
+
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+		mMaximumSegments = maximumSegments;
+
+		Files.createDirectories(directory);
+		acquireLock();
+		try
+		{
+			openSegments();
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	private void acquireLock()
+	throws IOException
+	{
+		FileChannel channel = FileChannel.open(mDirectory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try
+		{
+			lock = channel.tryLock();
+		}
+		catch (OverlappingFileLockException e)
+		{
+			// another instance of this virtual machine is the writer
+			lock = null;
+		}
+
+		if (null == lock)
+		{
+			channel.close();
+		}
+		else
+		{
+			mLockChannel = channel;
+			mLock = lock;
+		}
+	}
+
+	private synchronized void openSegments()
+	throws IOException
+	{
+		ArrayList<Integer> ids = listSegmentIds();
+		Segment segment;
+		for (Integer id : ids)
+		{
+			segment = openSegment(id.intValue());
+			if (null == segment)
+			{
+				break;
+			}
+			addSegment(segment);
+			scan(segment);
+		}
+
+		if (isWritable())
+		{
+			if (mSegments.isEmpty())
+			{
+				addSegment(createSegment(0));
+			}
+			else
+			{
+				// records after the last valid one are leftovers of a writer
+				// that stopped while appending, they'll be overwritten
+				Segment last = mSegments.get(mSegments.size() - 1);
+				last.mBuffer.putInt(END_OFFSET, last.mScanned);
+			}
+		}
+	}
+
+	private ArrayList<Integer> listSegmentIds()
+	throws IOException
+	{
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(mDirectory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+		{
+			String file_name;
+			for (Path path : paths)
+			{
+				file_name = path.getFileName().toString();
+				try
+				{
+					ids.add(Integer.valueOf(file_name.substring(SEGMENT_PREFIX.length(), file_name.length() - SEGMENT_SUFFIX.length())));
+				}
+				catch (NumberFormatException e)
+				{
+					// not a segment of this cache
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		return ids;
+	}
+
+	private int findSegmentIdAfter(int id)
+	throws IOException
+	{
+		for (Integer segment_id : listSegmentIds())
+		{
+			if (segment_id.intValue() > id)
+			{
+				return segment_id.intValue();
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Indicates whether this instance is the writer of its directory.
+	 *
+	 * @return <code>true</code> if results can be stored; or
+	 * <p><code>false</code> if this instance is read-only
+	 */
+	public boolean isWritable()
+	{
+		return mLock != null;
+	}
+
+	/**
+	 * Returns the number of results that are currently indexed.
+	 *
+	 * @return the number of results
+	 */
+	public int getEntryCount()
+	{
+		return mIndex.size();
+	}
+
+	/**
+	 * Retrieves a result.
+	 *
+	 * @param key the key of the result
+	 * @return a copy of the result; or
+	 * <p><code>null</code> if it isn't in the cache
+	 * @exception IOException when the segments of the writer couldn't be
+	 * opened
+	 */
+	public byte[] get(RenderKey key)
+	throws IOException
+	{
+		ByteBuffer buffer = getBuffer(key);
+		if (null == buffer)
+		{
+			return null;
+		}
+
+		byte[] result = new byte[buffer.remaining()];
+		buffer.get(result);
+
+		return result;
+	}
+
+	/**
+	 * Retrieves a result without copying it out of the mapped segment.
+	 * <p>The returned buffer is a read-only view that stays valid as long as
+	 * this cache isn't closed, it can be written to a channel directly.
+	 *
+	 * @param key the key of the result
+	 * @return the result; or
+	 * <p><code>null</code> if it isn't in the cache
+	 * @exception IOException when the segments of the writer couldn't be
+	 * opened
+	 */
+	public ByteBuffer getBuffer(RenderKey key)
+	throws IOException
+	{
+		if (null == key)	throw new IllegalArgumentException("key can't be null.");
+		if (mClosed)		throw new IllegalStateException("The cache has been closed.");
+
+		byte[] key_bytes = key.toBytes();
+		long fingerprint = fingerprint(key_bytes);
+
+		ByteBuffer result = read(fingerprint, key_bytes);
+		if (null == result &&
+			!isWritable())
+		{
+			refresh();
+			result = read(fingerprint, key_bytes);
+		}
+
+		return result;
+	}
+
+	private ByteBuffer read(long fingerprint, byte[] keyBytes)
+	{
+		Long location = mIndex.get(fingerprint);
+		if (null == location)
+		{
+			return null;
+		}
+
+		Segment segment = mSegmentsById.get((int)(location.longValue() >>> 32));
+		if (null == segment)
+		{
+			return null;
+		}
+
+		MappedByteBuffer buffer = segment.mBuffer;
+		int position = (int)location.longValue();
+		int key_length = buffer.getInt(position + 4);
+		int value_length = buffer.getInt(position + 8);
+		if (key_length != keyBytes.length ||
+			!buffer.slice(position + RECORD_HEADER_SIZE, key_length).equals(ByteBuffer.wrap(keyBytes)))
+		{
+			// another key with the same fingerprint
+			return null;
+		}
+
+		return buffer.slice(position + RECORD_HEADER_SIZE + key_length, value_length).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Stores a result.
+	 * <p>Read-only instances ignore this call, as do all instances for
+	 * results that are already present or that don't fit in a segment.
+	 *
+	 * @param key the key of the result
+	 * @param result the result
+	 * @return <code>true</code> if the result has been stored; or
+	 * <p><code>false</code> otherwise
+	 * @exception IOException when a new segment couldn't be created
+	 */
+	public synchronized boolean put(RenderKey key, byte[] result)
+	throws IOException
+	{
+		if (null == key)	throw new IllegalArgumentException("key can't be null.");
+		if (null == result)	throw new IllegalArgumentException("result can't be null.");
+		if (mClosed)		throw new IllegalStateException("The cache has been closed.");
+
+		if (!isWritable())
+		{
+			return false;
+		}
+
+		byte[] key_bytes = key.toBytes();
+		long fingerprint = fingerprint(key_bytes);
+		if (read(fingerprint, key_bytes) != null)
+		{
+			return false;
+		}
+
+		int record_length = RECORD_HEADER_SIZE + key_bytes.length + result.length;
+		if (record_length < 0 ||
+			record_length > mSegmentSize - HEADER_SIZE)
+		{
+			return false;
+		}
+
+		Segment segment = mSegments.get(mSegments.size() - 1);
+		int position = segment.mScanned;
+		if ((long)position + record_length > segment.mBuffer.capacity())
+		{
+			segment.mBuffer.putInt(SEALED_OFFSET, 1);
+			segment = createSegment(segment.mId + 1);
+			addSegment(segment);
+			while (mSegments.size() > mMaximumSegments)
+			{
+				removeSegment(mSegments.get(0));
+			}
+			position = segment.mScanned;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(key_bytes);
+		crc.update(result);
+
+		// the magic number and the end of the segment are written last, a
+		// record is invisible to readers until it's complete
+		MappedByteBuffer buffer = segment.mBuffer;
+		buffer.put(position + RECORD_HEADER_SIZE, key_bytes);
+		buffer.put(position + RECORD_HEADER_SIZE + key_bytes.length, result);
+		buffer.putInt(position + 4, key_bytes.length);
+		buffer.putInt(position + 8, result.length);
+		buffer.putInt(position + 12, (int)crc.getValue());
+		buffer.putInt(position, RECORD_MAGIC);
+		buffer.putInt(END_OFFSET, position + record_length);
+
+		segment.mScanned = position + record_length;
+		mIndex.put(fingerprint, location(segment.mId, position));
+
+		return true;
+	}
+
+	/**
+	 * Retrieves the tokens of a source code.
+	 *
+	 * @param digest the digest of the source code
+	 * @param type the type of the renderer that scanned it
+	 * @return the tokens; or
+	 * <p><code>null</code> if they aren't in the cache
+	 * @exception IOException when the tokens couldn't be read
+	 * @see #putTokens(byte[], String, TokenBuffer)
+	 */
+	public TokenBuffer getTokens(byte[] digest, String type)
+	throws IOException
+	{
+		byte[] bytes = get(new RenderKey(digest, type, null, null, false, TOKENS_OPTIONS));
+		if (null == bytes)
+		{
+			return null;
+		}
+
+		return TokenBuffer.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * Stores the tokens of a source code, which allows them to be replayed
+	 * into other renderings without scanning again.
+	 *
+	 * @param digest the digest of the source code
+	 * @param type the type of the renderer that scanned it
+	 * @param tokens the tokens
+	 * @return <code>true</code> if the tokens have been stored; or
+	 * <p><code>false</code> otherwise
+	 * @exception IOException when the tokens couldn't be stored
+	 */
+	public boolean putTokens(byte[] digest, String type, TokenBuffer tokens)
+	throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		tokens.writeTo(out);
+		out.flush();
+
+		return put(new RenderKey(digest, type, null, null, false, TOKENS_OPTIONS), bytes.toByteArray());
+	}
+
+	/**
+	 * Indexes the records that the writer added since the last refresh,
+	 * including those in new segments, and forgets the segments that the
+	 * writer deleted.
+	 * <p>Read-only instances do this automatically when a lookup misses.
+	 *
+	 * @exception IOException when a new segment couldn't be opened
+	 */
+	public synchronized void refresh()
+	throws IOException
+	{
+		if (mClosed ||
+			isWritable())
+		{
+			return;
+		}
+
+		// the writer deletes the oldest segments first, the ones that are
+		// gone don't hold any record anymore
+		while (!mSegments.isEmpty() &&
+			   !Files.exists(mSegments.get(0).mPath))
+		{
+			releaseSegment(mSegments.get(0));
+		}
+
+		if (mSegments.isEmpty())
+		{
+			openSegments();
+			return;
+		}
+
+		Segment last = mSegments.get(mSegments.size() - 1);
+		scan(last);
+		Segment next;
+		int next_id;
+		while (1 == last.mBuffer.getInt(SEALED_OFFSET))
+		{
+			// the writer could already have deleted the segments that
+			// follow, in which case scanning continues at the oldest
+			// remaining one
+			next_id = last.mId + 1;
+			if (!Files.exists(getSegmentPath(next_id)))
+			{
+				next_id = findSegmentIdAfter(last.mId);
+			}
+			next = next_id < 0 ? null : openSegment(next_id);
+			if (null == next)
+			{
+				break;
+			}
+			addSegment(next);
+			scan(next);
+			last = next;
+		}
+	}
+
+	/**
+	 * Closes the segment files and releases the writer lock.
+	 * <p>The results that were obtained through
+	 * {@link #getBuffer(RenderKey)} shouldn't be used anymore.
+	 *
+	 * @exception IOException when a file couldn't be closed
+	 */
+	public synchronized void close()
+	throws IOException
+	{
+		if (mClosed)
+		{
+			return;
+		}
+		mClosed = true;
+
+		try
+		{
+			for (Segment segment : mSegments)
+			{
+				if (isWritable())
+				{
+					segment.mBuffer.force();
+				}
+				segment.mChannel.close();
+			}
+		}
+		finally
+		{
+			mSegments.clear();
+			mSegmentsById.clear();
+			mIndex.clear();
+
+			if (mLock != null)
+			{
+				mLock.release();
+				mLockChannel.close();
+			}
+		}
+	}
+
+	private Path getSegmentPath(int id)
+	{
+		return mDirectory.resolve(SEGMENT_PREFIX + String.format("%06d", id) + SEGMENT_SUFFIX);
+	}
+
+	private Segment createSegment(int id)
+	throws IOException
+	{
+		Path path = getSegmentPath(id);
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"))
+		{
+			file.setLength(0);
+			file.setLength(mSegmentSize);
+		}
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+		buffer.putInt(VERSION_OFFSET, SEGMENT_VERSION);
+		buffer.putInt(END_OFFSET, HEADER_SIZE);
+		buffer.putInt(SEALED_OFFSET, 0);
+		buffer.putInt(0, SEGMENT_MAGIC);
+
+		return new Segment(id, path, channel, buffer);
+	}
+
+	/**
+	 * Maps an existing segment.
+	 *
+	 * @return the segment; or
+	 * <p><code>null</code> if it doesn't exist or isn't initialized yet
+	 */
+	private Segment openSegment(int id)
+	throws IOException
+	{
+		Path path = getSegmentPath(id);
+		if (!Files.exists(path))
+		{
+			return null;
+		}
+
+		FileChannel channel;
+		FileChannel.MapMode mode;
+		if (isWritable())
+		{
+			channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			mode = FileChannel.MapMode.READ_WRITE;
+		}
+		else
+		{
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			mode = FileChannel.MapMode.READ_ONLY;
+		}
+
+		long size = channel.size();
+		if (size < HEADER_SIZE ||
+			size > Integer.MAX_VALUE)
+		{
+			channel.close();
+			return null;
+		}
+
+		MappedByteBuffer buffer = channel.map(mode, 0, size);
+		if (buffer.getInt(0) != SEGMENT_MAGIC ||
+			buffer.getInt(VERSION_OFFSET) != SEGMENT_VERSION)
+		{
+			channel.close();
+			return null;
+		}
+
+		return new Segment(id, path, channel, buffer);
+	}
+
+	private void addSegment(Segment segment)
+	{
+		mSegments.add(segment);
+		mSegmentsById.put(segment.mId, segment);
+	}
+
+	private void removeSegment(Segment segment)
+	throws IOException
+	{
+		releaseSegment(segment);
+		try
+		{
+			Files.deleteIfExists(segment.mPath);
+		}
+		catch (IOException e)
+		{
+			// another process still maps it on a platform that doesn't allow
+			// that, the file is left behind until the next eviction
+		}
+	}
+
+	/**
+	 * Forgets a segment and its records and closes its file. Its mapping is
+	 * released by the garbage collector once the buffers of
+	 * {@link #getBuffer(RenderKey)} that still refer to it are gone.
+	 */
+	private void releaseSegment(Segment segment)
+	throws IOException
+	{
+		mSegments.remove(segment);
+		mSegmentsById.remove(segment.mId);
+		final long id = segment.mId;
+		mIndex.values().removeIf(location -> (location.longValue() >>> 32) == id);
+		segment.mChannel.close();
+	}
+
+	/**
+	 * Indexes the records of a segment from where the previous scan
+	 * stopped, until the end that's published in its header or until a
+	 * record that isn't valid.
+	 */
+	private void scan(Segment segment)
+	{
+		MappedByteBuffer buffer = segment.mBuffer;
+		int end = Math.min(buffer.getInt(END_OFFSET), buffer.capacity());
+		int position = segment.mScanned;
+		int key_length;
+		int value_length;
+		byte[] key_bytes;
+		CRC32 crc = new CRC32();
+		while (position + RECORD_HEADER_SIZE <= end)
+		{
+			if (buffer.getInt(position) != RECORD_MAGIC)
+			{
+				break;
+			}
+
+			key_length = buffer.getInt(position + 4);
+			value_length = buffer.getInt(position + 8);
+			if (key_length < 0 ||
+				value_length < 0 ||
+				(long)position + RECORD_HEADER_SIZE + key_length + value_length > end)
+			{
+				break;
+			}
+
+			key_bytes = new byte[key_length];
+			buffer.get(position + RECORD_HEADER_SIZE, key_bytes);
+			crc.reset();
+			crc.update(key_bytes);
+			crc.update(buffer.slice(position + RECORD_HEADER_SIZE + key_length, value_length));
+			if ((int)crc.getValue() != buffer.getInt(position + 12))
+			{
+				break;
+			}
+
+			mIndex.put(fingerprint(key_bytes), location(segment.mId, position));
+			position += RECORD_HEADER_SIZE + key_length + value_length;
+		}
+
+		segment.mScanned = position;
+	}
+
+	private static long location(int segmentId, int position)
+	{
+		return ((long)segmentId << 32) | (position & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Computes the 64-bit FNV-1a hash of a serialized key.
+	 */
+	private static long fingerprint(byte[] keyBytes)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (byte b : keyBytes)
+		{
+			hash ^= b & 0xFF;
+			hash *= 0x100000001B3L;
+		}
+
+		return hash;
+	}
+
+	private static final class Segment
+	{
+		private final int				mId;
+		private final Path				mPath;
+		private final FileChannel		mChannel;
+		private final MappedByteBuffer	mBuffer;
+		private int						mScanned = HEADER_SIZE;
+
+		private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer)
+		{
+			mId = id;
+			mPath = path;
+			mChannel = channel;
+			mBuffer = buffer;
+		}
+	}
+}
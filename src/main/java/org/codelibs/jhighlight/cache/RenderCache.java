@@ -0,0 +1,405 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.codelibs.jhighlight.tools.ExceptionUtils;
+
+/**
+ * Keeps highlighting results in memory, bounded by their total size in
+ * bytes.
+ * <p>The least recently used results are evicted first. When several
+ * threads ask for the same missing result at the same time, it's only
+ * rendered once and the other threads wait for it.
+ * <p>A {@link PersistentRenderCache} can be added as a second tier, results
+ * that are missing in memory are then looked up on disk before they're
+ * rendered, and rendered results are stored on disk too.
+ *
+ * @since 2.0.1
+ */
+public class RenderCache
+{
+	/**
+	 * Renders a result that isn't in the cache.
+	 */
+	public interface Loader
+	{
+		/**
+		 * Renders the result.
+		 *
+		 * @return the rendered result
+		 * @exception IOException when an error occurred while rendering
+		 */
+		public byte[] load() throws IOException;
+	}
+
+	private final long					mMaximumWeight;
+	private final PersistentRenderCache	mStore;
+
+	private final LinkedHashMap<RenderKey, byte[]>	mEntries = new LinkedHashMap<RenderKey, byte[]>(16, 0.75f, true);
+	private long									mWeight = 0;
+
+	private final ConcurrentHashMap<RenderKey, CompletableFuture<byte[]>>	mLoading = new ConcurrentHashMap<RenderKey, CompletableFuture<byte[]>>();
+
+	private final LongAdder	mHitCount = new LongAdder();
+	private final LongAdder	mMissCount = new LongAdder();
+	private final LongAdder	mStoreHitCount = new LongAdder();
+	private final LongAdder	mCoalescedCount = new LongAdder();
+	private final LongAdder	mEvictionCount = new LongAdder();
+	private final LongAdder	mEvictionWeight = new LongAdder();
+	private final LongAdder	mLoadFailureCount = new LongAdder();
+
+	/**
+	 * Creates a new <code>RenderCache</code>.
+	 *
+	 * @param maximumWeight the maximum number of bytes that the cached
+	 * results and their keys can occupy
+	 */
+	public RenderCache(long maximumWeight)
+	{
+		this(maximumWeight, null);
+	}
+
+	/**
+	 * Creates a new <code>RenderCache</code> backed by a persistent cache.
+	 *
+	 * @param maximumWeight the maximum number of bytes that the cached
+	 * results and their keys can occupy in memory
+	 * @param store the persistent cache that's consulted before rendering;
+	 * or <code>null</code> if there's none
+	 */
+	public RenderCache(long maximumWeight, PersistentRenderCache store)
+	{
+		if (maximumWeight < 1)	throw new IllegalArgumentException("maximumWeight should be at least 1.");
+
+		mMaximumWeight = maximumWeight;
+		mStore = store;
+	}
+
+	/**
+	 * Retrieves a result from the cache, rendering it if it isn't present.
+	 * <p>A result that's larger than the maximum weight is returned but
+	 * isn't kept.
+	 *
+	 * @param key the key of the result
+	 * @param loader renders the result when it's missing
+	 * @return the result; the returned array is shared and shouldn't be
+	 * modified
+	 * @exception IOException when an error occurred while rendering
+	 */
+	public byte[] get(RenderKey key, Loader loader)
+	throws IOException
+	{
+		if (null == key)	throw new IllegalArgumentException("key can't be null.");
+		if (null == loader)	throw new IllegalArgumentException("loader can't be null.");
+
+		byte[] result = getIfPresent(key);
+		if (result != null)
+		{
+			mHitCount.increment();
+			return result;
+		}
+
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> loading = mLoading.putIfAbsent(key, future);
+		if (loading != null)
+		{
+			mCoalescedCount.increment();
+			return await(loading);
+		}
+
+		try
+		{
+			// the result could have been stored after the first lookup
+			result = getIfPresent(key);
+			if (result != null)
+			{
+				mHitCount.increment();
+			}
+			else if (mStore != null &&
+					 (result = mStore.get(key)) != null)
+			{
+				mStoreHitCount.increment();
+				put(key, result);
+			}
+			else
+			{
+				mMissCount.increment();
+				result = loader.load();
+				if (null == result)	throw new IllegalStateException("The loader returned null.");
+				put(key, result);
+				if (mStore != null)
+				{
+					store(key, result);
+				}
+			}
+			future.complete(result);
+
+			return result;
+		}
+		catch (IOException | RuntimeException | Error e)
+		{
+			mLoadFailureCount.increment();
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			mLoading.remove(key, future);
+		}
+	}
+
+	/**
+	 * Retrieves a result without rendering it.
+	 *
+	 * @param key the key of the result
+	 * @return the result; or
+	 * <p><code>null</code> if it isn't in the cache
+	 */
+	public byte[] getIfPresent(RenderKey key)
+	{
+		synchronized (mEntries)
+		{
+			return mEntries.get(key);
+		}
+	}
+
+	/**
+	 * Stores a result, evicting the least recently used results if
+	 * needed.
+	 *
+	 * @param key the key of the result
+	 * @param result the result
+	 */
+	public void put(RenderKey key, byte[] result)
+	{
+		long weight = weigh(key, result);
+		if (weight > mMaximumWeight)
+		{
+			return;
+		}
+
+		synchronized (mEntries)
+		{
+			byte[] previous = mEntries.put(key, result);
+			if (previous != null)
+			{
+				mWeight -= weigh(key, previous);
+			}
+			mWeight += weight;
+
+			Iterator<Map.Entry<RenderKey, byte[]>> it = mEntries.entrySet().iterator();
+			Map.Entry<RenderKey, byte[]> eldest;
+			long eldest_weight;
+			while (mWeight > mMaximumWeight)
+			{
+				eldest = it.next();
+				eldest_weight = weigh(eldest.getKey(), eldest.getValue());
+				it.remove();
+				mWeight -= eldest_weight;
+				mEvictionCount.increment();
+				mEvictionWeight.add(eldest_weight);
+			}
+		}
+	}
+
+	/**
+	 * Removes all the results.
+	 */
+	public void clear()
+	{
+		synchronized (mEntries)
+		{
+			mEntries.clear();
+			mWeight = 0;
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of this cache.
+	 *
+	 * @return the statistics
+	 */
+	public Statistics getStatistics()
+	{
+		int entry_count;
+		long weight;
+		synchronized (mEntries)
+		{
+			entry_count = mEntries.size();
+			weight = mWeight;
+		}
+
+		return new Statistics(mHitCount.sum(), mStoreHitCount.sum(), mMissCount.sum(), mCoalescedCount.sum(),
+			mEvictionCount.sum(), mEvictionWeight.sum(), mLoadFailureCount.sum(),
+			entry_count, weight, mMaximumWeight);
+	}
+
+	private void store(RenderKey key, byte[] result)
+	{
+		try
+		{
+			mStore.put(key, result);
+		}
+		catch (IOException e)
+		{
+			// the result is still served, it just won't survive a restart
+			Logger.getLogger("org.codelibs.jhighlight").warning("Error while storing a highlighting result in the persistent cache.\n" + ExceptionUtils.getExceptionStackTrace(e));
+		}
+	}
+
+	private static long weigh(RenderKey key, byte[] result)
+	{
+		return key.getWeight() + 16 + result.length;
+	}
+
+	private static byte[] await(CompletableFuture<byte[]> loading)
+	throws IOException
+	{
+		try
+		{
+			return loading.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the result.", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)		throw new IOException(cause.getMessage(), cause);
+			if (cause instanceof RuntimeException)	throw (RuntimeException)cause;
+			if (cause instanceof Error)				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * A snapshot of the statistics of a {@link RenderCache}.
+	 */
+	public static final class Statistics
+	{
+		private final long	mHitCount;
+		private final long	mStoreHitCount;
+		private final long	mMissCount;
+		private final long	mCoalescedCount;
+		private final long	mEvictionCount;
+		private final long	mEvictionWeight;
+		private final long	mLoadFailureCount;
+		private final int	mEntryCount;
+		private final long	mWeight;
+		private final long	mMaximumWeight;
+
+		Statistics(long hitCount, long storeHitCount, long missCount, long coalescedCount, long evictionCount, long evictionWeight, long loadFailureCount, int entryCount, long weight, long maximumWeight)
+		{
+			mHitCount = hitCount;
+			mStoreHitCount = storeHitCount;
+			mMissCount = missCount;
+			mCoalescedCount = coalescedCount;
+			mEvictionCount = evictionCount;
+			mEvictionWeight = evictionWeight;
+			mLoadFailureCount = loadFailureCount;
+			mEntryCount = entryCount;
+			mWeight = weight;
+			mMaximumWeight = maximumWeight;
+		}
+
+		/** @return the number of requests that were served from the cache */
+		public long getHitCount()
+		{
+			return mHitCount;
+		}
+
+		/** @return the number of requests that were served from the
+		 * persistent cache */
+		public long getStoreHitCount()
+		{
+			return mStoreHitCount;
+		}
+
+		/** @return the number of requests that rendered their result */
+		public long getMissCount()
+		{
+			return mMissCount;
+		}
+
+		/** @return the number of requests that waited for the rendering of
+		 * an identical request */
+		public long getCoalescedCount()
+		{
+			return mCoalescedCount;
+		}
+
+		/** @return the number of results that were evicted */
+		public long getEvictionCount()
+		{
+			return mEvictionCount;
+		}
+
+		/** @return the total weight of the results that were evicted */
+		public long getEvictionWeight()
+		{
+			return mEvictionWeight;
+		}
+
+		/** @return the number of renderings that failed */
+		public long getLoadFailureCount()
+		{
+			return mLoadFailureCount;
+		}
+
+		/** @return the number of results in the cache */
+		public int getEntryCount()
+		{
+			return mEntryCount;
+		}
+
+		/** @return the weight of the results in the cache, in bytes */
+		public long getWeight()
+		{
+			return mWeight;
+		}
+
+		/** @return the maximum weight of the cache, in bytes */
+		public long getMaximumWeight()
+		{
+			return mMaximumWeight;
+		}
+
+		/**
+		 * Returns the ratio of requests that didn't render their result.
+		 *
+		 * @return the hit rate, between 0 and 1
+		 */
+		public double getHitRate()
+		{
+			long requests = mHitCount + mStoreHitCount + mCoalescedCount + mMissCount;
+			if (0 == requests)
+			{
+				return 1.0;
+			}
+
+			return (double)(mHitCount + mStoreHitCount + mCoalescedCount) / requests;
+		}
+
+		public String toString()
+		{
+			return "hits=" + mHitCount + ", store hits=" + mStoreHitCount + ", misses=" + mMissCount + ", coalesced=" + mCoalescedCount +
+				", evictions=" + mEvictionCount + ", failures=" + mLoadFailureCount +
+				", entries=" + mEntryCount + ", weight=" + mWeight + "/" + mMaximumWeight;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Identifies a highlighting by the hash of the source code and by everything
+ * else that influences the result.
+ * <p>The content is identified by its SHA-256 digest, two sources with the
+ * same content share their cache entries whatever their origin.
+ *
+ * @since 2.0.1
+ */
+public final class RenderKey
+{
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final byte[]	mDigest;
+	private final String	mType;
+	private final String	mName;
+	private final String	mEncoding;
+	private final boolean	mFragment;
+	private final String	mOptions;
+	private final int		mHashCode;
+
+	/**
+	 * Creates a new <code>RenderKey</code>.
+	 *
+	 * @param digest the SHA-256 digest of the source code, see
+	 * {@link #digest(byte[], int, int)}
+	 * @param type the type of the renderer
+	 * @param name the name of the source file, it appears in the result
+	 * @param encoding the encoding of the result; or <code>null</code> if the
+	 * result is made of characters
+	 * @param fragment <code>true</code> if the result is a fragment; or
+	 * <code>false</code> if it's a complete document
+	 * @param options any other option of the renderer that changes the
+	 * result; or <code>null</code> if there's none
+	 */
+	public RenderKey(byte[] digest, String type, String name, String encoding, boolean fragment, String options)
+	{
+		if (null == digest)	throw new IllegalArgumentException("digest can't be null.");
+		if (null == type)	throw new IllegalArgumentException("type can't be null.");
+
+		mDigest = digest.clone();
+		mType = type;
+		mName = name;
+		mEncoding = encoding;
+		mFragment = fragment;
+		mOptions = options;
+
+		int hash_code = Arrays.hashCode(mDigest);
+		hash_code = 31 * hash_code + mType.hashCode();
+		hash_code = 31 * hash_code + Objects.hashCode(mName);
+		hash_code = 31 * hash_code + Objects.hashCode(mEncoding);
+		hash_code = 31 * hash_code + (mFragment ? 1 : 0);
+		hash_code = 31 * hash_code + Objects.hashCode(mOptions);
+		mHashCode = hash_code;
+	}
+
+	/**
+	 * Computes the digest of source code that's provided as bytes.
+	 *
+	 * @param content the buffer that contains the source code
+	 * @param offset the index of the first byte of the source code
+	 * @param length the number of bytes of the source code
+	 * @return the digest of the source code
+	 */
+	public static byte[] digest(byte[] content, int offset, int length)
+	{
+		MessageDigest digest = newDigest();
+		digest.update(content, offset, length);
+		return digest.digest();
+	}
+
+	/**
+	 * Computes the digest of source code that's provided as characters.
+	 * <p>Every character is digested as two bytes, no charset is involved.
+	 *
+	 * @param content the source code
+	 * @return the digest of the source code
+	 */
+	public static byte[] digest(CharSequence content)
+	{
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[1024];
+		int length = content.length();
+		int position = 0;
+		int count;
+		char c;
+		while (position < length)
+		{
+			count = Math.min(buffer.length / 2, length - position);
+			for (int i = 0; i < count; i++)
+			{
+				c = content.charAt(position + i);
+				buffer[i * 2] = (byte)(c >>> 8);
+				buffer[i * 2 + 1] = (byte)c;
+			}
+			digest.update(buffer, 0, count * 2);
+			position += count;
+		}
+
+		return digest.digest();
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the digest of the source code.
+	 *
+	 * @return a copy of the digest
+	 */
+	public byte[] getDigest()
+	{
+		return mDigest.clone();
+	}
+
+	/** @return the type of the renderer */
+	public String getType()
+	{
+		return mType;
+	}
+
+	/** @return the name of the source file */
+	public String getName()
+	{
+		return mName;
+	}
+
+	/** @return the encoding of the result; or <code>null</code> if it's made of
+	 * characters */
+	public String getEncoding()
+	{
+		return mEncoding;
+	}
+
+	/** @return <code>true</code> if the result is a fragment */
+	public boolean isFragment()
+	{
+		return mFragment;
+	}
+
+	/** @return the other options of the renderer; or <code>null</code> */
+	public String getOptions()
+	{
+		return mOptions;
+	}
+
+	/**
+	 * Serializes this key, two keys are equal when their serialized forms
+	 * are.
+	 *
+	 * @return the serialized key
+	 */
+	byte[] toBytes()
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + getWeight());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(mDigest.length);
+			out.write(mDigest);
+			out.writeUTF(mType);
+			writeOptionalUTF(out, mName);
+			writeOptionalUTF(out, mEncoding);
+			out.writeBoolean(mFragment);
+			writeOptionalUTF(out, mOptions);
+			out.flush();
+
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeOptionalUTF(DataOutputStream out, String value)
+	throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null)
+		{
+			out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Returns the approximate number of bytes that this key occupies in
+	 * memory.
+	 *
+	 * @return the weight of this key
+	 */
+	int getWeight()
+	{
+		return 64 + mDigest.length +
+			2 * (mType.length() +
+				 (null == mName ? 0 : mName.length()) +
+				 (null == mEncoding ? 0 : mEncoding.length()) +
+				 (null == mOptions ? 0 : mOptions.length()));
+	}
+
+	public int hashCode()
+	{
+		return mHashCode;
+	}
+
+	public boolean equals(Object other)
+	{
+		if (this == other)
+		{
+			return true;
+		}
+		if (!(other instanceof RenderKey))
+		{
+			return false;
+		}
+
+		RenderKey key = (RenderKey)other;
+		return mHashCode == key.mHashCode &&
+			mFragment == key.mFragment &&
+			Arrays.equals(mDigest, key.mDigest) &&
+			mType.equals(key.mType) &&
+			Objects.equals(mName, key.mName) &&
+			Objects.equals(mEncoding, key.mEncoding) &&
+			Objects.equals(mOptions, key.mOptions);
+	}
+}
@@ -29,6 +29,23 @@ public interface ExplicitStateHighlighter
 	 */
 	void setReader(Reader reader);
 
+	/**
+	 * Resets the scanner so that it can be reused for a new source.
+	 * <p>All the scanning state is discarded and the lexical state is set
+	 * back to the start state, but the internal buffer is kept.
+	 * <p>Highlighters that can't be reused throw an
+	 * <code>UnsupportedOperationException</code>, the renderers then create
+	 * a new highlighter for every source.
+	 * 
+	 * @param reader the <code>Reader</code> that has to be used; or
+	 * <p><code>null</code> if the reader will be set later
+	 * @since 2.0.1
+	 */
+	default void reset(Reader reader)
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " can't be reset.");
+	}
+
 	/**
 	 * Obtain the next token from the scanner.
 	 * 
@@ -44,4 +61,98 @@ public interface ExplicitStateHighlighter
 	 * @return the length of the matched text region
 	 */
 	int getTokenLength();
+
+	/**
+	 * Returns the number of styles produced by this highlighter.
+	 * <p>Highlighters that don't support it throw an
+	 * <code>UnsupportedOperationException</code>.
+	 * 
+	 * @return the number of styles produced by this highlighter
+	 * @since 2.0.1
+	 */
+	default int getStyleCount()
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " doesn't provide its number of styles.");
+	}
+
+	/**
+	 * Returns the lexical state in which the scanning of a source starts.
+	 * <p>Highlighters that don't expose their lexical states throw an
+	 * <code>UnsupportedOperationException</code>.
+	 * 
+	 * @return the initial lexical state
+	 * @since 2.0.1
+	 */
+	default byte getStartState()
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " doesn't expose its lexical states.");
+	}
+
+	/**
+	 * Returns the lexical state in which the scanner currently is.
+	 * <p>Highlighters that don't expose their lexical states throw an
+	 * <code>UnsupportedOperationException</code>.
+	 * 
+	 * @return the current lexical state
+	 * @since 2.0.1
+	 */
+	default byte getCurrentState()
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " doesn't expose its lexical states.");
+	}
+
+	/**
+	 * Changes the lexical state of the scanner, the following tokens will be
+	 * matched in that state.
+	 * <p>Highlighters that don't expose their lexical states throw an
+	 * <code>UnsupportedOperationException</code>.
+	 * 
+	 * @param newState one of the lexical states that are returned by
+	 * {@link #getStartState()} and {@link #getCurrentState()}
+	 * @exception IllegalArgumentException if the state isn't one of the
+	 * lexical states of this highlighter
+	 * @since 2.0.1
+	 */
+	default void setState(byte newState)
+	{
+		throw new UnsupportedOperationException(getClass().getName() + " doesn't expose its lexical states.");
+	}
+
+	/**
+	 * Returns everything that the scanner carries from the end of a line to
+	 * the start of the next one.
+	 * <p>This is the lexical state together with whatever else the lexer
+	 * remembers between tokens. Two scanners of the same class that start a
+	 * line from the same checkpoint produce the same tokens for it.
+	 * <p>By default, this is the current lexical state, highlighters that
+	 * remember more should override it together with
+	 * {@link #restoreCheckpoint(int)}.
+	 *
+	 * @return the checkpoint of the scanner at the current position
+	 * @see #restoreCheckpoint(int)
+	 * @since 2.0.1
+	 */
+	default int getCheckpoint()
+	{
+		return getCurrentState();
+	}
+
+	/**
+	 * Puts the scanner back in the state of a checkpoint, the following
+	 * tokens will be matched as if the scanning had continued from there.
+	 *
+	 * @param checkpoint a value that was returned by {@link
+	 * #getCheckpoint()} of a scanner of the same class
+	 * @exception IllegalArgumentException if the value isn't a checkpoint
+	 * of this highlighter
+	 * @since 2.0.1
+	 */
+	default void restoreCheckpoint(int checkpoint)
+	{
+		if (checkpoint != (byte)checkpoint)
+		{
+			throw new IllegalArgumentException("Unknown checkpoint " + checkpoint + ".");
+		}
+		setState((byte)checkpoint);
+	}
 }
@@ -609,12 +609,32 @@ public class GroovyHighlighter implements ExplicitStateHighlighter {
 	/** Sets the current lexical state of this highlighter.
 	 *
 	 * @param newState the new lexical state.
+	 * @exception IllegalArgumentException if the state isn't one of the
+	 * lexical states of this highlighter.
 	 */
 	public void setState(byte newState)
 	{
+		if (!isLexicalState(newState-1))
+		{
+			throw new IllegalArgumentException("Unknown lexical state " + newState + ".");
+		}
 		yybegin(newState-1);
 	}
 	
+	private static boolean isLexicalState(int state)
+	{
+		switch (state)
+		{
+			case YYINITIAL:
+			case IN_HEREDOC:
+			case IN_COMMENT:
+			case IN_JAVA_DOC_COMMENT:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
 	public byte getNextToken()
 	throws IOException
 	{
@@ -630,6 +650,11 @@ public class GroovyHighlighter implements ExplicitStateHighlighter {
 	{
 		this.zzReader = r;
 	}
+	
+	public void reset(Reader r)
+	{
+		yyreset(r);
+	}
 
 	/** Creates a new {@link GroovyHighlighter}. */
 	public GroovyHighlighter()
@@ -0,0 +1,275 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.Supplier;
+
+import org.codelibs.jhighlight.tools.LineReader;
+
+/**
+ * Holds everything that's needed to scan one source at a time: a lexer and
+ * the line reader that feeds it.
+ * <p>A session isn't thread-safe, it is meant to be taken from a
+ * {@link HighlighterSessionPool} for the duration of a single scan. The lexer
+ * and the reader are reset between scans, so their buffers are reused
+ * instead of being allocated again.
+ * <p>A lexer that doesn't support {@link ExplicitStateHighlighter#reset(Reader)}
+ * can still be used: a session that was created with a factory then takes
+ * a new lexer from it for every source, a session that was created with a
+ * single lexer can then only scan one source.
+ *
+ * @since 2.0.1
+ */
+public final class HighlighterSession
+{
+	private static final Reader EMPTY_READER = Reader.nullReader();
+
+	private final Supplier<? extends ExplicitStateHighlighter>	mFactory;
+	private ExplicitStateHighlighter							mHighlighter;
+	private LineReader											mLineReader;
+	private boolean												mResettable = true;
+	private boolean												mUsed = false;
+
+	/**
+	 * Creates a new <code>HighlighterSession</code>.
+	 *
+	 * @param highlighter the lexer that will be used by this session
+	 */
+	public HighlighterSession(ExplicitStateHighlighter highlighter)
+	{
+		if (null == highlighter)	throw new IllegalArgumentException("highlighter can't be null.");
+
+		mFactory = null;
+		mHighlighter = highlighter;
+	}
+
+	/**
+	 * Creates a new <code>HighlighterSession</code> whose lexer is replaced
+	 * by a new one for every source if it can't be reset.
+	 *
+	 * @param factory creates the lexers of this session
+	 */
+	HighlighterSession(Supplier<? extends ExplicitStateHighlighter> factory)
+	{
+		if (null == factory)	throw new IllegalArgumentException("factory can't be null.");
+
+		mFactory = factory;
+		mHighlighter = factory.get();
+	}
+
+	/**
+	 * Returns the lexer of this session.
+	 * <p>A lexer that can't be reset is replaced when the next source is
+	 * opened, it should be obtained again after {@link #open(Reader)}.
+	 *
+	 * @return the lexer
+	 */
+	public ExplicitStateHighlighter getHighlighter()
+	{
+		return mHighlighter;
+	}
+
+	/**
+	 * Prepares the line reader of this session for a new source.
+	 * <p>The lexer is reset as well, it's up to the caller to scan the
+	 * returned reader with it.
+	 *
+	 * @param in the reader that provides the source
+	 * @return the line reader that provides the lines of the source
+	 */
+	public LineReader open(Reader in)
+	{
+		if (mUsed)
+		{
+			renew();
+		}
+		mUsed = true;
+		if (null == mLineReader)
+		{
+			mLineReader = new LineReader(in, TokenScanner.TAB_WIDTH);
+		}
+		else
+		{
+			mLineReader.reset(in);
+		}
+
+		return mLineReader;
+	}
+
+	/**
+	 * Scans a complete source and reports its tokens to a sink.
+	 *
+	 * @param in the reader that provides the source
+	 * @param sink the sink that receives the tokens
+	 * @exception IOException when an error occurred while reading the source
+	 * or while processing the tokens
+	 * @see TokenScanner#scan(ExplicitStateHighlighter, LineReader, TokenSink)
+	 */
+	public void scan(Reader in, TokenSink sink)
+	throws IOException
+	{
+		LineReader lines = open(in);
+		TokenScanner.scan(mHighlighter, lines, sink);
+	}
+
+	/**
+	 * Prepares this session for a source that's provided in parts through
+	 * {@link #scanLines(char[], int, int, boolean, TokenSink)}.
+	 */
+	public void begin()
+	{
+		LineReader lines = open(EMPTY_READER);
+		mHighlighter.setReader(lines);
+	}
+
+	/**
+	 * Scans the complete lines of a part of a source and reports their
+	 * tokens to a sink.
+	 * <p>The lexer state is carried over from the previous part. A line that
+	 * isn't complete yet is left unscanned, unless it's the last part of the
+	 * source.
+	 *
+	 * @param text the characters of the part
+	 * @param offset the index of the first character of the part
+	 * @param length the number of characters of the part
+	 * @param last <code>true</code> if this is the last part of the source;
+	 * or <code>false</code> otherwise
+	 * @param sink the sink that receives the tokens
+	 * @return the number of characters that have been scanned; the remaining
+	 * ones should be provided again at the start of the next part
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @see #begin()
+	 */
+	public int scanLines(char[] text, int offset, int length, boolean last, TokenSink sink)
+	throws IOException
+	{
+		return scanLines(text, offset, length, 0, last, sink);
+	}
+
+	/**
+	 * Scans the complete lines of a part of a source, whose first characters
+	 * are already known not to end a line, and reports their tokens to a
+	 * sink.
+	 * <p>Only the characters that follow the checked ones are searched for
+	 * the end of the last complete line. A caller that provides the
+	 * remaining characters of a part again, followed by new ones, thereby
+	 * doesn't search them over and over while a long line is being
+	 * completed.
+	 *
+	 * @param text the characters of the part
+	 * @param offset the index of the first character of the part
+	 * @param length the number of characters of the part
+	 * @param checked the number of characters at the start of the part that
+	 * don't end a line, a carriage return that could be followed by a line
+	 * feed shouldn't be included
+	 * @param last <code>true</code> if this is the last part of the source;
+	 * or <code>false</code> otherwise
+	 * @param sink the sink that receives the tokens
+	 * @return the number of characters that have been scanned; the remaining
+	 * ones should be provided again at the start of the next part
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @see #scanLines(char[], int, int, boolean, TokenSink)
+	 */
+	public int scanLines(char[] text, int offset, int length, int checked, boolean last, TokenSink sink)
+	throws IOException
+	{
+		if (checked < 0 ||
+			checked > length)
+		{
+			throw new IllegalArgumentException("checked should be between 0 and " + length + ".");
+		}
+
+		int complete = offset + length;
+		if (!last)
+		{
+			// a carriage return at the very end could still be followed by a
+			// line feed, it only ends a line once the next character is known
+			int end = complete;
+			int start = offset + checked;
+			char c;
+			while (complete > start)
+			{
+				c = text[complete - 1];
+				if ('\n' == c ||
+					('\r' == c && complete < end))
+				{
+					break;
+				}
+				complete--;
+			}
+			if (complete == start)
+			{
+				complete = offset;
+			}
+		}
+
+		int scanned = complete - offset;
+		if (scanned > 0)
+		{
+			mLineReader.reset(new CharArrayReader(text, offset, scanned));
+			TokenScanner.scan(mHighlighter, mLineReader, sink);
+		}
+
+		return scanned;
+	}
+
+	/**
+	 * Releases the references that this session holds to the last source,
+	 * while keeping its buffers.
+	 */
+	void clear()
+	{
+		if (mUsed &&
+			(mResettable || mFactory != null))
+		{
+			renew();
+			mUsed = false;
+		}
+		if (mLineReader != null)
+		{
+			mLineReader.reset(EMPTY_READER);
+		}
+	}
+
+	/**
+	 * Discards the state that the lexer carries from the previous source,
+	 * by resetting it or, if it can't be reset, by replacing it with a new
+	 * lexer of the factory.
+	 *
+	 * @exception UnsupportedOperationException if the lexer can't be reset
+	 * and this session has no factory
+	 */
+	private void renew()
+	{
+		if (mResettable)
+		{
+			try
+			{
+				mHighlighter.reset(null);
+				return;
+			}
+			catch (UnsupportedOperationException e)
+			{
+				mResettable = false;
+				if (null == mFactory)
+				{
+					throw e;
+				}
+			}
+		}
+		else if (null == mFactory)
+		{
+			throw new UnsupportedOperationException(mHighlighter.getClass().getName() + " can't be reset.");
+		}
+
+		mHighlighter = mFactory.get();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a bounded number of idle {@link HighlighterSession}s for reuse.
+ * <p>The pool never blocks: when no idle session is available, a new one is
+ * created, and a released session is dropped when the pool is full. This
+ * bounds the retained memory independently of the number of threads, which
+ * also makes it suitable for virtual threads.
+ *
+ * @since 2.0.1
+ */
+public class HighlighterSessionPool
+{
+	/** The default number of idle sessions that are kept. */
+	public static final int DEFAULT_CAPACITY = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+	private final Supplier<? extends ExplicitStateHighlighter>	mFactory;
+	private final ArrayBlockingQueue<HighlighterSession>		mIdle;
+
+	/**
+	 * Creates a new <code>HighlighterSessionPool</code> with the default
+	 * capacity.
+	 *
+	 * @param factory creates the lexers of new sessions
+	 */
+	public HighlighterSessionPool(Supplier<? extends ExplicitStateHighlighter> factory)
+	{
+		this(factory, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new <code>HighlighterSessionPool</code>.
+	 *
+	 * @param factory creates the lexers of new sessions
+	 * @param capacity the maximum number of idle sessions that are kept
+	 */
+	public HighlighterSessionPool(Supplier<? extends ExplicitStateHighlighter> factory, int capacity)
+	{
+		if (null == factory)	throw new IllegalArgumentException("factory can't be null.");
+		if (capacity < 1)		throw new IllegalArgumentException("capacity should be at least 1.");
+
+		mFactory = factory;
+		mIdle = new ArrayBlockingQueue<HighlighterSession>(capacity);
+	}
+
+	/**
+	 * Takes an idle session from the pool, or creates a new one.
+	 *
+	 * @return a session for the exclusive use of the caller
+	 */
+	public HighlighterSession acquire()
+	{
+		HighlighterSession session = mIdle.poll();
+		if (null == session)
+		{
+			session = new HighlighterSession(mFactory);
+		}
+
+		return session;
+	}
+
+	/**
+	 * Gives a session back to the pool, it shouldn't be used by the caller
+	 * anymore.
+	 *
+	 * @param session the session that was obtained through
+	 * {@link #acquire()}
+	 */
+	public void release(HighlighterSession session)
+	{
+		if (null == session)
+		{
+			return;
+		}
+
+		session.clear();
+		mIdle.offer(session);
+	}
+
+	/**
+	 * Returns the number of idle sessions in the pool.
+	 *
+	 * @return the number of idle sessions
+	 */
+	public int getIdleCount()
+	{
+		return mIdle.size();
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Base64;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.codelibs.jhighlight.tools.LineReader;
+
+/**
+ * Captures where the scanning of a source stopped, so that it can be
+ * resumed later, by another lexer of the same class, exactly as if it
+ * had never stopped.
+ * <p>A snapshot holds the number of the next line, the offset of its
+ * first character in the source and the checkpoint of the lexer at its
+ * start. It's immutable and can be turned into a short URL-safe token, for
+ * instance to continue the highlighting of a large source across several
+ * requests without scanning it again from its start.
+ * <p>The source itself isn't part of a snapshot: it should be provided
+ * again, unchanged, to resume the scanning.
+ *
+ * @see ExplicitStateHighlighter#getCheckpoint()
+ * @since 2.0.1
+ */
+public final class HighlighterSnapshot
+{
+	private static final byte FORMAT_VERSION = 1;
+	private static final Reader EMPTY_READER = Reader.nullReader();
+
+	private final int	mHighlighterId;
+	private final int	mLine;
+	private final int	mOffset;
+	private final int	mCheckpoint;
+
+	private HighlighterSnapshot(int highlighterId, int line, int offset, int checkpoint)
+	{
+		mHighlighterId = highlighterId;
+		mLine = line;
+		mOffset = offset;
+		mCheckpoint = checkpoint;
+	}
+
+	/**
+	 * Returns the snapshot of the start of a source.
+	 *
+	 * @param session the session whose lexer will scan the source
+	 * @return the snapshot before the first line
+	 * @exception IllegalArgumentException if the lexer of the session
+	 * doesn't support checkpoints
+	 */
+	public static HighlighterSnapshot start(HighlighterSession session)
+	{
+		if (null == session)	throw new IllegalArgumentException("session can't be null.");
+
+		session.open(EMPTY_READER);
+		ExplicitStateHighlighter highlighter = session.getHighlighter();
+		try
+		{
+			return new HighlighterSnapshot(getHighlighterId(highlighter), 0, 0, highlighter.getCheckpoint());
+		}
+		catch (UnsupportedOperationException e)
+		{
+			throw unsupported(highlighter, e);
+		}
+	}
+
+	/**
+	 * Reads a snapshot from a token of {@link #toToken()}.
+	 *
+	 * @param token the token
+	 * @return the snapshot of the token
+	 * @exception IllegalArgumentException if the token isn't a valid
+	 * snapshot
+	 */
+	public static HighlighterSnapshot fromToken(String token)
+	{
+		if (null == token)	throw new IllegalArgumentException("token can't be null.");
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+			if (in.readByte() != FORMAT_VERSION)
+			{
+				throw new IllegalArgumentException("Unsupported highlighter snapshot version.");
+			}
+
+			int highlighter_id = in.readInt();
+			int line = TokenBuffer.readVarInt(in);
+			int offset = TokenBuffer.readVarInt(in);
+			int checkpoint = TokenBuffer.readVarInt(in);
+			if (line < 0 ||
+				offset < 0 ||
+				in.available() > 0)
+			{
+				throw new IllegalArgumentException("The token isn't a valid highlighter snapshot.");
+			}
+
+			return new HighlighterSnapshot(highlighter_id, line, offset, checkpoint);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalArgumentException("The token isn't a valid highlighter snapshot.", e);
+		}
+	}
+
+	/**
+	 * Returns the number of the line at which the scanning resumes.
+	 *
+	 * @return the index of the next line
+	 */
+	public int getLine()
+	{
+		return mLine;
+	}
+
+	/**
+	 * Returns the offset in the source at which the scanning resumes.
+	 *
+	 * @return the index of the first character of the next line; or the
+	 * length of the source when all of it has been scanned
+	 */
+	public int getOffset()
+	{
+		return mOffset;
+	}
+
+	/**
+	 * Scans the lines of a source that follow this snapshot and reports
+	 * their tokens.
+	 *
+	 * @param session the session whose lexer scans the lines, it should be
+	 * of the same class as the one that took this snapshot
+	 * @param in the source, as it was when this snapshot was taken
+	 * @param lineCount the maximal number of lines that are scanned
+	 * @param sink the sink that receives the tokens
+	 * @return the snapshot after the scanned lines
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @exception IllegalArgumentException if the snapshot wasn't taken by a
+	 * lexer of the same class or doesn't match the source
+	 */
+	public HighlighterSnapshot scan(HighlighterSession session, CharSequence in, int lineCount, TokenSink sink)
+	throws IOException
+	{
+		if (null == session)	throw new IllegalArgumentException("session can't be null.");
+		if (null == in)			throw new IllegalArgumentException("in can't be null.");
+		if (null == sink)		throw new IllegalArgumentException("sink can't be null.");
+		if (lineCount < 0)		throw new IllegalArgumentException("lineCount can't be negative.");
+
+		ExplicitStateHighlighter highlighter = session.getHighlighter();
+		if (getHighlighterId(highlighter) != mHighlighterId)
+		{
+			throw new IllegalArgumentException("The snapshot wasn't taken by a " + highlighter.getClass().getName() + ".");
+		}
+		if (!isLineStart(in, mOffset))
+		{
+			throw new IllegalArgumentException("The snapshot doesn't match the source, offset " + mOffset + " isn't the start of a line.");
+		}
+
+		int length = in.length();
+		LineReader lines = session.open(new CharSequenceReader(in, mOffset, length));
+		highlighter = session.getHighlighter();
+		try
+		{
+			highlighter.restoreCheckpoint(mCheckpoint);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException("The snapshot wasn't taken by a " + highlighter.getClass().getName() + ".", e);
+		}
+		catch (UnsupportedOperationException e)
+		{
+			throw unsupported(highlighter, e);
+		}
+		highlighter.setReader(lines);
+
+		int line = mLine;
+		int offset = mOffset;
+		while (line - mLine < lineCount &&
+			   lines.nextLine())
+		{
+			TokenScanner.scanLine(highlighter, lines, sink);
+			offset = LineReader.getLineEnd(in, offset);
+			line++;
+		}
+
+		return new HighlighterSnapshot(mHighlighterId, line, offset, highlighter.getCheckpoint());
+	}
+
+	/**
+	 * Returns a compact URL-safe form of this snapshot.
+	 *
+	 * @return the token of this snapshot
+	 * @see #fromToken(String)
+	 */
+	public String toToken()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(mHighlighterId);
+			TokenBuffer.writeVarInt(out, mLine);
+			TokenBuffer.writeVarInt(out, mOffset);
+			TokenBuffer.writeVarInt(out, mCheckpoint);
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			// a byte array output stream doesn't throw
+			throw new IllegalStateException(e);
+		}
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+	}
+
+	public boolean equals(Object other)
+	{
+		if (this == other)
+		{
+			return true;
+		}
+		if (!(other instanceof HighlighterSnapshot))
+		{
+			return false;
+		}
+
+		HighlighterSnapshot snapshot = (HighlighterSnapshot)other;
+		return mHighlighterId == snapshot.mHighlighterId &&
+			mLine == snapshot.mLine &&
+			mOffset == snapshot.mOffset &&
+			mCheckpoint == snapshot.mCheckpoint;
+	}
+
+	public int hashCode()
+	{
+		return ((mHighlighterId * 31 + mLine) * 31 + mOffset) * 31 + mCheckpoint;
+	}
+
+	public String toString()
+	{
+		return "line " + mLine + " at " + mOffset;
+	}
+
+	private static IllegalArgumentException unsupported(ExplicitStateHighlighter highlighter, UnsupportedOperationException e)
+	{
+		return new IllegalArgumentException("The highlighter " + highlighter.getClass().getName() + " doesn't support checkpoints.", e);
+	}
+
+	private static int getHighlighterId(ExplicitStateHighlighter highlighter)
+	{
+		return highlighter.getClass().getName().hashCode();
+	}
+
+	private static boolean isLineStart(CharSequence in, int offset)
+	{
+		int length = in.length();
+		if (offset > length)
+		{
+			return false;
+		}
+		if (0 == offset)
+		{
+			return true;
+		}
+
+		char previous = in.charAt(offset - 1);
+		return '\n' == previous ||
+			('\r' == previous && (offset == length || in.charAt(offset) != '\n'));
+	}
+}
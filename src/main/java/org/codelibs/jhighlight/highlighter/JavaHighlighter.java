@@ -548,8 +548,16 @@ public class JavaHighlighter implements ExplicitStateHighlighter {
   private boolean zzAtEOF;
 
   /* user code: */
-	/** Whether {@code assert} is treated as a keyword. */
+	/**
+	 * Whether {@code assert} is treated as a keyword by the highlighters
+	 * that don't configure it themselves.
+	 *
+	 * @deprecated Use {@link #setAssertIsKeyword(boolean)} instead.
+	 */
+	@Deprecated
 	public static boolean ASSERT_IS_KEYWORD = false;
+	
+	private Boolean mAssertIsKeyword = null;
 
 	/* styles */
 	
@@ -604,12 +612,31 @@ public class JavaHighlighter implements ExplicitStateHighlighter {
 	/** Sets the current lexical state of this highlighter.
 	 *
 	 * @param newState the new lexical state.
+	 * @exception IllegalArgumentException if the state isn't one of the
+	 * lexical states of this highlighter.
 	 */
 	public void setState(byte newState)
 	{
+		if (!isLexicalState(newState-1))
+		{
+			throw new IllegalArgumentException("Unknown lexical state " + newState + ".");
+		}
 		yybegin(newState-1);
 	}
 	
+	private static boolean isLexicalState(int state)
+	{
+		switch (state)
+		{
+			case YYINITIAL:
+			case IN_COMMENT:
+			case IN_JAVA_DOC_COMMENT:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
 	public byte getNextToken()
 	throws IOException
 	{
@@ -625,11 +652,39 @@ public class JavaHighlighter implements ExplicitStateHighlighter {
 	{
 		this.zzReader = r;
 	}
+	
+	public void reset(Reader r)
+	{
+		yyreset(r);
+	}
 
 	/** Creates a new {@link JavaHighlighter}. */
 	public JavaHighlighter()
 	{
 	}
+	
+	/** Sets whether {@code assert} is treated as a keyword by this highlighter.
+	 *
+	 * @param assertIsKeyword {@code true} if {@code assert} is a keyword; or
+	 * {@code false} if it is a plain identifier
+	 */
+	public void setAssertIsKeyword(boolean assertIsKeyword)
+	{
+		mAssertIsKeyword = Boolean.valueOf(assertIsKeyword);
+	}
+	
+	/** Indicates whether {@code assert} is treated as a keyword by this
+	 * highlighter.
+	 * <p>When it hasn't been set, the deprecated {@link #ASSERT_IS_KEYWORD}
+	 * default is used.
+	 *
+	 * @return {@code true} if {@code assert} is a keyword; or
+	 * {@code false} otherwise
+	 */
+	public boolean isAssertIsKeyword()
+	{
+		return mAssertIsKeyword != null ? mAssertIsKeyword.booleanValue() : ASSERT_IS_KEYWORD;
+	}
 
 
   /**
@@ -928,7 +983,7 @@ public class JavaHighlighter implements ExplicitStateHighlighter {
 
       switch (zzAction < 0 ? zzAction : ZZ_ACTION[zzAction]) {
         case 14: 
-          { return ASSERT_IS_KEYWORD ? KEYWORD_STYLE : PLAIN_STYLE;
+          { return isAssertIsKeyword() ? KEYWORD_STYLE : PLAIN_STYLE;
           }
         case 15: break;
         case 5: 
@@ -0,0 +1,346 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.codelibs.jhighlight.tools.LineReader;
+
+/**
+ * Allows any range of lines of a source to be scanned without scanning the
+ * lines before it.
+ * <p>The index is built by scanning the complete source once. It records
+ * the offset of every line whose number is a multiple of the interval,
+ * together with the checkpoint of the lexer at its start. A range is then
+ * scanned from the closest recorded line before it: the lines up to the
+ * range are scanned without reporting their tokens and at most
+ * <code>interval - 1</code> of them are scanned in vain.
+ * <p>An index only holds two <code>int</code>s per interval and can be
+ * written to and read from a compact binary form, to be kept alongside
+ * the source it was built for. It's immutable and can be shared between
+ * threads.
+ * <p>The length and a CRC-32 checksum of the characters of the source are
+ * part of the index, a range is only scanned when the source that's
+ * provided matches them.
+ *
+ * @see ExplicitStateHighlighter#getCheckpoint()
+ * @since 2.0.1
+ */
+public final class LineIndex
+{
+	/** The default number of lines between recorded lines. */
+	public static final int DEFAULT_INTERVAL = 64;
+
+	private static final int MAGIC = 0x4A484C49; // "JHLI"
+	private static final byte FORMAT_VERSION = 2;
+	private static final int CHECKSUM_BUFFER_SIZE = 8192;
+
+	private static final TokenSink DISCARDING_SINK = new TokenSink() {
+			public void startLine(char[] text, int offset, int length)
+			{
+			}
+
+			public void token(byte style, int offset, int length)
+			{
+			}
+
+			public void endLine()
+			{
+			}
+		};
+
+	private final String	mHighlighterName;
+	private final int		mInterval;
+	private final int		mLength;
+	private final int		mChecksum;
+	private final int		mLineCount;
+	private final int[]		mOffsets;
+	private final int[]		mCheckpoints;
+
+	private LineIndex(String highlighterName, int interval, int length, int checksum, int lineCount, int[] offsets, int[] checkpoints)
+	{
+		mHighlighterName = highlighterName;
+		mInterval = interval;
+		mLength = length;
+		mChecksum = checksum;
+		mLineCount = lineCount;
+		mOffsets = offsets;
+		mCheckpoints = checkpoints;
+	}
+
+	/**
+	 * Scans a complete source and builds its index.
+	 *
+	 * @param session the session whose lexer scans the source
+	 * @param in the source
+	 * @param interval the number of lines between recorded lines
+	 * @return the index of the source
+	 * @exception IOException when an error occurred while scanning
+	 */
+	public static LineIndex build(HighlighterSession session, CharSequence in, int interval)
+	throws IOException
+	{
+		if (null == session)	throw new IllegalArgumentException("session can't be null.");
+		if (null == in)			throw new IllegalArgumentException("in can't be null.");
+		if (interval < 1)		throw new IllegalArgumentException("interval should be at least 1.");
+
+		LineReader lines = session.open(new CharSequenceReader(in));
+		ExplicitStateHighlighter highlighter = session.getHighlighter();
+		Recorder recorder = new Recorder(highlighter, in, interval);
+		TokenScanner.scan(highlighter, lines, recorder);
+
+		return new LineIndex(highlighter.getClass().getName(), interval, in.length(), checksum(in), recorder.mLineCount,
+			Arrays.copyOf(recorder.mOffsets, recorder.mEntryCount), Arrays.copyOf(recorder.mCheckpoints, recorder.mEntryCount));
+	}
+
+	/**
+	 * Returns the number of lines of the indexed source.
+	 *
+	 * @return the number of lines
+	 */
+	public int getLineCount()
+	{
+		return mLineCount;
+	}
+
+	/**
+	 * Returns the number of characters of the indexed source.
+	 *
+	 * @return the length of the source
+	 */
+	public int getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * Returns the number of lines between recorded lines.
+	 *
+	 * @return the interval of this index
+	 */
+	public int getInterval()
+	{
+		return mInterval;
+	}
+
+	/**
+	 * Scans a range of lines of the indexed source and reports their
+	 * tokens, exactly as they are reported when the complete source is
+	 * scanned.
+	 * <p>All the characters of the source are read once to check that it's
+	 * the one that was indexed, which is much cheaper than scanning them.
+	 *
+	 * @param session the session whose lexer scans the lines, it should be
+	 * of the same class as the one that built this index
+	 * @param in the source that was indexed
+	 * @param fromLine the index of the first line that's scanned
+	 * @param toLine the index after the last line that's scanned
+	 * @param sink the sink that receives the tokens of the range
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @exception IllegalArgumentException if the source or the lexer isn't
+	 * the one that built this index
+	 */
+	public void scan(HighlighterSession session, CharSequence in, int fromLine, int toLine, TokenSink sink)
+	throws IOException
+	{
+		if (null == session)	throw new IllegalArgumentException("session can't be null.");
+		if (null == in)			throw new IllegalArgumentException("in can't be null.");
+		if (null == sink)		throw new IllegalArgumentException("sink can't be null.");
+		if (fromLine < 0 ||
+			fromLine > toLine ||
+			toLine > mLineCount)
+		{
+			throw new IndexOutOfBoundsException("Invalid line range " + fromLine + " - " + toLine + " for " + mLineCount + " lines.");
+		}
+		if (in.length() != mLength ||
+			checksum(in) != mChecksum)
+		{
+			throw new IllegalArgumentException("The source isn't the one that was indexed.");
+		}
+		if (!session.getHighlighter().getClass().getName().equals(mHighlighterName))
+		{
+			throw new IllegalArgumentException("The index was built by " + mHighlighterName + ".");
+		}
+		if (fromLine == toLine)
+		{
+			return;
+		}
+
+		int entry = fromLine / mInterval;
+		LineReader lines = session.open(new CharSequenceReader(in, mOffsets[entry], mLength));
+		ExplicitStateHighlighter highlighter = session.getHighlighter();
+		highlighter.restoreCheckpoint(mCheckpoints[entry]);
+		highlighter.setReader(lines);
+
+		int line = entry * mInterval;
+		while (line < toLine &&
+			   lines.nextLine())
+		{
+			TokenScanner.scanLine(highlighter, lines, line < fromLine ? DISCARDING_SINK : sink);
+			line++;
+		}
+	}
+
+	/**
+	 * Writes this index in a compact binary form.
+	 *
+	 * @param out the output to which the index will be written
+	 * @exception IOException when an error occurred while writing
+	 * @see #readFrom(DataInput)
+	 */
+	public void writeTo(DataOutput out)
+	throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeByte(FORMAT_VERSION);
+		out.writeUTF(mHighlighterName);
+		TokenBuffer.writeVarInt(out, mInterval);
+		TokenBuffer.writeVarInt(out, mLength);
+		out.writeInt(mChecksum);
+		TokenBuffer.writeVarInt(out, mLineCount);
+
+		int previous = 0;
+		for (int i = 0; i < mOffsets.length; i++)
+		{
+			TokenBuffer.writeVarInt(out, mOffsets[i] - previous);
+			TokenBuffer.writeVarInt(out, mCheckpoints[i]);
+			previous = mOffsets[i];
+		}
+	}
+
+	/**
+	 * Reads an index that was written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in the input from which the index will be read
+	 * @return the index that was read
+	 * @exception IOException when an error occurred while reading or if the
+	 * data isn't a valid line index
+	 */
+	public static LineIndex readFrom(DataInput in)
+	throws IOException
+	{
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("The data doesn't contain a line index.");
+		}
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION)
+		{
+			throw new IOException("Unsupported line index format version " + version + ".");
+		}
+
+		String highlighter_name = in.readUTF();
+		int interval = TokenBuffer.readVarInt(in);
+		int length = TokenBuffer.readVarInt(in);
+		int checksum = in.readInt();
+		int line_count = TokenBuffer.readVarInt(in);
+		if (interval < 1 ||
+			length < 0 ||
+			line_count < 0)
+		{
+			throw new IOException("The line index data is corrupt.");
+		}
+
+		int entry_count = (int)(((long)line_count + interval - 1) / interval);
+		int[] offsets = new int[entry_count];
+		int[] checkpoints = new int[entry_count];
+		int offset = 0;
+		for (int i = 0; i < entry_count; i++)
+		{
+			offset += TokenBuffer.readVarInt(in);
+			if (offset < 0 ||
+				offset > length)
+			{
+				throw new IOException("The line index data is corrupt.");
+			}
+			offsets[i] = offset;
+			checkpoints[i] = TokenBuffer.readVarInt(in);
+		}
+
+		return new LineIndex(highlighter_name, interval, length, checksum, line_count, offsets, checkpoints);
+	}
+
+	/**
+	 * Computes the CRC-32 checksum of the UTF-16 code units of a text.
+	 */
+	private static int checksum(CharSequence text)
+	{
+		CRC32 crc = new CRC32();
+		byte[] bytes = new byte[CHECKSUM_BUFFER_SIZE];
+		int length = text.length();
+		int count = 0;
+		char c;
+		for (int i = 0; i < length; i++)
+		{
+			if (count == bytes.length)
+			{
+				crc.update(bytes, 0, count);
+				count = 0;
+			}
+			c = text.charAt(i);
+			bytes[count++] = (byte)(c >>> 8);
+			bytes[count++] = (byte)c;
+		}
+		crc.update(bytes, 0, count);
+
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Records the offset and the checkpoint of every line whose number is a
+	 * multiple of the interval, while a source is being scanned.
+	 */
+	private static final class Recorder implements TokenSink
+	{
+		private final ExplicitStateHighlighter	mHighlighter;
+		private final CharSequence				mSource;
+		private final int						mInterval;
+
+		private int[]	mOffsets = new int[16];
+		private int[]	mCheckpoints = new int[16];
+		private int		mEntryCount = 0;
+		private int		mLineCount = 0;
+		private int		mPosition = 0;
+
+		Recorder(ExplicitStateHighlighter highlighter, CharSequence source, int interval)
+		{
+			mHighlighter = highlighter;
+			mSource = source;
+			mInterval = interval;
+		}
+
+		public void startLine(char[] text, int offset, int length)
+		{
+			if (mLineCount % mInterval == 0)
+			{
+				if (mEntryCount == mOffsets.length)
+				{
+					mOffsets = Arrays.copyOf(mOffsets, mEntryCount * 2);
+					mCheckpoints = Arrays.copyOf(mCheckpoints, mEntryCount * 2);
+				}
+				mOffsets[mEntryCount] = mPosition;
+				mCheckpoints[mEntryCount] = mHighlighter.getCheckpoint();
+				mEntryCount++;
+			}
+			mLineCount++;
+			mPosition = LineReader.getLineEnd(mSource, mPosition);
+		}
+
+		public void token(byte style, int offset, int length)
+		{
+		}
+
+		public void endLine()
+		{
+		}
+	}
+}
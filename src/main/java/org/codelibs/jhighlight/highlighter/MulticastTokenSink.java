@@ -0,0 +1,60 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.IOException;
+
+/**
+ * Forwards the tokens of a single scan to several sinks, in the order in
+ * which they were provided.
+ * <p>This allows consumers that produce different outputs to share one
+ * lexing pass.
+ *
+ * @since 2.0.1
+ */
+public class MulticastTokenSink implements TokenSink
+{
+	private final TokenSink[] mSinks;
+
+	/**
+	 * Creates a new <code>MulticastTokenSink</code>.
+	 *
+	 * @param sinks the sinks that will receive the tokens
+	 */
+	public MulticastTokenSink(TokenSink... sinks)
+	{
+		if (null == sinks)	throw new IllegalArgumentException("sinks can't be null.");
+
+		mSinks = sinks.clone();
+	}
+
+	public void startLine(char[] text, int offset, int length)
+	throws IOException
+	{
+		for (int i = 0; i < mSinks.length; i++)
+		{
+			mSinks[i].startLine(text, offset, length);
+		}
+	}
+
+	public void token(byte style, int offset, int length)
+	throws IOException
+	{
+		for (int i = 0; i < mSinks.length; i++)
+		{
+			mSinks[i].token(style, offset, length);
+		}
+	}
+
+	public void endLine()
+	throws IOException
+	{
+		for (int i = 0; i < mSinks.length; i++)
+		{
+			mSinks[i].endLine();
+		}
+	}
+}
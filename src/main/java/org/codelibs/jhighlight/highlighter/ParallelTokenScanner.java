@@ -0,0 +1,334 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.codelibs.jhighlight.tools.LineReader;
+
+/**
+ * Scans a large source with several threads and reports exactly the tokens
+ * that a sequential {@link TokenScanner} reports.
+ * <p>The source is split into chunks of complete lines. Every chunk is
+ * scanned speculatively on a fork-join pool, as if it was the start of a
+ * source, while the checkpoint of the lexer is recorded at the start of
+ * each of its lines. The calling thread then stitches the chunks together
+ * in order. When the lexer really ends a chunk with the checkpoint that the
+ * next one was speculated from, the tokens of the next chunk are simply
+ * replayed. Otherwise, for instance inside a comment that spans the
+ * boundary, the next chunk is scanned again from the real checkpoint, but
+ * only until it reaches a line whose recorded checkpoint agrees. The
+ * speculative tokens are replayed from there on.
+ * <p>Only a few chunks per thread of the pool are scanned ahead of the
+ * stitching, which bounds the memory of the speculative tokens.
+ *
+ * @see ExplicitStateHighlighter#getCheckpoint()
+ * @since 2.0.1
+ */
+public final class ParallelTokenScanner
+{
+	/** The default number of characters of a chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	private static final int	CHUNKS_AHEAD_PER_THREAD = 2;
+	private static final Reader	EMPTY_READER = Reader.nullReader();
+
+	private final HighlighterSessionPool	mSessions;
+	private final ForkJoinPool				mPool;
+	private final int						mChunkSize;
+
+	/**
+	 * Creates a new <code>ParallelTokenScanner</code>.
+	 *
+	 * @param sessions the pool that provides the lexers, one per chunk that
+	 * is being scanned
+	 * @param pool the pool whose threads scan the chunks
+	 * @param chunkSize the minimal number of characters of a chunk, the
+	 * chunks are extended up to the end of their last line
+	 */
+	public ParallelTokenScanner(HighlighterSessionPool sessions, ForkJoinPool pool, int chunkSize)
+	{
+		if (null == sessions)	throw new IllegalArgumentException("sessions can't be null.");
+		if (null == pool)		throw new IllegalArgumentException("pool can't be null.");
+		if (chunkSize < 1)		throw new IllegalArgumentException("chunkSize should be at least 1.");
+
+		mSessions = sessions;
+		mPool = pool;
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * Scans a source and reports its tokens.
+	 * <p>A source that fits in one chunk is scanned by the calling thread
+	 * alone, as is every source when the pool has a single thread, since the
+	 * speculation can't run ahead of the stitching then.
+	 *
+	 * @param in the source
+	 * @param sink the sink that receives the tokens, it's only called by the
+	 * calling thread
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 */
+	public void scan(CharSequence in, TokenSink sink)
+	throws IOException
+	{
+		if (null == in)		throw new IllegalArgumentException("in can't be null.");
+		if (null == sink)	throw new IllegalArgumentException("sink can't be null.");
+
+		int[] bounds = split(in);
+		HighlighterSession session = mSessions.acquire();
+		try
+		{
+			if (bounds.length <= 2 ||
+				mPool.getParallelism() < 2)
+			{
+				session.scan(new CharSequenceReader(in), sink);
+				return;
+			}
+
+			scanChunks(in, bounds, session, sink);
+		}
+		finally
+		{
+			mSessions.release(session);
+		}
+	}
+
+	/**
+	 * Splits a source into chunks that end right after a line feed, or at
+	 * the end of the source.
+	 *
+	 * @return the index of the start of every chunk, followed by the length
+	 * of the source
+	 */
+	private int[] split(CharSequence in)
+	{
+		int length = in.length();
+		int[] bounds = new int[16];
+		int count = 0;
+		bounds[count++] = 0;
+		int end = 0;
+		while (end < length)
+		{
+			end = end + mChunkSize < length ? end + mChunkSize : length;
+			while (end < length &&
+				   in.charAt(end - 1) != '\n')
+			{
+				end++;
+			}
+
+			if (count == bounds.length)
+			{
+				bounds = Arrays.copyOf(bounds, count * 2);
+			}
+			bounds[count++] = end;
+		}
+
+		return Arrays.copyOf(bounds, count);
+	}
+
+	private void scanChunks(CharSequence in, int[] bounds, HighlighterSession session, TokenSink sink)
+	throws IOException
+	{
+		int chunk_count = bounds.length - 1;
+		int maximum_ahead = Math.max(2, mPool.getParallelism() * CHUNKS_AHEAD_PER_THREAD);
+		ArrayDeque<ForkJoinTask<Speculation>> speculations = new ArrayDeque<ForkJoinTask<Speculation>>();
+		int submitted = 0;
+		try
+		{
+			session.open(EMPTY_READER);
+			int checkpoint = session.getHighlighter().getCheckpoint();
+			for (int chunk = 0; chunk < chunk_count; chunk++)
+			{
+				while (submitted < chunk_count &&
+					   submitted - chunk < maximum_ahead)
+				{
+					speculations.add(mPool.submit(speculate(in, bounds[submitted], bounds[submitted + 1])));
+					submitted++;
+				}
+
+				checkpoint = stitch(in, bounds[chunk], bounds[chunk + 1], get(speculations.poll()), checkpoint, session, sink);
+			}
+		}
+		finally
+		{
+			for (ForkJoinTask<Speculation> speculation : speculations)
+			{
+				speculation.cancel(false);
+			}
+		}
+	}
+
+	private Callable<Speculation> speculate(final CharSequence in, final int start, final int end)
+	{
+		return new Callable<Speculation>() {
+				public Speculation call()
+				throws IOException
+				{
+					HighlighterSession session = mSessions.acquire();
+					try
+					{
+						LineReader lines = session.open(new CharSequenceReader(in, start, end));
+						ExplicitStateHighlighter highlighter = session.getHighlighter();
+						Speculation speculation = new Speculation(highlighter);
+						TokenScanner.scan(highlighter, lines, speculation);
+						speculation.finish();
+
+						return speculation;
+					}
+					finally
+					{
+						mSessions.release(session);
+					}
+				}
+			};
+	}
+
+	/**
+	 * Reports the tokens of a chunk, starting from the real checkpoint at
+	 * its start.
+	 *
+	 * @return the checkpoint at the end of the chunk
+	 */
+	private static int stitch(CharSequence in, int start, int end, Speculation speculation, int checkpoint, HighlighterSession session, TokenSink sink)
+	throws IOException
+	{
+		if (checkpoint == speculation.getCheckpoint(0))
+		{
+			speculation.replay(sink, 0);
+			return speculation.getEndCheckpoint();
+		}
+
+		LineReader lines = session.open(new CharSequenceReader(in, start, end));
+		ExplicitStateHighlighter highlighter = session.getHighlighter();
+		highlighter.restoreCheckpoint(checkpoint);
+		highlighter.setReader(lines);
+
+		int line = 0;
+		while (lines.nextLine())
+		{
+			TokenScanner.scanLine(highlighter, lines, sink);
+			line++;
+
+			if (line < speculation.getLineCount() &&
+				highlighter.getCheckpoint() == speculation.getCheckpoint(line))
+			{
+				speculation.replay(sink, line);
+				return speculation.getEndCheckpoint();
+			}
+		}
+
+		return highlighter.getCheckpoint();
+	}
+
+	private static Speculation get(ForkJoinTask<Speculation> speculation)
+	throws IOException
+	{
+		try
+		{
+			return speculation.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("The scanning was interrupted.");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * The tokens of a chunk that was scanned as if it was the start of a
+	 * source, with the checkpoint at the start of each of its lines.
+	 */
+	private static final class Speculation implements TokenSink
+	{
+		private ExplicitStateHighlighter	mHighlighter;
+		private final TokenBuffer			mTokens = new TokenBuffer();
+		private int[]						mCheckpoints = new int[64];
+		private int							mLineCount = 0;
+		private int							mEndCheckpoint;
+
+		Speculation(ExplicitStateHighlighter highlighter)
+		{
+			mHighlighter = highlighter;
+		}
+
+		public void startLine(char[] text, int offset, int length)
+		{
+			if (mLineCount == mCheckpoints.length)
+			{
+				mCheckpoints = Arrays.copyOf(mCheckpoints, mLineCount * 2);
+			}
+			mCheckpoints[mLineCount++] = mHighlighter.getCheckpoint();
+			mTokens.startLine(text, offset, length);
+		}
+
+		public void token(byte style, int offset, int length)
+		{
+			mTokens.token(style, offset, length);
+		}
+
+		public void endLine()
+		{
+		}
+
+		/**
+		 * Records the checkpoint at the end of the chunk and lets go of the
+		 * lexer, which goes back to its pool.
+		 */
+		void finish()
+		{
+			mEndCheckpoint = mHighlighter.getCheckpoint();
+			mHighlighter = null;
+		}
+
+		int getLineCount()
+		{
+			return mLineCount;
+		}
+
+		int getCheckpoint(int line)
+		{
+			return mCheckpoints[line];
+		}
+
+		int getEndCheckpoint()
+		{
+			return mEndCheckpoint;
+		}
+
+		void replay(TokenSink sink, int fromLine)
+		throws IOException
+		{
+			mTokens.replay(sink, fromLine, mLineCount);
+		}
+	}
+}
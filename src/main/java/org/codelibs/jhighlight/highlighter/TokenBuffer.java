@@ -0,0 +1,482 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.codelibs.jhighlight.fastutil.chars.CharArrayList;
+import org.codelibs.jhighlight.fastutil.ints.IntArrays;
+
+/**
+ * Keeps the tokens of a highlighted source in memory, so that they can be
+ * replayed to any {@link TokenSink} without scanning the source again.
+ * <p>The tokens are stored in columns: one byte for the style and one
+ * <code>int</code> for the length of each token. The text of the lines,
+ * after tab expansion and line terminator normalization, is kept alongside
+ * together with the index of the first token of every line. Optionally, the
+ * checkpoint of the lexer at the start of every line is recorded as well,
+ * from which the scanning can be resumed at that line.
+ * <p>A <code>TokenBuffer</code> is filled by using it as the sink of a
+ * {@link TokenScanner} and can be written to and read from a compact binary
+ * form.
+ *
+ * @since 2.0.1
+ */
+public class TokenBuffer implements TokenSink
+{
+	private static final int MAGIC = 0x4A485442; // "JHTB"
+	private static final byte FORMAT_VERSION = 2;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final ExplicitStateHighlighter mCheckpointSource;
+
+	private byte[]			mStyles;
+	private int[]			mLengths;
+	private int				mTokenCount = 0;
+
+	private int[]			mLineTokens;
+	private int[]			mLineOffsets;
+	private int[]			mLineCheckpoints;
+	private int				mLineCount = 0;
+
+	private final CharArrayList mText;
+
+	/**
+	 * Creates a new <code>TokenBuffer</code> that doesn't record
+	 * checkpoints.
+	 */
+	public TokenBuffer()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a new <code>TokenBuffer</code> that records the checkpoint of
+	 * the lexer at the start of every line.
+	 *
+	 * @param checkpointSource the lexer that produces the tokens, its
+	 * checkpoint is read each time a new line starts; or
+	 * <p><code>null</code> if no checkpoints should be recorded
+	 * @see ExplicitStateHighlighter#getCheckpoint()
+	 */
+	public TokenBuffer(ExplicitStateHighlighter checkpointSource)
+	{
+		mCheckpointSource = checkpointSource;
+		mStyles = new byte[INITIAL_CAPACITY];
+		mLengths = new int[INITIAL_CAPACITY];
+		mLineTokens = new int[INITIAL_CAPACITY];
+		mLineOffsets = new int[INITIAL_CAPACITY];
+		if (checkpointSource != null)
+		{
+			mLineCheckpoints = new int[INITIAL_CAPACITY];
+		}
+		mText = new CharArrayList(INITIAL_CAPACITY * 8);
+	}
+
+	/**
+	 * Scans a source into a new <code>TokenBuffer</code>.
+	 *
+	 * @param highlighter the lexer of the language of the source
+	 * @param in the reader that provides the source
+	 * @param checkpoints <code>true</code> if the checkpoint of the lexer at
+	 * the start of every line should be recorded; or
+	 * <p><code>false</code> otherwise
+	 * @return the filled buffer
+	 * @exception IOException when an error occurred while reading the source
+	 */
+	public static TokenBuffer scan(ExplicitStateHighlighter highlighter, Reader in, boolean checkpoints)
+	throws IOException
+	{
+		TokenBuffer buffer = new TokenBuffer(checkpoints ? highlighter : null);
+		TokenScanner.scan(highlighter, in, buffer);
+		buffer.trim();
+
+		return buffer;
+	}
+
+	public void startLine(char[] text, int offset, int length)
+	{
+		if (mLineCount == mLineTokens.length)
+		{
+			int capacity = mLineCount * 2;
+			mLineTokens = IntArrays.grow(mLineTokens, capacity, mLineCount);
+			mLineOffsets = IntArrays.grow(mLineOffsets, capacity, mLineCount);
+			if (mLineCheckpoints != null)
+			{
+				mLineCheckpoints = IntArrays.grow(mLineCheckpoints, capacity, mLineCount);
+			}
+		}
+
+		mLineTokens[mLineCount] = mTokenCount;
+		mLineOffsets[mLineCount] = mText.size();
+		if (mLineCheckpoints != null)
+		{
+			mLineCheckpoints[mLineCount] = mCheckpointSource.getCheckpoint();
+		}
+		mLineCount++;
+
+		mText.addElements(mText.size(), text, offset, length);
+	}
+
+	public void token(byte style, int offset, int length)
+	{
+		if (mTokenCount == mStyles.length)
+		{
+			mLengths = IntArrays.grow(mLengths, mTokenCount * 2, mTokenCount);
+			mStyles = Arrays.copyOf(mStyles, mLengths.length);
+		}
+
+		mStyles[mTokenCount] = style;
+		mLengths[mTokenCount] = length;
+		mTokenCount++;
+	}
+
+	public void endLine()
+	{
+	}
+
+	/**
+	 * Replays all the tokens to a sink.
+	 *
+	 * @param sink the sink that will receive the tokens
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 */
+	public void replay(TokenSink sink)
+	throws IOException
+	{
+		replay(sink, 0, mLineCount);
+	}
+
+	/**
+	 * Replays the tokens of a range of lines to a sink.
+	 *
+	 * @param sink the sink that will receive the tokens
+	 * @param fromLine the index of the first line that will be replayed
+	 * @param toLine the index after the last line that will be replayed
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 */
+	public void replay(TokenSink sink, int fromLine, int toLine)
+	throws IOException
+	{
+		if (fromLine < 0 || toLine > mLineCount || fromLine > toLine)
+		{
+			throw new IndexOutOfBoundsException("Invalid line range " + fromLine + " - " + toLine + " for " + mLineCount + " lines.");
+		}
+
+		char[] text = mText.elements();
+		int token;
+		int last_token;
+		int offset;
+		for (int line = fromLine; line < toLine; line++)
+		{
+			offset = mLineOffsets[line];
+			sink.startLine(text, offset, getLineEnd(line) - offset);
+
+			last_token = line + 1 < mLineCount ? mLineTokens[line + 1] : mTokenCount;
+			for (token = mLineTokens[line]; token < last_token; token++)
+			{
+				sink.token(mStyles[token], offset, mLengths[token]);
+				offset += mLengths[token];
+			}
+
+			sink.endLine();
+		}
+	}
+
+	/**
+	 * Returns the number of tokens in this buffer.
+	 *
+	 * @return the number of tokens
+	 */
+	public int getTokenCount()
+	{
+		return mTokenCount;
+	}
+
+	/**
+	 * Returns the style of a token.
+	 *
+	 * @param token the index of the token
+	 * @return the style of the token
+	 */
+	public byte getStyle(int token)
+	{
+		if (token >= mTokenCount)	throw new IndexOutOfBoundsException("token " + token + " >= " + mTokenCount);
+
+		return mStyles[token];
+	}
+
+	/**
+	 * Returns the length of a token.
+	 *
+	 * @param token the index of the token
+	 * @return the number of characters of the token
+	 */
+	public int getTokenLength(int token)
+	{
+		if (token >= mTokenCount)	throw new IndexOutOfBoundsException("token " + token + " >= " + mTokenCount);
+
+		return mLengths[token];
+	}
+
+	/**
+	 * Returns the number of lines in this buffer.
+	 *
+	 * @return the number of lines
+	 */
+	public int getLineCount()
+	{
+		return mLineCount;
+	}
+
+	/**
+	 * Returns the index of the first token of a line.
+	 *
+	 * @param line the index of the line
+	 * @return the index of the first token of the line
+	 */
+	public int getLineToken(int line)
+	{
+		if (line >= mLineCount)	throw new IndexOutOfBoundsException("line " + line + " >= " + mLineCount);
+
+		return mLineTokens[line];
+	}
+
+	/**
+	 * Returns the offset of the first character of a line in the text of
+	 * this buffer.
+	 *
+	 * @param line the index of the line
+	 * @return the offset of the line
+	 */
+	public int getLineOffset(int line)
+	{
+		if (line >= mLineCount)	throw new IndexOutOfBoundsException("line " + line + " >= " + mLineCount);
+
+		return mLineOffsets[line];
+	}
+
+	/**
+	 * Indicates whether the checkpoint of the lexer at the start of every
+	 * line has been recorded.
+	 *
+	 * @return <code>true</code> if the checkpoints have been recorded; or
+	 * <p><code>false</code> otherwise
+	 */
+	public boolean hasLineCheckpoints()
+	{
+		return mLineCheckpoints != null;
+	}
+
+	/**
+	 * Returns the checkpoint of the lexer at the start of a line.
+	 * <p>A lexer of the same class that restores it through
+	 * {@link ExplicitStateHighlighter#restoreCheckpoint(int)} scans the
+	 * following lines exactly as they were scanned into this buffer.
+	 *
+	 * @param line the index of the line
+	 * @return the checkpoint, as returned by
+	 * {@link ExplicitStateHighlighter#getCheckpoint()}
+	 * @exception IllegalStateException if no checkpoints have been recorded
+	 */
+	public int getLineCheckpoint(int line)
+	{
+		if (null == mLineCheckpoints)	throw new IllegalStateException("No line checkpoints have been recorded.");
+		if (line >= mLineCount)			throw new IndexOutOfBoundsException("line " + line + " >= " + mLineCount);
+
+		return mLineCheckpoints[line];
+	}
+
+	/**
+	 * Returns the text of all the lines, with expanded tabs and
+	 * <code>'\n'</code> line terminators.
+	 *
+	 * @return the text of this buffer
+	 */
+	public String getText()
+	{
+		return new String(mText.elements(), 0, mText.size());
+	}
+
+	/**
+	 * Releases the capacity that isn't used by the tokens and lines of this
+	 * buffer.
+	 */
+	public void trim()
+	{
+		mStyles = Arrays.copyOf(mStyles, mTokenCount);
+		mLengths = IntArrays.trim(mLengths, mTokenCount);
+		mLineTokens = IntArrays.trim(mLineTokens, mLineCount);
+		mLineOffsets = IntArrays.trim(mLineOffsets, mLineCount);
+		if (mLineCheckpoints != null)
+		{
+			mLineCheckpoints = IntArrays.trim(mLineCheckpoints, mLineCount);
+		}
+		mText.trim();
+	}
+
+	/**
+	 * Writes this buffer in a compact binary form.
+	 * <p>Token lengths, line sizes and checkpoints are written as
+	 * variable-length integers and the text is encoded in UTF-8.
+	 *
+	 * @param out the output to which the buffer will be written
+	 * @exception IOException when an error occurred while writing
+	 * @see #readFrom(DataInput)
+	 */
+	public void writeTo(DataOutput out)
+	throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeByte(FORMAT_VERSION);
+		out.writeBoolean(mLineCheckpoints != null);
+		writeVarInt(out, mTokenCount);
+		writeVarInt(out, mLineCount);
+
+		out.write(mStyles, 0, mTokenCount);
+		for (int i = 0; i < mTokenCount; i++)
+		{
+			writeVarInt(out, mLengths[i]);
+		}
+
+		for (int i = 0; i < mLineCount; i++)
+		{
+			writeVarInt(out, (i + 1 < mLineCount ? mLineTokens[i + 1] : mTokenCount) - mLineTokens[i]);
+		}
+		if (mLineCheckpoints != null)
+		{
+			for (int i = 0; i < mLineCount; i++)
+			{
+				writeVarInt(out, mLineCheckpoints[i]);
+			}
+		}
+
+		byte[] text = getText().getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, text.length);
+		out.write(text);
+	}
+
+	/**
+	 * Reads a buffer that was written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in the input from which the buffer will be read
+	 * @return the buffer that was read
+	 * @exception IOException when an error occurred while reading or if the
+	 * data isn't a valid token buffer
+	 */
+	public static TokenBuffer readFrom(DataInput in)
+	throws IOException
+	{
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("The data doesn't contain a token buffer.");
+		}
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION)
+		{
+			throw new IOException("Unsupported token buffer format version " + version + ".");
+		}
+
+		boolean has_checkpoints = in.readBoolean();
+		int token_count = readVarInt(in);
+		int line_count = readVarInt(in);
+
+		TokenBuffer buffer = new TokenBuffer();
+		buffer.mTokenCount = token_count;
+		buffer.mLineCount = line_count;
+
+		buffer.mStyles = new byte[token_count];
+		in.readFully(buffer.mStyles);
+		buffer.mLengths = new int[token_count];
+		for (int i = 0; i < token_count; i++)
+		{
+			buffer.mLengths[i] = readVarInt(in);
+		}
+
+		buffer.mLineTokens = new int[line_count];
+		buffer.mLineOffsets = new int[line_count];
+		int token = 0;
+		int offset = 0;
+		int line_tokens;
+		for (int i = 0; i < line_count; i++)
+		{
+			buffer.mLineTokens[i] = token;
+			buffer.mLineOffsets[i] = offset;
+			line_tokens = readVarInt(in);
+			if (line_tokens > token_count - token)
+			{
+				throw new IOException("The token buffer data is corrupt.");
+			}
+			while (line_tokens-- > 0)
+			{
+				offset += buffer.mLengths[token++];
+			}
+		}
+		if (has_checkpoints)
+		{
+			buffer.mLineCheckpoints = new int[line_count];
+			for (int i = 0; i < line_count; i++)
+			{
+				buffer.mLineCheckpoints[i] = readVarInt(in);
+			}
+		}
+
+		byte[] text = new byte[readVarInt(in)];
+		in.readFully(text);
+		char[] chars = new String(text, StandardCharsets.UTF_8).toCharArray();
+		if (chars.length != offset)
+		{
+			throw new IOException("The token buffer data is corrupt.");
+		}
+		buffer.mText.addElements(0, chars, 0, chars.length);
+
+		return buffer;
+	}
+
+	private int getLineEnd(int line)
+	{
+		return line + 1 < mLineCount ? mLineOffsets[line + 1] : mText.size();
+	}
+
+	static void writeVarInt(DataOutput out, int value)
+	throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(DataInput in)
+	throws IOException
+	{
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			if (shift > 28)
+			{
+				throw new IOException("Malformed variable-length integer.");
+			}
+			b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+
+		return value;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.codelibs.jhighlight.tools.LineReader;
+
+/**
+ * Runs a highlighting lexer over a complete source and reports the tokens to
+ * a {@link TokenSink}.
+ * <p>The source is read once, tabs are expanded and line terminators are
+ * normalized to <code>'\n'</code> through a {@link LineReader}.
+ *
+ * @since 2.0.1
+ */
+public abstract class TokenScanner
+{
+	/** The number of columns between tab stops. */
+	public static final int TAB_WIDTH = 4;
+
+	private TokenScanner()
+	{
+	}
+
+	/**
+	 * Scans a source and reports its tokens.
+	 *
+	 * @param highlighter the lexer of the language of the source
+	 * @param in the reader that provides the source
+	 * @param sink the sink that receives the tokens
+	 * @exception IOException when an error occurred while reading the source
+	 * or while processing the tokens
+	 */
+	public static void scan(ExplicitStateHighlighter highlighter, Reader in, TokenSink sink)
+	throws IOException
+	{
+		scan(highlighter, new LineReader(in, TAB_WIDTH), sink);
+	}
+
+	/**
+	 * Scans the lines of a source and reports their tokens.
+	 *
+	 * @param highlighter the lexer of the language of the source
+	 * @param in the line reader that provides the source, scanning starts at
+	 * its next line
+	 * @param sink the sink that receives the tokens
+	 * @exception IOException when an error occurred while reading the source
+	 * or while processing the tokens
+	 */
+	public static void scan(ExplicitStateHighlighter highlighter, LineReader in, TokenSink sink)
+	throws IOException
+	{
+		// the lexer reads through the same line reader for the complete
+		// document, it will see the end of each line as the end of its input
+		highlighter.setReader(in);
+		
+		while (in.nextLine())
+		{
+			scanLine(highlighter, in, sink);
+		}
+	}
+	
+	/**
+	 * Scans the current line of a line reader and reports its tokens.
+	 *
+	 * @param highlighter the lexer, it should already read through
+	 * <code>in</code>
+	 * @param in the line reader, positioned on the line
+	 * @param sink the sink that receives the tokens
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 */
+	static void scanLine(ExplicitStateHighlighter highlighter, LineReader in, TokenSink sink)
+	throws IOException
+	{
+		char[] line = in.getLineBuffer();
+		int line_length = in.getLineLength();
+		sink.startLine(line, 0, line_length);
+		
+		int index = 0;
+		byte style;
+		int length;
+		while (index < line_length)
+		{
+			style = highlighter.getNextToken();
+			length = highlighter.getTokenLength();
+			sink.token(style, index, length);
+			
+			index += length;
+		}
+		
+		sink.endLine();
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.highlighter;
+
+import java.io.IOException;
+
+/**
+ * Receives the tokens that are produced by a highlighting lexer.
+ * <p>The source is delivered line by line. Each line starts with a call to
+ * {@link #startLine(char[], int, int)} that provides the characters of the
+ * line, is followed by the tokens that cover these characters and ends with
+ * a call to {@link #endLine()}. Tokens never span several lines and the last
+ * character of every line is a <code>'\n'</code>.
+ * <p>No objects are created to report the tokens, the character array is
+ * only valid until the next call to <code>startLine</code>.
+ *
+ * @see TokenScanner
+ * @since 2.0.1
+ */
+public interface TokenSink
+{
+	/**
+	 * Starts a new line.
+	 *
+	 * @param text the array that contains the characters of the line
+	 * @param offset the index of the first character of the line
+	 * @param length the number of characters of the line, including its
+	 * terminating <code>'\n'</code>
+	 * @exception IOException when an error occurred while processing the line
+	 */
+	void startLine(char[] text, int offset, int length) throws IOException;
+
+	/**
+	 * Receives a token of the current line.
+	 *
+	 * @param style the style of the token, as defined by the lexer
+	 * @param offset the index of the first character of the token in the
+	 * array that was provided to {@link #startLine(char[], int, int)}
+	 * @param length the number of characters of the token
+	 * @exception IOException when an error occurred while processing the
+	 * token
+	 */
+	void token(byte style, int offset, int length) throws IOException;
+
+	/**
+	 * Ends the current line.
+	 *
+	 * @exception IOException when an error occurred while processing the line
+	 */
+	void endLine() throws IOException;
+}
@@ -481,12 +481,83 @@ public class XmlHighlighter implements ExplicitStateHighlighter {
 	/** Sets the current lexical state of this highlighter.
 	 *
 	 * @param newState the new lexical state.
+	 * @exception IllegalArgumentException if the state isn't one of the
+	 * lexical states of this highlighter.
 	 */
 	public void setState(byte newState)
 	{
+		if (!isLexicalState(newState-1))
+		{
+			throw new IllegalArgumentException("Unknown lexical state " + newState + ".");
+		}
 		yybegin(newState-1);
 	}
 	
+	private static boolean isLexicalState(int state)
+	{
+		switch (state)
+		{
+			case YYINITIAL:
+			case IN_RIFE_TAG_COMMENT:
+			case IN_RIFE_TAG_COMPACT:
+			case IN_RIFE_TAG_VELOCITY:
+			case IN_RIFE_TAG_REGULAR:
+			case IN_RIFE_NAME_SINGLEQUOTED:
+			case IN_RIFE_NAME_QUOTED:
+			case IN_RIFE_NAME:
+			case IN_COMMENT:
+			case TAG_START:
+			case IN_TAG:
+			case IN_SINGLE_QUOTE_STRING:
+			case IN_DOUBLE_QUOTE_STRING:
+			case IN_PROCESSING_INSTRUCTION:
+			case IN_CDATA_SECTION:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	public int getCheckpoint()
+	{
+		int state = yystate();
+		int checkpoint = state+1;
+		// the returning states are only part of the checkpoint where they
+		// will be used, elsewhere they're stale
+		switch (state)
+		{
+			case IN_RIFE_NAME_SINGLEQUOTED:
+			case IN_RIFE_NAME_QUOTED:
+				checkpoint |= mReturningStateTag << 16 | mReturningState << 8;
+				break;
+			case IN_RIFE_TAG_COMMENT:
+			case IN_RIFE_TAG_COMPACT:
+			case IN_RIFE_TAG_VELOCITY:
+			case IN_RIFE_TAG_REGULAR:
+			case IN_RIFE_NAME:
+				checkpoint |= mReturningState << 8;
+				break;
+		}
+		return checkpoint;
+	}
+	
+	public void restoreCheckpoint(int checkpoint)
+	{
+		int state = (checkpoint & 0xFF)-1;
+		int returning_state = (checkpoint >>> 8) & 0xFF;
+		int returning_state_tag = (checkpoint >>> 16) & 0xFF;
+		if ((checkpoint >>> 24) != 0 ||
+			!isLexicalState(state) ||
+			!isLexicalState(returning_state) ||
+			!isLexicalState(returning_state_tag))
+		{
+			throw new IllegalArgumentException("Unknown checkpoint " + checkpoint + ".");
+		}
+		yybegin(state);
+		mReturningState = returning_state;
+		mReturningStateTag = returning_state_tag;
+	}
+	
 	public byte getNextToken()
 	{
 		try
@@ -508,6 +579,11 @@ public class XmlHighlighter implements ExplicitStateHighlighter {
 	{
 		this.zzReader = r;
 	}
+	
+	public void reset(Reader r)
+	{
+		yyreset(r);
+	}
 
 	/** Creates a new {@link XmlHighlighter}. */
 	public XmlHighlighter()
@@ -0,0 +1,464 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.codelibs.jhighlight.highlighter.TokenSink;
+import org.codelibs.jhighlight.tools.StringUtils;
+
+/**
+ * Writes highlighted tokens as XHTML bytes, without going through a
+ * <code>Writer</code>.
+ * <p>All the markup is copied from byte arrays that were encoded
+ * beforehand: the <code>span</code> tags of the styles, the line ends and
+ * the Html entities. The charset has to encode ASCII as single bytes of the
+ * same value, the ASCII characters of the tokens are then narrowed straight
+ * to bytes and only the runs of other characters go through the encoder.
+ * The bytes are identical to those of an {@link XhtmlTokenWriter} behind an
+ * <code>OutputStreamWriter</code>.
+ * <p>The fixed parts of the document are written through the
+ * <code>OutputStream</code> methods, to the same buffer.
+ *
+ * @since 2.0.1
+ */
+final class ByteTokenWriter extends OutputStream implements TokenSink
+{
+	private static final int		BUFFER_SIZE = 8192;
+	private static final byte[]		SPAN_END = ascii("</span>");
+	private static final byte[]		LINE_END = ascii("</span><br />\n");
+	private static final byte[]		SPACE = ascii("&nbsp;");
+	private static final byte[][]	ENTITIES;
+
+	static
+	{
+		byte[][] entities = new byte[0x10000][];
+		int size = 0;
+		String entity;
+		for (int c = 0; c < entities.length; c++)
+		{
+			entity = StringUtils.getHtmlEntity((char)c);
+			if (entity != null)
+			{
+				entities[c] = ascii(entity);
+				size = c + 1;
+			}
+		}
+
+		ENTITIES = new byte[size][];
+		System.arraycopy(entities, 0, ENTITIES, 0, size);
+	}
+
+	private final OutputStream		mOut;
+	private final byte[][]			mSpanTags;
+	private final CharsetEncoder	mEncoder;
+	private final byte[]			mReplacement;
+	private final int				mPassthroughLimit;
+
+	private final byte[]			mBuffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer		mEncoded = ByteBuffer.wrap(mBuffer);
+	private int						mPosition = 0;
+	private char[]					mRun = new char[64];
+	private char					mHighSurrogate = 0;
+
+	private char[]					mText;
+	private int						mPreviousStyle = 0;
+	private boolean					mNewline = false;
+
+	/**
+	 * Creates a new <code>ByteTokenWriter</code>.
+	 *
+	 * @param out the stream to which the bytes will be written
+	 * @param spanTags the encoded opening <code>span</code> tag of every
+	 * style, indexed by the unsigned value of the style; <code>null</code>
+	 * entries mark the styles that aren't supported
+	 * @param charset the charset of the output, it has to be
+	 * ASCII-compatible
+	 * @param passthroughLimit the first character that's written as a
+	 * numeric character reference with minimal escaping; or <code>-1</code>
+	 * if Html entities should be used
+	 */
+	ByteTokenWriter(OutputStream out, byte[][] spanTags, Charset charset, int passthroughLimit)
+	{
+		mOut = out;
+		mSpanTags = spanTags;
+		mEncoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		mReplacement = mEncoder.replacement();
+		mPassthroughLimit = passthroughLimit;
+	}
+
+	/**
+	 * Encodes the opening <code>span</code> tags of a renderer.
+	 *
+	 * @param spanTags the tags, as built by
+	 * {@link XhtmlTokenWriter#buildSpanTags(XhtmlRenderer)}
+	 * @param charset the charset of the output
+	 * @return the encoded tags
+	 */
+	static byte[][] encodeSpanTags(String[] spanTags, Charset charset)
+	{
+		byte[][] encoded = new byte[spanTags.length][];
+		for (int i = 0; i < spanTags.length; i++)
+		{
+			if (spanTags[i] != null)
+			{
+				encoded[i] = spanTags[i].getBytes(charset);
+			}
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * Checks whether a charset is supported, it has to encode ASCII as
+	 * single bytes of the same value and can't have shift states.
+	 *
+	 * @param charset the charset
+	 * @return <code>true</code> if the charset is supported; or
+	 * <p><code>false</code> otherwise
+	 */
+	static boolean supports(Charset charset)
+	{
+		String name = charset.name();
+		if (!name.equals("UTF-8") &&
+			!name.equals("US-ASCII") &&
+			!name.startsWith("ISO-8859-") &&
+			!name.startsWith("windows-125"))
+		{
+			return false;
+		}
+
+		byte[] ascii = new byte[0x80];
+		for (int i = 0; i < ascii.length; i++)
+		{
+			ascii[i] = (byte)i;
+		}
+
+		return Arrays.equals(ascii, new String(ascii, StandardCharsets.ISO_8859_1).getBytes(charset));
+	}
+
+	private static byte[] ascii(String text)
+	{
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	public void startLine(char[] text, int offset, int length)
+	{
+		mText = text;
+	}
+
+	public void token(byte style, int offset, int length)
+	throws IOException
+	{
+		if (style != mPreviousStyle ||
+			mNewline)
+		{
+			byte[] span_tag = mSpanTags[style & 0xFF];
+			if (span_tag != null)
+			{
+				if (mPreviousStyle != 0 && !mNewline)
+				{
+					write(SPAN_END, 0, SPAN_END.length);
+				}
+				write(span_tag, 0, span_tag.length);
+
+				mPreviousStyle = style;
+			}
+		}
+		mNewline = false;
+
+		char[] text = mText;
+		int end = offset + length;
+		char c;
+		for (int i = offset; i < end; i++)
+		{
+			c = text[i];
+			if (c < 0x80)
+			{
+				if (mHighSurrogate != 0)
+				{
+					writeHighSurrogate();
+				}
+				if (' ' == c)
+				{
+					write(SPACE, 0, SPACE.length);
+				}
+				else if (c != '\n')
+				{
+					writeAscii(c);
+				}
+			}
+			else
+			{
+				i = writeOther(text, i, end) - 1;
+			}
+		}
+	}
+
+	public void endLine()
+	throws IOException
+	{
+		write(LINE_END, 0, LINE_END.length);
+		mNewline = true;
+	}
+
+	private void writeAscii(char c)
+	throws IOException
+	{
+		byte[] entity = c < ENTITIES.length ? ENTITIES[c] : null;
+		if (entity != null)
+		{
+			write(entity, 0, entity.length);
+		}
+		else
+		{
+			if (mPosition == BUFFER_SIZE)
+			{
+				drain();
+			}
+			mBuffer[mPosition++] = (byte)c;
+		}
+	}
+
+	/**
+	 * Writes the characters beyond ASCII that start at an index, up to the
+	 * next ASCII character.
+	 *
+	 * @return the index after the last character that was written
+	 */
+	private int writeOther(char[] text, int start, int end)
+	throws IOException
+	{
+		int run_length = 0;
+		if (mHighSurrogate != 0)
+		{
+			mRun[run_length++] = mHighSurrogate;
+			mHighSurrogate = 0;
+		}
+
+		int i = start;
+		char c;
+		byte[] entity;
+		int code_point;
+		while (i < end)
+		{
+			c = text[i];
+			if (c < 0x80)
+			{
+				break;
+			}
+
+			if (mPassthroughLimit < 0)
+			{
+				entity = c < ENTITIES.length ? ENTITIES[c] : null;
+				if (entity != null)
+				{
+					run_length = encodeRun(run_length);
+					if (run_length > 0)
+					{
+						writeHighSurrogate();
+						run_length = 0;
+					}
+					write(entity, 0, entity.length);
+					i++;
+					continue;
+				}
+			}
+			else if (c >= mPassthroughLimit)
+			{
+				run_length = encodeRun(run_length);
+				if (run_length > 0)
+				{
+					writeHighSurrogate();
+					run_length = 0;
+				}
+				code_point = c;
+				if (Character.isHighSurrogate(c) &&
+					i + 1 < end &&
+					Character.isLowSurrogate(text[i + 1]))
+				{
+					code_point = Character.toCodePoint(c, text[++i]);
+				}
+				else if (Character.isSurrogate(c))
+				{
+					// unpaired surrogates have no valid reference
+					code_point = 0xFFFD;
+				}
+				writeReference(code_point);
+				i++;
+				continue;
+			}
+
+			if (run_length == mRun.length)
+			{
+				char[] run = new char[mRun.length * 2];
+				System.arraycopy(mRun, 0, run, 0, run_length);
+				mRun = run;
+			}
+			mRun[run_length++] = c;
+			i++;
+		}
+
+		if (encodeRun(run_length) > 0)
+		{
+			// a high surrogate whose low surrogate might still follow
+			mHighSurrogate = mRun[0];
+		}
+
+		return i;
+	}
+
+	/**
+	 * Encodes the pending run of characters beyond ASCII.
+	 *
+	 * @return the number of characters that couldn't be encoded yet, a
+	 * trailing high surrogate is kept until the next character is known
+	 */
+	private int encodeRun(int runLength)
+	throws IOException
+	{
+		if (0 == runLength)
+		{
+			return 0;
+		}
+
+		CharBuffer run = CharBuffer.wrap(mRun, 0, runLength);
+		CoderResult result;
+		while (true)
+		{
+			mEncoded.limit(BUFFER_SIZE).position(mPosition);
+			result = mEncoder.encode(run, mEncoded, false);
+			mPosition = mEncoded.position();
+			if (result.isOverflow())
+			{
+				drain();
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		int remaining = run.remaining();
+		if (remaining > 0)
+		{
+			mRun[0] = mRun[runLength - remaining];
+		}
+		return remaining;
+	}
+
+	/**
+	 * Writes a high surrogate that isn't followed by a low surrogate, as
+	 * the encoder of a <code>Writer</code> would.
+	 */
+	private void writeHighSurrogate()
+	throws IOException
+	{
+		mHighSurrogate = 0;
+		mEncoder.reset();
+		write(mReplacement, 0, mReplacement.length);
+	}
+
+	private void writeReference(int codePoint)
+	throws IOException
+	{
+		write('&');
+		write('#');
+		String digits = Integer.toString(codePoint);
+		for (int i = 0; i < digits.length(); i++)
+		{
+			write(digits.charAt(i));
+		}
+		write(';');
+	}
+
+	public void write(int b)
+	throws IOException
+	{
+		if (mPosition == BUFFER_SIZE)
+		{
+			drain();
+		}
+		mBuffer[mPosition++] = (byte)b;
+	}
+
+	public void write(byte[] bytes, int offset, int length)
+	throws IOException
+	{
+		if (mHighSurrogate != 0)
+		{
+			writeHighSurrogate();
+		}
+
+		if (length > BUFFER_SIZE - mPosition)
+		{
+			drain();
+			if (length > BUFFER_SIZE)
+			{
+				mOut.write(bytes, offset, length);
+				return;
+			}
+		}
+
+		System.arraycopy(bytes, offset, mBuffer, mPosition, length);
+		mPosition += length;
+	}
+
+	private void drain()
+	throws IOException
+	{
+		if (mPosition > 0)
+		{
+			mOut.write(mBuffer, 0, mPosition);
+			mPosition = 0;
+		}
+	}
+
+	/**
+	 * Writes the buffered bytes to the underlying stream and flushes it.
+	 *
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void flush()
+	throws IOException
+	{
+		if (mHighSurrogate != 0)
+		{
+			writeHighSurrogate();
+		}
+		drain();
+		mOut.flush();
+	}
+
+	/**
+	 * Flushes this writer and closes the underlying stream.
+	 *
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void close()
+	throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			mOut.close();
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.codelibs.jhighlight.highlighter.TokenSink;
+import org.codelibs.jhighlight.tools.StringUtils;
+
+/**
+ * Writes highlighted tokens as the content of a <code>pre</code> element.
+ * <p>Whitespace and line breaks are written as they are. Whitespace between
+ * two tokens is kept aside until the next token arrives, when that token
+ * has the style of the open <code>span</code>, the whitespace and the token
+ * are simply added to it. A <code>span</code> is thus only closed when the
+ * style really changes, even across lines. Plain text isn't wrapped in a
+ * <code>span</code> at all.
+ *
+ * @since 2.0.1
+ */
+final class CompactTokenWriter implements TokenSink
+{
+	private static final String SPAN_END = "</span>";
+
+	private final Writer	mWriter;
+	private final String[]	mSpanTags;
+	private final int		mPassthroughLimit;
+
+	private char[]			mText;
+	private String			mOpenSpanTag = "";
+	private char[]			mWhitespace = new char[64];
+	private int				mWhitespaceLength = 0;
+
+	/**
+	 * Creates a new <code>CompactTokenWriter</code>.
+	 *
+	 * @param writer the writer to which the markup will be written
+	 * @param spanTags the opening <code>span</code> tag of every style,
+	 * indexed by the unsigned value of the style; empty entries mark plain
+	 * styles and <code>null</code> entries the styles that aren't supported
+	 * @param passthroughLimit the first character that's written as a
+	 * numeric character reference with minimal escaping; or <code>-1</code>
+	 * if Html entities should be used
+	 */
+	CompactTokenWriter(Writer writer, String[] spanTags, int passthroughLimit)
+	{
+		mWriter = writer;
+		mSpanTags = spanTags;
+		mPassthroughLimit = passthroughLimit;
+	}
+
+	/**
+	 * Builds the table of opening <code>span</code> tags with the short
+	 * class names of a renderer.
+	 *
+	 * @param renderer the renderer whose CSS classes will be used
+	 * @return the table of opening <code>span</code> tags
+	 */
+	static String[] buildSpanTags(XhtmlRenderer renderer)
+	{
+		String[] span_tags = new String[256];
+		String css_class;
+		String short_name;
+		for (int i = 0; i < span_tags.length; i++)
+		{
+			css_class = renderer.getCssClass((byte)i);
+			if (css_class != null)
+			{
+				short_name = ShortClassNames.get(css_class);
+				span_tags[i] = short_name.length() == 0 ? "" : "<span class=\"" + short_name + "\">";
+			}
+		}
+
+		return span_tags;
+	}
+
+	public void startLine(char[] text, int offset, int length)
+	{
+		mText = text;
+	}
+
+	public void token(byte style, int offset, int length)
+	throws IOException
+	{
+		char[] text = mText;
+		int end = offset + length;
+		if (isWhitespace(text, offset, end))
+		{
+			keepWhitespace(text, offset, end);
+			return;
+		}
+
+		String span_tag = mSpanTags[style & 0xFF];
+		if (span_tag != null &&
+			!span_tag.equals(mOpenSpanTag))
+		{
+			if (mOpenSpanTag.length() > 0)
+			{
+				mWriter.write(SPAN_END);
+			}
+			writeWhitespace();
+			mWriter.write(span_tag);
+			mOpenSpanTag = span_tag;
+		}
+		else
+		{
+			writeWhitespace();
+		}
+
+		int last_written = offset;
+		for (int i = offset; i < end; i++)
+		{
+			if ('\n' == text[i])
+			{
+				encode(text, last_written, i - last_written);
+				last_written = i + 1;
+			}
+		}
+		encode(text, last_written, end - last_written);
+	}
+
+	public void endLine()
+	{
+		keepWhitespace('\n');
+	}
+
+	/**
+	 * Closes the open <code>span</code> and writes the whitespace that's
+	 * left, after the last token.
+	 *
+	 * @exception IOException when an error occurred while writing
+	 */
+	void finish()
+	throws IOException
+	{
+		if (mOpenSpanTag.length() > 0)
+		{
+			mWriter.write(SPAN_END);
+			mOpenSpanTag = "";
+		}
+		writeWhitespace();
+	}
+
+	private static boolean isWhitespace(char[] text, int offset, int end)
+	{
+		char c;
+		for (int i = offset; i < end; i++)
+		{
+			c = text[i];
+			if (c != ' ' && c != '\n')
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void keepWhitespace(char[] text, int offset, int end)
+	{
+		for (int i = offset; i < end; i++)
+		{
+			// line breaks are added by endLine
+			if (' ' == text[i])
+			{
+				keepWhitespace(' ');
+			}
+		}
+	}
+
+	private void keepWhitespace(char c)
+	{
+		if (mWhitespaceLength == mWhitespace.length)
+		{
+			char[] whitespace = new char[mWhitespace.length * 2];
+			System.arraycopy(mWhitespace, 0, whitespace, 0, mWhitespaceLength);
+			mWhitespace = whitespace;
+		}
+		mWhitespace[mWhitespaceLength++] = c;
+	}
+
+	private void writeWhitespace()
+	throws IOException
+	{
+		if (mWhitespaceLength > 0)
+		{
+			mWriter.write(mWhitespace, 0, mWhitespaceLength);
+			mWhitespaceLength = 0;
+		}
+	}
+
+	private void encode(char[] text, int offset, int length)
+	throws IOException
+	{
+		if (0 == length)
+		{
+			return;
+		}
+
+		if (mPassthroughLimit < 0)
+		{
+			StringUtils.encodeHtml(text, offset, length, mWriter);
+		}
+		else
+		{
+			StringUtils.encodeHtmlMinimal(text, offset, length, mPassthroughLimit, mWriter);
+		}
+	}
+}
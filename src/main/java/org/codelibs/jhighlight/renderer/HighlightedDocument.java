@@ -0,0 +1,344 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.codelibs.jhighlight.highlighter.ExplicitStateHighlighter;
+import org.codelibs.jhighlight.highlighter.TokenScanner;
+import org.codelibs.jhighlight.tools.LineReader;
+
+/**
+ * Keeps the highlighted XHTML of a source that's being edited, line by
+ * line, and highlights it again incrementally after every edit.
+ * <p>The checkpoint of the lexer at the start of every line is kept with
+ * the XHTML of the line. After an edit, the lines are scanned again from
+ * the line that contains the start of the edit. Once past the inserted
+ * text, the scanning stops at the first line that starts where a line
+ * started before and from the same checkpoint: all the following lines are
+ * highlighted as they were. The work of an edit is thus proportional to the
+ * lines that it really changes, for instance all the lines up to the end
+ * of a comment that was opened.
+ * <p>The XHTML of every line is written by its own sink of
+ * {@link XhtmlRenderer#createTokenSink(Writer)}, the lines together are
+ * the XHTML that the renderer writes for the complete source.
+ * <p>A document isn't thread-safe, it has its own lexer.
+ *
+ * @since 2.0.1
+ */
+public final class HighlightedDocument
+{
+	private static final Reader EMPTY_READER = Reader.nullReader();
+
+	private final XhtmlRenderer				mRenderer;
+	private final ExplicitStateHighlighter	mHighlighter;
+	private final LineReader				mLineReader = new LineReader(EMPTY_READER, TokenScanner.TAB_WIDTH);
+	private final int						mStartCheckpoint;
+
+	private final StringBuilder	mText = new StringBuilder();
+	private int[]				mLineOffsets = new int[64];
+	private int[]				mLineCheckpoints = new int[64];
+	private String[]			mLines = new String[64];
+	private int					mLineCount = 0;
+
+	/**
+	 * Creates a new <code>HighlightedDocument</code> and highlights its
+	 * initial source.
+	 * <p>The lexer of the renderer should support resets and checkpoints,
+	 * like the ones of this library do.
+	 *
+	 * @param renderer the renderer of the language of the source
+	 * @param text the initial source
+	 * @exception IOException when an error occurred while highlighting
+	 * @exception IllegalArgumentException if the lexer of the renderer
+	 * can't be reset or doesn't support checkpoints
+	 * @see ExplicitStateHighlighter#getCheckpoint()
+	 */
+	public HighlightedDocument(XhtmlRenderer renderer, CharSequence text)
+	throws IOException
+	{
+		if (null == renderer)	throw new IllegalArgumentException("renderer can't be null.");
+		if (null == text)		throw new IllegalArgumentException("text can't be null.");
+
+		mRenderer = renderer;
+		mHighlighter = renderer.getHighlighter();
+		try
+		{
+			mHighlighter.reset(null);
+			mStartCheckpoint = mHighlighter.getCheckpoint();
+			mHighlighter.restoreCheckpoint(mStartCheckpoint);
+		}
+		catch (UnsupportedOperationException e)
+		{
+			throw new IllegalArgumentException("The highlighter " + mHighlighter.getClass().getName() + " doesn't support resets and checkpoints.", e);
+		}
+
+		edit(0, 0, text);
+	}
+
+	/**
+	 * Replaces a range of the source and highlights the lines that change.
+	 *
+	 * @param offset the index of the first character that's replaced
+	 * @param length the number of characters that are replaced
+	 * @param replacement the characters that replace them
+	 * @return the lines that changed
+	 * @exception IOException when an error occurred while highlighting
+	 */
+	public Change edit(int offset, int length, CharSequence replacement)
+	throws IOException
+	{
+		if (null == replacement)	throw new IllegalArgumentException("replacement can't be null.");
+		if (offset < 0 ||
+			length < 0 ||
+			offset > mText.length() - length)
+		{
+			throw new IndexOutOfBoundsException("Invalid range " + offset + " - " + (offset + length) + " for " + mText.length() + " characters.");
+		}
+
+		// a line feed that's inserted right after a carriage return joins
+		// the line that it ends, the scanning starts a line earlier then
+		int first_line = getLine(offset);
+		if (first_line > 0 &&
+			mLineOffsets[first_line] == offset)
+		{
+			first_line--;
+		}
+
+		mText.replace(offset, offset + length, replacement.toString());
+		int shift = replacement.length() - length;
+		int edit_end = offset + replacement.length();
+
+		int position = first_line < mLineCount ? mLineOffsets[first_line] : 0;
+		mHighlighter.reset(null);
+		mHighlighter.restoreCheckpoint(first_line < mLineCount ? mLineCheckpoints[first_line] : mStartCheckpoint);
+
+		ArrayList<String> lines = new ArrayList<String>();
+		int[] offsets = new int[8];
+		int[] checkpoints = new int[8];
+		int old_line = first_line;
+		int checkpoint;
+		int line_end;
+		int text_length = mText.length();
+		while (position < text_length)
+		{
+			checkpoint = mHighlighter.getCheckpoint();
+			if (position >= edit_end)
+			{
+				while (old_line < mLineCount &&
+					   mLineOffsets[old_line] + shift < position)
+				{
+					old_line++;
+				}
+				if (old_line < mLineCount &&
+					mLineOffsets[old_line] + shift == position &&
+					mLineCheckpoints[old_line] == checkpoint)
+				{
+					break;
+				}
+			}
+
+			line_end = LineReader.getLineEnd(mText, position);
+			if (lines.size() == offsets.length)
+			{
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+			}
+			offsets[lines.size()] = position;
+			checkpoints[lines.size()] = checkpoint;
+			lines.add(highlightLine(position, line_end));
+
+			position = line_end;
+		}
+		if (position >= text_length)
+		{
+			old_line = mLineCount;
+		}
+
+		replaceLines(first_line, old_line, lines, offsets, checkpoints, shift);
+
+		return new Change(first_line, old_line - first_line, lines);
+	}
+
+	/**
+	 * Returns the source.
+	 *
+	 * @return the characters of the source
+	 */
+	public String getText()
+	{
+		return mText.toString();
+	}
+
+	/**
+	 * Returns the number of lines of the source.
+	 *
+	 * @return the number of lines
+	 */
+	public int getLineCount()
+	{
+		return mLineCount;
+	}
+
+	/**
+	 * Returns the highlighted XHTML of a line.
+	 *
+	 * @param line the index of the line
+	 * @return the XHTML of the line
+	 */
+	public String getLineXhtml(int line)
+	{
+		if (line < 0 || line >= mLineCount)	throw new IndexOutOfBoundsException("line " + line + " isn't between 0 and " + mLineCount);
+
+		return mLines[line];
+	}
+
+	/**
+	 * Writes the complete highlighted XHTML of the source, as the renderer
+	 * writes it through {@link XhtmlRenderer#highlight(String, Reader,
+	 * Writer, boolean)}.
+	 *
+	 * @param name the name of the source file
+	 * @param out the writer to which the XHTML is written
+	 * @param fragment <code>true</code> if the XHTML should be a fragment;
+	 * or <code>false</code> if it should be a complete page
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void write(String name, Writer out, boolean fragment)
+	throws IOException
+	{
+		out.write(mRenderer.getHeader(name, fragment, RenderOptions.DEFAULT, null));
+		for (int i = 0; i < mLineCount; i++)
+		{
+			out.write(mLines[i]);
+		}
+
+		String footer = mRenderer.getFooter(fragment, RenderOptions.DEFAULT);
+		if (footer != null) out.write(footer);
+
+		out.flush();
+	}
+
+	/**
+	 * Returns the index of the line that contains a character, or the last
+	 * line when the character is past the end of the source.
+	 */
+	private int getLine(int offset)
+	{
+		int index = Arrays.binarySearch(mLineOffsets, 0, mLineCount, offset);
+		if (index < 0)
+		{
+			index = -index - 2;
+		}
+
+		return Math.max(index, 0);
+	}
+
+	private String highlightLine(int start, int end)
+	throws IOException
+	{
+		mLineReader.reset(new CharSequenceReader(mText, start, end));
+		StringBuilderWriter xhtml = new StringBuilderWriter();
+		TokenScanner.scan(mHighlighter, mLineReader, mRenderer.createTokenSink(xhtml));
+
+		return xhtml.toString();
+	}
+
+	private void replaceLines(int from, int to, List<String> lines, int[] offsets, int[] checkpoints, int shift)
+	{
+		int count = lines.size();
+		int line_count = mLineCount - (to - from) + count;
+		if (line_count > mLines.length)
+		{
+			int capacity = Math.max(line_count, mLines.length * 2);
+			mLineOffsets = Arrays.copyOf(mLineOffsets, capacity);
+			mLineCheckpoints = Arrays.copyOf(mLineCheckpoints, capacity);
+			mLines = Arrays.copyOf(mLines, capacity);
+		}
+
+		int following = mLineCount - to;
+		System.arraycopy(mLineOffsets, to, mLineOffsets, from + count, following);
+		System.arraycopy(mLineCheckpoints, to, mLineCheckpoints, from + count, following);
+		System.arraycopy(mLines, to, mLines, from + count, following);
+		System.arraycopy(offsets, 0, mLineOffsets, from, count);
+		System.arraycopy(checkpoints, 0, mLineCheckpoints, from, count);
+		for (int i = 0; i < count; i++)
+		{
+			mLines[from + i] = lines.get(i);
+		}
+		for (int i = line_count; i < mLineCount; i++)
+		{
+			mLines[i] = null;
+		}
+		mLineCount = line_count;
+
+		if (shift != 0)
+		{
+			for (int i = from + count; i < line_count; i++)
+			{
+				mLineOffsets[i] += shift;
+			}
+		}
+	}
+
+	/**
+	 * The lines that changed through an edit: a range of the previous lines
+	 * was replaced by new lines.
+	 */
+	public static final class Change
+	{
+		private final int			mFirstLine;
+		private final int			mRemovedLineCount;
+		private final List<String>	mLines;
+
+		Change(int firstLine, int removedLineCount, List<String> lines)
+		{
+			mFirstLine = firstLine;
+			mRemovedLineCount = removedLineCount;
+			mLines = Collections.unmodifiableList(lines);
+		}
+
+		/**
+		 * Returns the index of the first line that changed.
+		 *
+		 * @return the index of the line, in the lines before and after the
+		 * edit
+		 */
+		public int getFirstLine()
+		{
+			return mFirstLine;
+		}
+
+		/**
+		 * Returns the number of lines that were replaced.
+		 *
+		 * @return the number of lines before the edit, starting at the first
+		 * line, that were replaced
+		 */
+		public int getRemovedLineCount()
+		{
+			return mRemovedLineCount;
+		}
+
+		/**
+		 * Returns the XHTML of the lines that replace the removed ones.
+		 *
+		 * @return the XHTML of each new line
+		 */
+		public List<String> getLines()
+		{
+			return mLines;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.codelibs.jhighlight.highlighter.HighlighterSession;
+import org.codelibs.jhighlight.highlighter.HighlighterSessionPool;
+import org.codelibs.jhighlight.highlighter.TokenSink;
+
+/**
+ * Highlights source code while it's being written.
+ * <p>The characters are kept until their line is complete, the highlighted
+ * XHTML of complete lines is then written right away. Only the line that's
+ * incomplete is retained and only the characters that are written after it
+ * are searched for its end.
+ * <p>The buffer isn't bounded: it's doubled for as long as a line isn't
+ * complete, so a line that's longer than the initial size is retained
+ * entirely, however long it is. A line isn't split because its tokens
+ * could then differ from the ones of the complete line.
+ *
+ * @since 2.0.1
+ */
+final class HighlightingWriter extends Writer
+{
+	private final HighlighterSessionPool	mSessions;
+	private final Writer					mOut;
+	private final String					mFooter;
+	private final TokenSink					mSink;
+
+	private HighlighterSession	mSession;
+	private char[]				mPending;
+	private int					mPendingLength = 0;
+	private int					mChecked = 0;
+
+	/**
+	 * Creates a new <code>HighlightingWriter</code> and writes the XHTML
+	 * header.
+	 *
+	 * @param renderer the renderer that provides the XHTML
+	 * @param sessions the pool from which the lexer is taken
+	 * @param name the name of the source file
+	 * @param out the writer to which the XHTML will be written
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param bufferSize the initial number of characters that are kept for
+	 * incomplete lines
+	 * @param options the options of the highlighting
+	 * @exception IOException when an error occurred while writing the header
+	 */
+	HighlightingWriter(XhtmlRenderer renderer, HighlighterSessionPool sessions, String name, Writer out, boolean fragment, int bufferSize, RenderOptions options)
+	throws IOException
+	{
+		mSessions = sessions;
+		mOut = out;
+		mPending = new char[bufferSize];
+
+		out.write(renderer.getHeader(name, fragment, options, null));
+
+		mFooter = renderer.getFooter(fragment, options);
+		mSink = renderer.createTokenSink(out, options, Integer.MAX_VALUE);
+		mSession = sessions.acquire();
+		mSession.begin();
+	}
+
+	public void write(char[] buffer, int offset, int length)
+	throws IOException
+	{
+		ensureOpen();
+
+		int count;
+		while (length > 0)
+		{
+			if (mPendingLength == mPending.length)
+			{
+				scanPending(false);
+				if (mPendingLength == mPending.length)
+				{
+					mPending = Arrays.copyOf(mPending, mPending.length * 2);
+				}
+			}
+
+			count = Math.min(length, mPending.length - mPendingLength);
+			System.arraycopy(buffer, offset, mPending, mPendingLength, count);
+			mPendingLength += count;
+			offset += count;
+			length -= count;
+		}
+
+		scanPending(false);
+	}
+
+	/**
+	 * Writes the XHTML of all the complete lines and flushes the underlying
+	 * writer.
+	 *
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void flush()
+	throws IOException
+	{
+		ensureOpen();
+
+		mOut.flush();
+	}
+
+	/**
+	 * Writes the XHTML of the remaining characters and the footer, and
+	 * closes the underlying writer.
+	 *
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void close()
+	throws IOException
+	{
+		if (null == mSession)
+		{
+			return;
+		}
+
+		try
+		{
+			scanPending(true);
+			XhtmlRenderer.finish(mSink);
+			if (mFooter != null)
+			{
+				mOut.write(mFooter);
+			}
+		}
+		finally
+		{
+			mSessions.release(mSession);
+			mSession = null;
+			mOut.close();
+		}
+	}
+
+	private void scanPending(boolean last)
+	throws IOException
+	{
+		int scanned = mSession.scanLines(mPending, 0, mPendingLength, mChecked, last, mSink);
+		if (scanned > 0)
+		{
+			mPendingLength -= scanned;
+			System.arraycopy(mPending, scanned, mPending, 0, mPendingLength);
+		}
+
+		// none of the remaining characters ends a line, except a carriage
+		// return at the end that could still be followed by a line feed
+		mChecked = mPendingLength;
+		if (mChecked > 0 &&
+			'\r' == mPending[mChecked - 1])
+		{
+			mChecked--;
+		}
+	}
+
+	private void ensureOpen()
+	throws IOException
+	{
+		if (null == mSession)
+		{
+			throw new IOException("The writer has been closed.");
+		}
+	}
+}
@@ -112,7 +112,7 @@ public class JavaXhtmlRenderer extends XhtmlRenderer
 	protected ExplicitStateHighlighter getHighlighter()
 	{
 		JavaHighlighter highlighter = new JavaHighlighter();
-		highlighter.ASSERT_IS_KEYWORD = true;
+		highlighter.setAssertIsKeyword(true);
 		
 		return highlighter;
 	}
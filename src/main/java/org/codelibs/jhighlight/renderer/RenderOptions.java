@@ -0,0 +1,219 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+/**
+ * Options of a single highlighting by an {@link XhtmlRenderer}.
+ * <p>Options are immutable, every <code>with</code> method returns a copy
+ * with one option changed. They can be shared by threads and kept in
+ * constants.
+ *
+ * @since 2.0.1
+ */
+public final class RenderOptions
+{
+	/** The options that produce the same XHTML as the highlightings without
+	 * options. */
+	public static final RenderOptions DEFAULT = new RenderOptions(false, false, null, false);
+
+	private final boolean	mMinimalEscaping;
+	private final boolean	mCompact;
+	private final String	mStylesheet;
+	private final boolean	mParallel;
+
+	private RenderOptions(boolean minimalEscaping, boolean compact, String stylesheet, boolean parallel)
+	{
+		mMinimalEscaping = minimalEscaping;
+		mCompact = compact;
+		mStylesheet = stylesheet;
+		mParallel = parallel;
+	}
+
+	/**
+	 * Indicates whether only the characters that are significant in markup
+	 * are escaped.
+	 * <p>By default, all the characters that have an Html entity are
+	 * replaced by it, for instance <code>&amp;eacute;</code>. With minimal
+	 * escaping, only <code>&amp;</code>, <code>&lt;</code>,
+	 * <code>&gt;</code> and <code>&quot;</code> are replaced, the other
+	 * characters are written as they are when the output encoding can
+	 * represent them, and as numeric character references otherwise.
+	 *
+	 * @return <code>true</code> if the escaping is minimal; or
+	 * <p><code>false</code> if Html entities are used
+	 */
+	public boolean isMinimalEscaping()
+	{
+		return mMinimalEscaping;
+	}
+
+	/**
+	 * Returns options that differ by the escaping.
+	 *
+	 * @param minimalEscaping <code>true</code> if only the characters that
+	 * are significant in markup should be escaped
+	 * @return the options with the escaping
+	 * @see #isMinimalEscaping()
+	 */
+	public RenderOptions withMinimalEscaping(boolean minimalEscaping)
+	{
+		if (minimalEscaping == mMinimalEscaping)
+		{
+			return this;
+		}
+
+		return new RenderOptions(minimalEscaping, mCompact, mStylesheet, mParallel);
+	}
+
+	/**
+	 * Indicates whether the compact HTML5 layout is used.
+	 * <p>By default, the code is written as XHTML in a <code>code</code>
+	 * element, with <code>&amp;nbsp;</code> for spaces, a
+	 * <code>&lt;br /&gt;</code> per line and a <code>span</code> per token.
+	 * The compact layout writes an HTML5 <code>pre</code> element with the
+	 * whitespace as it is, short class names and a <code>span</code> that's
+	 * only closed when the style changes.
+	 *
+	 * @return <code>true</code> if the compact layout is used; or
+	 * <p><code>false</code> if the XHTML layout is used
+	 */
+	public boolean isCompact()
+	{
+		return mCompact;
+	}
+
+	/**
+	 * Returns options that differ by the layout.
+	 *
+	 * @param compact <code>true</code> if the compact HTML5 layout should be
+	 * used
+	 * @return the options with the layout
+	 * @see #isCompact()
+	 */
+	public RenderOptions withCompact(boolean compact)
+	{
+		if (compact == mCompact)
+		{
+			return this;
+		}
+
+		return new RenderOptions(mMinimalEscaping, compact, mStylesheet, mParallel);
+	}
+
+	/**
+	 * Returns the address of the external stylesheet that complete
+	 * documents refer to.
+	 * <p>By default, the CSS class definitions are part of every complete
+	 * document. With an external stylesheet, documents only contain a
+	 * <code>link</code> to it, the stylesheet itself is provided by
+	 * {@link XhtmlRenderer#getStylesheet(RenderOptions)} and can be cached
+	 * by browsers. Fragments are never affected.
+	 *
+	 * @return the address of the stylesheet; or <code>null</code> if the
+	 * CSS class definitions are part of the documents
+	 */
+	public String getStylesheet()
+	{
+		return mStylesheet;
+	}
+
+	/**
+	 * Returns options that differ by the stylesheet.
+	 *
+	 * @param stylesheet the address of the external stylesheet, as it
+	 * should appear in the documents; or <code>null</code> if the CSS class
+	 * definitions should be part of the documents
+	 * @return the options with the stylesheet
+	 * @see #getStylesheet()
+	 */
+	public RenderOptions withStylesheet(String stylesheet)
+	{
+		if (null == stylesheet ? null == mStylesheet : stylesheet.equals(mStylesheet))
+		{
+			return this;
+		}
+
+		return new RenderOptions(mMinimalEscaping, mCompact, stylesheet, mParallel);
+	}
+
+	/**
+	 * Indicates whether large sources are scanned by several threads.
+	 * <p>By default, a source is scanned by the thread that highlights it.
+	 * In parallel, a large source is read completely and scanned in chunks
+	 * by the threads of the common fork-join pool, through a
+	 * {@link org.codelibs.jhighlight.highlighter.ParallelTokenScanner}. The
+	 * XHTML is the same either way.
+	 *
+	 * @return <code>true</code> if large sources are scanned in parallel;
+	 * or <code>false</code> otherwise
+	 */
+	public boolean isParallel()
+	{
+		return mParallel;
+	}
+
+	/**
+	 * Returns options that differ by the parallel scanning.
+	 *
+	 * @param parallel <code>true</code> if large sources should be scanned
+	 * by several threads
+	 * @return the options with the parallel scanning
+	 * @see #isParallel()
+	 */
+	public RenderOptions withParallel(boolean parallel)
+	{
+		if (parallel == mParallel)
+		{
+			return this;
+		}
+
+		return new RenderOptions(mMinimalEscaping, mCompact, mStylesheet, parallel);
+	}
+
+	public int hashCode()
+	{
+		int hash = (mMinimalEscaping ? 1 : 0) | (mCompact ? 2 : 0) | (mParallel ? 4 : 0);
+		if (mStylesheet != null)
+		{
+			hash += 31 * mStylesheet.hashCode();
+		}
+		return hash;
+	}
+
+	public boolean equals(Object other)
+	{
+		if (this == other)
+		{
+			return true;
+		}
+		if (!(other instanceof RenderOptions))
+		{
+			return false;
+		}
+
+		RenderOptions options = (RenderOptions)other;
+		return mMinimalEscaping == options.mMinimalEscaping &&
+			mCompact == options.mCompact &&
+			mParallel == options.mParallel &&
+			(null == mStylesheet ? null == options.mStylesheet : mStylesheet.equals(options.mStylesheet));
+	}
+
+	/**
+	 * Describes the options, two options that produce different XHTML have
+	 * different descriptions. The parallel scanning isn't described, since
+	 * it doesn't change the XHTML.
+	 * <p>The description can be used as the options of a
+	 * {@link org.codelibs.jhighlight.cache.CachingRenderer}.
+	 *
+	 * @return the description of the options
+	 */
+	public String toString()
+	{
+		return "escaping=" + (mMinimalEscaping ? "minimal" : "entities") +
+			", layout=" + (mCompact ? "compact" : "xhtml") +
+			(null == mStylesheet ? "" : ", stylesheet=" + mStylesheet);
+	}
+}
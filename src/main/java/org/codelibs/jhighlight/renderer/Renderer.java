@@ -10,6 +10,10 @@ package org.codelibs.jhighlight.renderer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.apache.commons.io.IOUtils;
 
 /**
  * Provides interface to render the source code highlighting.
@@ -55,4 +59,52 @@ public interface Renderer extends com.uwyn.jhighlight.renderer.Renderer
 	 * @since 1.0
 	 */
 	public String highlight(String name, String in, String encoding, boolean fragment) throws IOException;
+
+	/**
+	 * Transforms source code that's provided through a <code>Reader</code>
+	 * to highlighted syntax and writes it to a <code>Writer</code>.
+	 * <p>The renderers of this library never encode the text to bytes. The
+	 * writer is flushed but not closed.
+	 * <p>By default, the complete source is read and highlighted through
+	 * {@link #highlight(String, String, String, boolean)} with the UTF-8
+	 * encoding, renderers that can do better should override it.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The reader that provides the source code that needs to be
+	 * transformed.
+	 * @param out The writer to which to result should be written.
+	 * @param fragment <code>true</code> if the result should be a fragment;
+	 * or <code>false</code> if it should be a complete document
+	 * @see #highlight(String, CharSequence, Appendable, boolean)
+	 * @since 2.0.1
+	 */
+	public default void highlight(String name, Reader in, Writer out, boolean fragment) throws IOException
+	{
+		out.write(highlight(name, IOUtils.toString(in), "UTF-8", fragment));
+		out.flush();
+	}
+
+	/**
+	 * Transforms source code that's provided through a
+	 * <code>CharSequence</code> to highlighted syntax and appends it to an
+	 * <code>Appendable</code>.
+	 * <p>The renderers of this library never encode the text to bytes,
+	 * which makes this the cheapest way to highlight source code that's
+	 * already in memory.
+	 * <p>By default, the source is highlighted through
+	 * {@link #highlight(String, String, String, boolean)} with the UTF-8
+	 * encoding, renderers that can do better should override it.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The source code that needs to be transformed.
+	 * @param out The destination to which to result should be appended.
+	 * @param fragment <code>true</code> if the result should be a fragment;
+	 * or <code>false</code> if it should be a complete document
+	 * @see #highlight(String, Reader, Writer, boolean)
+	 * @since 2.0.1
+	 */
+	public default void highlight(String name, CharSequence in, Appendable out, boolean fragment) throws IOException
+	{
+		out.append(highlight(name, in.toString(), "UTF-8", fragment));
+	}
 }
@@ -0,0 +1,78 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the CSS classes of the renderers to the short class names of the
+ * compact layout.
+ * <p>The short name only depends on what the class designates, not on the
+ * language, the same names are thus used by all the renderers and stay the
+ * same from one release to the next.
+ *
+ * @since 2.0.1
+ */
+abstract class ShortClassNames
+{
+	/** The class of the <code>pre</code> element that holds the code. */
+	static final String CODE_CLASS = "jh";
+
+	private static final Map<String, String> SHORT_NAMES = new HashMap<String, String>();
+
+	static
+	{
+		// plain text is styled by the pre element itself
+		SHORT_NAMES.put("plain", "");
+		SHORT_NAMES.put("keyword", "kw");
+		SHORT_NAMES.put("type", "ty");
+		SHORT_NAMES.put("operator", "op");
+		SHORT_NAMES.put("separator", "sp");
+		SHORT_NAMES.put("literal", "lt");
+		SHORT_NAMES.put("comment", "cm");
+		SHORT_NAMES.put("javadoc_comment", "dc");
+		SHORT_NAMES.put("doxygen_comment", "dc");
+		SHORT_NAMES.put("javadoc_tag", "dt");
+		SHORT_NAMES.put("doxygen_tag", "dt");
+		SHORT_NAMES.put("preproc", "pp");
+		SHORT_NAMES.put("tag_name", "tn");
+		SHORT_NAMES.put("tag_symbols", "ts");
+		SHORT_NAMES.put("attribute_name", "an");
+		SHORT_NAMES.put("attribute_value", "av");
+		SHORT_NAMES.put("char_data", "cd");
+		SHORT_NAMES.put("processing_instruction", "pi");
+		SHORT_NAMES.put("rife_name", "rn");
+		SHORT_NAMES.put("rife_tag", "rt");
+	}
+
+	private ShortClassNames()
+	{
+	}
+
+	/**
+	 * Retrieves the short name of a CSS class.
+	 * <p>The language prefix of the class, up to the first underscore, is
+	 * left out. Classes that aren't known keep their name.
+	 *
+	 * @param cssClass the CSS class of a renderer, for instance
+	 * <code>java_javadoc_comment</code>
+	 * @return the short name; or
+	 * <p>an empty string if the text of the class shouldn't be wrapped in a
+	 * <code>span</code>
+	 */
+	static String get(String cssClass)
+	{
+		int index = cssClass.indexOf('_');
+		String short_name = SHORT_NAMES.get(index < 0 ? cssClass : cssClass.substring(index + 1));
+		if (null == short_name)
+		{
+			return cssClass;
+		}
+
+		return short_name;
+	}
+}
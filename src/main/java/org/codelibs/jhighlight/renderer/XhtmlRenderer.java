@@ -7,7 +7,6 @@
  */
 package org.codelibs.jhighlight.renderer;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -16,24 +15,49 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.io.output.AppendableWriter;
 import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.codelibs.jhighlight.JHighlightVersion;
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.codelibs.jhighlight.highlighter.ExplicitStateHighlighter;
+import org.codelibs.jhighlight.highlighter.HighlighterSession;
+import org.codelibs.jhighlight.highlighter.HighlighterSessionPool;
+import org.codelibs.jhighlight.highlighter.HighlighterSnapshot;
+import org.codelibs.jhighlight.highlighter.LineIndex;
+import org.codelibs.jhighlight.highlighter.ParallelTokenScanner;
+import org.codelibs.jhighlight.highlighter.TokenSink;
 import org.codelibs.jhighlight.tools.ExceptionUtils;
+import org.codelibs.jhighlight.tools.MappedFileReader;
 import org.codelibs.jhighlight.tools.StringUtils;
 
 /**
  * Provides an abstract base class to perform source code to XHTML syntax
  * highlighting.
+ * <p>Renderers are thread-safe and can be shared. The lexers that perform
+ * the scanning are kept in a pool of sessions and are reused across
+ * highlightings.
+ * <p>The CSS class definitions and the XHTML header and footer are compiled
+ * once per renderer class and encoded once per output charset, see
+ * {@link #reloadCssClassDefinitions()} to pick up changes to
+ * <code>jhighlight.properties</code> at runtime.
  *
  * @author Geert Bevin (gbevin[remove] at uwyn dot com)
  * @version $Revision: 3108 $
@@ -41,144 +65,1177 @@ import org.codelibs.jhighlight.tools.StringUtils;
  */
 public abstract class XhtmlRenderer implements Renderer
 {
+	private static final AtomicInteger TEMPLATE_GENERATION = new AtomicInteger();
+	private static final ClassValue<AtomicReference<XhtmlTemplate>> TEMPLATES = new ClassValue<AtomicReference<XhtmlTemplate>>() {
+			protected AtomicReference<XhtmlTemplate> computeValue(Class<?> type)
+			{
+				return new AtomicReference<XhtmlTemplate>();
+			}
+		};
+	
+	private final HighlighterSessionPool mSessions = new HighlighterSessionPool(this::getHighlighter);
+	/** The name of the theme that <code>jhighlight.properties</code>
+	 * defines.
+	 * @since 2.0.1 */
+	public static final String DEFAULT_THEME = "default";
+	
+	private volatile String[] mSpanTags;
+	private volatile String[] mCompactSpanTags;
+	private final ConcurrentHashMap<Charset, byte[][]> mEncodedSpanTags = new ConcurrentHashMap<Charset, byte[][]>();
+	
 	/** Creates a new {@link XhtmlRenderer}. */
 	protected XhtmlRenderer() {}
 	/**
-	 * Transforms source code that's provided through an
-	 * <code>InputStream</code> to highlighted syntax in XHTML and writes it
-	 * back to an <code>OutputStream</code>.
-	 * <p>If the highlighting has to become a fragment, no CSS styles will be
-	 * generated.
-	 * <p>For complete documents, there's a collection of default styles that
-	 * will be included. It's possible to override these by changing the
-	 * provided <code>jhighlight.properties</code> file. It's best to look at
-	 * this file in the JHighlight archive and modify the styles that are
-	 * there already.
+	 * Transforms source code that's provided through an
+	 * <code>InputStream</code> to highlighted syntax in XHTML and writes it
+	 * back to an <code>OutputStream</code>.
+	 * <p>If the highlighting has to become a fragment, no CSS styles will be
+	 * generated.
+	 * <p>For complete documents, there's a collection of default styles that
+	 * will be included. It's possible to override these by changing the
+	 * provided <code>jhighlight.properties</code> file. It's best to look at
+	 * this file in the JHighlight archive and modify the styles that are
+	 * there already.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The input stream that provides the source code that needs to
+	 * be transformed.
+	 * @param out The output stream to which to resulting XHTML should be
+	 * written.
+	 * @param encoding The encoding that will be used to read and write the
+	 * text.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @see #highlight(String, String, String, boolean)
+	 * @since 1.0
+	 */
+	public void highlight(String name, InputStream in, OutputStream out, String encoding, boolean fragment)
+	throws IOException
+	{
+		highlight(name, in, out, encoding, fragment, RenderOptions.DEFAULT);
+	}
+	
+	/**
+	 * Transforms source code that's provided through an
+	 * <code>InputStream</code> to highlighted syntax in XHTML with specific
+	 * options and writes it back to an <code>OutputStream</code>.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The input stream that provides the source code that needs to
+	 * be transformed.
+	 * @param out The output stream to which to resulting XHTML should be
+	 * written.
+	 * @param encoding The encoding that will be used to read and write the
+	 * text.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @see #highlight(String, InputStream, OutputStream, String, boolean)
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, InputStream in, OutputStream out, String encoding, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+		
+		Reader isr;
+		Charset charset;
+		if (null == encoding)
+		{
+			isr = new InputStreamReader(in);
+			charset = Charset.defaultCharset();
+		}
+		else
+		{
+			isr = new InputStreamReader(in, encoding);
+			charset = Charset.forName(encoding);
+		}
+		
+		highlight(name, isr, out, charset, fragment, options);
+	}
+
+	/**
+	 * Transforms the source code of a file to highlighted syntax in XHTML
+	 * with specific options and writes it to an <code>OutputStream</code>.
+	 * <p>The file is memory-mapped and decoded window by window, which
+	 * keeps the memory that's used independent of the size of the file,
+	 * unless the options scan in parallel.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The file that contains the source code.
+	 * @param out The output stream to which to resulting XHTML should be
+	 * written.
+	 * @param encoding The encoding that will be used to read and write the
+	 * text.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @see MappedFileReader
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, Path in, OutputStream out, String encoding, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+
+		Charset charset = null == encoding ? Charset.defaultCharset() : Charset.forName(encoding);
+		try (Reader reader = new MappedFileReader(in, charset))
+		{
+			highlight(name, reader, out, charset, fragment, options);
+		}
+	}
+
+	/**
+	 * Transforms source code that's provided through a
+	 * <code>CharSequence</code> to highlighted syntax in XHTML and puts the
+	 * encoded bytes in a <code>ByteBuffer</code>.
+	 * <p>With the default layout and an ASCII-compatible charset, the
+	 * markup and the ASCII characters are put as bytes without going
+	 * through a <code>CharsetEncoder</code>.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The source code that needs to be transformed.
+	 * @param out The buffer in which the resulting XHTML is put, starting at
+	 * its position.
+	 * @param encoding The encoding of the resulting XHTML.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @exception java.nio.BufferOverflowException when the buffer doesn't
+	 * have enough room, its content is then undefined
+	 * @see #highlight(String, InputStream, OutputStream, String, boolean, RenderOptions)
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, CharSequence in, ByteBuffer out, String encoding, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == out)		throw new IllegalArgumentException("out can't be null.");
+		if (null == encoding)	throw new IllegalArgumentException("encoding can't be null.");
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+		
+		highlight(name, new CharSequenceReader(in), new ByteBufferOutputStream(out), Charset.forName(encoding), fragment, options);
+	}
+	
+	private void highlight(String name, Reader isr, OutputStream out, Charset charset, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		XhtmlTemplate.Encoded encoded = null;
+		if (!options.isCompact() &&
+			null == options.getStylesheet())
+		{
+			encoded = getTemplate().getEncoded(charset);
+		}
+		if (null == encoded)
+		{
+			BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, charset));
+			highlight(name, isr, w, fragment, options, getPassthroughLimit(charset), charset.name());
+			w.close();
+		}
+		else
+		{
+			if (null == name)
+			{
+				name = "";
+			}
+			
+			if (encoded.writesTokens())
+			{
+				// the markup and the ASCII characters are written as bytes,
+				// only the other characters are encoded
+				ByteTokenWriter w = new ByteTokenWriter(out, getEncodedSpanTags(charset), charset, options.isMinimalEscaping() ? getPassthroughLimit(charset) : -1);
+				if (fragment)
+				{
+					encoded.writeHeaderFragment(name, w);
+				}
+				else
+				{
+					encoded.writeHeader(name, w);
+				}
+				
+				tokenize(isr, w, options);
+				
+				if (!fragment) encoded.writeFooter(w);
+				
+				w.close();
+				return;
+			}
+			
+			if (fragment)
+			{
+				encoded.writeHeaderFragment(name, out);
+			}
+			else
+			{
+				encoded.writeHeader(name, out);
+			}
+			
+			BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, charset));
+			tokenize(isr, createTokenSink(w, options, getPassthroughLimit(charset)), options);
+			w.flush();
+			
+			if (!fragment) encoded.writeFooter(out);
+			
+			w.close();
+		}
+	}
+	
+	/**
+	 * Transforms source code that's provided through a
+	 * <code>String</code> to highlighted syntax in XHTML and returns it
+	 * as a <code>String</code>.
+	 * <p>If the highlighting has to become a fragment, no CSS styles will be
+	 * generated.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The input string that provides the source code that needs to
+	 * be transformed.
+	 * @param encoding The encoding that will be used to read and write the
+	 * text.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * or <code>false</code> if it should be a complete document
+	 * @return the highlighted source code as XHTML in a string
+	 * @see #highlight(String, InputStream, OutputStream, String, boolean)
+	 * @since 1.0
+	 */
+	public String highlight(String name, String in, String encoding, boolean fragment)
+	throws IOException {
+		return highlight(name, in, encoding, fragment, RenderOptions.DEFAULT);
+	}
+	
+	/**
+	 * Transforms source code that's provided through a
+	 * <code>String</code> to highlighted syntax in XHTML with specific
+	 * options and returns it as a <code>String</code>.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The input string that provides the source code that needs to
+	 * be transformed.
+	 * @param encoding The encoding that will be used to read and write the
+	 * text.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @return the highlighted source code as XHTML in a string
+	 * @see #highlight(String, String, String, boolean)
+	 * @since 2.0.1
+	 */
+	public String highlight(String name, String in, String encoding, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+		
+		Charset charset;
+		try
+		{
+			charset = Charset.forName(encoding);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new UnsupportedEncodingException(encoding);
+		}
+		
+		if (options.isMinimalEscaping())
+		{
+			// the characters that the encoding can't represent become
+			// numeric character references, nothing is lost
+			StringBuilderWriter result = new StringBuilderWriter(in.length() * 2 + 1024);
+			highlight(name, new CharSequenceReader(in), result, fragment, options, getPassthroughLimit(charset), charset.name());
+			return result.toString();
+		}
+		
+		if (isLossless(in, charset))
+		{
+			StringBuilderWriter result = new StringBuilderWriter(in.length() * 2 + 1024);
+			highlight(name, new CharSequenceReader(in), result, fragment, options, Integer.MAX_VALUE, charset.name());
+			if (isLossless(result.getBuilder(), charset))
+			{
+				return result.toString();
+			}
+		}
+		
+		// characters that can't be represented in the encoding are
+		// replaced, as they would be when writing bytes
+		try (final ByteArrayOutputStream out = new ByteArrayOutputStream())
+		{
+			highlight(name, new ByteArrayInputStream(in.getBytes(charset)), out, encoding, fragment, options);
+			return out.toString(encoding);
+		}
+	}
+	
+	/**
+	 * Transforms source code that's provided through a <code>Reader</code>
+	 * to highlighted syntax in XHTML and writes it to a <code>Writer</code>.
+	 * <p>The text is never encoded to bytes. The writer is flushed but not
+	 * closed, it should be buffered when it writes to a file or a socket.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The reader that provides the source code that needs to be
+	 * transformed.
+	 * @param out The writer to which to resulting XHTML should be written.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @see #highlight(String, CharSequence, Appendable, boolean)
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, Reader in, Writer out, boolean fragment)
+	throws IOException
+	{
+		highlight(name, in, out, fragment, RenderOptions.DEFAULT);
+	}
+	
+	/**
+	 * Transforms source code that's provided through a <code>Reader</code>
+	 * to highlighted syntax in XHTML with specific options and writes it to
+	 * a <code>Writer</code>.
+	 * <p>With minimal escaping, all the characters that aren't significant
+	 * in markup are written as they are.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The reader that provides the source code that needs to be
+	 * transformed.
+	 * @param out The writer to which to resulting XHTML should be written.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @see #highlight(String, Reader, Writer, boolean)
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, Reader in, Writer out, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+		
+		highlight(name, in, out, fragment, options, Integer.MAX_VALUE, null);
+	}
+	
+	private void highlight(String name, Reader in, Writer out, boolean fragment, RenderOptions options, int passthroughLimit, String charsetName)
+	throws IOException
+	{
+		out.write(getHeader(name, fragment, options, charsetName));
+		
+		TokenSink sink = createTokenSink(out, options, passthroughLimit);
+		tokenize(in, sink, options);
+		finish(sink);
+		
+		String footer = getFooter(fragment, options);
+		if (footer != null) out.write(footer);
+		
+		out.flush();
+	}
+	
+	/**
+	 * Returns the header of a highlighting with specific options.
+	 *
+	 * @param charsetName The name of the charset of the document; or
+	 * <code>null</code> if it's unknown.
+	 */
+	String getHeader(String name, boolean fragment, RenderOptions options, String charsetName)
+	{
+		String stylesheet = options.getStylesheet();
+		if (options.isCompact())
+		{
+			if (null == name)
+			{
+				name = "";
+			}
+			
+			if (fragment)
+			{
+				return getTemplate().getCompactHeaderFragment(name);
+			}
+			
+			return getTemplate().getCompactHeader(name, charsetName, stylesheet);
+		}
+		
+		if (fragment)
+		{
+			return getXhtmlHeaderFragment(name);
+		}
+		
+		// renderers with their own header keep it as it is
+		if (stylesheet != null &&
+			getTemplate().usesDefaultDocument())
+		{
+			return getTemplate().getLinkedHeader(null == name ? "" : name, stylesheet);
+		}
+		
+		return getXhtmlHeader(name);
+	}
+	
+	/**
+	 * Returns the footer of a highlighting with specific options.
+	 *
+	 * @return The footer; or <code>null</code> if there's none.
+	 */
+	String getFooter(boolean fragment, RenderOptions options)
+	{
+		if (options.isCompact())
+		{
+			return getTemplate().getCompactFooter(fragment);
+		}
+		
+		return fragment ? null : getXhtmlFooter();
+	}
+	
+	/**
+	 * Writes what a token sink of {@link #createTokenSink(Writer,
+	 * RenderOptions, int)} still holds once all the tokens have been
+	 * written.
+	 */
+	static void finish(TokenSink sink)
+	throws IOException
+	{
+		if (sink instanceof CompactTokenWriter)
+		{
+			((CompactTokenWriter)sink).finish();
+		}
+	}
+	
+	/**
+	 * Transforms source code that's provided through a
+	 * <code>CharSequence</code> to highlighted syntax in XHTML and appends
+	 * it to an <code>Appendable</code>.
+	 * <p>The text is never encoded to bytes.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The source code that needs to be transformed.
+	 * @param out The destination to which to resulting XHTML should be
+	 * appended.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @see #highlight(String, Reader, Writer, boolean)
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, CharSequence in, Appendable out, boolean fragment)
+	throws IOException
+	{
+		highlight(name, in, out, fragment, RenderOptions.DEFAULT);
+	}
+	
+	/**
+	 * Transforms source code that's provided through a
+	 * <code>CharSequence</code> to highlighted syntax in XHTML with specific
+	 * options and appends it to an <code>Appendable</code>.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The source code that needs to be transformed.
+	 * @param out The destination to which to resulting XHTML should be
+	 * appended.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @see #highlight(String, CharSequence, Appendable, boolean)
+	 * @since 2.0.1
+	 */
+	public void highlight(String name, CharSequence in, Appendable out, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		Writer writer;
+		if (out instanceof Writer)
+		{
+			writer = (Writer)out;
+		}
+		else if (out instanceof StringBuilder)
+		{
+			writer = new StringBuilderWriter((StringBuilder)out);
+		}
+		else
+		{
+			writer = new AppendableWriter<Appendable>(out);
+		}
+		
+		highlight(name, new CharSequenceReader(in), writer, fragment, options);
+	}
+	
+	/**
+	 * Determines the first character that can't be written as it is in a
+	 * charset with minimal escaping.
+	 * <p>Only the charsets whose repertoire is known are written beyond
+	 * ASCII, all the others still get numeric character references for
+	 * anything that isn't ASCII.
+	 */
+	private static int getPassthroughLimit(Charset charset)
+	{
+		String charset_name = charset.name();
+		if (charset_name.startsWith("UTF-"))
+		{
+			return Integer.MAX_VALUE;
+		}
+		if ("ISO-8859-1".equals(charset_name))
+		{
+			return 0x100;
+		}
+		
+		return 0x80;
+	}
+	
+	/**
+	 * Checks whether text can be encoded in a charset and decoded again
+	 * without any loss, without actually encoding it.
+	 *
+	 * @param text The text that should be checked.
+	 * @param charset The charset that should be checked.
+	 * @return <code>true</code> if the text is known to be preserved; or
+	 * <p><code>false</code> if it might not be
+	 */
+	private static boolean isLossless(CharSequence text, Charset charset)
+	{
+		String charset_name = charset.name();
+		int limit;
+		if ("US-ASCII".equals(charset_name))
+		{
+			limit = 0x80;
+		}
+		else if ("ISO-8859-1".equals(charset_name))
+		{
+			limit = 0x100;
+		}
+		else if (charset_name.startsWith("UTF-"))
+		{
+			limit = -1;
+		}
+		else
+		{
+			return false;
+		}
+		
+		int length = text.length();
+		char c;
+		for (int i = 0; i < length; i++)
+		{
+			c = text.charAt(i);
+			if (limit != -1)
+			{
+				if (c >= limit)
+				{
+					return false;
+				}
+			}
+			else if (Character.isHighSurrogate(c))
+			{
+				if (i + 1 == length ||
+					!Character.isLowSurrogate(text.charAt(++i)))
+				{
+					return false;
+				}
+			}
+			else if (Character.isLowSurrogate(c))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+		
+	/**
+	 * Scans source code and reports its tokens to a sink, without generating
+	 * any XHTML.
+	 * <p>The styles of the tokens are the ones of the language-specific
+	 * lexer of this renderer.
+	 *
+	 * @param in The reader that provides the source code.
+	 * @param sink The sink that will receive the tokens.
+	 * @exception IOException when an error occurred while reading the source
+	 * code or while processing the tokens
+	 * @see #createTokenSink(Writer)
+	 * @since 2.0.1
+	 */
+	public void tokenize(Reader in, TokenSink sink)
+	throws IOException
+	{
+		HighlighterSession session = mSessions.acquire();
+		try
+		{
+			session.scan(in, sink);
+		}
+		finally
+		{
+			mSessions.release(session);
+		}
+	}
+	
+	/**
+	 * Scans source code with several threads and reports its tokens to a
+	 * sink, exactly as {@link #tokenize(Reader, TokenSink)} would.
+	 * <p>The source is split into chunks of lines that are scanned in
+	 * parallel, a source that fits in a single chunk is scanned by the
+	 * calling thread.
+	 *
+	 * @param in The source code.
+	 * @param sink The sink that will receive the tokens, from the calling
+	 * thread only.
+	 * @param pool The pool whose threads scan the chunks.
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @see ParallelTokenScanner
+	 * @since 2.0.1
+	 */
+	public void tokenize(CharSequence in, TokenSink sink, ForkJoinPool pool)
+	throws IOException
+	{
+		new ParallelTokenScanner(mSessions, pool, ParallelTokenScanner.DEFAULT_CHUNK_SIZE).scan(in, sink);
+	}
+	
+	private void tokenize(Reader in, TokenSink sink, RenderOptions options)
+	throws IOException
+	{
+		if (!options.isParallel())
+		{
+			tokenize(in, sink);
+			return;
+		}
+		
+		// the chunks are taken from the complete source
+		StringBuilderWriter source = new StringBuilderWriter();
+		IOUtils.copy(in, source);
+		tokenize(source.getBuilder(), sink, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Scans a complete source once to build the index through which ranges
+	 * of its lines can be highlighted on their own.
+	 * <p>The index can be kept with the source, in memory or in its binary
+	 * form, for as long as the source doesn't change.
+	 *
+	 * @param in The source code.
+	 * @return The index of the source.
+	 * @exception IOException when an error occurred while scanning
+	 * @see #highlightLines(String, CharSequence, LineIndex, int, int, Writer,
+	 * boolean, RenderOptions)
+	 * @since 2.0.1
+	 */
+	public LineIndex createLineIndex(CharSequence in)
+	throws IOException
+	{
+		HighlighterSession session = mSessions.acquire();
+		try
+		{
+			return LineIndex.build(session, in, LineIndex.DEFAULT_INTERVAL);
+		}
+		finally
+		{
+			mSessions.release(session);
+		}
+	}
+
+	/**
+	 * Scans a range of lines of source code and reports their tokens to a
+	 * sink, exactly as {@link #tokenize(Reader, TokenSink)} reports them for
+	 * the complete source.
+	 *
+	 * @param in The source code.
+	 * @param index The index of the source, as created by {@link
+	 * #createLineIndex(CharSequence)}.
+	 * @param fromLine The index of the first line of the range.
+	 * @param toLine The index after the last line of the range.
+	 * @param sink The sink that will receive the tokens.
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @since 2.0.1
+	 */
+	public void tokenize(CharSequence in, LineIndex index, int fromLine, int toLine, TokenSink sink)
+	throws IOException
+	{
+		if (null == index)	throw new IllegalArgumentException("index can't be null.");
+
+		HighlighterSession session = mSessions.acquire();
+		try
+		{
+			index.scan(session, in, fromLine, toLine, sink);
+		}
+		finally
+		{
+			mSessions.release(session);
+		}
+	}
+
+	/**
+	 * Transforms a range of lines of source code to highlighted syntax in
+	 * XHTML and writes it to a <code>Writer</code>.
+	 * <p>Only the lines of the range and at most {@link
+	 * LineIndex#getInterval()} lines before it are scanned, which allows a
+	 * large source to be shown page by page. The XHTML of the lines is the
+	 * one they have in the highlighting of the complete source, between the
+	 * usual header and footer.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The source code.
+	 * @param index The index of the source, as created by {@link
+	 * #createLineIndex(CharSequence)}.
+	 * @param fromLine The index of the first line of the range.
+	 * @param toLine The index after the last line of the range.
+	 * @param out The writer to which to resulting XHTML should be written.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @exception IOException when an error occurred while writing
+	 * @since 2.0.1
+	 */
+	public void highlightLines(String name, CharSequence in, LineIndex index, int fromLine, int toLine, Writer out, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+
+		out.write(getHeader(name, fragment, options, null));
+
+		TokenSink sink = createTokenSink(out, options, Integer.MAX_VALUE);
+		tokenize(in, index, fromLine, toLine, sink);
+		finish(sink);
+
+		String footer = getFooter(fragment, options);
+		if (footer != null) out.write(footer);
+
+		out.flush();
+	}
+
+	/**
+	 * Scans the next lines of source code from where a previous scan
+	 * stopped and reports their tokens to a sink.
+	 * <p>The tokens are exactly the ones that {@link #tokenize(Reader,
+	 * TokenSink)} reports for these lines of the complete source.
+	 *
+	 * @param in The source code.
+	 * @param from The snapshot at which the scanning resumes; or
+	 * <code>null</code> to start at the first line.
+	 * @param lineCount The maximal number of lines that are scanned.
+	 * @param sink The sink that will receive the tokens.
+	 * @return The snapshot after the scanned lines.
+	 * @exception IOException when an error occurred while processing the
+	 * tokens
+	 * @see HighlighterSnapshot#toToken()
+	 * @since 2.0.1
+	 */
+	public HighlighterSnapshot tokenize(CharSequence in, HighlighterSnapshot from, int lineCount, TokenSink sink)
+	throws IOException
+	{
+		HighlighterSession session = mSessions.acquire();
+		try
+		{
+			if (null == from)
+			{
+				from = HighlighterSnapshot.start(session);
+			}
+
+			return from.scan(session, in, lineCount, sink);
+		}
+		finally
+		{
+			mSessions.release(session);
+		}
+	}
+
+	/**
+	 * Transforms the next lines of source code to highlighted syntax in
+	 * XHTML, from where a previous highlighting stopped, and writes it to a
+	 * <code>Writer</code>.
+	 * <p>This allows a large source to be highlighted in parts, across
+	 * several requests, by handing the token of the returned snapshot to
+	 * the next one. The XHTML of the lines is the one they have in the
+	 * highlighting of the complete source, between the usual header and
+	 * footer.
+	 *
+	 * @param name The name of the source file.
+	 * @param in The source code.
+	 * @param from The snapshot at which the highlighting resumes; or
+	 * <code>null</code> to start at the first line.
+	 * @param lineCount The maximal number of lines that are highlighted.
+	 * @param out The writer to which to resulting XHTML should be written.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param options The options of this highlighting.
+	 * @return The snapshot after the highlighted lines, its offset is the
+	 * length of the source once all the lines have been highlighted.
+	 * @exception IOException when an error occurred while writing
+	 * @since 2.0.1
+	 */
+	public HighlighterSnapshot highlightLines(String name, CharSequence in, HighlighterSnapshot from, int lineCount, Writer out, boolean fragment, RenderOptions options)
+	throws IOException
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+
+		out.write(getHeader(name, fragment, options, null));
+
+		TokenSink sink = createTokenSink(out, options, Integer.MAX_VALUE);
+		HighlighterSnapshot snapshot = tokenize(in, from, lineCount, sink);
+		finish(sink);
+
+		String footer = getFooter(fragment, options);
+		if (footer != null) out.write(footer);
+
+		out.flush();
+
+		return snapshot;
+	}
+
+	/**
+	 * Creates a sink that writes the tokens it receives as highlighted
+	 * XHTML, without any header or footer.
+	 * <p>This allows the XHTML generation to share a scan with other
+	 * consumers through a {@link org.codelibs.jhighlight.highlighter.MulticastTokenSink}.
+	 *
+	 * @param out The writer to which the XHTML will be written.
+	 * @return The requested sink.
+	 * @see #tokenize(Reader, TokenSink)
+	 * @since 2.0.1
+	 */
+	public TokenSink createTokenSink(Writer out)
+	{
+		return new XhtmlTokenWriter(out, getSpanTags());
+	}
+	
+	TokenSink createTokenSink(Writer out, RenderOptions options, int passthroughLimit)
+	{
+		if (options.isCompact())
+		{
+			return new CompactTokenWriter(out, getCompactSpanTags(), options.isMinimalEscaping() ? passthroughLimit : -1);
+		}
+		
+		if (!options.isMinimalEscaping())
+		{
+			return createTokenSink(out);
+		}
+		
+		return new XhtmlTokenWriter(out, getSpanTags(), passthroughLimit);
+	}
+	
+	/**
+	 * Creates a writer that highlights the source code that's written to
+	 * it, while it's being written.
+	 * <p>The XHTML header is written immediately, the XHTML of each line is
+	 * written as soon as the line is complete, and the footer is written when
+	 * the returned writer is closed. Closing it also closes
+	 * <code>out</code>.
+	 *
+	 * @param name The name of the source file.
+	 * @param out The writer to which to resulting XHTML should be written.
+	 * @param fragment <code>true</code> if the generated XHTML should be a
+	 * fragment; or <code>false</code> if it should be a complete page
+	 * @param bufferSize The initial number of characters that are kept for
+	 * lines that aren't complete yet, it's doubled for longer lines.
+	 * @return The requested writer.
+	 * @exception IOException when an error occurred while writing the header
+	 * @since 2.0.1
+	 */
+	public Writer createHighlightingWriter(String name, Writer out, boolean fragment, int bufferSize)
+	throws IOException
+	{
+		if (null == out)		throw new IllegalArgumentException("out can't be null.");
+		if (bufferSize < 1)		throw new IllegalArgumentException("bufferSize should be at least 1.");
+		
+		return createHighlightingWriter(name, out, fragment, bufferSize, RenderOptions.DEFAULT);
+	}
+	
+	/**
+	 * Creates a writer that highlights the source code that's written to
+	 * it with specific options, while it's being written.
 	 *
 	 * @param name The name of the source file.
-	 * @param in The input stream that provides the source code that needs to
-	 * be transformed.
-	 * @param out The output stream to which to resulting XHTML should be
-	 * written.
-	 * @param encoding The encoding that will be used to read and write the
-	 * text.
+	 * @param out The writer to which to resulting XHTML should be written.
 	 * @param fragment <code>true</code> if the generated XHTML should be a
 	 * fragment; or <code>false</code> if it should be a complete page
-	 * @see #highlight(String, String, String, boolean)
-	 * @since 1.0
+	 * @param bufferSize The initial number of characters that are kept for
+	 * lines that aren't complete yet, it's doubled for longer lines.
+	 * @param options The options of this highlighting.
+	 * @return The requested writer.
+	 * @exception IOException when an error occurred while writing the header
+	 * @see #createHighlightingWriter(String, Writer, boolean, int)
+	 * @since 2.0.1
 	 */
-	public void highlight(String name, InputStream in, OutputStream out, String encoding, boolean fragment)
+	public Writer createHighlightingWriter(String name, Writer out, boolean fragment, int bufferSize, RenderOptions options)
 	throws IOException
 	{
-		ExplicitStateHighlighter highlighter = getHighlighter();
+		if (null == out)		throw new IllegalArgumentException("out can't be null.");
+		if (bufferSize < 1)		throw new IllegalArgumentException("bufferSize should be at least 1.");
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
 		
-		Reader isr;
-		Writer osw;
-		if (null == encoding)
+		return new HighlightingWriter(this, mSessions, name, out, fragment, bufferSize, options);
+	}
+	
+	/**
+	 * Returns the stylesheet that documents with an external stylesheet
+	 * refer to.
+	 * <p>It contains the same CSS class definitions that would otherwise
+	 * be part of every complete document with these options, only the
+	 * layout of the options matters.
+	 *
+	 * @param options The options of the documents.
+	 * @return The CSS class definitions.
+	 * @see RenderOptions#withStylesheet(String)
+	 * @since 2.0.1
+	 */
+	public String getStylesheet(RenderOptions options)
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+		
+		if (options.isCompact())
 		{
-			isr = new InputStreamReader(in);
-			osw = new OutputStreamWriter(out);
+			return getTemplate().getCompactCssClassDefinitions();
 		}
-		else
+		
+		return getCssClassDefinitions();
+	}
+	
+	/**
+	 * Returns the stylesheet of a named theme.
+	 * <p>Themes only differ by their stylesheets, the markup of documents
+	 * with an external stylesheet doesn't depend on them. A single
+	 * highlighting can thus be shown with any theme, by referring to
+	 * another stylesheet.
+	 * <p>A theme is defined by a <code>jhighlight-theme-NAME.properties</code>
+	 * resource, with the same keys as <code>jhighlight.properties</code>.
+	 * The styles that it doesn't define keep their defaults. A
+	 * <code>dark</code> theme is provided. The {@link #DEFAULT_THEME} is
+	 * <code>jhighlight.properties</code> itself. The stylesheets are
+	 * compiled once per renderer class and discarded by
+	 * {@link #reloadCssClassDefinitions()}.
+	 *
+	 * @param options The options of the documents.
+	 * @param theme The name of the theme.
+	 * @return The CSS class definitions of the theme; or <code>null</code>
+	 * if the theme doesn't exist
+	 * @see #getStylesheet(RenderOptions)
+	 * @since 2.0.1
+	 */
+	public String getStylesheet(RenderOptions options, String theme)
+	{
+		if (null == options)	throw new IllegalArgumentException("options can't be null.");
+		if (!isThemeName(theme))	throw new IllegalArgumentException("'" + theme + "' isn't a valid theme name.");
+		
+		if (DEFAULT_THEME.equals(theme))
 		{
-			isr = new InputStreamReader(in, encoding);
-			osw = new OutputStreamWriter(out, encoding);
+			return getStylesheet(options);
 		}
 		
-		BufferedReader r = new BufferedReader(isr);
-		BufferedWriter w = new BufferedWriter(osw);
+		XhtmlTemplate template = getTemplate();
+		String key = (options.isCompact() ? "compact:" : "xhtml:") + theme;
+		String stylesheet = template.getThemeStylesheet(key);
+		if (null == stylesheet)
+		{
+			Properties properties = loadCssProperties(getThemeResource(theme));
+			if (null == properties)
+			{
+				return null;
+			}
+			
+			Map<String, Object> styles = resolveCssStyles(properties);
+			stylesheet = options.isCompact() ? compileCompactCssClassDefinitions(styles) : compileCssClassDefinitions(styles);
+			template.putThemeStylesheet(key, stylesheet);
+		}
 		
-		if (fragment)
+		return stylesheet;
+	}
+	
+	/**
+	 * Checks whether a theme exists.
+	 *
+	 * @param theme The name of the theme.
+	 * @return <code>true</code> if the theme exists; or
+	 * <p><code>false</code> otherwise
+	 * @see #getStylesheet(RenderOptions, String)
+	 * @since 2.0.1
+	 */
+	public static boolean isTheme(String theme)
+	{
+		if (!isThemeName(theme))
 		{
-			w.write(getXhtmlHeaderFragment(name));
+			return false;
 		}
-		else
+		
+		return DEFAULT_THEME.equals(theme) ||
+			getThemeResource(theme) != null;
+	}
+	
+	private static boolean isThemeName(String theme)
+	{
+		if (null == theme ||
+			0 == theme.length())
 		{
-			w.write(getXhtmlHeader(name));
+			return false;
 		}
 		
-		String line;
-		String token;
-		int length;
-		int style;
-		String css_class;
-		int previous_style = 0;
-		boolean newline = false;
-		while ((line = r.readLine()) != null)
+		char c;
+		for (int i = 0; i < theme.length(); i++)
 		{
-			line += "\n";
-			line = StringUtils.convertTabsToSpaces(line, 4);
-			
-			// should be optimized by reusing a custom LineReader class
-			Reader lineReader = new StringReader(line);
-			highlighter.setReader(lineReader);
-			int index = 0;
-			while (index < line.length())
+			c = theme.charAt(i);
+			if ((c < 'a' || c > 'z') &&
+				(c < 'A' || c > 'Z') &&
+				(c < '0' || c > '9') &&
+				c != '_')
 			{
-				style = highlighter.getNextToken();
-				length = highlighter.getTokenLength();
-				token = line.substring(index, index + length);
-				
-				if (style != previous_style ||
-					newline)
-				{
-					css_class = getCssClass(style);
-					
-					if (css_class != null)
-					{
-						if (previous_style != 0 && !newline)
-						{
-							w.write("</span>");
-						}
-						w.write("<span class=\"" + css_class + "\">");
-						
-						previous_style = style;
-					}
-				}
-				newline = false;					
-				w.write(StringUtils.replace(StringUtils.encodeHtml(StringUtils.replace(token, "\n", "")), " ", "&nbsp;"));
-				
-				index += length;
+				return false;
 			}
-			
-			w.write("</span><br />\n");
-			newline = true;
 		}
 		
-		if (!fragment) w.write(getXhtmlFooter());
+		return true;
+	}
+	
+	/**
+	 * Looks the definitions of a theme up, always through the class loader
+	 * of this class so that {@link #isTheme(String)} and the renderers
+	 * agree on the themes that exist.
+	 *
+	 * @param theme The name of the theme.
+	 * @return The resource of the theme; or <code>null</code> if it doesn't
+	 * exist
+	 */
+	private static URL getThemeResource(String theme)
+	{
+		return XhtmlRenderer.class.getClassLoader().getResource("jhighlight-theme-" + theme + ".properties");
+	}
+	
+	/**
+	 * Returns the opening <code>span</code> tags of all the styles, indexed
+	 * by the unsigned value of the style.
+	 * <p>The tags are built once from {@link #getCssClass(int)} and reused
+	 * for every highlighting.
+	 *
+	 * @return The table of opening <code>span</code> tags.
+	 */
+	private String[] getSpanTags()
+	{
+		String[] span_tags = mSpanTags;
+		if (null == span_tags)
+		{
+			span_tags = XhtmlTokenWriter.buildSpanTags(this);
+			mSpanTags = span_tags;
+		}
 		
-		w.flush();
-		w.close();
+		return span_tags;
 	}
 	
 	/**
-	 * Transforms source code that's provided through a
-	 * <code>String</code> to highlighted syntax in XHTML and returns it
-	 * as a <code>String</code>.
-	 * <p>If the highlighting has to become a fragment, no CSS styles will be
-	 * generated.
+	 * Returns the opening <code>span</code> tags of all the styles, encoded
+	 * in a charset.
 	 *
-	 * @param name The name of the source file.
-	 * @param in The input string that provides the source code that needs to
-	 * be transformed.
-	 * @param encoding The encoding that will be used to read and write the
-	 * text.
-	 * @param fragment <code>true</code> if the generated XHTML should be a
-	 * fragment; or <code>false</code> if it should be a complete page
-	 * or <code>false</code> if it should be a complete document
-	 * @return the highlighted source code as XHTML in a string
-	 * @see #highlight(String, InputStream, OutputStream, String, boolean)
-	 * @since 1.0
+	 * @param charset The charset of the output.
+	 * @return The table of encoded opening <code>span</code> tags.
 	 */
-	public String highlight(String name, String in, String encoding, boolean fragment)
-	throws IOException {
-		try (final ByteArrayOutputStream out = new ByteArrayOutputStream())
+	private byte[][] getEncodedSpanTags(Charset charset)
+	{
+		byte[][] span_tags = mEncodedSpanTags.get(charset);
+		if (null == span_tags)
 		{
-			highlight(name, new ByteArrayInputStream(in.getBytes(encoding)), out, encoding, fragment);
-			return out.toString(encoding);
+			span_tags = ByteTokenWriter.encodeSpanTags(getSpanTags(), charset);
+			mEncodedSpanTags.put(charset, span_tags);
+		}
+		
+		return span_tags;
+	}
+	
+	/**
+	 * Returns the opening <code>span</code> tags of all the styles with
+	 * their short class names, for the compact layout.
+	 *
+	 * @return The table of opening <code>span</code> tags.
+	 * @see ShortClassNames
+	 */
+	private String[] getCompactSpanTags()
+	{
+		String[] span_tags = mCompactSpanTags;
+		if (null == span_tags)
+		{
+			span_tags = CompactTokenWriter.buildSpanTags(this);
+			mCompactSpanTags = span_tags;
+		}
+		
+		return span_tags;
+	}
+	
+	/**
+	 * Discards the compiled CSS class definitions and XHTML headers and
+	 * footers of all the renderers.
+	 * <p>They will be compiled again from <code>jhighlight.properties</code>
+	 * the next time they're needed, which allows changes to the styles to be
+	 * picked up without restarting.
+	 *
+	 * @since 2.0.1
+	 */
+	public static void reloadCssClassDefinitions()
+	{
+		TEMPLATE_GENERATION.incrementAndGet();
+	}
+	
+	/**
+	 * Retrieves the compiled template of the class of this renderer,
+	 * compiling it if it isn't available or if it has been discarded.
+	 *
+	 * @return The compiled template.
+	 */
+	private XhtmlTemplate getTemplate()
+	{
+		AtomicReference<XhtmlTemplate> reference = TEMPLATES.get(getClass());
+		XhtmlTemplate template = reference.get();
+		int generation = TEMPLATE_GENERATION.get();
+		if (null == template ||
+			template.getGeneration() != generation)
+		{
+			Map<String, Object> styles = resolveCssStyles();
+			template = new XhtmlTemplate(generation, compileCssClassDefinitions(styles), compileCompactCssClassDefinitions(styles), usesDefaultDocument(), usesDefaultTokenSink());
+			reference.set(template);
+		}
+		
+		return template;
+	}
+	
+	/**
+	 * Checks whether the class of this renderer keeps the default CSS class
+	 * definitions, header and footer, in which case they can be written as
+	 * pre-encoded bytes.
+	 *
+	 * @return <code>true</code> if none of them is overridden; or
+	 * <p><code>false</code> otherwise
+	 */
+	private boolean usesDefaultDocument()
+	{
+		for (Class<?> type = getClass(); type != XhtmlRenderer.class; type = type.getSuperclass())
+		{
+			if (declares(type, "getCssClassDefinitions") ||
+				declares(type, "getXhtmlHeader", String.class) ||
+				declares(type, "getXhtmlHeaderFragment", String.class) ||
+				declares(type, "getXhtmlFooter"))
+			{
+				return false;
+			}
 		}
+		
+		return true;
 	}
+	
+	/**
+	 * Checks whether the class of this renderer keeps the default token
+	 * sink, in which case the tokens can be written as bytes.
+	 *
+	 * @return <code>true</code> if the token sink isn't overridden; or
+	 * <p><code>false</code> otherwise
+	 */
+	private boolean usesDefaultTokenSink()
+	{
+		for (Class<?> type = getClass(); type != XhtmlRenderer.class; type = type.getSuperclass())
+		{
+			if (declares(type, "createTokenSink", Writer.class))
+			{
+				return false;
+			}
+		}
 		
+		return true;
+	}
+	
+	private static boolean declares(Class<?> type, String name, Class<?>... parameterTypes)
+	{
+		try
+		{
+			type.getDeclaredMethod(name, parameterTypes);
+			return true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+	
 	/**
 	 * Returns a map of all the CSS styles that the renderer requires,
 	 * together with default definitions for them.
@@ -200,6 +1257,8 @@ public abstract class XhtmlRenderer implements Renderer
 	
 	/**
 	 * Returns the language-specific highlighting lexer that should be used
+	 * <p>A new lexer should be created at each call, lexers are reused
+	 * through a pool of sessions and are never shared between threads.
 	 *
 	 * @return The requested highlighting lexer.
 	 * @since 1.0
@@ -211,41 +1270,42 @@ public abstract class XhtmlRenderer implements Renderer
 	 * <code>style</code> XHTML tag.
 	 * <p>This should support all the classes that the
 	 * <code>getCssClass(int)</code> method returns.
+	 * <p>The definitions are compiled once per renderer class.
 	 *
 	 * @return The CSS class definitions
 	 * @see #getCssClass(int)
+	 * @see #reloadCssClassDefinitions()
 	 * @since 1.0
 	 */
 	protected String getCssClassDefinitions()
 	{
-		StringBuffer css = new StringBuffer();
-		
-		Properties properties = new Properties();
-		
-		URL jhighlighter_props = getClass().getClassLoader().getResource("jhighlight.properties");
-		if (jhighlighter_props != null)
-		{
-			try
-			{
-				URLConnection connection = jhighlighter_props.openConnection();
-				connection.setUseCaches(false);
-				InputStream is = connection.getInputStream();
-				
-				try
-				{
-					properties.load(is);
-				}
-				finally
-				{
-					is.close();
-				}
-			}
-			catch (IOException e)
-			{
-				Logger.getLogger("org.codelibs.jhighlight").warning("Error while reading the '" + jhighlighter_props.toExternalForm() + "' resource, using default CSS styles.\n" + ExceptionUtils.getExceptionStackTrace(e));
-			}
-		}
-		
+		return getTemplate().getCssClassDefinitions();
+	}
+	
+	/**
+	 * Resolves the CSS styles of this renderer, the definitions of
+	 * <code>jhighlight.properties</code> replace the default ones.
+	 *
+	 * @return The CSS definitions by selector, in the order of the default
+	 * styles.
+	 */
+	private Map<String, Object> resolveCssStyles()
+	{
+		Properties properties = loadCssProperties(getClass().getClassLoader().getResource("jhighlight.properties"));
+		return resolveCssStyles(null == properties ? new Properties() : properties);
+	}
+	
+	/**
+	 * Resolves the CSS styles of this renderer, the definitions of a
+	 * resource replace the default ones.
+	 *
+	 * @param properties The definitions of the resource.
+	 * @return The CSS definitions by selector, in the order of the default
+	 * styles.
+	 */
+	private Map<String, Object> resolveCssStyles(Properties properties)
+	{
+		Map<String, Object> styles = new LinkedHashMap<String, Object>();
 		Iterator it = getDefaultCssStyles().entrySet().iterator();
 		Map.Entry entry;
 		while (it.hasNext())
@@ -254,24 +1314,127 @@ public abstract class XhtmlRenderer implements Renderer
 			
 			String key = (String)entry.getKey();
 			
-			css.append(key);
-			css.append(" {\n");
-			
 			if (properties.containsKey(key))
 			{
-				css.append(properties.get(key));
+				styles.put(key, properties.get(key));
 			}
 			else
 			{
-				css.append(entry.getValue());
+				styles.put(key, entry.getValue());
 			}
+		}
+		
+		return styles;
+	}
+	
+	/**
+	 * Loads CSS definitions from a resource, bypassing the caches so that
+	 * changes are picked up by a reload.
+	 *
+	 * @param resource The resource; or <code>null</code> if it doesn't exist.
+	 * @return The definitions; or <code>null</code> if the resource doesn't
+	 * exist
+	 */
+	private Properties loadCssProperties(URL resource)
+	{
+		if (null == resource)
+		{
+			return null;
+		}
+		
+		Properties properties = new Properties();
+		try
+		{
+			URLConnection connection = resource.openConnection();
+			connection.setUseCaches(false);
+			InputStream is = connection.getInputStream();
 			
-			css.append("\n}\n");
+			try
+			{
+				properties.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.getLogger("org.codelibs.jhighlight").warning("Error while reading the '" + resource.toExternalForm() + "' resource, using default CSS styles.\n" + ExceptionUtils.getExceptionStackTrace(e));
+		}
+		
+		return properties;
+	}
+	
+	/**
+	 * Builds the CSS class definitions of the XHTML layout.
+	 *
+	 * @param styles The resolved CSS styles.
+	 * @return The CSS class definitions
+	 */
+	private static String compileCssClassDefinitions(Map<String, Object> styles)
+	{
+		StringBuilder css = new StringBuilder();
+		for (Map.Entry<String, Object> entry : styles.entrySet())
+		{
+			appendCssRule(css, entry.getKey(), entry.getValue());
 		}
 		
 		return css.toString();
 	}
 	
+	/**
+	 * Builds the CSS class definitions of the compact layout.
+	 * <p>The styles of <code>code</code> and of plain text apply to the
+	 * <code>pre</code> element, the other classes get their short names.
+	 *
+	 * @param styles The resolved CSS styles.
+	 * @return The CSS class definitions
+	 */
+	private static String compileCompactCssClassDefinitions(Map<String, Object> styles)
+	{
+		String code_selector = "pre." + ShortClassNames.CODE_CLASS;
+		StringBuilder code_css = new StringBuilder();
+		StringBuilder plain_css = new StringBuilder();
+		StringBuilder css = new StringBuilder();
+		String selector;
+		String short_name;
+		for (Map.Entry<String, Object> entry : styles.entrySet())
+		{
+			selector = entry.getKey();
+			if ("code".equals(selector))
+			{
+				appendCssRule(code_css, code_selector, entry.getValue() + "\nwhite-space: pre;");
+			}
+			else if (selector.startsWith("."))
+			{
+				short_name = ShortClassNames.get(selector.substring(1));
+				if (short_name.length() == 0)
+				{
+					appendCssRule(plain_css, code_selector, entry.getValue());
+				}
+				else
+				{
+					appendCssRule(css, "." + ShortClassNames.CODE_CLASS + " ." + short_name, entry.getValue());
+				}
+			}
+			else
+			{
+				appendCssRule(css, selector, entry.getValue());
+			}
+		}
+		
+		return code_css.append(plain_css).append(css).toString();
+	}
+	
+	private static void appendCssRule(StringBuilder css, String selector, Object declarations)
+	{
+		css.append(selector);
+		css.append(" {\n");
+		css.append(declarations);
+		css.append("\n}\n");
+	}
+	
 	/**
 	 * Returns the XHTML header that preceedes the highlighted source code.
 	 * <p>It will integrate the CSS class definitions and use the source's
@@ -288,22 +1451,7 @@ public abstract class XhtmlRenderer implements Renderer
 			name = "";
 		}
 		
-		return
-			"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\"\n" +
-			"                      \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n" +
-			"<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\" lang=\"en\">\n" +
-			"<head>\n" +
-			"    <meta http-equiv=\"content-type\" content=\"text/html; charset=ISO-8859-1\" />\n" +
-			"    <meta name=\"generator\" content=\"JHighlight v"+JHighlightVersion.getVersion()+" (http://jhighlight.dev.java.net)\" />\n" +
-			"    <title>" + StringUtils.encodeHtml(name) + "</title>\n" +
-			"    <link rel=\"Help\" href=\"http://jhighlight.dev.java.net\" />\n" +
-			"    <style type=\"text/css\">\n" +
-			getCssClassDefinitions() +
-			"    </style>\n" +
-			"</head>\n" +
-			"<body>\n" +
-			"<h1>" + StringUtils.encodeHtml(name) + "</h1>" +
-			"<code>";
+		return getTemplate().getHeader(name, getCssClassDefinitions());
 	}
 	
 	/**
@@ -321,7 +1469,7 @@ public abstract class XhtmlRenderer implements Renderer
 			name = "";
 		}
 		
-		return "<!-- "+name+" : generated by JHighlight v"+JHighlightVersion.getVersion()+" (http://jhighlight.dev.java.net) -->\n";
+		return getTemplate().getHeaderFragment(name);
 	}
 	
 	/**
@@ -333,7 +1481,29 @@ public abstract class XhtmlRenderer implements Renderer
 	 */
 	protected String getXhtmlFooter()
 	{
-		return "</code>\n</body>\n</html>\n";
+		return getTemplate().getFooter();
+	}
+	
+	/**
+	 * Puts the bytes that are written in a <code>ByteBuffer</code>.
+	 */
+	private static final class ByteBufferOutputStream extends OutputStream
+	{
+		private final ByteBuffer mBuffer;
 		
+		ByteBufferOutputStream(ByteBuffer buffer)
+		{
+			mBuffer = buffer;
+		}
+		
+		public void write(int b)
+		{
+			mBuffer.put((byte)b);
+		}
+		
+		public void write(byte[] bytes, int offset, int length)
+		{
+			mBuffer.put(bytes, offset, length);
+		}
 	}
 }
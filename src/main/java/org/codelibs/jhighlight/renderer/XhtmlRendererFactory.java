@@ -9,6 +9,7 @@ package org.codelibs.jhighlight.renderer;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,32 +47,52 @@ public abstract class XhtmlRendererFactory
 	/** Identifier for the CPLUSPLUS renderer type. */
 	public final static String CPLUSPLUS = "c++";
 	
-	private final static Map RENDERERS_CLASSNAMES = new HashMap() {{
-			put(GROOVY, GroovyXhtmlRenderer.class.getName());
-			put(JAVA, JavaXhtmlRenderer.class.getName());
-			put(BEANSHELL, JavaXhtmlRenderer.class.getName());
-			put(BSH, JavaXhtmlRenderer.class.getName());
-			put(XML, XmlXhtmlRenderer.class.getName());
-			put(XHTML, XmlXhtmlRenderer.class.getName());
-			put(LZX, XmlXhtmlRenderer.class.getName());
-			put(HTML, XmlXhtmlRenderer.class.getName());
-			put(CPP, CppXhtmlRenderer.class.getName());
-			put(CXX, CppXhtmlRenderer.class.getName());
-			put(CPLUSPLUS, CppXhtmlRenderer.class.getName());
-		}};
+	private final static Map<String, Renderer> RENDERERS = new HashMap<String, Renderer>();
+	
+	static
+	{
+		// renderers don't keep any state between highlightings, a single
+		// instance is shared by all the types that use the same language
+		Renderer groovy = new GroovyXhtmlRenderer();
+		Renderer java = new JavaXhtmlRenderer();
+		Renderer xml = new XmlXhtmlRenderer();
+		Renderer cpp = new CppXhtmlRenderer();
+		
+		RENDERERS.put(GROOVY, groovy);
+		RENDERERS.put(JAVA, java);
+		RENDERERS.put(BEANSHELL, java);
+		RENDERERS.put(BSH, java);
+		RENDERERS.put(XML, xml);
+		RENDERERS.put(XHTML, xml);
+		RENDERERS.put(LZX, xml);
+		RENDERERS.put(HTML, xml);
+		RENDERERS.put(CPP, cpp);
+		RENDERERS.put(CXX, cpp);
+		RENDERERS.put(CPLUSPLUS, cpp);
+	}
+	
+	private final static Set<String> SUPPORTED_TYPES = Collections.unmodifiableSet(RENDERERS.keySet());
 	
 	/**
-	 * Instantiates an instance of a known <code>XhtmlRenderer</code> according to
-	 * the type that's provided.
+	 * Provides the <code>XhtmlRenderer</code> that corresponds to the type
+	 * that's provided.
+	 * <p>Renderers are created once and shared, looking up a renderer with
+	 * one of the lower-case type identifiers doesn't create any objects.
 	 *
 	 * @param type The type of renderer, look at the static variables of this
 	 * class to see which ones are supported. Can also be a filename with extension.
-	 * @return an instance of the <code>XhtmlRenderer</code> that corresponds to the type; or
+	 * @return the <code>XhtmlRenderer</code> that corresponds to the type; or
 	 * <p><code>null</code> if the type wasn't known
 	 * @since 1.0
 	 */
 	public static Renderer getRenderer(String type)
 	{
+		Renderer renderer = RENDERERS.get(type);
+		if (renderer != null)
+		{
+			return renderer;
+		}
+		
 		String lookupType = type.toLowerCase();
 
 		// If the type contains a dot, treat it as a filename and extract the extension
@@ -90,21 +111,7 @@ public abstract class XhtmlRendererFactory
 			lookupType = "html";
 		}
 
-		String classname = (String)RENDERERS_CLASSNAMES.get(lookupType);
-		if (null == classname)
-		{
-			return null;
-		}
-
-		try
-		{
-			Class<?> klass = Class.forName(classname);
-			return (Renderer) klass.getDeclaredConstructor().newInstance();
-		}
-		catch (Exception e)
-		{
-			throw new RuntimeException(e);
-		}
+		return RENDERERS.get(lookupType);
 	}
 	
 	/**
@@ -115,6 +122,48 @@ public abstract class XhtmlRendererFactory
 	 */
 	public static Set getSupportedTypes()
 	{
-		return Collections.unmodifiableSet(RENDERERS_CLASSNAMES.keySet());
+		return SUPPORTED_TYPES;
+	}
+	
+	/**
+	 * Provides the name of the external stylesheet of a renderer type, as
+	 * it's written by the command-line tool and served by the servlet
+	 * filter.
+	 *
+	 * @param type The type of renderer.
+	 * @return the name of the stylesheet, for instance
+	 * <code>jhighlight-java.css</code>
+	 * @see XhtmlRenderer#getStylesheet(RenderOptions)
+	 * @since 2.0.1
+	 */
+	public static String getStylesheetName(String type)
+	{
+		return getStylesheetName(type, XhtmlRenderer.DEFAULT_THEME);
+	}
+	
+	/**
+	 * Provides the name of the external stylesheet of a renderer type with
+	 * a theme.
+	 *
+	 * @param type The type of renderer.
+	 * @param theme The name of the theme.
+	 * @return the name of the stylesheet, for instance
+	 * <code>jhighlight-java-dark.css</code>; the default theme keeps the
+	 * name without theme
+	 * @see XhtmlRenderer#getStylesheet(RenderOptions, String)
+	 * @since 2.0.1
+	 */
+	public static String getStylesheetName(String type, String theme)
+	{
+		if (null == type)	throw new IllegalArgumentException("type can't be null.");
+		if (null == theme)	throw new IllegalArgumentException("theme can't be null.");
+		
+		String name = "jhighlight-" + type.toLowerCase(Locale.ENGLISH);
+		if (!XhtmlRenderer.DEFAULT_THEME.equals(theme))
+		{
+			name += "-" + theme;
+		}
+		
+		return name + ".css";
 	}
 }
@@ -0,0 +1,362 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codelibs.jhighlight.JHighlightVersion;
+import org.codelibs.jhighlight.tools.StringUtils;
+
+/**
+ * Holds the compiled CSS class definitions and the static parts of the XHTML
+ * header and footer of a renderer class.
+ * <p>Only the name of the source file varies between two documents, the
+ * parts around it are compiled once and encoded once per output charset.
+ *
+ * @since 2.0.1
+ */
+final class XhtmlTemplate
+{
+	private final int		mGeneration;
+	private final String	mCssClassDefinitions;
+	private final String	mCompactCssClassDefinitions;
+	private final boolean	mEncodable;
+	private final boolean	mTokensEncodable;
+
+	private final String	mHeaderStart;
+	private final String	mHeaderHead;
+	private final String	mHeaderStyleStart;
+	private final String	mHeaderStyleEnd;
+	private final String	mHeaderBody;
+	private final String	mHeaderEnd;
+	private final String	mFragmentStart;
+	private final String	mFragmentEnd;
+	private final String	mFooter;
+
+	private final String	mCompactHeaderStart;
+	private final String	mCompactHeaderHead;
+	private final String	mCompactHeaderBody;
+	private final String	mCompactCodeStart;
+	private final String	mCompactFooter;
+
+	private final ConcurrentHashMap<Charset, Encoded>	mEncoded = new ConcurrentHashMap<Charset, Encoded>();
+	private final ConcurrentHashMap<String, String>		mThemeStylesheets = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Creates a new <code>XhtmlTemplate</code>.
+	 *
+	 * @param generation the generation of the CSS class definitions
+	 * @param cssClassDefinitions the compiled CSS class definitions
+	 * @param compactCssClassDefinitions the compiled CSS class definitions
+	 * of the compact layout
+	 * @param encodable <code>true</code> if the renderer uses the default
+	 * header and footer, which allows them to be written as pre-encoded
+	 * bytes; or <code>false</code> otherwise
+	 * @param tokensEncodable <code>true</code> if the renderer uses the
+	 * default token sink, which allows the tokens to be written as bytes;
+	 * or <code>false</code> otherwise
+	 */
+	XhtmlTemplate(int generation, String cssClassDefinitions, String compactCssClassDefinitions, boolean encodable, boolean tokensEncodable)
+	{
+		mGeneration = generation;
+		mCssClassDefinitions = cssClassDefinitions;
+		mCompactCssClassDefinitions = compactCssClassDefinitions;
+		mEncodable = encodable;
+		mTokensEncodable = tokensEncodable;
+
+		String version = JHighlightVersion.getVersion();
+		mHeaderStart =
+			"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\"\n" +
+			"                      \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n" +
+			"<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\" lang=\"en\">\n" +
+			"<head>\n" +
+			"    <meta http-equiv=\"content-type\" content=\"text/html; charset=ISO-8859-1\" />\n" +
+			"    <meta name=\"generator\" content=\"JHighlight v" + version + " (http://jhighlight.dev.java.net)\" />\n" +
+			"    <title>";
+		mHeaderHead =
+			"</title>\n" +
+			"    <link rel=\"Help\" href=\"http://jhighlight.dev.java.net\" />\n";
+		mHeaderStyleStart = "    <style type=\"text/css\">\n";
+		mHeaderStyleEnd = "    </style>\n";
+		mHeaderBody =
+			"</head>\n" +
+			"<body>\n" +
+			"<h1>";
+		mHeaderEnd = "</h1><code>";
+		mFragmentStart = "<!-- ";
+		mFragmentEnd = " : generated by JHighlight v" + version + " (http://jhighlight.dev.java.net) -->\n";
+		mFooter = "</code>\n</body>\n</html>\n";
+
+		mCompactHeaderStart =
+			"<!DOCTYPE html>\n" +
+			"<html lang=\"en\">\n" +
+			"<head>\n";
+		mCompactHeaderHead =
+			"<meta name=\"generator\" content=\"JHighlight v" + version + "\">\n" +
+			"<title>";
+		mCompactHeaderBody = "</title>\n";
+		// a line break right after the start tag of a pre element is
+		// ignored, this one keeps a leading empty line of the code intact
+		mCompactCodeStart = "<pre class=\"" + ShortClassNames.CODE_CLASS + "\">\n";
+		mCompactFooter = "</pre>\n";
+	}
+
+	int getGeneration()
+	{
+		return mGeneration;
+	}
+
+	String getCssClassDefinitions()
+	{
+		return mCssClassDefinitions;
+	}
+
+	/**
+	 * Indicates whether the renderer uses the default CSS class definitions,
+	 * header and footer.
+	 *
+	 * @return <code>true</code> if none of them is overridden; or
+	 * <p><code>false</code> otherwise
+	 */
+	boolean usesDefaultDocument()
+	{
+		return mEncodable;
+	}
+
+	String getHeader(String name, String cssClassDefinitions)
+	{
+		String encoded_name = StringUtils.encodeHtml(name);
+		return mHeaderStart + encoded_name + mHeaderHead + mHeaderStyleStart + cssClassDefinitions + mHeaderStyleEnd + mHeaderBody + encoded_name + mHeaderEnd;
+	}
+
+	/**
+	 * Builds the XHTML header of a document that refers to an external
+	 * stylesheet instead of containing the CSS class definitions.
+	 *
+	 * @param name the name of the source file
+	 * @param stylesheet the address of the stylesheet
+	 * @return the header, up to the start of the code
+	 */
+	String getLinkedHeader(String name, String stylesheet)
+	{
+		String encoded_name = StringUtils.encodeHtml(name);
+		return mHeaderStart + encoded_name + mHeaderHead +
+			"    <link rel=\"stylesheet\" type=\"text/css\" href=\"" + StringUtils.encodeHtml(stylesheet) + "\" />\n" +
+			mHeaderBody + encoded_name + mHeaderEnd;
+	}
+
+	String getHeaderFragment(String name)
+	{
+		return mFragmentStart + name + mFragmentEnd;
+	}
+
+	String getFooter()
+	{
+		return mFooter;
+	}
+
+	String getCompactCssClassDefinitions()
+	{
+		return mCompactCssClassDefinitions;
+	}
+
+	/**
+	 * Returns a compiled theme stylesheet, the stylesheets are discarded
+	 * together with the template.
+	 *
+	 * @param key the layout and name of the theme
+	 * @return the stylesheet; or <code>null</code> if it hasn't been
+	 * compiled yet
+	 */
+	String getThemeStylesheet(String key)
+	{
+		return mThemeStylesheets.get(key);
+	}
+
+	void putThemeStylesheet(String key, String stylesheet)
+	{
+		mThemeStylesheets.put(key, stylesheet);
+	}
+
+	/**
+	 * Builds the HTML5 header of a document with the compact layout.
+	 *
+	 * @param name the name of the source file
+	 * @param charsetName the name of the charset of the document; or
+	 * <code>null</code> if it's unknown
+	 * @param stylesheet the address of the external stylesheet; or
+	 * <code>null</code> if the CSS class definitions are part of the header
+	 * @return the header, up to the start of the code
+	 */
+	String getCompactHeader(String name, String charsetName, String stylesheet)
+	{
+		String encoded_name = StringUtils.encodeHtml(name);
+		StringBuilder header = new StringBuilder(mCompactHeaderStart.length() + mCompactCssClassDefinitions.length() + 256);
+		header.append(mCompactHeaderStart);
+		if (charsetName != null)
+		{
+			header.append("<meta charset=\"").append(charsetName).append("\">\n");
+		}
+		header.append(mCompactHeaderHead);
+		header.append(encoded_name);
+		header.append(mCompactHeaderBody);
+		if (null == stylesheet)
+		{
+			header.append("<style>\n");
+			header.append(mCompactCssClassDefinitions);
+			header.append("</style>\n");
+		}
+		else
+		{
+			header.append("<link rel=\"stylesheet\" href=\"").append(StringUtils.encodeHtml(stylesheet)).append("\">\n");
+		}
+		header.append("</head>\n<body>\n<h1>");
+		header.append(encoded_name);
+		header.append("</h1>\n");
+		header.append(mCompactCodeStart);
+
+		return header.toString();
+	}
+
+	String getCompactHeaderFragment(String name)
+	{
+		return mFragmentStart + name + mFragmentEnd + mCompactCodeStart;
+	}
+
+	String getCompactFooter(boolean fragment)
+	{
+		if (fragment)
+		{
+			return mCompactFooter;
+		}
+
+		return mCompactFooter + "</body>\n</html>\n";
+	}
+
+	/**
+	 * Retrieves the header and footer encoded in a charset.
+	 *
+	 * @param charset the charset of the output
+	 * @return the encoded header and footer; or
+	 * <p><code>null</code> if they can't be written as pre-encoded bytes,
+	 * either because the renderer customizes them or because the charset
+	 * doesn't allow encoded parts to be concatenated
+	 */
+	Encoded getEncoded(Charset charset)
+	{
+		if (!mEncodable)
+		{
+			return null;
+		}
+
+		Encoded encoded = mEncoded.get(charset);
+		if (null == encoded)
+		{
+			if (!isConcatenable(charset))
+			{
+				return null;
+			}
+
+			encoded = new Encoded(this, charset);
+			Encoded previous = mEncoded.putIfAbsent(charset, encoded);
+			if (previous != null)
+			{
+				encoded = previous;
+			}
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * Checks whether text that's encoded in separate parts is identical to
+	 * the same text encoded at once, which isn't the case for charsets that
+	 * write a byte order mark or that keep a shift state.
+	 */
+	private static boolean isConcatenable(Charset charset)
+	{
+		if (!charset.canEncode())
+		{
+			return false;
+		}
+
+		byte[] start = "<".getBytes(charset);
+		byte[] end = "a>".getBytes(charset);
+		byte[] joined = Arrays.copyOf(start, start.length + end.length);
+		System.arraycopy(end, 0, joined, start.length, end.length);
+
+		return Arrays.equals(joined, "<a>".getBytes(charset));
+	}
+
+	/**
+	 * The parts of the header and footer encoded in one charset.
+	 */
+	static final class Encoded
+	{
+		private final Charset	mCharset;
+		private final byte[]	mHeaderStart;
+		private final byte[]	mHeaderMiddle;
+		private final byte[]	mHeaderEnd;
+		private final byte[]	mFragmentStart;
+		private final byte[]	mFragmentEnd;
+		private final byte[]	mFooter;
+		private final boolean	mWritesTokens;
+
+		private Encoded(XhtmlTemplate template, Charset charset)
+		{
+			mCharset = charset;
+			mWritesTokens = template.mTokensEncodable && ByteTokenWriter.supports(charset);
+			mHeaderStart = template.mHeaderStart.getBytes(charset);
+			mHeaderMiddle = (template.mHeaderHead + template.mHeaderStyleStart + template.mCssClassDefinitions + template.mHeaderStyleEnd + template.mHeaderBody).getBytes(charset);
+			mHeaderEnd = template.mHeaderEnd.getBytes(charset);
+			mFragmentStart = template.mFragmentStart.getBytes(charset);
+			mFragmentEnd = template.mFragmentEnd.getBytes(charset);
+			mFooter = template.mFooter.getBytes(charset);
+		}
+
+		void writeHeader(String name, OutputStream out)
+		throws IOException
+		{
+			byte[] encoded_name = StringUtils.encodeHtml(name).getBytes(mCharset);
+			out.write(mHeaderStart);
+			out.write(encoded_name);
+			out.write(mHeaderMiddle);
+			out.write(encoded_name);
+			out.write(mHeaderEnd);
+		}
+
+		void writeHeaderFragment(String name, OutputStream out)
+		throws IOException
+		{
+			out.write(mFragmentStart);
+			out.write(name.getBytes(mCharset));
+			out.write(mFragmentEnd);
+		}
+
+		void writeFooter(OutputStream out)
+		throws IOException
+		{
+			out.write(mFooter);
+		}
+
+		/**
+		 * Indicates whether the tokens can be written as bytes by a
+		 * {@link ByteTokenWriter}.
+		 *
+		 * @return <code>true</code> if the tokens can be written as bytes;
+		 * or <code>false</code> if they have to go through a
+		 * <code>Writer</code>
+		 */
+		boolean writesTokens()
+		{
+			return mWritesTokens;
+		}
+	}
+}
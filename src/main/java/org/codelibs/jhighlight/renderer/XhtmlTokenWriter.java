@@ -0,0 +1,176 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.renderer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.codelibs.jhighlight.highlighter.TokenSink;
+import org.codelibs.jhighlight.tools.StringUtils;
+
+/**
+ * Writes highlighted tokens as XHTML.
+ * <p>The text of the tokens is encoded straight from the character ranges
+ * that the lexer matched and the opening <code>span</code> tags are prepared
+ * once per style, no objects are created while tokens are being written.
+ *
+ * @since 2.0.1
+ */
+final class XhtmlTokenWriter implements TokenSink
+{
+	private static final String SPAN_END = "</span>";
+	private static final String LINE_END = "</span><br />\n";
+	private static final String SPACE = "&nbsp;";
+
+	private final Writer	mWriter;
+	private final String[]	mSpanTags;
+	private final int		mPassthroughLimit;
+
+	private char[]			mText;
+	private int				mPreviousStyle = 0;
+	private boolean			mNewline = false;
+
+	/**
+	 * Creates a new <code>XhtmlTokenWriter</code>.
+	 *
+	 * @param writer the writer to which the XHTML will be written
+	 * @param spanTags the opening <code>span</code> tag of every style,
+	 * indexed by the unsigned value of the style; <code>null</code> entries
+	 * mark the styles that aren't supported
+	 */
+	XhtmlTokenWriter(Writer writer, String[] spanTags)
+	{
+		this(writer, spanTags, -1);
+	}
+
+	/**
+	 * Creates a new <code>XhtmlTokenWriter</code> that only escapes the
+	 * characters that are significant in markup.
+	 *
+	 * @param writer the writer to which the XHTML will be written
+	 * @param spanTags the opening <code>span</code> tag of every style
+	 * @param passthroughLimit the first character that's written as a
+	 * numeric character reference, see
+	 * {@link StringUtils#encodeHtmlMinimal(char[], int, int, int, Writer)};
+	 * or <code>-1</code> if Html entities should be used
+	 */
+	XhtmlTokenWriter(Writer writer, String[] spanTags, int passthroughLimit)
+	{
+		mWriter = writer;
+		mSpanTags = spanTags;
+		mPassthroughLimit = passthroughLimit;
+	}
+
+	/**
+	 * Builds the table of opening <code>span</code> tags for the CSS classes
+	 * of a renderer.
+	 *
+	 * @param renderer the renderer whose CSS classes will be used
+	 * @return the table of opening <code>span</code> tags
+	 */
+	static String[] buildSpanTags(XhtmlRenderer renderer)
+	{
+		String[] span_tags = new String[256];
+		String css_class;
+		for (int i = 0; i < span_tags.length; i++)
+		{
+			css_class = renderer.getCssClass((byte)i);
+			if (css_class != null)
+			{
+				span_tags[i] = "<span class=\"" + css_class + "\">";
+			}
+		}
+
+		return span_tags;
+	}
+
+	public void startLine(char[] text, int offset, int length)
+	{
+		mText = text;
+	}
+
+	/**
+	 * Writes a token.
+	 * <p>Line breaks inside the token are left out, the end of the line is
+	 * written through {@link #endLine()}.
+	 *
+	 * @param style the style of the token
+	 * @param offset the index of the first character of the token
+	 * @param length the number of characters of the token
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void token(byte style, int offset, int length)
+	throws IOException
+	{
+		if (style != mPreviousStyle ||
+			mNewline)
+		{
+			String span_tag = mSpanTags[style & 0xFF];
+			if (span_tag != null)
+			{
+				if (mPreviousStyle != 0 && !mNewline)
+				{
+					mWriter.write(SPAN_END);
+				}
+				mWriter.write(span_tag);
+
+				mPreviousStyle = style;
+			}
+		}
+		mNewline = false;
+
+		char[] text = mText;
+		int end = offset + length;
+		int last_written = offset;
+		char c;
+		for (int i = offset; i < end; i++)
+		{
+			c = text[i];
+			if (' ' == c ||
+				'\n' == c)
+			{
+				if (i > last_written)
+				{
+					encode(text, last_written, i - last_written);
+				}
+				if (' ' == c)
+				{
+					mWriter.write(SPACE);
+				}
+				last_written = i + 1;
+			}
+		}
+		if (end > last_written)
+		{
+			encode(text, last_written, end - last_written);
+		}
+	}
+
+	private void encode(char[] text, int offset, int length)
+	throws IOException
+	{
+		if (mPassthroughLimit < 0)
+		{
+			StringUtils.encodeHtml(text, offset, length, mWriter);
+		}
+		else
+		{
+			StringUtils.encodeHtmlMinimal(text, offset, length, mPassthroughLimit, mWriter);
+		}
+	}
+
+	/**
+	 * Finishes the current line.
+	 *
+	 * @exception IOException when an error occurred while writing
+	 */
+	public void endLine()
+	throws IOException
+	{
+		mWriter.write(LINE_END);
+		mNewline = true;
+	}
+}
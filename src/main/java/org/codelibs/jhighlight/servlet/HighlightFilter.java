@@ -8,10 +8,16 @@
  */
 package org.codelibs.jhighlight.servlet;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
@@ -26,7 +32,10 @@ import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpServletResponseWrapper;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.WriterOutputStream;
+import org.codelibs.jhighlight.renderer.RenderOptions;
 import org.codelibs.jhighlight.renderer.Renderer;
+import org.codelibs.jhighlight.renderer.XhtmlRenderer;
 import org.codelibs.jhighlight.renderer.XhtmlRendererFactory;
 import org.codelibs.jhighlight.tools.FileUtils;
 
@@ -53,6 +62,43 @@ import org.codelibs.jhighlight.tools.FileUtils;
  * <pre>http://myhost.com/folder/MySource.java</pre>
  * <p>The contents of this file will be automatically highlighted and the
  * resulting HTML will be served.
+ * <p>By default the complete source is buffered before it's highlighted,
+ * which allows the length of the response to be set. With the
+ * <code>streaming</code> init parameter set to <code>true</code>, the
+ * source is highlighted while the downstream servlet writes it and the
+ * XHTML of each line is sent as soon as it's ready. The memory that's used
+ * per request then depends on the <code>bufferSize</code> init parameter
+ * (8192 by default) instead of on the size of the source, except for lines
+ * that are longer than it: a line is always retained until it's complete,
+ * however long it is.
+ * <pre>&lt;init-param&gt;
+ *    &lt;param-name&gt;streaming&lt;/param-name&gt;
+ *    &lt;param-value&gt;true&lt;/param-value&gt;
+ *&lt;/init-param&gt;</pre>
+ * <p>With the <code>stylesheet</code> init parameter set to
+ * <code>true</code>, the documents don't contain the CSS class definitions
+ * but refer to a stylesheet per type, like
+ * <code>/jhighlight-java.css?v=1a2b3c4d</code> relative to the context
+ * path, which the filter serves itself. The version changes with the
+ * definitions, a stylesheet that's requested with the current version is
+ * thus served with headers that let browsers and proxies cache it for a
+ * year. Any other request has to revalidate the stylesheet through its
+ * <code>ETag</code>, so that an outdated address doesn't keep the new
+ * definitions cached under it. The stylesheets have to be
+ * covered by the mapping of the filter, which is the case with the mapping
+ * above.
+ * <pre>&lt;init-param&gt;
+ *    &lt;param-name&gt;stylesheet&lt;/param-name&gt;
+ *    &lt;param-value&gt;true&lt;/param-value&gt;
+ *&lt;/init-param&gt;</pre>
+ * <p>The <code>themes</code> init parameter lists the other themes whose
+ * stylesheets are served, like <code>/jhighlight-java-dark.css?v=1a2b3c4d</code>
+ * with the same version. The documents don't depend on the theme, a page
+ * switches theme by referring to another stylesheet.
+ * <pre>&lt;init-param&gt;
+ *    &lt;param-name&gt;themes&lt;/param-name&gt;
+ *    &lt;param-value&gt;dark&lt;/param-value&gt;
+ *&lt;/init-param&gt;</pre>
  *
  * @author Geert Bevin (gbevin[remove] at uwyn dot com)
  * @version $Revision: 3183 $
@@ -60,11 +106,56 @@ import org.codelibs.jhighlight.tools.FileUtils;
  */
 public final class HighlightFilter implements Filter
 {
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	private static final String STYLESHEET_PREFIX = "/jhighlight-";
+	private static final String STYLESHEET_SUFFIX = ".css";
+	private static final String STYLESHEET_CACHE_CONTROL = "public, max-age=31536000, immutable";
+	private static final String STYLESHEET_REVALIDATE_CACHE_CONTROL = "no-cache";
+	
+	private boolean	mStreaming = false;
+	private int		mBufferSize = DEFAULT_BUFFER_SIZE;
+	private boolean	mStylesheet = false;
+	private String[]	mThemes = new String[0];
+	
 	/** Creates a new {@link HighlightFilter}. */
 	public HighlightFilter() {}
 
 	public void init(FilterConfig filterConfig)
 	{
+		if (null == filterConfig)
+		{
+			return;
+		}
+		
+		String streaming = filterConfig.getInitParameter("streaming");
+		if (streaming != null)
+		{
+			mStreaming = Boolean.parseBoolean(streaming.trim());
+		}
+		
+		String buffer_size = filterConfig.getInitParameter("bufferSize");
+		if (buffer_size != null)
+		{
+			mBufferSize = Integer.parseInt(buffer_size.trim());
+			if (mBufferSize < 1)	throw new IllegalArgumentException("bufferSize should be at least 1.");
+		}
+		
+		String stylesheet = filterConfig.getInitParameter("stylesheet");
+		if (stylesheet != null)
+		{
+			mStylesheet = Boolean.parseBoolean(stylesheet.trim());
+		}
+		
+		String themes = filterConfig.getInitParameter("themes");
+		if (themes != null &&
+			themes.trim().length() > 0)
+		{
+			mThemes = themes.trim().split("\\s*,\\s*");
+			for (String theme : mThemes)
+			{
+				if (!XhtmlRenderer.isTheme(theme))	throw new IllegalArgumentException("The theme '" + theme + "' doesn't exist.");
+			}
+		}
 	}
 	
 	public void destroy()
@@ -81,57 +172,89 @@ public final class HighlightFilter implements Filter
 			HttpServletRequest  http_request = (HttpServletRequest)request;
 			HttpServletResponse http_response = (HttpServletResponse)response;
 			
+			if (mStylesheet &&
+				serveStylesheet(http_request, http_response))
+			{
+				return;
+			}
+			
 			Renderer renderer = null;
+			String type = null;
 			String uri = http_request.getRequestURI();
 			String extension = FileUtils.getExtension(uri);
 			if (extension != null &&
 				extension.endsWith("s"))
 			{
-				renderer = XhtmlRendererFactory.getRenderer(extension.substring(0, extension.length()-1));
+				type = extension.substring(0, extension.length()-1);
+				renderer = XhtmlRendererFactory.getRenderer(type);
 			}
 			
 			if (renderer != null)
 			{
-				SourceRequestWrapper    request_wrapper = new SourceRequestWrapper(http_request);
-				CharResponseWrapper     response_wrapper = new CharResponseWrapper(http_response);
+				SourceRequestWrapper request_wrapper = new SourceRequestWrapper(http_request);
+				
+				String encoding = request.getCharacterEncoding();
+				if (null == encoding)
+				{
+					encoding = "UTF-8";
+				}
 				
-				chain.doFilter(request_wrapper, response_wrapper);
+				String name = http_request.getServletPath().substring(1);
+				name = name.substring(0, name.length() - 1);
 				
-				OutputStream out = response.getOutputStream();
-				try
+				RenderOptions options = RenderOptions.DEFAULT;
+				if (mStylesheet &&
+					renderer instanceof XhtmlRenderer)
+				{
+					options = options.withStylesheet(getStylesheetAddress(http_request, (XhtmlRenderer)renderer, type));
+				}
+				
+				if (mStreaming &&
+					renderer instanceof XhtmlRenderer)
+				{
+					StreamingResponseWrapper response_wrapper = new StreamingResponseWrapper(http_response, (XhtmlRenderer)renderer, name, encoding, mBufferSize, options);
+					
+					chain.doFilter(request_wrapper, response_wrapper);
+					
+					response_wrapper.finish();
+				}
+				else
 				{
-					if (HttpServletResponse.SC_OK == response_wrapper.getStatus())
+					CharResponseWrapper response_wrapper = new CharResponseWrapper(http_response);
+					
+					chain.doFilter(request_wrapper, response_wrapper);
+					
+					OutputStream out = response.getOutputStream();
+					try
 					{
-						InputStream is = new ByteArrayInputStream(response_wrapper.getWrappedOutputStream().toByteArray());
-						try (final ByteArrayOutputStream os = new ByteArrayOutputStream())
+						if (HttpServletResponse.SC_OK == response_wrapper.getStatus())
 						{
-							String encoding = request.getCharacterEncoding();
-
-							if (null == encoding)
+							try (final ByteArrayOutputStream os = new ByteArrayOutputStream())
 							{
-								encoding = "UTF-8";
+								if (renderer instanceof XhtmlRenderer)
+								{
+									((XhtmlRenderer)renderer).highlight(name, response_wrapper.getWrappedOutputStream().toInputStream(), os, encoding, false, options);
+								}
+								else
+								{
+									renderer.highlight(name, response_wrapper.getWrappedOutputStream().toInputStream(), os, encoding, false);
+								}
+								
+								response.setContentType("text/html");
+								response.setContentLength(os.size());
+								os.writeTo(out);
 							}
-
-							String name = http_request.getServletPath().substring(1);
-							name = name.substring(0, name.length() - 1);
-							renderer.highlight(name, is, os, encoding, false);
-
-							String highlighted = os.toString("ISO-8859-1");
-
-							response.setContentType("text/html");
-							response.setContentLength(highlighted.length());
-							out.write(highlighted.getBytes("ISO-8859-1"));
+						}
+						else
+						{
+							response_wrapper.getWrappedOutputStream().writeTo(out);
 						}
 					}
-					else
+					finally
 					{
-						out.write(response_wrapper.getWrappedOutputStream().toByteArray());
+						out.close();
 					}
 				}
-				finally
-				{
-					out.close();
-				}
 			}
 			else
 			{
@@ -144,6 +267,108 @@ public final class HighlightFilter implements Filter
 		}
 	}
 	
+	/**
+	 * Builds the address of the stylesheet of a type, its version changes
+	 * whenever the CSS class definitions change.
+	 */
+	private String getStylesheetAddress(HttpServletRequest request, XhtmlRenderer renderer, String type)
+	{
+		return request.getContextPath() + "/" + XhtmlRendererFactory.getStylesheetName(type) + "?v=" + getStylesheetVersion(renderer);
+	}
+	
+	/**
+	 * Determines the version of the stylesheets of a renderer, it covers
+	 * all the themes since they share it.
+	 */
+	private String getStylesheetVersion(XhtmlRenderer renderer)
+	{
+		int hash = renderer.getStylesheet(RenderOptions.DEFAULT).hashCode();
+		for (String theme : mThemes)
+		{
+			hash = 31 * hash + renderer.getStylesheet(RenderOptions.DEFAULT, theme).hashCode();
+		}
+		
+		return Integer.toHexString(hash);
+	}
+	
+	/**
+	 * Serves the stylesheet of a type when it's requested, it's only cached
+	 * for good when the requested version is the current one.
+	 *
+	 * @return <code>true</code> if the request was for a stylesheet; or
+	 * <p><code>false</code> otherwise
+	 */
+	private boolean serveStylesheet(HttpServletRequest request, HttpServletResponse response)
+	throws IOException
+	{
+		String path = request.getServletPath();
+		if (null == path ||
+			!path.startsWith(STYLESHEET_PREFIX) ||
+			!path.endsWith(STYLESHEET_SUFFIX) ||
+			path.length() <= STYLESHEET_PREFIX.length() + STYLESHEET_SUFFIX.length())
+		{
+			return false;
+		}
+		
+		String type = path.substring(STYLESHEET_PREFIX.length(), path.length() - STYLESHEET_SUFFIX.length());
+		String theme = XhtmlRenderer.DEFAULT_THEME;
+		int separator = type.lastIndexOf('-');
+		if (separator != -1)
+		{
+			theme = type.substring(separator + 1);
+			type = type.substring(0, separator);
+			if (!Arrays.asList(mThemes).contains(theme))
+			{
+				return false;
+			}
+		}
+		// the factory takes names with dots for file names
+		if (type.indexOf('.') != -1 ||
+			type.indexOf('/') != -1)
+		{
+			return false;
+		}
+		Renderer renderer = XhtmlRendererFactory.getRenderer(type);
+		if (!(renderer instanceof XhtmlRenderer))
+		{
+			return false;
+		}
+		
+		XhtmlRenderer xhtml_renderer = (XhtmlRenderer)renderer;
+		String css = xhtml_renderer.getStylesheet(RenderOptions.DEFAULT, theme);
+		String version = getStylesheetVersion(xhtml_renderer);
+		String etag = "\"" + version + "\"";
+		if (version.equals(request.getParameter("v")))
+		{
+			response.setHeader("Cache-Control", STYLESHEET_CACHE_CONTROL);
+		}
+		else
+		{
+			response.setHeader("Cache-Control", STYLESHEET_REVALIDATE_CACHE_CONTROL);
+		}
+		response.setHeader("ETag", etag);
+		if (etag.equals(request.getHeader("If-None-Match")))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		
+		byte[] bytes = css.getBytes(StandardCharsets.UTF_8);
+		response.setContentType("text/css; charset=UTF-8");
+		response.setContentLength(bytes.length);
+		OutputStream out = response.getOutputStream();
+		try
+		{
+			out.write(bytes);
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		return true;
+	}
+	
 	private static class SourceRequestWrapper extends HttpServletRequestWrapper
 	{
 		public SourceRequestWrapper(HttpServletRequest request)
@@ -177,11 +402,48 @@ public final class HighlightFilter implements Filter
 		}
 	}
 	
-	private static class CharResponseWrapper extends HttpServletResponseWrapper
+	private static class StatusResponseWrapper extends HttpServletResponseWrapper
 	{
-		private ServletOutputStreamWrapper mOutput;
 		private int mStatus = HttpServletResponse.SC_OK;
 		
+		public StatusResponseWrapper(HttpServletResponse response)
+		{
+			super(response);
+		}
+		
+		public void setStatus(int status)
+		{
+			mStatus = status;
+			
+			super.setStatus(status);
+		}
+		
+		public void sendError(int status, String msg)
+		throws IOException
+		{
+			mStatus = status;
+			
+			super.sendError(status, msg);
+		}
+		
+		public void sendError(int status)
+		throws IOException
+		{
+			mStatus = status;
+			
+			super.sendError(status);
+		}
+		
+		public int getStatus()
+		{
+			return mStatus;
+		}
+	}
+	
+	private static class CharResponseWrapper extends StatusResponseWrapper
+	{
+		private ServletOutputStreamWrapper mOutput;
+		
 		public ServletOutputStreamWrapper getWrappedOutputStream()
 		{
 			return mOutput;
@@ -199,33 +461,220 @@ public final class HighlightFilter implements Filter
 		{
 			return mOutput;
 		}
+	}
+	
+	/**
+	 * Holds back the content length of the downstream response, which is the
+	 * one of the source: it only reaches the client when the body is passed
+	 * through unchanged.
+	 */
+	private static class StreamingResponseWrapper extends StatusResponseWrapper
+	{
+		private static final String CONTENT_LENGTH = "Content-Length";
 		
-		public void setStatus(int status)
+		private final StreamingOutputStream mOutput;
+		private String	mContentLength = null;
+		private boolean	mPassingThrough = false;
+		
+		public StreamingResponseWrapper(HttpServletResponse response, XhtmlRenderer renderer, String name, String encoding, int bufferSize, RenderOptions options)
 		{
-			mStatus = status;
+			super(response);
 			
-			super.setStatus(status);
+			mOutput = new StreamingOutputStream(this, renderer, name, encoding, bufferSize, options);
 		}
 		
-		public void sendError(int status, String msg)
+		public ServletOutputStream getOutputStream()
 		throws IOException
 		{
-			mStatus = status;
-			
-			super.sendError(status, msg);
+			return mOutput;
 		}
 		
-		public void sendError(int status)
+		public void setContentLength(int length)
+		{
+			setContentLength(String.valueOf(length));
+		}
+		
+		public void setContentLengthLong(long length)
+		{
+			setContentLength(String.valueOf(length));
+		}
+		
+		public void setHeader(String name, String value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name))
+			{
+				setContentLength(value);
+			}
+			else
+			{
+				super.setHeader(name, value);
+			}
+		}
+		
+		public void addHeader(String name, String value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name))
+			{
+				setContentLength(value);
+			}
+			else
+			{
+				super.addHeader(name, value);
+			}
+		}
+		
+		public void setIntHeader(String name, int value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name))
+			{
+				setContentLength(String.valueOf(value));
+			}
+			else
+			{
+				super.setIntHeader(name, value);
+			}
+		}
+		
+		public void addIntHeader(String name, int value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name))
+			{
+				setContentLength(String.valueOf(value));
+			}
+			else
+			{
+				super.addIntHeader(name, value);
+			}
+		}
+		
+		private void setContentLength(String length)
+		{
+			mContentLength = length;
+			if (mPassingThrough)
+			{
+				super.setHeader(CONTENT_LENGTH, length);
+			}
+		}
+		
+		/**
+		 * Lets the content length through, the body isn't highlighted.
+		 */
+		void passThrough()
+		{
+			mPassingThrough = true;
+			if (mContentLength != null)
+			{
+				super.setHeader(CONTENT_LENGTH, mContentLength);
+			}
+		}
+		
+		public void finish()
 		throws IOException
 		{
-			mStatus = status;
+			mOutput.close();
+		}
+	}
+	
+	/**
+	 * Highlights the source while it's being written, once the first bytes
+	 * arrive the status of the response decides whether they're highlighted
+	 * or sent unchanged.
+	 */
+	private static class StreamingOutputStream extends ServletOutputStream
+	{
+		private final StreamingResponseWrapper	mResponse;
+		private final XhtmlRenderer				mRenderer;
+		private final String					mName;
+		private final String					mEncoding;
+		private final int						mBufferSize;
+		private final RenderOptions				mOptions;
+		
+		private OutputStream	mTarget = null;
+		private boolean			mClosed = false;
+		
+		public StreamingOutputStream(StreamingResponseWrapper response, XhtmlRenderer renderer, String name, String encoding, int bufferSize, RenderOptions options)
+		{
+			mResponse = response;
+			mRenderer = renderer;
+			mName = name;
+			mEncoding = encoding;
+			mBufferSize = bufferSize;
+			mOptions = options;
+		}
+		
+		private OutputStream getTarget()
+		throws IOException
+		{
+			if (mClosed)
+			{
+				throw new IOException("The stream has been closed.");
+			}
 			
-			super.sendError(status);
+			if (null == mTarget)
+			{
+				OutputStream out = mResponse.getResponse().getOutputStream();
+				if (HttpServletResponse.SC_OK == mResponse.getStatus())
+				{
+					mResponse.setContentType("text/html");
+					
+					Charset charset = Charset.forName(mEncoding);
+					Writer highlighting_writer = mRenderer.createHighlightingWriter(mName, new BufferedWriter(new OutputStreamWriter(out, charset), mBufferSize), false, mBufferSize, mOptions);
+					mTarget = WriterOutputStream.builder()
+						.setWriter(highlighting_writer)
+						.setCharsetDecoder(charset.newDecoder()
+							.onMalformedInput(CodingErrorAction.REPLACE)
+							.onUnmappableCharacter(CodingErrorAction.REPLACE))
+						.setBufferSize(mBufferSize)
+						.get();
+				}
+				else
+				{
+					mResponse.passThrough();
+					mTarget = out;
+				}
+			}
+			
+			return mTarget;
 		}
 		
-		public int getStatus()
+		public void write(int b) throws IOException
+		{
+			getTarget().write(b);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			getTarget().write(b, off, len);
+		}
+		
+		public void flush() throws IOException
+		{
+			if (mTarget != null &&
+				!mClosed)
+			{
+				mTarget.flush();
+			}
+		}
+		
+		public void close() throws IOException
+		{
+			if (mClosed)
+			{
+				return;
+			}
+			
+			OutputStream target = getTarget();
+			mClosed = true;
+			target.close();
+		}
+		
+		public boolean isReady()
+		{
+			return true;
+		}
+		
+		public void setWriteListener(jakarta.servlet.WriteListener writeListener)
 		{
-			return mStatus;
 		}
 	}
 	
@@ -243,9 +692,19 @@ public final class HighlightFilter implements Filter
 			mOutput.write(b);
 		}
 
-		public byte[] toByteArray()
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			mOutput.write(b, off, len);
+		}
+
+		public InputStream toInputStream()
+		{
+			return mOutput.toInputStream();
+		}
+
+		public void writeTo(OutputStream out) throws IOException
 		{
-			return mOutput.toByteArray();
+			mOutput.writeTo(out);
 		}
 
 		public boolean isReady()
@@ -8,8 +8,17 @@
 package org.codelibs.jhighlight.tools;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
@@ -43,85 +52,290 @@ public abstract class FileUtils
 	 */
 	public static ArrayList getFileList(File file, Pattern[] included, Pattern[] excluded)
 	{
-		return getFileList(file, included, excluded, true);
+		final ArrayList filelist = new ArrayList();
+		if (null == file)
+		{
+			return filelist;
+		}
+		
+		visitFiles(file.toPath(), included, excluded, null, true, new Consumer<String>() {
+				public void accept(String fileName)
+				{
+					filelist.add(fileName);
+				}
+			});
+		
+		return filelist;
+	}
+	
+	/**
+	 * Traverses a directory hierarchy and provides the names of the files
+	 * that are accepted, relative to the directory, while the traversal
+	 * progresses.
+	 * <p>The directories whose relative names match one of the pruned
+	 * patterns aren't entered at all. Directories that can't be read are
+	 * skipped.
+	 * <p>When the files are ordered, they're provided by the calling thread
+	 * in the lexicographic order of their relative names, only the entries of
+	 * one directory at a time are sorted. Otherwise the subdirectories are
+	 * traversed in parallel and the consumer is called by several threads at
+	 * once.
+	 *
+	 * @param file the directory whose file hierarchy will be traversed; or a
+	 * single file whose name will be provided if it's accepted
+	 * @param included an array of regular expression patterns that will be
+	 * used to determine which files should be included; or
+	 * <p><code>null</code> if all files should be included
+	 * @param excluded an array of regular expression patterns that will be
+	 * used to determine which files should be excluded; or
+	 * <p><code>null</code> if no files should be excluded
+	 * @param pruned an array of regular expression patterns that will be
+	 * used to determine which directories shouldn't be traversed; or
+	 * <p><code>null</code> if all directories should be traversed
+	 * @param ordered <code>true</code> if the files should be provided in
+	 * order; or <code>false</code> if the traversal can be parallel
+	 * @param consumer receives the relative name of every accepted file
+	 * @since 2.0.1
+	 */
+	public static void visitFiles(Path file, Pattern[] included, Pattern[] excluded, Pattern[] pruned, boolean ordered, Consumer<String> consumer)
+	{
+		visitFiles(file, new NameFilter(included, excluded), null == pruned ? null : new NameFilter(pruned, null), ordered, consumer);
 	}
 	
-	private static ArrayList getFileList(File file, Pattern[] included, Pattern[] excluded, boolean root)
+	/**
+	 * Traverses a directory hierarchy with compiled filters and provides
+	 * the names of the files that are accepted, relative to the directory,
+	 * while the traversal progresses.
+	 *
+	 * @param file the directory whose file hierarchy will be traversed; or a
+	 * single file whose name will be provided if it's accepted
+	 * @param filter the filter of the relative file names; or
+	 * <p><code>null</code> if all files should be accepted
+	 * @param pruned the filter that accepts the relative names of the
+	 * directories that shouldn't be traversed; or
+	 * <p><code>null</code> if all directories should be traversed
+	 * @param ordered <code>true</code> if the files should be provided in
+	 * order; or <code>false</code> if the traversal can be parallel
+	 * @param consumer receives the relative name of every accepted file
+	 * @see #visitFiles(Path, Pattern[], Pattern[], Pattern[], boolean, Consumer)
+	 * @since 2.0.1
+	 */
+	public static void visitFiles(Path file, NameFilter filter, NameFilter pruned, boolean ordered, Consumer<String> consumer)
 	{
-		if (null == file)
+		if (null == file)		throw new IllegalArgumentException("file can't be null.");
+		if (null == consumer)	throw new IllegalArgumentException("consumer can't be null.");
+		
+		if (Files.isDirectory(file))
+		{
+			DirectoryVisit visit = new DirectoryVisit(file, "", new Traversal(filter, pruned, ordered, consumer));
+			if (ordered)
+			{
+				visit.compute();
+			}
+			else
+			{
+				ForkJoinPool.commonPool().invoke(visit);
+			}
+		}
+		else if (Files.isRegularFile(file))
+		{
+			String file_name = file.getFileName().toString();
+			if (null == filter || filter.accepts(file_name))
+			{
+				consumer.accept(file_name);
+			}
+		}
+	}
+	
+	/**
+	 * Traverses a directory hierarchy and obtains the sorted list of the
+	 * names of the files that are accepted, relative to the directory.
+	 *
+	 * @param file the directory whose file hierarchy will be traversed
+	 * @param included the patterns of the files that should be included; or
+	 * <p><code>null</code> if all files should be included
+	 * @param excluded the patterns of the files that should be excluded; or
+	 * <p><code>null</code> if no files should be excluded
+	 * @param pruned the patterns of the directories that shouldn't be
+	 * traversed; or
+	 * <p><code>null</code> if all directories should be traversed
+	 * @return the sorted list of relative file names
+	 * @see #visitFiles(Path, Pattern[], Pattern[], Pattern[], boolean, Consumer)
+	 * @since 2.0.1
+	 */
+	public static List<String> getFileList(Path file, Pattern[] included, Pattern[] excluded, Pattern[] pruned)
+	{
+		final List<String> filelist = Collections.synchronizedList(new ArrayList<String>());
+		visitFiles(file, included, excluded, pruned, false, new Consumer<String>() {
+				public void accept(String fileName)
+				{
+					filelist.add(fileName);
+				}
+			});
+		
+		ArrayList<String> sorted = new ArrayList<String>(filelist);
+		Collections.sort(sorted);
+		return sorted;
+	}
+	
+	private static final class Traversal
+	{
+		private final NameFilter		mFilter;
+		private final NameFilter		mPruned;
+		private final boolean			mOrdered;
+		private final Consumer<String>	mConsumer;
+		
+		Traversal(NameFilter filter, NameFilter pruned, boolean ordered, Consumer<String> consumer)
+		{
+			mFilter = filter;
+			mPruned = pruned;
+			mOrdered = ordered;
+			mConsumer = consumer;
+		}
+		
+		boolean isPruned(String directoryName)
+		{
+			return mPruned != null && mPruned.accepts(directoryName);
+		}
+		
+		boolean isAccepted(String fileName)
+		{
+			return null == mFilter || mFilter.accepts(fileName);
+		}
+	}
+	
+	private static final class DirectoryVisit extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Path		mDirectory;
+		private final String	mPrefix;
+		private final Traversal	mTraversal;
+		
+		DirectoryVisit(Path directory, String prefix, Traversal traversal)
 		{
-			return new ArrayList();
+			mDirectory = directory;
+			mPrefix = prefix;
+			mTraversal = traversal;
 		}
 		
-		ArrayList filelist = new ArrayList();
-		if (file.isDirectory())
+		protected void compute()
 		{
-			String[] list = file.list();
-			if (null != list)
+			List<Entry> entries = new ArrayList<Entry>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(mDirectory))
 			{
-				String list_entry;
-				for (int i = 0; i < list.length; i++)
+				BasicFileAttributes attributes;
+				for (Path path : stream)
 				{
-					list_entry = list[i];
-					
-					File next_file = new File(file.getAbsolutePath() + File.separator + list_entry);
-					ArrayList dir = getFileList(next_file, included, excluded, false);
+					try
+					{
+						attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					}
+					catch (IOException e)
+					{
+						// dangling links and entries that disappeared are ignored
+						continue;
+					}
 					
-					Iterator dir_it = dir.iterator();
-					String file_name;
-					while (dir_it.hasNext())
+					if (attributes.isDirectory())
 					{
-						file_name = (String)dir_it.next();
-						
-						if (root)
+						if (Files.isSymbolicLink(path) &&
+							isAncestor(path))
 						{
-							// if the file is not accepted, don't process it further
-							if (!StringUtils.filter(file_name, included, excluded))
-							{
-								continue;
-							}
-							
+							continue;
 						}
-						else
-						{
-							file_name = file.getName() + File.separator + file_name;
-						}
-						
-						int filelist_size = filelist.size();
-						for (int j = 0; j < filelist_size; j++)
-						{
-							if (((String)filelist.get(j)).compareTo(file_name) > 0)
-							{
-								filelist.add(j, file_name);
-								break;
-							}
-						}
-						if (filelist.size() == filelist_size)
+						entries.add(new Entry(path, true));
+					}
+					else if (attributes.isRegularFile())
+					{
+						entries.add(new Entry(path, false));
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				// directories that can't be read are skipped
+				return;
+			}
+			
+			if (mTraversal.mOrdered)
+			{
+				Collections.sort(entries);
+			}
+			
+			List<DirectoryVisit> subdirectories = null;
+			String relative_name;
+			for (Entry entry : entries)
+			{
+				relative_name = mPrefix + entry.mName;
+				if (entry.mDirectory)
+				{
+					if (mTraversal.isPruned(relative_name))
+					{
+						continue;
+					}
+					
+					DirectoryVisit visit = new DirectoryVisit(entry.mPath, relative_name + File.separator, mTraversal);
+					if (mTraversal.mOrdered)
+					{
+						visit.compute();
+					}
+					else
+					{
+						if (null == subdirectories)
 						{
-							filelist.add(file_name);
+							subdirectories = new ArrayList<DirectoryVisit>();
 						}
+						subdirectories.add(visit);
 					}
 				}
+				else if (mTraversal.isAccepted(relative_name))
+				{
+					mTraversal.mConsumer.accept(relative_name);
+				}
+			}
+			
+			if (subdirectories != null)
+			{
+				invokeAll(subdirectories);
 			}
 		}
-		else if (file.isFile())
+		
+		private boolean isAncestor(Path link)
 		{
-			String  file_name = file.getName();
-			
-			if (root)
+			try
 			{
-				if (StringUtils.filter(file_name, included, excluded))
-				{
-					filelist.add(file_name);
-				}
+				// a link to a directory that contains it would never end
+				return mDirectory.toRealPath().startsWith(link.toRealPath());
 			}
-			else
+			catch (IOException e)
 			{
-				filelist.add(file_name);
+				return true;
 			}
 		}
+	}
+	
+	private static final class Entry implements Comparable<Entry>
+	{
+		private final Path		mPath;
+		private final String	mName;
+		private final String	mKey;
+		private final boolean	mDirectory;
+		
+		Entry(Path path, boolean directory)
+		{
+			mPath = path;
+			mName = path.getFileName().toString();
+			// the relative names of the files in a directory all start with
+			// its name and a separator, sorting on that orders them globally
+			mKey = directory ? mName + File.separator : mName;
+			mDirectory = directory;
+		}
 		
-		return filelist;
+		public int compareTo(Entry other)
+		{
+			return mKey.compareTo(other.mKey);
+		}
 	}
 	
 	/** Returns the extension of the given file name.
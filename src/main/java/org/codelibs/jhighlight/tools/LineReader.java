@@ -0,0 +1,275 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Feeds source text to a highlighting lexer one line at a time, while only
+ * reading through the underlying <code>Reader</code> once.
+ * <p>Every line is terminated by a single <code>'\n'</code>, whatever the
+ * original line terminator was (<code>"\n"</code>, <code>"\r"</code> or
+ * <code>"\r\n"</code>), and a terminator is added to the last line if it
+ * doesn't have one. Tabs are expanded to spaces according to the tab width.
+ * <p>Reading stops at the end of the current line, the reader then behaves as
+ * if it reached the end of its input until {@link #nextLine()} is called.
+ * This allows a single lexer instance to scan the complete source without
+ * ever matching a token across a line boundary, while the characters of the
+ * current line stay available through {@link #getLineBuffer()}.
+ *
+ * @since 2.0.1
+ */
+public class LineReader extends Reader
+{
+	private static final int INPUT_BUFFER_SIZE = 8192;
+	private static final int LINE_BUFFER_SIZE = 256;
+	private static final int MAX_RETAINED_LINE_BUFFER_SIZE = 65536;
+
+	private Reader			mInput;
+	private final int		mTabWidth;
+
+	private final char[]	mInputBuffer = new char[INPUT_BUFFER_SIZE];
+	private int				mInputPosition = 0;
+	private int				mInputLength = 0;
+	private boolean			mInputEnded = false;
+	private boolean			mSkipLinefeed = false;
+
+	private char[]			mLine = new char[LINE_BUFFER_SIZE];
+	private int				mLineLength = 0;
+	private int				mLinePosition = 0;
+
+	/**
+	 * Creates a new <code>LineReader</code>.
+	 *
+	 * @param input the reader that provides the source text
+	 * @param tabWidth the number of columns between tab stops
+	 */
+	public LineReader(Reader input, int tabWidth)
+	{
+		if (null == input)	throw new IllegalArgumentException("input can't be null.");
+		if (tabWidth < 1)	throw new IllegalArgumentException("tabWidth should be at least 1.");
+
+		mInput = input;
+		mTabWidth = tabWidth;
+	}
+
+	/**
+	 * Resets this reader so that it can be reused for another source text.
+	 * <p>The buffers of this reader are kept, the previous reader isn't
+	 * closed.
+	 *
+	 * @param input the reader that provides the new source text
+	 */
+	public void reset(Reader input)
+	{
+		if (null == input)	throw new IllegalArgumentException("input can't be null.");
+
+		mInput = input;
+		mInputPosition = 0;
+		mInputLength = 0;
+		mInputEnded = false;
+		mSkipLinefeed = false;
+		mLineLength = 0;
+		mLinePosition = 0;
+		if (mLine.length > MAX_RETAINED_LINE_BUFFER_SIZE)
+		{
+			mLine = new char[LINE_BUFFER_SIZE];
+		}
+	}
+
+	/**
+	 * Advances to the next line of the source text, discarding whatever is
+	 * left of the current one.
+	 *
+	 * @return <code>true</code> if a new line is available; or
+	 * <p><code>false</code> if the end of the source text has been reached
+	 * @exception IOException when an error occurred while reading the
+	 * underlying reader
+	 */
+	public boolean nextLine()
+	throws IOException
+	{
+		mLineLength = 0;
+		mLinePosition = 0;
+
+		boolean has_content = false;
+		char c;
+		while (true)
+		{
+			if (mInputPosition == mInputLength)
+			{
+				if (!fill())
+				{
+					if (!has_content)
+					{
+						return false;
+					}
+					break;
+				}
+			}
+
+			c = mInputBuffer[mInputPosition++];
+			if (mSkipLinefeed)
+			{
+				mSkipLinefeed = false;
+				if ('\n' == c)
+				{
+					continue;
+				}
+			}
+
+			has_content = true;
+			if ('\n' == c)
+			{
+				break;
+			}
+			if ('\r' == c)
+			{
+				mSkipLinefeed = true;
+				break;
+			}
+
+			if ('\t' == c)
+			{
+				int tab_size = mTabWidth - (mLineLength % mTabWidth);
+				ensureLineCapacity(mLineLength + tab_size);
+				while (tab_size-- > 0)
+				{
+					mLine[mLineLength++] = ' ';
+				}
+			}
+			else
+			{
+				ensureLineCapacity(mLineLength + 1);
+				mLine[mLineLength++] = c;
+			}
+		}
+
+		ensureLineCapacity(mLineLength + 1);
+		mLine[mLineLength++] = '\n';
+
+		return true;
+	}
+
+	/**
+	 * Returns the buffer that contains the characters of the current line.
+	 * <p>The buffer is reused for the following lines, only the first
+	 * {@link #getLineLength()} characters are valid.
+	 *
+	 * @return the buffer of the current line
+	 */
+	public char[] getLineBuffer()
+	{
+		return mLine;
+	}
+
+	/**
+	 * Returns the number of characters of the current line, including its
+	 * terminating <code>'\n'</code>.
+	 *
+	 * @return the length of the current line
+	 */
+	public int getLineLength()
+	{
+		return mLineLength;
+	}
+
+	/**
+	 * Returns where the line that starts at a position of a text ends, with
+	 * the same line terminators as a <code>LineReader</code>.
+	 *
+	 * @param text the text
+	 * @param start the index of the first character of the line
+	 * @return the index right after the terminator of the line; or the
+	 * length of the text if the line isn't terminated
+	 */
+	public static int getLineEnd(CharSequence text, int start)
+	{
+		int length = text.length();
+		char c;
+		for (int i = start; i < length; i++)
+		{
+			c = text.charAt(i);
+			if ('\n' == c)
+			{
+				return i + 1;
+			}
+			if ('\r' == c)
+			{
+				return i + 1 < length && '\n' == text.charAt(i + 1) ? i + 2 : i + 1;
+			}
+		}
+
+		return length;
+	}
+
+	public int read(char[] buffer, int offset, int length)
+	{
+		if (0 == length)
+		{
+			return 0;
+		}
+
+		int available = mLineLength - mLinePosition;
+		if (available <= 0)
+		{
+			return -1;
+		}
+
+		if (length > available)
+		{
+			length = available;
+		}
+		System.arraycopy(mLine, mLinePosition, buffer, offset, length);
+		mLinePosition += length;
+
+		return length;
+	}
+
+	public void close()
+	throws IOException
+	{
+		mInput.close();
+	}
+
+	private boolean fill()
+	throws IOException
+	{
+		if (mInputEnded)
+		{
+			return false;
+		}
+
+		int count;
+		do
+		{
+			count = mInput.read(mInputBuffer, 0, mInputBuffer.length);
+		}
+		while (0 == count);
+
+		if (count < 0)
+		{
+			mInputEnded = true;
+			return false;
+		}
+
+		mInputPosition = 0;
+		mInputLength = count;
+
+		return true;
+	}
+
+	private void ensureLineCapacity(int capacity)
+	{
+		if (capacity > mLine.length)
+		{
+			char[] line = new char[Math.max(capacity, mLine.length * 2)];
+			System.arraycopy(mLine, 0, line, 0, mLineLength);
+			mLine = line;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the characters of a file through memory-mapped windows of its
+ * bytes.
+ * <p>The file isn't read through system calls: the bytes are copied in bulk
+ * from the mapped window to a small reusable buffer and decoded from there
+ * straight into the buffer of the caller, which is wrapped in a
+ * <code>CharBuffer</code>. The charset decoders are much faster on arrays
+ * than on mapped memory. The heap that's used doesn't depend on the size
+ * of the file.
+ * <p>Malformed and unmappable input is replaced, exactly as an
+ * <code>InputStreamReader</code> of the same charset does.
+ * <p>The mapped windows are released by the garbage collector, some time
+ * after the reader is done with them.
+ *
+ * @since 2.0.1
+ */
+public class MappedFileReader extends Reader
+{
+	/** The default number of bytes of a mapped window. */
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 24;
+
+	private static final int BYTE_BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel		mChannel;
+	private final long				mLength;
+	private final int				mWindowSize;
+	private final CharsetDecoder	mDecoder;
+
+	private final ByteBuffer	mBytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+	private MappedByteBuffer	mWindow;
+	private long				mMapped = 0;
+	private boolean				mInputEnded = false;
+	private boolean				mDecoded = false;
+	private boolean				mEnded = false;
+	private final CharBuffer	mPending = CharBuffer.allocate(2);
+
+	/**
+	 * Creates a new <code>MappedFileReader</code> with windows of the
+	 * default size.
+	 *
+	 * @param file the file that's read
+	 * @param charset the charset of the file
+	 * @exception IOException when the file couldn't be opened
+	 */
+	public MappedFileReader(Path file, Charset charset)
+	throws IOException
+	{
+		this(file, charset, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Creates a new <code>MappedFileReader</code>.
+	 *
+	 * @param file the file that's read
+	 * @param charset the charset of the file
+	 * @param windowSize the number of bytes of a mapped window
+	 * @exception IOException when the file couldn't be opened
+	 */
+	public MappedFileReader(Path file, Charset charset, int windowSize)
+	throws IOException
+	{
+		if (null == file)		throw new IllegalArgumentException("file can't be null.");
+		if (null == charset)	throw new IllegalArgumentException("charset can't be null.");
+		if (windowSize < 1)		throw new IllegalArgumentException("windowSize should be at least 1.");
+
+		mChannel = FileChannel.open(file, StandardOpenOption.READ);
+		mLength = mChannel.size();
+		mWindowSize = windowSize;
+		mDecoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		mBytes.flip();
+		mPending.flip();
+	}
+
+	public int read(char[] buffer, int offset, int length)
+	throws IOException
+	{
+		if (0 == length)
+		{
+			return 0;
+		}
+
+		// a surrogate pair that didn't fit in the previous buffer
+		if (mPending.hasRemaining())
+		{
+			int count = Math.min(length, mPending.remaining());
+			mPending.get(buffer, offset, count);
+			return count;
+		}
+
+		CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+		decode(out);
+		if (out.position() == offset &&
+			!mEnded)
+		{
+			// the next character needs more room than the caller provides
+			mPending.clear();
+			decode(mPending);
+			mPending.flip();
+			return read(buffer, offset, length);
+		}
+
+		if (out.position() == offset)
+		{
+			return -1;
+		}
+
+		return out.position() - offset;
+	}
+
+	public void close()
+	throws IOException
+	{
+		mWindow = null;
+		mChannel.close();
+	}
+
+	/**
+	 * Decodes characters until the buffer is full or all the bytes of the
+	 * file have been decoded.
+	 */
+	private void decode(CharBuffer out)
+	throws IOException
+	{
+		while (!mEnded)
+		{
+			if (mDecoded)
+			{
+				if (mDecoder.flush(out).isOverflow())
+				{
+					return;
+				}
+				mEnded = true;
+				return;
+			}
+
+			if (mDecoder.decode(mBytes, out, mInputEnded).isOverflow())
+			{
+				return;
+			}
+
+			if (mInputEnded)
+			{
+				mDecoded = true;
+			}
+			else
+			{
+				mInputEnded = !fill();
+			}
+		}
+	}
+
+	/**
+	 * Appends the next bytes of the mapped windows to the bytes that are
+	 * left to decode, for instance the start of a character.
+	 *
+	 * @return <code>true</code> if the file has more bytes; or
+	 * <code>false</code> otherwise
+	 */
+	private boolean fill()
+	throws IOException
+	{
+		mBytes.compact();
+		int count;
+		while (mBytes.hasRemaining())
+		{
+			if (null == mWindow ||
+				!mWindow.hasRemaining())
+			{
+				if (mMapped == mLength)
+				{
+					break;
+				}
+
+				long size = Math.min(mWindowSize, mLength - mMapped);
+				mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, mMapped, size);
+				mMapped += size;
+			}
+
+			count = Math.min(mBytes.remaining(), mWindow.remaining());
+			mWindow.get(mBytes.array(), mBytes.position(), count);
+			mBytes.position(mBytes.position() + count);
+		}
+		mBytes.flip();
+
+		return mMapped < mLength ||
+			(mWindow != null && mWindow.hasRemaining());
+	}
+}
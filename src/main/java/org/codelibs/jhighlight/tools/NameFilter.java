@@ -0,0 +1,232 @@
+/*
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package org.codelibs.jhighlight.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a series of including and excluding regular expressions,
+ * it accepts exactly the names that {@link StringUtils#filter(String,
+ * Pattern[], Pattern[])} accepts.
+ * <p>Patterns that only check the extension of a name, like
+ * <code>.*\.java$</code>, are turned into a lookup of the extension in a
+ * hash set. The other patterns are combined into a single alternation. The
+ * cost of filtering a name thus barely grows with the number of extensions.
+ * <p>Instances are immutable and can be shared by threads.
+ *
+ * @since 2.0.1
+ */
+public final class NameFilter
+{
+	private static final Pattern EXTENSION_PATTERN = Pattern.compile("\\.\\*\\\\\\.([A-Za-z0-9_]+)\\$?");
+	private static final Pattern LINE_TERMINATOR = Pattern.compile("[\\n\\r\\u0085\\u2028\\u2029]");
+
+	private final Patterns	mIncluded;
+	private final Patterns	mExcluded;
+
+	/**
+	 * Creates a new <code>NameFilter</code>.
+	 *
+	 * @param included the regular expressions of which at least one needs to
+	 * match; or <code>null</code> if all names are included
+	 * @param excluded the regular expressions of which none may match; or
+	 * <code>null</code> if no names are excluded
+	 */
+	public NameFilter(Pattern[] included, Pattern[] excluded)
+	{
+		mIncluded = null == included ? null : new Patterns(included);
+		mExcluded = null == excluded ? null : new Patterns(excluded);
+	}
+
+	/**
+	 * Checks if a name filters through the including and excluding regular
+	 * expressions.
+	 *
+	 * @param name the name that will be filtered
+	 * @return <code>true</code> if the name filtered through correctly; or
+	 * <p><code>false</code> otherwise
+	 */
+	public boolean accepts(String name)
+	{
+		if (null == name)
+		{
+			return false;
+		}
+
+		if (mIncluded != null &&
+			!mIncluded.matches(name))
+		{
+			return false;
+		}
+
+		return null == mExcluded || !mExcluded.matches(name);
+	}
+
+	/**
+	 * Patterns of which at least one needs to match.
+	 */
+	private static final class Patterns
+	{
+		private final Set<String>	mExtensions = new HashSet<String>();
+		private final Pattern		mCombined;
+		private final Pattern[]		mSeparate;
+		private final Pattern		mAll;
+
+		Patterns(Pattern[] patterns)
+		{
+			List<Pattern> combinable = new ArrayList<Pattern>();
+			List<Pattern> separate = new ArrayList<Pattern>();
+			List<Pattern> all = new ArrayList<Pattern>();
+			Pattern pattern;
+			Matcher extension;
+			for (int i = 0; i < patterns.length; i++)
+			{
+				pattern = patterns[i];
+				if (null == pattern)
+				{
+					continue;
+				}
+
+				extension = EXTENSION_PATTERN.matcher(pattern.pattern());
+				if (0 == pattern.flags() &&
+					extension.matches())
+				{
+					mExtensions.add(extension.group(1));
+					all.add(pattern);
+				}
+				else if (isCombinable(pattern))
+				{
+					combinable.add(pattern);
+					all.add(pattern);
+				}
+				else
+				{
+					separate.add(pattern);
+				}
+			}
+
+			mCombined = combine(combinable);
+			mSeparate = separate.toArray(new Pattern[separate.size()]);
+			mAll = combine(all);
+		}
+
+		boolean matches(String name)
+		{
+			if (LINE_TERMINATOR.matcher(name).find())
+			{
+				// the dots of the regular expressions don't match line
+				// terminators, which the extension lookup can't reproduce
+				if (mAll != null &&
+					mAll.matcher(name).matches())
+				{
+					return true;
+				}
+			}
+			else
+			{
+				if (!mExtensions.isEmpty())
+				{
+					int index = name.lastIndexOf('.');
+					if (index >= 0 &&
+						mExtensions.contains(name.substring(index + 1)))
+					{
+						return true;
+					}
+				}
+
+				if (mCombined != null &&
+					mCombined.matcher(name).matches())
+				{
+					return true;
+				}
+			}
+
+			for (int i = 0; i < mSeparate.length; i++)
+			{
+				if (mSeparate[i].matcher(name).matches())
+				{
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Patterns with flags, back references, named groups or quotes change
+		 * meaning or don't compile once they're part of an alternation.
+		 */
+		private static boolean isCombinable(Pattern pattern)
+		{
+			if (pattern.flags() != 0)
+			{
+				return false;
+			}
+
+			String expression = pattern.pattern();
+			int length = expression.length();
+			char c;
+			for (int i = 0; i < length; i++)
+			{
+				c = expression.charAt(i);
+				if ('\\' == c &&
+					i + 1 < length)
+				{
+					c = expression.charAt(++i);
+					if ((c >= '1' && c <= '9') ||
+						'k' == c ||
+						'Q' == c)
+					{
+						return false;
+					}
+				}
+				else if ('(' == c &&
+						 i + 2 < length &&
+						 '?' == expression.charAt(i + 1))
+				{
+					c = expression.charAt(i + 2);
+					if (Character.isLetter(c) ||
+						'-' == c ||
+						('<' == c && !expression.startsWith("?<=", i + 1) && !expression.startsWith("?<!", i + 1)))
+					{
+						return false;
+					}
+				}
+			}
+
+			return true;
+		}
+
+		private static Pattern combine(List<Pattern> patterns)
+		{
+			if (patterns.isEmpty())
+			{
+				return null;
+			}
+			if (1 == patterns.size())
+			{
+				return patterns.get(0);
+			}
+
+			StringBuilder alternation = new StringBuilder();
+			for (Pattern pattern : patterns)
+			{
+				if (alternation.length() > 0)
+				{
+					alternation.append('|');
+				}
+				alternation.append("(?:").append(pattern.pattern()).append(')');
+			}
+
+			return Pattern.compile(alternation.toString());
+		}
+	}
+}
@@ -7,12 +7,14 @@
  */
 package org.codelibs.jhighlight.tools;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.regex.Pattern;
 
-import org.codelibs.jhighlight.fastutil.chars.Char2ObjectOpenHashMap;
-
 /**
  * General purpose class containing common <code>String</code> manipulation
  * methods.
@@ -23,271 +25,284 @@ import org.codelibs.jhighlight.fastutil.chars.Char2ObjectOpenHashMap;
  */
 public abstract class StringUtils
 {
-    private static final Char2ObjectOpenHashMap<String> mHtmlEncodeMap = new Char2ObjectOpenHashMap<String>();
+	/**
+	 * The entities of the characters that have to be encoded in Html, indexed
+	 * by character. The table ends after the highest character that has an
+	 * entity, characters beyond it are never encoded.
+	 */
+	private static final String[] mHtmlEntities;
 	
 	static
 	{
 		// Html encoding mapping according to the HTML 4.0 spec
 		// http://www.w3.org/TR/REC-html40/sgml/entities.html
+		String[] entities = new String[0x10000];
 		
 		// Special characters for HTML
-		mHtmlEncodeMap.put('\u0026', "&amp;");
-		mHtmlEncodeMap.put('\u003C', "&lt;");
-		mHtmlEncodeMap.put('\u003E', "&gt;");
-		mHtmlEncodeMap.put('\u0022', "&quot;");
+		entities['\u0026'] = "&amp;";
+		entities['\u003C'] = "&lt;";
+		entities['\u003E'] = "&gt;";
+		entities['\u0022'] = "&quot;";
 		
-		mHtmlEncodeMap.put('\u0152', "&OElig;");
-		mHtmlEncodeMap.put('\u0153', "&oelig;");
-		mHtmlEncodeMap.put('\u0160', "&Scaron;");
-		mHtmlEncodeMap.put('\u0161', "&scaron;");
-		mHtmlEncodeMap.put('\u0178', "&Yuml;");
-		mHtmlEncodeMap.put('\u02C6', "&circ;");
-		mHtmlEncodeMap.put('\u02DC', "&tilde;");
-		mHtmlEncodeMap.put('\u2002', "&ensp;");
-		mHtmlEncodeMap.put('\u2003', "&emsp;");
-		mHtmlEncodeMap.put('\u2009', "&thinsp;");
-		mHtmlEncodeMap.put('\u200C', "&zwnj;");
-		mHtmlEncodeMap.put('\u200D', "&zwj;");
-		mHtmlEncodeMap.put('\u200E', "&lrm;");
-		mHtmlEncodeMap.put('\u200F', "&rlm;");
-		mHtmlEncodeMap.put('\u2013', "&ndash;");
-		mHtmlEncodeMap.put('\u2014', "&mdash;");
-		mHtmlEncodeMap.put('\u2018', "&lsquo;");
-		mHtmlEncodeMap.put('\u2019', "&rsquo;");
-		mHtmlEncodeMap.put('\u201A', "&sbquo;");
-		mHtmlEncodeMap.put('\u201C', "&ldquo;");
-		mHtmlEncodeMap.put('\u201D', "&rdquo;");
-		mHtmlEncodeMap.put('\u201E', "&bdquo;");
-		mHtmlEncodeMap.put('\u2020', "&dagger;");
-		mHtmlEncodeMap.put('\u2021', "&Dagger;");
-		mHtmlEncodeMap.put('\u2030', "&permil;");
-		mHtmlEncodeMap.put('\u2039', "&lsaquo;");
-		mHtmlEncodeMap.put('\u203A', "&rsaquo;");
-		mHtmlEncodeMap.put('\u20AC', "&euro;");
+		entities['\u0152'] = "&OElig;";
+		entities['\u0153'] = "&oelig;";
+		entities['\u0160'] = "&Scaron;";
+		entities['\u0161'] = "&scaron;";
+		entities['\u0178'] = "&Yuml;";
+		entities['\u02C6'] = "&circ;";
+		entities['\u02DC'] = "&tilde;";
+		entities['\u2002'] = "&ensp;";
+		entities['\u2003'] = "&emsp;";
+		entities['\u2009'] = "&thinsp;";
+		entities['\u200C'] = "&zwnj;";
+		entities['\u200D'] = "&zwj;";
+		entities['\u200E'] = "&lrm;";
+		entities['\u200F'] = "&rlm;";
+		entities['\u2013'] = "&ndash;";
+		entities['\u2014'] = "&mdash;";
+		entities['\u2018'] = "&lsquo;";
+		entities['\u2019'] = "&rsquo;";
+		entities['\u201A'] = "&sbquo;";
+		entities['\u201C'] = "&ldquo;";
+		entities['\u201D'] = "&rdquo;";
+		entities['\u201E'] = "&bdquo;";
+		entities['\u2020'] = "&dagger;";
+		entities['\u2021'] = "&Dagger;";
+		entities['\u2030'] = "&permil;";
+		entities['\u2039'] = "&lsaquo;";
+		entities['\u203A'] = "&rsaquo;";
+		entities['\u20AC'] = "&euro;";
 		
 		// Character entity references for ISO 8859-1 characters
-		mHtmlEncodeMap.put('\u00A0', "&nbsp;");
-		mHtmlEncodeMap.put('\u00A1', "&iexcl;");
-		mHtmlEncodeMap.put('\u00A2', "&cent;");
-		mHtmlEncodeMap.put('\u00A3', "&pound;");
-		mHtmlEncodeMap.put('\u00A4', "&curren;");
-		mHtmlEncodeMap.put('\u00A5', "&yen;");
-		mHtmlEncodeMap.put('\u00A6', "&brvbar;");
-		mHtmlEncodeMap.put('\u00A7', "&sect;");
-		mHtmlEncodeMap.put('\u00A8', "&uml;");
-		mHtmlEncodeMap.put('\u00A9', "&copy;");
-		mHtmlEncodeMap.put('\u00AA', "&ordf;");
-		mHtmlEncodeMap.put('\u00AB', "&laquo;");
-		mHtmlEncodeMap.put('\u00AC', "&not;");
-		mHtmlEncodeMap.put('\u00AD', "&shy;");
-		mHtmlEncodeMap.put('\u00AE', "&reg;");
-		mHtmlEncodeMap.put('\u00AF', "&macr;");
-		mHtmlEncodeMap.put('\u00B0', "&deg;");
-		mHtmlEncodeMap.put('\u00B1', "&plusmn;");
-		mHtmlEncodeMap.put('\u00B2', "&sup2;");
-		mHtmlEncodeMap.put('\u00B3', "&sup3;");
-		mHtmlEncodeMap.put('\u00B4', "&acute;");
-		mHtmlEncodeMap.put('\u00B5', "&micro;");
-		mHtmlEncodeMap.put('\u00B6', "&para;");
-		mHtmlEncodeMap.put('\u00B7', "&middot;");
-		mHtmlEncodeMap.put('\u00B8', "&cedil;");
-		mHtmlEncodeMap.put('\u00B9', "&sup1;");
-		mHtmlEncodeMap.put('\u00BA', "&ordm;");
-		mHtmlEncodeMap.put('\u00BB', "&raquo;");
-		mHtmlEncodeMap.put('\u00BC', "&frac14;");
-		mHtmlEncodeMap.put('\u00BD', "&frac12;");
-		mHtmlEncodeMap.put('\u00BE', "&frac34;");
-		mHtmlEncodeMap.put('\u00BF', "&iquest;");
-		mHtmlEncodeMap.put('\u00C0', "&Agrave;");
-		mHtmlEncodeMap.put('\u00C1', "&Aacute;");
-		mHtmlEncodeMap.put('\u00C2', "&Acirc;");
-		mHtmlEncodeMap.put('\u00C3', "&Atilde;");
-		mHtmlEncodeMap.put('\u00C4', "&Auml;");
-		mHtmlEncodeMap.put('\u00C5', "&Aring;");
-		mHtmlEncodeMap.put('\u00C6', "&AElig;");
-		mHtmlEncodeMap.put('\u00C7', "&Ccedil;");
-		mHtmlEncodeMap.put('\u00C8', "&Egrave;");
-		mHtmlEncodeMap.put('\u00C9', "&Eacute;");
-		mHtmlEncodeMap.put('\u00CA', "&Ecirc;");
-		mHtmlEncodeMap.put('\u00CB', "&Euml;");
-		mHtmlEncodeMap.put('\u00CC', "&Igrave;");
-		mHtmlEncodeMap.put('\u00CD', "&Iacute;");
-		mHtmlEncodeMap.put('\u00CE', "&Icirc;");
-		mHtmlEncodeMap.put('\u00CF', "&Iuml;");
-		mHtmlEncodeMap.put('\u00D0', "&ETH;");
-		mHtmlEncodeMap.put('\u00D1', "&Ntilde;");
-		mHtmlEncodeMap.put('\u00D2', "&Ograve;");
-		mHtmlEncodeMap.put('\u00D3', "&Oacute;");
-		mHtmlEncodeMap.put('\u00D4', "&Ocirc;");
-		mHtmlEncodeMap.put('\u00D5', "&Otilde;");
-		mHtmlEncodeMap.put('\u00D6', "&Ouml;");
-		mHtmlEncodeMap.put('\u00D7', "&times;");
-		mHtmlEncodeMap.put('\u00D8', "&Oslash;");
-		mHtmlEncodeMap.put('\u00D9', "&Ugrave;");
-		mHtmlEncodeMap.put('\u00DA', "&Uacute;");
-		mHtmlEncodeMap.put('\u00DB', "&Ucirc;");
-		mHtmlEncodeMap.put('\u00DC', "&Uuml;");
-		mHtmlEncodeMap.put('\u00DD', "&Yacute;");
-		mHtmlEncodeMap.put('\u00DE', "&THORN;");
-		mHtmlEncodeMap.put('\u00DF', "&szlig;");
-		mHtmlEncodeMap.put('\u00E0', "&agrave;");
-		mHtmlEncodeMap.put('\u00E1', "&aacute;");
-		mHtmlEncodeMap.put('\u00E2', "&acirc;");
-		mHtmlEncodeMap.put('\u00E3', "&atilde;");
-		mHtmlEncodeMap.put('\u00E4', "&auml;");
-		mHtmlEncodeMap.put('\u00E5', "&aring;");
-		mHtmlEncodeMap.put('\u00E6', "&aelig;");
-		mHtmlEncodeMap.put('\u00E7', "&ccedil;");
-		mHtmlEncodeMap.put('\u00E8', "&egrave;");
-		mHtmlEncodeMap.put('\u00E9', "&eacute;");
-		mHtmlEncodeMap.put('\u00EA', "&ecirc;");
-		mHtmlEncodeMap.put('\u00EB', "&euml;");
-		mHtmlEncodeMap.put('\u00EC', "&igrave;");
-		mHtmlEncodeMap.put('\u00ED', "&iacute;");
-		mHtmlEncodeMap.put('\u00EE', "&icirc;");
-		mHtmlEncodeMap.put('\u00EF', "&iuml;");
-		mHtmlEncodeMap.put('\u00F0', "&eth;");
-		mHtmlEncodeMap.put('\u00F1', "&ntilde;");
-		mHtmlEncodeMap.put('\u00F2', "&ograve;");
-		mHtmlEncodeMap.put('\u00F3', "&oacute;");
-		mHtmlEncodeMap.put('\u00F4', "&ocirc;");
-		mHtmlEncodeMap.put('\u00F5', "&otilde;");
-		mHtmlEncodeMap.put('\u00F6', "&ouml;");
-		mHtmlEncodeMap.put('\u00F7', "&divide;");
-		mHtmlEncodeMap.put('\u00F8', "&oslash;");
-		mHtmlEncodeMap.put('\u00F9', "&ugrave;");
-		mHtmlEncodeMap.put('\u00FA', "&uacute;");
-		mHtmlEncodeMap.put('\u00FB', "&ucirc;");
-		mHtmlEncodeMap.put('\u00FC', "&uuml;");
-		mHtmlEncodeMap.put('\u00FD', "&yacute;");
-		mHtmlEncodeMap.put('\u00FE', "&thorn;");
-		mHtmlEncodeMap.put('\u00FF', "&yuml;");
+		entities['\u00A0'] = "&nbsp;";
+		entities['\u00A1'] = "&iexcl;";
+		entities['\u00A2'] = "&cent;";
+		entities['\u00A3'] = "&pound;";
+		entities['\u00A4'] = "&curren;";
+		entities['\u00A5'] = "&yen;";
+		entities['\u00A6'] = "&brvbar;";
+		entities['\u00A7'] = "&sect;";
+		entities['\u00A8'] = "&uml;";
+		entities['\u00A9'] = "&copy;";
+		entities['\u00AA'] = "&ordf;";
+		entities['\u00AB'] = "&laquo;";
+		entities['\u00AC'] = "&not;";
+		entities['\u00AD'] = "&shy;";
+		entities['\u00AE'] = "&reg;";
+		entities['\u00AF'] = "&macr;";
+		entities['\u00B0'] = "&deg;";
+		entities['\u00B1'] = "&plusmn;";
+		entities['\u00B2'] = "&sup2;";
+		entities['\u00B3'] = "&sup3;";
+		entities['\u00B4'] = "&acute;";
+		entities['\u00B5'] = "&micro;";
+		entities['\u00B6'] = "&para;";
+		entities['\u00B7'] = "&middot;";
+		entities['\u00B8'] = "&cedil;";
+		entities['\u00B9'] = "&sup1;";
+		entities['\u00BA'] = "&ordm;";
+		entities['\u00BB'] = "&raquo;";
+		entities['\u00BC'] = "&frac14;";
+		entities['\u00BD'] = "&frac12;";
+		entities['\u00BE'] = "&frac34;";
+		entities['\u00BF'] = "&iquest;";
+		entities['\u00C0'] = "&Agrave;";
+		entities['\u00C1'] = "&Aacute;";
+		entities['\u00C2'] = "&Acirc;";
+		entities['\u00C3'] = "&Atilde;";
+		entities['\u00C4'] = "&Auml;";
+		entities['\u00C5'] = "&Aring;";
+		entities['\u00C6'] = "&AElig;";
+		entities['\u00C7'] = "&Ccedil;";
+		entities['\u00C8'] = "&Egrave;";
+		entities['\u00C9'] = "&Eacute;";
+		entities['\u00CA'] = "&Ecirc;";
+		entities['\u00CB'] = "&Euml;";
+		entities['\u00CC'] = "&Igrave;";
+		entities['\u00CD'] = "&Iacute;";
+		entities['\u00CE'] = "&Icirc;";
+		entities['\u00CF'] = "&Iuml;";
+		entities['\u00D0'] = "&ETH;";
+		entities['\u00D1'] = "&Ntilde;";
+		entities['\u00D2'] = "&Ograve;";
+		entities['\u00D3'] = "&Oacute;";
+		entities['\u00D4'] = "&Ocirc;";
+		entities['\u00D5'] = "&Otilde;";
+		entities['\u00D6'] = "&Ouml;";
+		entities['\u00D7'] = "&times;";
+		entities['\u00D8'] = "&Oslash;";
+		entities['\u00D9'] = "&Ugrave;";
+		entities['\u00DA'] = "&Uacute;";
+		entities['\u00DB'] = "&Ucirc;";
+		entities['\u00DC'] = "&Uuml;";
+		entities['\u00DD'] = "&Yacute;";
+		entities['\u00DE'] = "&THORN;";
+		entities['\u00DF'] = "&szlig;";
+		entities['\u00E0'] = "&agrave;";
+		entities['\u00E1'] = "&aacute;";
+		entities['\u00E2'] = "&acirc;";
+		entities['\u00E3'] = "&atilde;";
+		entities['\u00E4'] = "&auml;";
+		entities['\u00E5'] = "&aring;";
+		entities['\u00E6'] = "&aelig;";
+		entities['\u00E7'] = "&ccedil;";
+		entities['\u00E8'] = "&egrave;";
+		entities['\u00E9'] = "&eacute;";
+		entities['\u00EA'] = "&ecirc;";
+		entities['\u00EB'] = "&euml;";
+		entities['\u00EC'] = "&igrave;";
+		entities['\u00ED'] = "&iacute;";
+		entities['\u00EE'] = "&icirc;";
+		entities['\u00EF'] = "&iuml;";
+		entities['\u00F0'] = "&eth;";
+		entities['\u00F1'] = "&ntilde;";
+		entities['\u00F2'] = "&ograve;";
+		entities['\u00F3'] = "&oacute;";
+		entities['\u00F4'] = "&ocirc;";
+		entities['\u00F5'] = "&otilde;";
+		entities['\u00F6'] = "&ouml;";
+		entities['\u00F7'] = "&divide;";
+		entities['\u00F8'] = "&oslash;";
+		entities['\u00F9'] = "&ugrave;";
+		entities['\u00FA'] = "&uacute;";
+		entities['\u00FB'] = "&ucirc;";
+		entities['\u00FC'] = "&uuml;";
+		entities['\u00FD'] = "&yacute;";
+		entities['\u00FE'] = "&thorn;";
+		entities['\u00FF'] = "&yuml;";
 		
 		// Mathematical, Greek and Symbolic characters for HTML
-		mHtmlEncodeMap.put('\u0192', "&fnof;");
-		mHtmlEncodeMap.put('\u0391', "&Alpha;");
-		mHtmlEncodeMap.put('\u0392', "&Beta;");
-		mHtmlEncodeMap.put('\u0393', "&Gamma;");
-		mHtmlEncodeMap.put('\u0394', "&Delta;");
-		mHtmlEncodeMap.put('\u0395', "&Epsilon;");
-		mHtmlEncodeMap.put('\u0396', "&Zeta;");
-		mHtmlEncodeMap.put('\u0397', "&Eta;");
-		mHtmlEncodeMap.put('\u0398', "&Theta;");
-		mHtmlEncodeMap.put('\u0399', "&Iota;");
-		mHtmlEncodeMap.put('\u039A', "&Kappa;");
-		mHtmlEncodeMap.put('\u039B', "&Lambda;");
-		mHtmlEncodeMap.put('\u039C', "&Mu;");
-		mHtmlEncodeMap.put('\u039D', "&Nu;");
-		mHtmlEncodeMap.put('\u039E', "&Xi;");
-		mHtmlEncodeMap.put('\u039F', "&Omicron;");
-		mHtmlEncodeMap.put('\u03A0', "&Pi;");
-		mHtmlEncodeMap.put('\u03A1', "&Rho;");
-		mHtmlEncodeMap.put('\u03A3', "&Sigma;");
-		mHtmlEncodeMap.put('\u03A4', "&Tau;");
-		mHtmlEncodeMap.put('\u03A5', "&Upsilon;");
-		mHtmlEncodeMap.put('\u03A6', "&Phi;");
-		mHtmlEncodeMap.put('\u03A7', "&Chi;");
-		mHtmlEncodeMap.put('\u03A8', "&Psi;");
-		mHtmlEncodeMap.put('\u03A9', "&Omega;");
-		mHtmlEncodeMap.put('\u03B1', "&alpha;");
-		mHtmlEncodeMap.put('\u03B2', "&beta;");
-		mHtmlEncodeMap.put('\u03B3', "&gamma;");
-		mHtmlEncodeMap.put('\u03B4', "&delta;");
-		mHtmlEncodeMap.put('\u03B5', "&epsilon;");
-		mHtmlEncodeMap.put('\u03B6', "&zeta;");
-		mHtmlEncodeMap.put('\u03B7', "&eta;");
-		mHtmlEncodeMap.put('\u03B8', "&theta;");
-		mHtmlEncodeMap.put('\u03B9', "&iota;");
-		mHtmlEncodeMap.put('\u03BA', "&kappa;");
-		mHtmlEncodeMap.put('\u03BB', "&lambda;");
-		mHtmlEncodeMap.put('\u03BC', "&mu;");
-		mHtmlEncodeMap.put('\u03BD', "&nu;");
-		mHtmlEncodeMap.put('\u03BE', "&xi;");
-		mHtmlEncodeMap.put('\u03BF', "&omicron;");
-		mHtmlEncodeMap.put('\u03C0', "&pi;");
-		mHtmlEncodeMap.put('\u03C1', "&rho;");
-		mHtmlEncodeMap.put('\u03C2', "&sigmaf;");
-		mHtmlEncodeMap.put('\u03C3', "&sigma;");
-		mHtmlEncodeMap.put('\u03C4', "&tau;");
-		mHtmlEncodeMap.put('\u03C5', "&upsilon;");
-		mHtmlEncodeMap.put('\u03C6', "&phi;");
-		mHtmlEncodeMap.put('\u03C7', "&chi;");
-		mHtmlEncodeMap.put('\u03C8', "&psi;");
-		mHtmlEncodeMap.put('\u03C9', "&omega;");
-		mHtmlEncodeMap.put('\u03D1', "&thetasym;");
-		mHtmlEncodeMap.put('\u03D2', "&upsih;");
-		mHtmlEncodeMap.put('\u03D6', "&piv;");
-		mHtmlEncodeMap.put('\u2022', "&bull;");
-		mHtmlEncodeMap.put('\u2026', "&hellip;");
-		mHtmlEncodeMap.put('\u2032', "&prime;");
-		mHtmlEncodeMap.put('\u2033', "&Prime;");
-		mHtmlEncodeMap.put('\u203E', "&oline;");
-		mHtmlEncodeMap.put('\u2044', "&frasl;");
-		mHtmlEncodeMap.put('\u2118', "&weierp;");
-		mHtmlEncodeMap.put('\u2111', "&image;");
-		mHtmlEncodeMap.put('\u211C', "&real;");
-		mHtmlEncodeMap.put('\u2122', "&trade;");
-		mHtmlEncodeMap.put('\u2135', "&alefsym;");
-		mHtmlEncodeMap.put('\u2190', "&larr;");
-		mHtmlEncodeMap.put('\u2191', "&uarr;");
-		mHtmlEncodeMap.put('\u2192', "&rarr;");
-		mHtmlEncodeMap.put('\u2193', "&darr;");
-		mHtmlEncodeMap.put('\u2194', "&harr;");
-		mHtmlEncodeMap.put('\u21B5', "&crarr;");
-		mHtmlEncodeMap.put('\u21D0', "&lArr;");
-		mHtmlEncodeMap.put('\u21D1', "&uArr;");
-		mHtmlEncodeMap.put('\u21D2', "&rArr;");
-		mHtmlEncodeMap.put('\u21D3', "&dArr;");
-		mHtmlEncodeMap.put('\u21D4', "&hArr;");
-		mHtmlEncodeMap.put('\u2200', "&forall;");
-		mHtmlEncodeMap.put('\u2202', "&part;");
-		mHtmlEncodeMap.put('\u2203', "&exist;");
-		mHtmlEncodeMap.put('\u2205', "&empty;");
-		mHtmlEncodeMap.put('\u2207', "&nabla;");
-		mHtmlEncodeMap.put('\u2208', "&isin;");
-		mHtmlEncodeMap.put('\u2209', "&notin;");
-		mHtmlEncodeMap.put('\u220B', "&ni;");
-		mHtmlEncodeMap.put('\u220F', "&prod;");
-		mHtmlEncodeMap.put('\u2211', "&sum;");
-		mHtmlEncodeMap.put('\u2212', "&minus;");
-		mHtmlEncodeMap.put('\u2217', "&lowast;");
-		mHtmlEncodeMap.put('\u221A', "&radic;");
-		mHtmlEncodeMap.put('\u221D', "&prop;");
-		mHtmlEncodeMap.put('\u221E', "&infin;");
-		mHtmlEncodeMap.put('\u2220', "&ang;");
-		mHtmlEncodeMap.put('\u2227', "&and;");
-		mHtmlEncodeMap.put('\u2228', "&or;");
-		mHtmlEncodeMap.put('\u2229', "&cap;");
-		mHtmlEncodeMap.put('\u222A', "&cup;");
-		mHtmlEncodeMap.put('\u222B', "&int;");
-		mHtmlEncodeMap.put('\u2234', "&there4;");
-		mHtmlEncodeMap.put('\u223C', "&sim;");
-		mHtmlEncodeMap.put('\u2245', "&cong;");
-		mHtmlEncodeMap.put('\u2248', "&asymp;");
-		mHtmlEncodeMap.put('\u2260', "&ne;");
-		mHtmlEncodeMap.put('\u2261', "&equiv;");
-		mHtmlEncodeMap.put('\u2264', "&le;");
-		mHtmlEncodeMap.put('\u2265', "&ge;");
-		mHtmlEncodeMap.put('\u2282', "&sub;");
-		mHtmlEncodeMap.put('\u2283', "&sup;");
-		mHtmlEncodeMap.put('\u2284', "&nsub;");
-		mHtmlEncodeMap.put('\u2286', "&sube;");
-		mHtmlEncodeMap.put('\u2287', "&supe;");
-		mHtmlEncodeMap.put('\u2295', "&oplus;");
-		mHtmlEncodeMap.put('\u2297', "&otimes;");
-		mHtmlEncodeMap.put('\u22A5', "&perp;");
-		mHtmlEncodeMap.put('\u22C5', "&sdot;");
-		mHtmlEncodeMap.put('\u2308', "&lceil;");
-		mHtmlEncodeMap.put('\u2309', "&rceil;");
-		mHtmlEncodeMap.put('\u230A', "&lfloor;");
-		mHtmlEncodeMap.put('\u230B', "&rfloor;");
-		mHtmlEncodeMap.put('\u2329', "&lang;");
-		mHtmlEncodeMap.put('\u232A', "&rang;");
-		mHtmlEncodeMap.put('\u25CA', "&loz;");
-		mHtmlEncodeMap.put('\u2660', "&spades;");
-		mHtmlEncodeMap.put('\u2663', "&clubs;");
-		mHtmlEncodeMap.put('\u2665', "&hearts;");
-		mHtmlEncodeMap.put('\u2666', "&diams;");
+		entities['\u0192'] = "&fnof;";
+		entities['\u0391'] = "&Alpha;";
+		entities['\u0392'] = "&Beta;";
+		entities['\u0393'] = "&Gamma;";
+		entities['\u0394'] = "&Delta;";
+		entities['\u0395'] = "&Epsilon;";
+		entities['\u0396'] = "&Zeta;";
+		entities['\u0397'] = "&Eta;";
+		entities['\u0398'] = "&Theta;";
+		entities['\u0399'] = "&Iota;";
+		entities['\u039A'] = "&Kappa;";
+		entities['\u039B'] = "&Lambda;";
+		entities['\u039C'] = "&Mu;";
+		entities['\u039D'] = "&Nu;";
+		entities['\u039E'] = "&Xi;";
+		entities['\u039F'] = "&Omicron;";
+		entities['\u03A0'] = "&Pi;";
+		entities['\u03A1'] = "&Rho;";
+		entities['\u03A3'] = "&Sigma;";
+		entities['\u03A4'] = "&Tau;";
+		entities['\u03A5'] = "&Upsilon;";
+		entities['\u03A6'] = "&Phi;";
+		entities['\u03A7'] = "&Chi;";
+		entities['\u03A8'] = "&Psi;";
+		entities['\u03A9'] = "&Omega;";
+		entities['\u03B1'] = "&alpha;";
+		entities['\u03B2'] = "&beta;";
+		entities['\u03B3'] = "&gamma;";
+		entities['\u03B4'] = "&delta;";
+		entities['\u03B5'] = "&epsilon;";
+		entities['\u03B6'] = "&zeta;";
+		entities['\u03B7'] = "&eta;";
+		entities['\u03B8'] = "&theta;";
+		entities['\u03B9'] = "&iota;";
+		entities['\u03BA'] = "&kappa;";
+		entities['\u03BB'] = "&lambda;";
+		entities['\u03BC'] = "&mu;";
+		entities['\u03BD'] = "&nu;";
+		entities['\u03BE'] = "&xi;";
+		entities['\u03BF'] = "&omicron;";
+		entities['\u03C0'] = "&pi;";
+		entities['\u03C1'] = "&rho;";
+		entities['\u03C2'] = "&sigmaf;";
+		entities['\u03C3'] = "&sigma;";
+		entities['\u03C4'] = "&tau;";
+		entities['\u03C5'] = "&upsilon;";
+		entities['\u03C6'] = "&phi;";
+		entities['\u03C7'] = "&chi;";
+		entities['\u03C8'] = "&psi;";
+		entities['\u03C9'] = "&omega;";
+		entities['\u03D1'] = "&thetasym;";
+		entities['\u03D2'] = "&upsih;";
+		entities['\u03D6'] = "&piv;";
+		entities['\u2022'] = "&bull;";
+		entities['\u2026'] = "&hellip;";
+		entities['\u2032'] = "&prime;";
+		entities['\u2033'] = "&Prime;";
+		entities['\u203E'] = "&oline;";
+		entities['\u2044'] = "&frasl;";
+		entities['\u2118'] = "&weierp;";
+		entities['\u2111'] = "&image;";
+		entities['\u211C'] = "&real;";
+		entities['\u2122'] = "&trade;";
+		entities['\u2135'] = "&alefsym;";
+		entities['\u2190'] = "&larr;";
+		entities['\u2191'] = "&uarr;";
+		entities['\u2192'] = "&rarr;";
+		entities['\u2193'] = "&darr;";
+		entities['\u2194'] = "&harr;";
+		entities['\u21B5'] = "&crarr;";
+		entities['\u21D0'] = "&lArr;";
+		entities['\u21D1'] = "&uArr;";
+		entities['\u21D2'] = "&rArr;";
+		entities['\u21D3'] = "&dArr;";
+		entities['\u21D4'] = "&hArr;";
+		entities['\u2200'] = "&forall;";
+		entities['\u2202'] = "&part;";
+		entities['\u2203'] = "&exist;";
+		entities['\u2205'] = "&empty;";
+		entities['\u2207'] = "&nabla;";
+		entities['\u2208'] = "&isin;";
+		entities['\u2209'] = "&notin;";
+		entities['\u220B'] = "&ni;";
+		entities['\u220F'] = "&prod;";
+		entities['\u2211'] = "&sum;";
+		entities['\u2212'] = "&minus;";
+		entities['\u2217'] = "&lowast;";
+		entities['\u221A'] = "&radic;";
+		entities['\u221D'] = "&prop;";
+		entities['\u221E'] = "&infin;";
+		entities['\u2220'] = "&ang;";
+		entities['\u2227'] = "&and;";
+		entities['\u2228'] = "&or;";
+		entities['\u2229'] = "&cap;";
+		entities['\u222A'] = "&cup;";
+		entities['\u222B'] = "&int;";
+		entities['\u2234'] = "&there4;";
+		entities['\u223C'] = "&sim;";
+		entities['\u2245'] = "&cong;";
+		entities['\u2248'] = "&asymp;";
+		entities['\u2260'] = "&ne;";
+		entities['\u2261'] = "&equiv;";
+		entities['\u2264'] = "&le;";
+		entities['\u2265'] = "&ge;";
+		entities['\u2282'] = "&sub;";
+		entities['\u2283'] = "&sup;";
+		entities['\u2284'] = "&nsub;";
+		entities['\u2286'] = "&sube;";
+		entities['\u2287'] = "&supe;";
+		entities['\u2295'] = "&oplus;";
+		entities['\u2297'] = "&otimes;";
+		entities['\u22A5'] = "&perp;";
+		entities['\u22C5'] = "&sdot;";
+		entities['\u2308'] = "&lceil;";
+		entities['\u2309'] = "&rceil;";
+		entities['\u230A'] = "&lfloor;";
+		entities['\u230B'] = "&rfloor;";
+		entities['\u2329'] = "&lang;";
+		entities['\u232A'] = "&rang;";
+		entities['\u25CA'] = "&loz;";
+		entities['\u2660'] = "&spades;";
+		entities['\u2663'] = "&clubs;";
+		entities['\u2665'] = "&hearts;";
+		entities['\u2666'] = "&diams;";
+		
+		int size = entities.length;
+		while (null == entities[size - 1])
+		{
+			size--;
+		}
+		mHtmlEntities = Arrays.copyOf(entities, size);
 	}
 	
 	private StringUtils()
@@ -295,86 +310,367 @@ public abstract class StringUtils
 	}
 	
 	/**
-	 * Transforms a provided <code>String</code> object into a new string,
-	 * containing only valid Html characters.
+	 * Returns the Html entity that replaces a character.
 	 *
-	 * @param source The string that has to be transformed into a valid Html
-	 * string.
-	 *
-	 * @return The encoded <code>String</code> object.
-	 *
-	 * @since 1.0
+	 * @param c The character.
+	 * @return The entity, for instance <code>&amp;amp;</code>; or
+	 * <code>null</code> if the character is valid as it is
+	 * @see #encodeHtml(String)
+	 * @since 2.0.1
 	 */
-	public static String encodeHtml(String source)
+	public static String getHtmlEntity(char c)
 	{
-		return encode(source, mHtmlEncodeMap);
+		return c < mHtmlEntities.length ? mHtmlEntities[c] : null;
 	}
 	
 	/**
 	 * Transforms a provided <code>String</code> object into a new string,
-	 * using the mapping that are provided through the supplied encoding table.
+	 * containing only valid Html characters.
 	 *
-	 * @param source The string that has to be transformed into a valid string,
-	 * using the mappings that are provided through the supplied encoding table.
-	 * @param encodingTables A <code>Map</code> object containing the mappings to
-	 * transform characters into valid entities. The keys of this map should be
-	 * <code>Character</code> objects and the values <code>String</code>
-	 * objects.
+	 * @param source The string that has to be transformed into a valid Html
+	 * string.
 	 *
 	 * @return The encoded <code>String</code> object.
 	 *
 	 * @since 1.0
 	 */
-	private static String encode(String source, Char2ObjectOpenHashMap<String> encodingTable)
+	public static String encodeHtml(String source)
 	{
 		if (null == source)
 		{
 			return null;
 		}
 		
-		if (null == encodingTable)
+		int length = source.length();
+		int first = indexOfHtmlEncoded(source, 0, length);
+		if (first == length)
 		{
 			return source;
 		}
 		
-		StringBuffer	encoded_string = null;
-		char[]			string_to_encode_array = source.toCharArray();
-		int				last_match = -1;
-		int				difference = 0;
+		StringBuilder encoded = new StringBuilder(length + 16);
+		try
+		{
+			encoded.append(source, 0, first);
+			encodeHtml(source, first, length, encoded);
+		}
+		catch (IOException e)
+		{
+			// a StringBuilder doesn't throw
+			throw new IllegalStateException(e);
+		}
 		
-		for (int i = 0; i < string_to_encode_array.length; i++)
+		return encoded.toString();
+	}
+
+	/**
+	 * Writes a range of characters to a <code>Writer</code>, replacing the
+	 * characters that aren't valid in Html by their entities.
+	 * <p>No intermediate objects are created, unchanged characters are
+	 * written straight from the provided array.
+	 *
+	 * @param source The array that contains the characters that have to be
+	 * encoded.
+	 * @param offset The index of the first character that has to be encoded.
+	 * @param length The number of characters that have to be encoded.
+	 * @param out The <code>Writer</code> to which the encoded characters will
+	 * be written.
+	 * @exception IOException when an error occurred while writing
+	 * @see #encodeHtml(String)
+	 * @since 2.0.1
+	 */
+	public static void encodeHtml(char[] source, int offset, int length, Writer out)
+	throws IOException
+	{
+		int		end = offset + length;
+		int		last_written = offset;
+		int		i = indexOfHtmlEncoded(source, offset, end);
+
+		while (i < end)
 		{
-			char char_to_encode = string_to_encode_array[i];
-			
-			if (encodingTable.containsKey(char_to_encode))
+			if (i > last_written)
+			{
+				out.write(source, last_written, i - last_written);
+			}
+			out.write(mHtmlEntities[source[i]]);
+			last_written = i + 1;
+			i = indexOfHtmlEncoded(source, last_written, end);
+		}
+
+		if (end > last_written)
+		{
+			out.write(source, last_written, end - last_written);
+		}
+	}
+
+	/**
+	 * Appends a range of characters to an <code>Appendable</code>, replacing
+	 * the characters that aren't valid in Html by their entities.
+	 * <p>Unchanged characters are appended in runs, straight from the
+	 * provided array.
+	 *
+	 * @param source The array that contains the characters that have to be
+	 * encoded.
+	 * @param offset The index of the first character that has to be encoded.
+	 * @param length The number of characters that have to be encoded.
+	 * @param out The <code>Appendable</code> to which the encoded characters
+	 * will be appended.
+	 * @exception IOException when an error occurred while appending
+	 * @since 2.0.1
+	 */
+	public static void encodeHtml(char[] source, int offset, int length, Appendable out)
+	throws IOException
+	{
+		if (out instanceof Writer)
+		{
+			encodeHtml(source, offset, length, (Writer)out);
+		}
+		else
+		{
+			encodeHtml(CharBuffer.wrap(source), offset, offset + length, out);
+		}
+	}
+
+	/**
+	 * Appends a range of a character sequence to an <code>Appendable</code>,
+	 * replacing the characters that aren't valid in Html by their entities.
+	 *
+	 * @param source The sequence that contains the characters that have to
+	 * be encoded.
+	 * @param start The index of the first character that has to be encoded.
+	 * @param end The index after the last character that has to be encoded.
+	 * @param out The <code>Appendable</code> to which the encoded characters
+	 * will be appended.
+	 * @exception IOException when an error occurred while appending
+	 * @since 2.0.1
+	 */
+	public static void encodeHtml(CharSequence source, int start, int end, Appendable out)
+	throws IOException
+	{
+		int		last_written = start;
+		int		i = indexOfHtmlEncoded(source, start, end);
+
+		while (i < end)
+		{
+			if (i > last_written)
+			{
+				out.append(source, last_written, i);
+			}
+			out.append(mHtmlEntities[source.charAt(i)]);
+			last_written = i + 1;
+			i = indexOfHtmlEncoded(source, last_written, end);
+		}
+
+		if (end > last_written)
+		{
+			out.append(source, last_written, end);
+		}
+	}
+
+	/**
+	 * Writes a range of characters to a <code>Writer</code>, only escaping
+	 * the characters that are significant in Html markup.
+	 * <p><code>&amp;</code>, <code>&lt;</code>, <code>&gt;</code> and
+	 * <code>&quot;</code> are replaced by their entities. Characters from the
+	 * limit on are written as numeric character references, a surrogate pair
+	 * as the reference of its code point. All the other characters are
+	 * written as they are.
+	 *
+	 * @param source The array that contains the characters that have to be
+	 * encoded.
+	 * @param offset The index of the first character that has to be encoded.
+	 * @param length The number of characters that have to be encoded.
+	 * @param limit The first character that can't be written as it is,
+	 * usually because the output encoding can't represent it; or
+	 * <code>Integer.MAX_VALUE</code> if all characters can be written.
+	 * @param out The <code>Writer</code> to which the encoded characters will
+	 * be written.
+	 * @exception IOException when an error occurred while writing
+	 * @see #encodeHtml(char[], int, int, Writer)
+	 * @since 2.0.1
+	 */
+	public static void encodeHtmlMinimal(char[] source, int offset, int length, int limit, Writer out)
+	throws IOException
+	{
+		int		end = offset + length;
+		int		last_written = offset;
+		int		i = indexOfHtmlMarkup(source, offset, end, limit);
+		char	c;
+		int		code_point;
+
+		while (i < end)
+		{
+			if (i > last_written)
+			{
+				out.write(source, last_written, i - last_written);
+			}
+
+			c = source[i];
+			if (c < limit)
+			{
+				out.write(mHtmlEntities[c]);
+			}
+			else
 			{
-				if (null == encoded_string)
+				code_point = c;
+				if (Character.isHighSurrogate(c) &&
+					i + 1 < end &&
+					Character.isLowSurrogate(source[i + 1]))
 				{
-					encoded_string = new StringBuffer(source.length());
+					code_point = Character.toCodePoint(c, source[++i]);
 				}
-				difference = i - (last_match + 1);
-				if (difference > 0)
+				else if (Character.isSurrogate(c))
 				{
-					encoded_string.append(string_to_encode_array, last_match + 1, difference);
+					// unpaired surrogates have no valid reference
+					code_point = 0xFFFD;
 				}
-				encoded_string.append(encodingTable.get(char_to_encode));
-				last_match = i;
+				out.write("&#");
+				out.write(Integer.toString(code_point));
+				out.write(';');
 			}
+			last_written = i + 1;
+			i = indexOfHtmlMarkup(source, last_written, end, limit);
 		}
-		
-		if (null == encoded_string)
+
+		if (end > last_written)
 		{
-			return source;
+			out.write(source, last_written, end - last_written);
 		}
-		else
+	}
+
+	/**
+	 * Encodes a range of characters in Html into a character array.
+	 * <p>The destination needs room for the number of characters that's
+	 * returned by {@link #getEncodedHtmlLength(char[], int, int)}.
+	 *
+	 * @param source The array that contains the characters that have to be
+	 * encoded.
+	 * @param offset The index of the first character that has to be encoded.
+	 * @param length The number of characters that have to be encoded.
+	 * @param destination The array into which the encoded characters will be
+	 * written.
+	 * @param destinationOffset The index in the destination of the first
+	 * encoded character.
+	 * @return The index in the destination after the last encoded character.
+	 * @exception IndexOutOfBoundsException when the destination is too
+	 * small
+	 * @since 2.0.1
+	 */
+	public static int encodeHtml(char[] source, int offset, int length, char[] destination, int destinationOffset)
+	{
+		int		end = offset + length;
+		int		last_written = offset;
+		int		position = destinationOffset;
+		int		i = indexOfHtmlEncoded(source, offset, end);
+		int		count;
+		String	entity;
+
+		while (i < end)
+		{
+			count = i - last_written;
+			System.arraycopy(source, last_written, destination, position, count);
+			position += count;
+			entity = mHtmlEntities[source[i]];
+			entity.getChars(0, entity.length(), destination, position);
+			position += entity.length();
+			last_written = i + 1;
+			i = indexOfHtmlEncoded(source, last_written, end);
+		}
+
+		count = end - last_written;
+		System.arraycopy(source, last_written, destination, position, count);
+
+		return position + count;
+	}
+
+	/**
+	 * Computes the number of characters of a range of characters once it's
+	 * encoded in Html.
+	 *
+	 * @param source The array that contains the characters.
+	 * @param offset The index of the first character.
+	 * @param length The number of characters.
+	 * @return The number of encoded characters.
+	 * @since 2.0.1
+	 */
+	public static int getEncodedHtmlLength(char[] source, int offset, int length)
+	{
+		int		end = offset + length;
+		int		encoded_length = length;
+		int		i = indexOfHtmlEncoded(source, offset, end);
+
+		while (i < end)
+		{
+			encoded_length += mHtmlEntities[source[i]].length() - 1;
+			i = indexOfHtmlEncoded(source, i + 1, end);
+		}
+
+		return encoded_length;
+	}
+
+	/**
+	 * Finds the next character that has to be encoded in Html.
+	 *
+	 * @return the index of the character; or <code>end</code> if there's none
+	 */
+	private static int indexOfHtmlEncoded(char[] source, int start, int end)
+	{
+		String[]	entities = mHtmlEntities;
+		int			limit = entities.length;
+		char		c;
+		for (int i = start; i < end; i++)
+		{
+			c = source[i];
+			if (c < limit &&
+				entities[c] != null)
+			{
+				return i;
+			}
+		}
+
+		return end;
+	}
+
+	/**
+	 * Finds the next character that's significant in Html markup or that
+	 * lies beyond the limit.
+	 *
+	 * @return the index of the character; or <code>end</code> if there's none
+	 */
+	private static int indexOfHtmlMarkup(char[] source, int start, int end, int limit)
+	{
+		String[]	entities = mHtmlEntities;
+		char		c;
+		for (int i = start; i < end; i++)
+		{
+			c = source[i];
+			// the only entities up to '>' are the ones of the markup
+			if (c >= limit ||
+				(c <= '>' && entities[c] != null))
+			{
+				return i;
+			}
+		}
+
+		return end;
+	}
+
+	private static int indexOfHtmlEncoded(CharSequence source, int start, int end)
+	{
+		String[]	entities = mHtmlEntities;
+		int			limit = entities.length;
+		char		c;
+		for (int i = start; i < end; i++)
 		{
-			difference = string_to_encode_array.length - (last_match + 1);
-			if (difference > 0)
+			c = source.charAt(i);
+			if (c < limit &&
+				entities[c] != null)
 			{
-				encoded_string.append(string_to_encode_array, last_match + 1, difference);
+				return i;
 			}
-			return encoded_string.toString();
 		}
+
+		return end;
 	}
 	
 	/**
@@ -412,6 +708,9 @@ public abstract class StringUtils
 	 * Checks if the name filters through a series of including and excluding
 	 * regular expressions.
 	 *
+	 * <p>Every expression is evaluated for every name, a {@link NameFilter}
+	 * should be used to filter many names with the same expressions.
+	 *
 	 * @param name The <code>String</code> that will be filtered.
 	 * @param included An array of regular expressions that need to succeed
 	 * @param excluded An array of regular expressions that need to fail
@@ -420,6 +719,7 @@ public abstract class StringUtils
 	 * <p>
 	 * <code>false</code> otherwise.
 	 *
+	 * @see NameFilter
 	 * @since 1.0
 	 */
 	public static boolean filter(String name, Pattern[] included, Pattern[] excluded)
@@ -1,5 +1,6 @@
 package org.codelibs.jhighlight;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -9,6 +10,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import org.junit.After;
 import org.junit.Before;
@@ -143,6 +145,23 @@ public class JHighlightTest {
         assertTrue("Output file should be created", outputFile.exists());
     }
 
+    @Test
+    public void testHighlightWithParallelOption() throws Throwable {
+        File javaFile = tempFolder.newFile("Parallel.java");
+        File sequentialFile = tempFolder.newFile("Sequential.java");
+        try (FileWriter writer = new FileWriter(javaFile)) {
+            writer.write("/* a comment\n   on two lines */\npublic class Parallel { }\n");
+        }
+        Files.copy(javaFile.toPath(), sequentialFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        JHighlight.main(new String[]{"--parallel", javaFile.getAbsolutePath()});
+        JHighlight.main(new String[]{sequentialFile.getAbsolutePath()});
+
+        String parallel = new String(Files.readAllBytes(new File(javaFile.getAbsolutePath() + ".html").toPath()));
+        String sequential = new String(Files.readAllBytes(new File(sequentialFile.getAbsolutePath() + ".html").toPath()));
+        assertEquals(sequential.replace("Sequential.java", "Parallel.java"), parallel);
+    }
+
     @Test
     public void testHighlightWithFragmentOption() throws Throwable {
         File javaFile = tempFolder.newFile("Fragment.java");
@@ -280,4 +299,119 @@ public class JHighlightTest {
             System.setOut(originalOut);
         }
     }
+
+    @Test
+    public void testHighlightDirectoryWithThreads() throws Throwable {
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        try {
+            File sourceDir = tempFolder.newFolder("threaded");
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 30; i++) {
+                String name = String.format("Class%02d.java", i);
+                try (FileWriter writer = new FileWriter(new File(sourceDir, name))) {
+                    writer.write("public class Class" + i + " { int value = " + i + "; }\n");
+                }
+                expected.append("threaded").append(File.separator).append(name).append(" ... done.")
+                        .append(System.lineSeparator());
+            }
+
+            JHighlight.main(new String[]{"--verbose", "--threads", "4", sourceDir.getAbsolutePath()});
+
+            String output = outContent.toString();
+            assertTrue("Files should be reported in order", output.startsWith(expected.toString()));
+            assertTrue("Throughput summary should be printed", output.contains("Highlighted 30 files"));
+            assertTrue("Throughput summary should mention the rate", output.contains("files/s"));
+            for (int i = 0; i < 30; i++) {
+                File outputFile = new File(sourceDir, String.format("Class%02d.java.html", i));
+                String content = new String(Files.readAllBytes(outputFile.toPath()));
+                assertTrue("Output should contain the class " + i, content.contains("Class" + i));
+            }
+        } finally {
+            System.setOut(originalOut);
+        }
+    }
+
+    @Test
+    public void testFailuresDoNotStopTheRun() throws Throwable {
+        File unsupported = tempFolder.newFile("notes.unknown");
+        File javaFile = tempFolder.newFile("Fine.java");
+        try (FileWriter writer = new FileWriter(javaFile)) {
+            writer.write("public class Fine { }");
+        }
+
+        try {
+            JHighlight.main(new String[]{"--threads", "2", unsupported.getAbsolutePath(), javaFile.getAbsolutePath()});
+            fail("Should report the failure");
+        } catch (IOException e) {
+            assertTrue("Should count the failures", e.getMessage().startsWith("1 file(s)"));
+        }
+
+        assertTrue("Other files should still be highlighted", new File(javaFile.getAbsolutePath() + ".html").exists());
+        assertTrue("Failures should be listed", errContent.toString().contains("notes.unknown"));
+    }
+
+    @Test
+    public void testHighlightDirectorySkipsVersionControl() throws Throwable {
+        File sourceDir = tempFolder.newFolder("project");
+        File svnDir = new File(sourceDir, ".svn");
+        File cvsDir = new File(sourceDir, "CVS");
+        svnDir.mkdir();
+        cvsDir.mkdir();
+        for (File dir : new File[]{sourceDir, svnDir, cvsDir}) {
+            try (FileWriter writer = new FileWriter(new File(dir, "Source.java"))) {
+                writer.write("public class Source { }");
+            }
+        }
+
+        JHighlight.main(new String[]{sourceDir.getAbsolutePath()});
+
+        assertTrue("Sources should be highlighted", new File(sourceDir, "Source.java.html").exists());
+        assertTrue("Subversion files should be skipped", !new File(svnDir, "Source.java.html").exists());
+        assertTrue("CVS files should be skipped", !new File(cvsDir, "Source.java.html").exists());
+    }
+
+    @Test
+    public void testHighlightDirectoryWithStylesheet() throws Throwable {
+        File sourceDir = tempFolder.newFolder("styled");
+        File packageDir = new File(sourceDir, "pkg");
+        packageDir.mkdir();
+        for (File dir : new File[]{sourceDir, packageDir}) {
+            try (FileWriter writer = new FileWriter(new File(dir, "Source.java"))) {
+                writer.write("public class Source { }");
+            }
+        }
+        File destDir = tempFolder.newFolder("styled-output");
+
+        JHighlight.main(new String[]{"--stylesheet", "--threads", "2", "-d", destDir.getAbsolutePath(), sourceDir.getAbsolutePath()});
+
+        File stylesheet = new File(destDir, "jhighlight-java.css");
+        assertTrue("The stylesheet should be written", stylesheet.exists());
+        assertTrue(new String(Files.readAllBytes(stylesheet.toPath()), "UTF-8").contains(".java_keyword {"));
+
+        String top = new String(Files.readAllBytes(new File(destDir, "styled/Source.java.html").toPath()), "UTF-8");
+        assertTrue(top.contains("href=\"../jhighlight-java.css\""));
+        assertTrue("The CSS shouldn't be included", !top.contains("<style"));
+
+        String nested = new String(Files.readAllBytes(new File(destDir, "styled/pkg/Source.java.html").toPath()), "UTF-8");
+        assertTrue(nested.contains("href=\"../../jhighlight-java.css\""));
+    }
+
+    @Test
+    public void testHighlightWithThemes() throws Throwable {
+        File source = tempFolder.newFile("Themed.java");
+        try (FileWriter writer = new FileWriter(source)) {
+            writer.write("public class Themed { }");
+        }
+        File destDir = tempFolder.newFolder("themed-output");
+
+        JHighlight.main(new String[]{"--themes", "dark", "-d", destDir.getAbsolutePath(), source.getAbsolutePath()});
+
+        String light = new String(Files.readAllBytes(new File(destDir, "jhighlight-java.css").toPath()), "UTF-8");
+        String dark = new String(Files.readAllBytes(new File(destDir, "jhighlight-java-dark.css").toPath()), "UTF-8");
+        assertTrue(!light.equals(dark));
+        String document = new String(Files.readAllBytes(new File(destDir, "Themed.java.html").toPath()), "UTF-8");
+        assertTrue(document.contains("href=\"jhighlight-java.css\""));
+    }
 }
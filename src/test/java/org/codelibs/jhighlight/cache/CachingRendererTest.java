@@ -0,0 +1,80 @@
+package org.codelibs.jhighlight.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.codelibs.jhighlight.renderer.JavaXhtmlRenderer;
+import org.codelibs.jhighlight.renderer.Renderer;
+import org.junit.Test;
+
+public class CachingRendererTest {
+
+    private static final String CODE = "/* é */\npublic class Test {\n\tint x = 1;\n}\n";
+
+    @Test
+    public void testResultsMatchTheRenderer() throws IOException {
+        Renderer renderer = new JavaXhtmlRenderer();
+        CachingRenderer caching = new CachingRenderer(renderer, "java", new RenderCache(1 << 20));
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(renderer.highlight("Test.java", CODE, "UTF-8", false),
+                         caching.highlight("Test.java", CODE, "UTF-8", false));
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            renderer.highlight("Test.java", new ByteArrayInputStream(CODE.getBytes("ISO-8859-1")), expected, "ISO-8859-1", true);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            caching.highlight("Test.java", new ByteArrayInputStream(CODE.getBytes("ISO-8859-1")), actual, "ISO-8859-1", true);
+            assertEquals(expected.toString("ISO-8859-1"), actual.toString("ISO-8859-1"));
+
+            StringBuilder builder = new StringBuilder();
+            caching.highlight("Test.java", CODE, builder, true);
+            assertEquals(renderer.highlight("Test.java", CODE, "UTF-8", true), builder.toString());
+
+            StringWriter writer = new StringWriter();
+            caching.highlight("Test.java", new StringReader(CODE), writer, true);
+            assertEquals(builder.toString(), writer.toString());
+        }
+
+        RenderCache.Statistics statistics = caching.getCache().getStatistics();
+        assertEquals(3, statistics.getMissCount());
+        assertEquals(5, statistics.getHitCount());
+        assertEquals(3, statistics.getEntryCount());
+    }
+
+    @Test
+    public void testNameIsPartOfTheKey() throws IOException {
+        CachingRenderer caching = new CachingRenderer(new JavaXhtmlRenderer(), "java", new RenderCache(1 << 20));
+
+        String first = caching.highlight("A.java", CODE, "UTF-8", false);
+        String second = caching.highlight("B.java", CODE, "UTF-8", false);
+
+        assertEquals(false, first.equals(second));
+        assertEquals(2, caching.getCache().getStatistics().getMissCount());
+    }
+
+    @Test
+    public void testCharactersAreStoredCompactly() throws IOException {
+        String code = "// \u00e9 \u20ac \ud83d\ude00 \ud800 \udc00\nint x = 1;\n";
+        Renderer renderer = new JavaXhtmlRenderer();
+        CachingRenderer caching = new CachingRenderer(renderer, "java", new RenderCache(1 << 20));
+
+        StringBuilder rendered = new StringBuilder();
+        renderer.highlight("Test.java", code, rendered, true);
+        String expected = rendered.toString();
+        StringBuilder first = new StringBuilder();
+        caching.highlight("Test.java", code, first, true);
+        StringBuilder second = new StringBuilder();
+        caching.highlight("Test.java", code, second, true);
+        assertEquals(expected, first.toString());
+        assertEquals(expected, second.toString());
+
+        // the markup takes a byte per character, not two
+        assertTrue(caching.getCache().getStatistics().getWeight() < expected.length() * 3 / 2);
+    }
+}
@@ -0,0 +1,199 @@
+package org.codelibs.jhighlight.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.codelibs.jhighlight.highlighter.JavaHighlighter;
+import org.codelibs.jhighlight.highlighter.TokenBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PersistentRenderCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RenderKey key(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return new RenderKey(RenderKey.digest(bytes, 0, bytes.length), "java", "Test.java", "UTF-8", false, null);
+    }
+
+    private static byte[] value(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        try (PersistentRenderCache cache = new PersistentRenderCache(folder.getRoot().toPath(), 4096, 4)) {
+            assertTrue(cache.isWritable());
+            assertNull(cache.get(key("a")));
+
+            assertTrue(cache.put(key("a"), value("first")));
+            assertFalse(cache.put(key("a"), value("again")));
+
+            assertArrayEquals(value("first"), cache.get(key("a")));
+            ByteBuffer buffer = cache.getBuffer(key("a"));
+            assertTrue(buffer.isReadOnly());
+            assertEquals(5, buffer.remaining());
+            assertEquals(1, cache.getEntryCount());
+        }
+    }
+
+    @Test
+    public void testResultsSurviveReopening() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (PersistentRenderCache cache = new PersistentRenderCache(directory, 4096, 4)) {
+            cache.put(key("a"), value("first"));
+            cache.put(key("b"), value("second"));
+        }
+
+        try (PersistentRenderCache cache = new PersistentRenderCache(directory, 4096, 4)) {
+            assertArrayEquals(value("first"), cache.get(key("a")));
+            assertArrayEquals(value("second"), cache.get(key("b")));
+
+            cache.put(key("c"), value("third"));
+            assertArrayEquals(value("third"), cache.get(key("c")));
+        }
+    }
+
+    @Test
+    public void testReaderSeesRecordsOfTheWriter() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (PersistentRenderCache writer = new PersistentRenderCache(directory, 256, 8);
+             PersistentRenderCache reader = new PersistentRenderCache(directory, 256, 8)) {
+            assertTrue(writer.isWritable());
+            assertFalse(reader.isWritable());
+            assertFalse(reader.put(key("x"), value("ignored")));
+
+            writer.put(key("a"), value("first"));
+            assertArrayEquals(value("first"), reader.get(key("a")));
+
+            // enough records to fill more segments than are kept
+            for (int i = 0; i < 40; i++) {
+                writer.put(key("k" + i), value("value " + i));
+            }
+            assertArrayEquals(value("value 39"), reader.get(key("k39")));
+            assertArrayEquals(value("value 30"), reader.get(key("k30")));
+        }
+    }
+
+    @Test
+    public void testReaderForgetsSegmentsThatTheWriterDeleted() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (PersistentRenderCache writer = new PersistentRenderCache(directory, 256, 2);
+             PersistentRenderCache reader = new PersistentRenderCache(directory, 256, 2)) {
+            writer.put(key("k0"), value("value 0"));
+            assertArrayEquals(value("value 0"), reader.get(key("k0")));
+
+            for (int i = 1; i < 200; i++) {
+                writer.put(key("k" + i), value("value " + i));
+                reader.refresh();
+                assertEquals(writer.getEntryCount(), reader.getEntryCount());
+            }
+
+            assertNull(reader.get(key("k0")));
+            assertArrayEquals(value("value 199"), reader.get(key("k199")));
+        }
+    }
+
+    @Test
+    public void testOldestSegmentsAreDeleted() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (PersistentRenderCache cache = new PersistentRenderCache(directory, 256, 2)) {
+            for (int i = 0; i < 20; i++) {
+                cache.put(key("k" + i), value("value " + i));
+            }
+
+            assertNull(cache.get(key("k0")));
+            assertArrayEquals(value("value 19"), cache.get(key("k19")));
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(2, files.filter(p -> p.getFileName().toString().endsWith(".jhc")).count());
+            }
+        }
+    }
+
+    @Test
+    public void testOversizedResultIsNotStored() throws IOException {
+        try (PersistentRenderCache cache = new PersistentRenderCache(folder.getRoot().toPath(), 256, 2)) {
+            assertFalse(cache.put(key("a"), new byte[1000]));
+            assertNull(cache.get(key("a")));
+        }
+    }
+
+    @Test
+    public void testCorruptedTailIsIgnored() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (PersistentRenderCache cache = new PersistentRenderCache(directory, 4096, 4)) {
+            cache.put(key("a"), value("first"));
+            cache.put(key("b"), value("second"));
+        }
+
+        // damage the last byte of the second result
+        Path segment = directory.resolve("segment-000000.jhc");
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(8);
+            int end = file.readInt();
+            file.seek(end - 1);
+            file.write('X');
+        }
+
+        try (PersistentRenderCache cache = new PersistentRenderCache(directory, 4096, 4)) {
+            assertArrayEquals(value("first"), cache.get(key("a")));
+            assertNull(cache.get(key("b")));
+
+            cache.put(key("c"), value("third"));
+            assertArrayEquals(value("third"), cache.get(key("c")));
+        }
+    }
+
+    @Test
+    public void testTokens() throws IOException {
+        String code = "public class Test {\n    int x;\n}\n";
+        TokenBuffer tokens = TokenBuffer.scan(new JavaHighlighter(), new StringReader(code), true);
+        byte[] digest = RenderKey.digest(code);
+
+        try (PersistentRenderCache cache = new PersistentRenderCache(folder.getRoot().toPath(), 4096, 4)) {
+            assertNull(cache.getTokens(digest, "java"));
+            assertTrue(cache.putTokens(digest, "java", tokens));
+
+            TokenBuffer read = cache.getTokens(digest, "java");
+            assertNotNull(read);
+            assertEquals(tokens.getTokenCount(), read.getTokenCount());
+            assertEquals(tokens.getLineCount(), read.getLineCount());
+            assertEquals(tokens.getText(), read.getText());
+        }
+    }
+
+    @Test
+    public void testRenderCacheUsesTheStore() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (PersistentRenderCache store = new PersistentRenderCache(directory, 4096, 4)) {
+            new RenderCache(1 << 20, store).get(key("a"), () -> value("rendered"));
+        }
+
+        try (PersistentRenderCache store = new PersistentRenderCache(directory, 4096, 4)) {
+            RenderCache cache = new RenderCache(1 << 20, store);
+            byte[] result = cache.get(key("a"), () -> {
+                throw new IOException("shouldn't render");
+            });
+
+            assertArrayEquals(value("rendered"), result);
+            assertEquals(1, cache.getStatistics().getStoreHitCount());
+            assertEquals(0, cache.getStatistics().getMissCount());
+        }
+    }
+}
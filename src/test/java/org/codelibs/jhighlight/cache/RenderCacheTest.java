@@ -0,0 +1,157 @@
+package org.codelibs.jhighlight.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RenderCacheTest {
+
+    private static RenderKey key(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return new RenderKey(RenderKey.digest(bytes, 0, bytes.length), "java", "Test.java", "UTF-8", true, null);
+    }
+
+    @Test
+    public void testKeyEquality() {
+        assertEquals(key("int x;"), key("int x;"));
+        assertEquals(key("int x;").hashCode(), key("int x;").hashCode());
+        assertEquals(false, key("int x;").equals(key("int y;")));
+
+        byte[] digest = RenderKey.digest("a");
+        assertEquals(false, new RenderKey(digest, "java", "A", null, true, null)
+                .equals(new RenderKey(digest, "java", "A", null, false, null)));
+        assertEquals(false, new RenderKey(digest, "java", "A", null, true, null)
+                .equals(new RenderKey(digest, "xml", "A", null, true, null)));
+    }
+
+    @Test
+    public void testHitsAndMisses() throws IOException {
+        RenderCache cache = new RenderCache(1 << 20);
+        final AtomicInteger loads = new AtomicInteger();
+        RenderCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            return new byte[] { 1, 2, 3 };
+        };
+
+        byte[] first = cache.get(key("a"), loader);
+        byte[] second = cache.get(key("a"), loader);
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        RenderCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(1, statistics.getEntryCount());
+        assertEquals(0.5, statistics.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void testEvictionByWeight() throws IOException {
+        long entry_weight = key("a").getWeight() + 16 + 1000;
+        RenderCache cache = new RenderCache(entry_weight * 2);
+
+        cache.put(key("a"), new byte[1000]);
+        cache.put(key("b"), new byte[1000]);
+        // touching a makes b the least recently used entry
+        assertNotNull(cache.getIfPresent(key("a")));
+        cache.put(key("c"), new byte[1000]);
+
+        assertNotNull(cache.getIfPresent(key("a")));
+        assertNull(cache.getIfPresent(key("b")));
+        assertNotNull(cache.getIfPresent(key("c")));
+
+        RenderCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getEvictionCount());
+        assertEquals(entry_weight, statistics.getEvictionWeight());
+        assertEquals(entry_weight * 2, statistics.getWeight());
+    }
+
+    @Test
+    public void testOversizedResultIsNotKept() throws IOException {
+        RenderCache cache = new RenderCache(100);
+
+        byte[] result = cache.get(key("a"), () -> new byte[1000]);
+
+        assertEquals(1000, result.length);
+        assertNull(cache.getIfPresent(key("a")));
+        assertEquals(0, cache.getStatistics().getWeight());
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() throws IOException {
+        RenderCache cache = new RenderCache(1 << 20);
+
+        try {
+            cache.get(key("a"), () -> {
+                throw new IOException("failed");
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        assertArrayEquals(new byte[] { 7 }, cache.get(key("a"), () -> new byte[] { 7 }));
+        assertEquals(1, cache.getStatistics().getLoadFailureCount());
+    }
+
+    @Test
+    public void testConcurrentRequestsLoadOnce() throws Exception {
+        final RenderCache cache = new RenderCache(1 << 20);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int threads = 8;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> cache.get(key("a"), () -> {
+                    loads.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new byte[] { 42 };
+                })));
+            }
+
+            started.await(10, TimeUnit.SECONDS);
+            // let the other requests join the blocked load
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.getStatistics().getCoalescedCount() < threads - 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(new byte[] { 42 }, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getStatistics().getMissCount());
+        assertEquals(threads - 1, cache.getStatistics().getCoalescedCount());
+    }
+}
@@ -0,0 +1,110 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.Reader;
+
+import org.junit.Test;
+
+public class ExplicitStateHighlighterTest {
+
+    /** A highlighter that only implements the methods that were always required. */
+    private static class MinimalHighlighter implements ExplicitStateHighlighter {
+        public void setReader(Reader reader) {
+        }
+
+        public byte getNextToken() {
+            return -1;
+        }
+
+        public int getTokenLength() {
+            return 0;
+        }
+    }
+
+    /** A highlighter that only exposes its lexical state. */
+    private static class StatefulHighlighter extends MinimalHighlighter {
+        byte state = 1;
+
+        public byte getCurrentState() {
+            return state;
+        }
+
+        public void setState(byte newState) {
+            state = newState;
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testResetIsUnsupportedByDefault() {
+        new MinimalHighlighter().reset(null);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testStyleCountIsUnsupportedByDefault() {
+        new MinimalHighlighter().getStyleCount();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testStartStateIsUnsupportedByDefault() {
+        new MinimalHighlighter().getStartState();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCurrentStateIsUnsupportedByDefault() {
+        new MinimalHighlighter().getCurrentState();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSetStateIsUnsupportedByDefault() {
+        new MinimalHighlighter().setState((byte) 1);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCheckpointIsUnsupportedWithoutStates() {
+        new MinimalHighlighter().getCheckpoint();
+    }
+
+    @Test
+    public void testCheckpointIsTheLexicalStateByDefault() {
+        StatefulHighlighter highlighter = new StatefulHighlighter();
+        highlighter.setState((byte) 3);
+        assertEquals(3, highlighter.getCheckpoint());
+
+        StatefulHighlighter other = new StatefulHighlighter();
+        other.restoreCheckpoint(highlighter.getCheckpoint());
+        assertEquals(3, other.getCurrentState());
+    }
+
+    @Test
+    public void testUnknownStatesAreRejected() {
+        ExplicitStateHighlighter[] highlighters = {new JavaHighlighter(), new GroovyHighlighter(), new JavaScriptHighlighter(),
+            new CppHighlighter(), new XmlHighlighter()};
+        for (ExplicitStateHighlighter highlighter : highlighters) {
+            for (int checkpoint : new int[] {0, 0x50, -1, 0x50 << 24}) {
+                try {
+                    highlighter.restoreCheckpoint(checkpoint);
+                    fail(highlighter.getClass().getName() + " restored " + checkpoint);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+            highlighter.restoreCheckpoint(highlighter.getStartState());
+            assertEquals(highlighter.getStartState(), highlighter.getCurrentState());
+        }
+    }
+
+    @Test
+    public void testUnknownReturningStatesAreRejected() {
+        XmlHighlighter highlighter = new XmlHighlighter();
+        for (int checkpoint : new int[] {1 | 0x50 << 8, 1 | 0x50 << 16, 1 | 1 << 24}) {
+            try {
+                highlighter.restoreCheckpoint(checkpoint);
+                fail("restored " + checkpoint);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
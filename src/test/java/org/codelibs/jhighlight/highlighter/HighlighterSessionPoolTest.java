@@ -0,0 +1,132 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HighlighterSessionPoolTest {
+
+    private static class CountingSink implements TokenSink {
+        int lines;
+        int tokens;
+
+        public void startLine(char[] text, int offset, int length) {
+            lines++;
+        }
+
+        public void token(byte style, int offset, int length) {
+            tokens++;
+        }
+
+        public void endLine() {
+        }
+    }
+
+    @Test
+    public void testSessionsAreReused() {
+        AtomicInteger created = new AtomicInteger();
+        HighlighterSessionPool pool = new HighlighterSessionPool(() -> {
+            created.incrementAndGet();
+            return new JavaHighlighter();
+        }, 2);
+
+        HighlighterSession first = pool.acquire();
+        pool.release(first);
+        HighlighterSession second = pool.acquire();
+
+        assertSame(first, second);
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        HighlighterSessionPool pool = new HighlighterSessionPool(JavaHighlighter::new, 2);
+
+        HighlighterSession a = pool.acquire();
+        HighlighterSession b = pool.acquire();
+        HighlighterSession c = pool.acquire();
+        assertNotSame(a, b);
+        assertNotSame(b, c);
+
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void testReusedSessionStartsFromInitialState() throws IOException {
+        HighlighterSessionPool pool = new HighlighterSessionPool(JavaHighlighter::new, 1);
+
+        HighlighterSession session = pool.acquire();
+        CountingSink unterminated = new CountingSink();
+        session.scan(new StringReader("/* never closed\nstill comment"), unterminated);
+        assertEquals(JavaHighlighter.IN_COMMENT + 1, session.getHighlighter().getCurrentState());
+        pool.release(session);
+
+        session = pool.acquire();
+        CountingSink fresh = new CountingSink();
+        session.scan(new StringReader("int x;"), fresh);
+        assertEquals(JavaHighlighter.YYINITIAL + 1, session.getHighlighter().getCurrentState());
+        assertEquals(1, fresh.lines);
+        assertEquals(5, fresh.tokens);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new HighlighterSessionPool(JavaHighlighter::new, 0);
+    }
+
+    @Test
+    public void testScanLinesInParts() throws IOException {
+        String code = "<a href=\"x\">\r\n<!-- open\rcomment -->\n\t<b/>\r";
+        HighlighterSession whole = new HighlighterSession(new XmlHighlighter());
+        TokenBuffer expected = new TokenBuffer();
+        whole.scan(new StringReader(code), expected);
+
+        char[] text = code.toCharArray();
+        for (int split = 0; split <= text.length; split++) {
+            HighlighterSession session = new HighlighterSession(new XmlHighlighter());
+            TokenBuffer parts = new TokenBuffer();
+            session.begin();
+
+            int scanned = session.scanLines(text, 0, split, false, parts);
+            char[] rest = new char[text.length - scanned];
+            System.arraycopy(text, scanned, rest, 0, rest.length);
+            assertEquals(rest.length, session.scanLines(rest, 0, rest.length, true, parts));
+
+            assertEquals("split at " + split, expected.getLineCount(), parts.getLineCount());
+            assertEquals("split at " + split, expected.getTokenCount(), parts.getTokenCount());
+            for (int i = 0; i < expected.getTokenCount(); i++) {
+                assertEquals(expected.getStyle(i), parts.getStyle(i));
+                assertEquals(expected.getTokenLength(i), parts.getTokenLength(i));
+            }
+        }
+    }
+
+    @Test
+    public void testScanLinesAfterCheckedCharacters() throws IOException {
+        char[] text = "a\nbc\r".toCharArray();
+        HighlighterSession session = new HighlighterSession(new XmlHighlighter());
+        session.begin();
+
+        TokenBuffer tokens = new TokenBuffer();
+        assertEquals(0, session.scanLines(text, 0, 3, 3, false, tokens));
+        assertEquals(2, session.scanLines(text, 0, 3, 1, false, tokens));
+        assertEquals(0, session.scanLines(text, 2, 3, 2, false, tokens));
+        assertEquals(1, tokens.getLineCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCheckedCount() throws IOException {
+        HighlighterSession session = new HighlighterSession(new XmlHighlighter());
+        session.begin();
+        session.scanLines(new char[2], 0, 2, 3, false, new TokenBuffer());
+    }
+}
@@ -0,0 +1,141 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Base64;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class HighlighterSnapshotTest {
+
+    private static class DescribingSink implements TokenSink {
+        final StringBuilder description = new StringBuilder();
+        char[] text;
+
+        public void startLine(char[] text, int offset, int length) {
+            this.text = text;
+            description.append('[');
+        }
+
+        public void token(byte style, int offset, int length) {
+            description.append(style).append(':').append(text, offset, length).append('|');
+        }
+
+        public void endLine() {
+            description.append("]\n");
+        }
+    }
+
+    private static String scanInParts(Supplier<? extends ExplicitStateHighlighter> factory, String source, Random random) throws IOException {
+        DescribingSink sink = new DescribingSink();
+        String token = HighlighterSnapshot.start(new HighlighterSession(factory.get())).toToken();
+        HighlighterSnapshot snapshot;
+        do {
+            // every part is scanned by another session from the token alone
+            snapshot = HighlighterSnapshot.fromToken(token).scan(new HighlighterSession(factory.get()), source, 1 + random.nextInt(4), sink);
+            token = snapshot.toToken();
+        } while (snapshot.getOffset() < source.length());
+        return sink.description.toString();
+    }
+
+    private static void assertResumable(Supplier<? extends ExplicitStateHighlighter> factory, String source, Random random) throws IOException {
+        DescribingSink expected = new DescribingSink();
+        TokenScanner.scan(factory.get(), new StringReader(source), expected);
+        assertEquals(source, expected.description.toString(), scanInParts(factory, source, random));
+    }
+
+    @Test
+    public void testResumedScanning() throws IOException {
+        String code = "/**\n * Javadoc\n * @param x the value\n */\nint x = 1;\r\n/*\n\tblock\r*/\n// line\nString s = \"a\";\n\n/* open\n";
+        Random random = new Random(13);
+        assertResumable(JavaHighlighter::new, code, random);
+        assertResumable(JavaScriptHighlighter::new, code, random);
+        assertResumable(CppHighlighter::new, code + "#include <stdio.h>", random);
+        assertResumable(GroovyHighlighter::new, code + "def s = \"\"\"\nheredoc\n\"\"\"\n", random);
+    }
+
+    @Test
+    public void testResumedScanningThroughReturningStates() throws IOException {
+        String[] vocabulary = {"<!--V 'a' -->", "<!--B '", "'/-->", "<!--", "-->", "<a b=\"", "\">", "<![CDATA[", "]]>",
+            "{{v x}}", "{{b 'q", "'}}", "\n", "\r\n", "\r", "text", "'", "\""};
+        Random random = new Random(17);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder source = new StringBuilder();
+            int length = random.nextInt(100);
+            for (int j = 0; j < length; j++) {
+                source.append(vocabulary[random.nextInt(vocabulary.length)]);
+            }
+            assertResumable(XmlHighlighter::new, source.toString(), random);
+        }
+    }
+
+    @Test
+    public void testToken() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            code.append("<a b=\"<!--V 'name\n'/-->\">\n");
+        }
+        HighlighterSession session = new HighlighterSession(new XmlHighlighter());
+        HighlighterSnapshot snapshot = HighlighterSnapshot.start(session).scan(session, code, 99999, new DescribingSink());
+        assertEquals(99999, snapshot.getLine());
+
+        String token = snapshot.toToken();
+        assertTrue(token, token.length() <= 24);
+        assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+        assertEquals(snapshot, HighlighterSnapshot.fromToken(token));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidToken() {
+        HighlighterSnapshot.fromToken("AQAAAA");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherHighlighter() throws IOException {
+        HighlighterSnapshot snapshot = HighlighterSnapshot.start(new HighlighterSession(new JavaHighlighter()));
+        snapshot.scan(new HighlighterSession(new XmlHighlighter()), "<a/>\n", 1, new DescribingSink());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherSource() throws IOException {
+        HighlighterSession session = new HighlighterSession(new JavaHighlighter());
+        HighlighterSnapshot snapshot = HighlighterSnapshot.start(session).scan(session, "int a;\nint b;\n", 1, new DescribingSink());
+        snapshot.scan(session, "int ab;\nint b;\n", 1, new DescribingSink());
+    }
+
+    @Test
+    public void testForgedCheckpoint() throws IOException {
+        byte[] bytes = Base64.getUrlDecoder().decode(HighlighterSnapshot.start(new HighlighterSession(new JavaHighlighter())).toToken());
+        // the checkpoint is the last byte, 0x50 isn't a lexical state
+        bytes[bytes.length - 1] = 0x50;
+        HighlighterSnapshot forged = HighlighterSnapshot.fromToken(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+        try {
+            forged.scan(new HighlighterSession(new JavaHighlighter()), "int x;\n", 1, new DescribingSink());
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(JavaHighlighter.class.getName()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHighlighterWithoutCheckpoints() {
+        HighlighterSnapshot.start(new HighlighterSession(new ExplicitStateHighlighter() {
+            public void setReader(java.io.Reader reader) {
+            }
+
+            public byte getNextToken() {
+                return 0;
+            }
+
+            public int getTokenLength() {
+                return 0;
+            }
+        }));
+    }
+}
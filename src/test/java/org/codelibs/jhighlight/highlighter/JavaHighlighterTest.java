@@ -1,6 +1,7 @@
 package org.codelibs.jhighlight.highlighter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -490,6 +491,22 @@ public class JavaHighlighterTest {
                      JavaHighlighter.KEYWORD_STYLE, style);
     }
 
+    @Test
+    public void testAssertKeywordPerInstance() throws IOException {
+        JavaHighlighter keyword = new JavaHighlighter();
+        keyword.setAssertIsKeyword(true);
+        JavaHighlighter plain = new JavaHighlighter();
+        plain.setAssertIsKeyword(false);
+
+        keyword.setReader(new StringReader("assert"));
+        plain.setReader(new StringReader("assert"));
+
+        assertEquals(JavaHighlighter.KEYWORD_STYLE, keyword.getNextToken());
+        assertEquals(JavaHighlighter.PLAIN_STYLE, plain.getNextToken());
+        assertTrue(keyword.isAssertIsKeyword());
+        assertFalse(plain.isAssertIsKeyword());
+    }
+
     @Test
     public void testAssertWithoutFlag() throws IOException {
         String code = "assert";
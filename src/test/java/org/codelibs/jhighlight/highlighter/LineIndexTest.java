@@ -0,0 +1,153 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class LineIndexTest {
+
+    private static class LineCollector implements TokenSink {
+        final List<String> lines = new ArrayList<>();
+        StringBuilder line;
+        char[] text;
+
+        public void startLine(char[] text, int offset, int length) {
+            this.text = text;
+            line = new StringBuilder();
+        }
+
+        public void token(byte style, int offset, int length) {
+            line.append(style).append(':').append(text, offset, length).append('|');
+        }
+
+        public void endLine() {
+            lines.add(line.toString());
+        }
+    }
+
+    private static List<String> scanCompletely(ExplicitStateHighlighter highlighter, String source) throws IOException {
+        LineCollector collector = new LineCollector();
+        TokenScanner.scan(highlighter, new StringReader(source), collector);
+        return collector.lines;
+    }
+
+    private static List<String> scanRange(LineIndex index, HighlighterSession session, String source, int fromLine, int toLine) throws IOException {
+        LineCollector collector = new LineCollector();
+        index.scan(session, source, fromLine, toLine, collector);
+        return collector.lines;
+    }
+
+    private static void assertRanges(Supplier<? extends ExplicitStateHighlighter> factory, String source, Random random) throws IOException {
+        List<String> expected = scanCompletely(factory.get(), source);
+        HighlighterSession session = new HighlighterSession(factory.get());
+        for (int interval : new int[] {1, 3, 64}) {
+            LineIndex index = LineIndex.build(session, source, interval);
+            assertEquals(expected.size(), index.getLineCount());
+            assertEquals(expected, scanRange(index, session, source, 0, index.getLineCount()));
+            for (int i = 0; i < 20; i++) {
+                int from = random.nextInt(expected.size() + 1);
+                int to = from + random.nextInt(expected.size() - from + 1);
+                assertEquals(source, expected.subList(from, to), scanRange(index, session, source, from, to));
+            }
+        }
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        String code = "/**\n * Javadoc\n * @param x the value\n */\nint x = 1;\r\n/*\n\tblock\r*/\n// line\nString s = \"a\";\n\n/* open\n";
+        Random random = new Random(3);
+        assertRanges(JavaHighlighter::new, code, random);
+        assertRanges(CppHighlighter::new, code + "#include <stdio.h>", random);
+        assertRanges(GroovyHighlighter::new, code + "def s = \"\"\"\nheredoc\n\"\"\"\n", random);
+    }
+
+    @Test
+    public void testRangesThroughReturningStates() throws IOException {
+        String[] vocabulary = {"<!--V 'a' -->", "<!--B '", "'/-->", "<!--", "-->", "<a b=\"", "\">", "<![CDATA[", "]]>",
+            "{{v x}}", "{{b 'q", "'}}", "\n", "\r\n", "\r", "text", "'", "\""};
+        Random random = new Random(5);
+        for (int i = 0; i < 50; i++) {
+            StringBuilder source = new StringBuilder();
+            int length = random.nextInt(200);
+            for (int j = 0; j < length; j++) {
+                source.append(vocabulary[random.nextInt(vocabulary.length)]);
+            }
+            assertRanges(XmlHighlighter::new, source.toString(), random);
+        }
+    }
+
+    @Test
+    public void testBinaryForm() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            code.append(i % 7 == 0 ? "/* comment\n" : "int x;\n").append(i % 11 == 0 ? "*/\n" : "");
+        }
+        String source = code.toString();
+        HighlighterSession session = new HighlighterSession(new JavaHighlighter());
+        LineIndex index = LineIndex.build(session, source, 10);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        LineIndex read = LineIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(index.getLineCount(), read.getLineCount());
+        assertEquals(index.getLength(), read.getLength());
+        assertEquals(10, read.getInterval());
+        assertEquals(scanRange(index, session, source, 555, 777), scanRange(read, session, source, 555, 777));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidBinaryForm() throws IOException {
+        LineIndex.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5})));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherSource() throws IOException {
+        HighlighterSession session = new HighlighterSession(new JavaHighlighter());
+        LineIndex index = LineIndex.build(session, "int a;\nint b;\n", LineIndex.DEFAULT_INTERVAL);
+        index.scan(session, "int a;\n", 0, 1, new LineCollector());
+    }
+
+    @Test
+    public void testEditedSourceOfTheSameLength() throws IOException {
+        HighlighterSession session = new HighlighterSession(new JavaHighlighter());
+        LineIndex index = LineIndex.build(session, "int a;\n/* b */\n", LineIndex.DEFAULT_INTERVAL);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        LineIndex read = LineIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        for (LineIndex edited : new LineIndex[] {index, read}) {
+            try {
+                edited.scan(session, "int a;\n/* b *\n\n", 1, 2, new LineCollector());
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherHighlighter() throws IOException {
+        LineIndex index = LineIndex.build(new HighlighterSession(new JavaHighlighter()), "int a;\n", LineIndex.DEFAULT_INTERVAL);
+        index.scan(new HighlighterSession(new XmlHighlighter()), "int a;\n", 0, 1, new LineCollector());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testInvalidRange() throws IOException {
+        HighlighterSession session = new HighlighterSession(new JavaHighlighter());
+        LineIndex index = LineIndex.build(session, "int a;\n", LineIndex.DEFAULT_INTERVAL);
+        index.scan(session, "int a;\n", 0, 2, new LineCollector());
+    }
+}
@@ -0,0 +1,122 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class ParallelTokenScannerTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    private static class DescribingSink implements TokenSink {
+        final StringBuilder description = new StringBuilder();
+        char[] text;
+
+        public void startLine(char[] text, int offset, int length) {
+            this.text = text;
+            description.append('[');
+        }
+
+        public void token(byte style, int offset, int length) {
+            description.append(style).append(':').append(text, offset, length).append('|');
+        }
+
+        public void endLine() {
+            description.append("]\n");
+        }
+    }
+
+    private static String scanSequentially(Supplier<? extends ExplicitStateHighlighter> factory, String source) throws IOException {
+        DescribingSink sink = new DescribingSink();
+        TokenScanner.scan(factory.get(), new StringReader(source), sink);
+        return sink.description.toString();
+    }
+
+    private static String scanInParallel(Supplier<? extends ExplicitStateHighlighter> factory, String source, int chunkSize) throws IOException {
+        DescribingSink sink = new DescribingSink();
+        new ParallelTokenScanner(new HighlighterSessionPool(factory), POOL, chunkSize).scan(source, sink);
+        return sink.description.toString();
+    }
+
+    private static void assertIdentical(Supplier<? extends ExplicitStateHighlighter> factory, String source) throws IOException {
+        String expected = scanSequentially(factory, source);
+        for (int chunkSize : new int[] {1, 2, 5, 13, 64, 1000, ParallelTokenScanner.DEFAULT_CHUNK_SIZE}) {
+            assertEquals("chunk size " + chunkSize, expected, scanInParallel(factory, source, chunkSize));
+        }
+    }
+
+    @Test
+    public void testCommentsAcrossChunks() throws IOException {
+        String code = "/**\n * Javadoc\n * @param x the value\n */\nint x = 1;\n/*\n\tblock\n*/\n// line\r\nString s = \"a\";\r\n/* open\n";
+        assertIdentical(JavaHighlighter::new, code);
+        assertIdentical(CppHighlighter::new, code + "#include <stdio.h>\n");
+        assertIdentical(JavaScriptHighlighter::new, code);
+        assertIdentical(GroovyHighlighter::new, code + "def s = \"\"\"\nheredoc\n\"\"\"\n");
+    }
+
+    @Test
+    public void testRifeTagsAcrossChunks() throws IOException {
+        String xml = "<root attr=\"1\">\n<!--V 'value\n'/-->\n<a b=\"<!--B 'block'-->\n\"/>\n{{v\nname}}\n"
+            + "[!B 'x\n'/]\n<!-- comment\n-->\n<![CDATA[\n<data>\n]]>\n<?pi\n?>\n</root>";
+        assertIdentical(XmlHighlighter::new, xml);
+    }
+
+    @Test
+    public void testRandomSources() throws IOException {
+        String[] xml = {"<!--V 'a' -->", "<!--B '", "'/-->", "<!--", "-->", "<a b=\"", "\">", "<?x ", "?>",
+            "<![CDATA[", "]]>", "{{v x}}", "{{b 'q", "'}}", "\n", "\r\n", "text", " ", "'", "\""};
+        String[] java = {"/*", "*/", "/**", "@param", "//", "\"", "'", "\n", "\r\n", "int ", "x", "\t", " ", "\\"};
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            boolean is_xml = i % 2 == 0;
+            String[] vocabulary = is_xml ? xml : java;
+            StringBuilder source = new StringBuilder();
+            int length = random.nextInt(100);
+            for (int j = 0; j < length; j++) {
+                source.append(vocabulary[random.nextInt(vocabulary.length)]);
+            }
+            Supplier<? extends ExplicitStateHighlighter> factory = is_xml ? XmlHighlighter::new : JavaHighlighter::new;
+            String expected = scanSequentially(factory, source.toString());
+            assertEquals(source.toString(), expected, scanInParallel(factory, source.toString(), 1 + random.nextInt(20)));
+        }
+    }
+
+    @Test
+    public void testEmptySource() throws IOException {
+        assertEquals("", scanInParallel(JavaHighlighter::new, "", 1));
+    }
+
+    @Test
+    public void testCheckpointRestoresReturningStates() throws IOException {
+        XmlHighlighter highlighter = new XmlHighlighter();
+        DescribingSink sink = new DescribingSink();
+        TokenScanner.scan(highlighter, new StringReader("<a b=\"<!--V 'na\n"), sink);
+        int checkpoint = highlighter.getCheckpoint();
+        assertEquals(highlighter.getCurrentState(), (byte) (checkpoint & 0xFF));
+        assertTrue("The returning states should be part of the checkpoint", checkpoint >>> 8 != 0);
+
+        XmlHighlighter restored = new XmlHighlighter();
+        restored.reset(null);
+        restored.restoreCheckpoint(checkpoint);
+        assertEquals(checkpoint, restored.getCheckpoint());
+
+        DescribingSink continued = new DescribingSink();
+        TokenScanner.scan(restored, new StringReader("me'-->\" c=\"d\">"), continued);
+        DescribingSink expected = new DescribingSink();
+        TokenScanner.scan(highlighter, new StringReader("me'-->\" c=\"d\">"), expected);
+        assertEquals(expected.description.toString(), continued.description.toString());
+    }
+}
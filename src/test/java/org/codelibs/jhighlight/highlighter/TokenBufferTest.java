@@ -0,0 +1,156 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.codelibs.jhighlight.renderer.JavaXhtmlRenderer;
+import org.junit.Test;
+
+public class TokenBufferTest {
+
+    private static final String CODE = "/**\n * Doc @param x\n */\npublic class A {\n\tint x = 1; // c\n}\n";
+
+    private static class StringSink implements TokenSink {
+        final StringBuilder out = new StringBuilder();
+        char[] text;
+
+        public void startLine(char[] text, int offset, int length) {
+            this.text = text;
+            out.append('[');
+        }
+
+        public void token(byte style, int offset, int length) {
+            out.append(style).append(':').append(text, offset, length).append('|');
+        }
+
+        public void endLine() {
+            out.append(']');
+        }
+    }
+
+    @Test
+    public void testReplayMatchesScan() throws IOException {
+        StringSink direct = new StringSink();
+        TokenScanner.scan(new JavaHighlighter(), new StringReader(CODE), direct);
+
+        TokenBuffer buffer = TokenBuffer.scan(new JavaHighlighter(), new StringReader(CODE), false);
+        StringSink replayed = new StringSink();
+        buffer.replay(replayed);
+
+        assertEquals(direct.out.toString(), replayed.out.toString());
+        assertEquals(6, buffer.getLineCount());
+        assertFalse(buffer.hasLineCheckpoints());
+        assertTrue(buffer.getText().contains("    int x"));
+    }
+
+    @Test
+    public void testReplayRendersIdenticalXhtml() throws IOException {
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        StringWriter direct = new StringWriter();
+        renderer.tokenize(new StringReader(CODE), renderer.createTokenSink(direct));
+
+        TokenBuffer buffer = new TokenBuffer();
+        renderer.tokenize(new StringReader(CODE), buffer);
+        StringWriter replayed = new StringWriter();
+        buffer.replay(renderer.createTokenSink(replayed));
+
+        assertEquals(direct.toString(), replayed.toString());
+    }
+
+    @Test
+    public void testLineCheckpoints() throws IOException {
+        TokenBuffer buffer = TokenBuffer.scan(new JavaHighlighter(), new StringReader(CODE), true);
+
+        assertTrue(buffer.hasLineCheckpoints());
+        assertEquals(JavaHighlighter.YYINITIAL + 1, buffer.getLineCheckpoint(0));
+        assertEquals(JavaHighlighter.IN_JAVA_DOC_COMMENT + 1, buffer.getLineCheckpoint(1));
+        assertEquals(JavaHighlighter.IN_JAVA_DOC_COMMENT + 1, buffer.getLineCheckpoint(2));
+        assertEquals(JavaHighlighter.YYINITIAL + 1, buffer.getLineCheckpoint(3));
+    }
+
+    @Test
+    public void testResumeFromLineCheckpoint() throws IOException {
+        String xml = "<root>\n<a href=\"<!--V 'x\ny'/-->\n z\">\n<!--B 'b\n'/-->\n</a>\n</root>\n";
+        TokenBuffer buffer = TokenBuffer.scan(new XmlHighlighter(), new StringReader(xml), true);
+
+        boolean nested = false;
+        for (int line = 0; line < buffer.getLineCount(); line++) {
+            nested |= buffer.getLineCheckpoint(line) > 0xFF;
+
+            XmlHighlighter highlighter = new XmlHighlighter();
+            highlighter.restoreCheckpoint(buffer.getLineCheckpoint(line));
+            StringSink resumed = new StringSink();
+            TokenScanner.scan(highlighter, new StringReader(xml.substring(buffer.getLineOffset(line))), resumed);
+
+            StringSink replayed = new StringSink();
+            buffer.replay(replayed, line, buffer.getLineCount());
+            assertEquals("line " + line, replayed.out.toString(), resumed.out.toString());
+        }
+        assertTrue("A checkpoint should hold more than the lexical state", nested);
+    }
+
+    @Test
+    public void testLineRangeReplay() throws IOException {
+        TokenBuffer buffer = TokenBuffer.scan(new JavaHighlighter(), new StringReader(CODE), false);
+        StringSink sink = new StringSink();
+        buffer.replay(sink, 3, 4);
+
+        assertTrue(sink.out.toString().startsWith("[2:public|"));
+        assertTrue(sink.out.toString().endsWith("]"));
+        assertEquals(1, sink.out.toString().split("\\]").length);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testInvalidLineRange() throws IOException {
+        TokenBuffer buffer = TokenBuffer.scan(new JavaHighlighter(), new StringReader(CODE), false);
+        buffer.replay(new StringSink(), 2, 10);
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            code.append(CODE).append("String s").append(i).append(" = \"é中\";\n");
+        }
+        TokenBuffer buffer = TokenBuffer.scan(new JavaHighlighter(), new StringReader(code.toString()), true);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        buffer.writeTo(new DataOutputStream(bytes));
+        assertTrue("Serialized form should be compact", bytes.size() < buffer.getTokenCount() * 3 + buffer.getText().length() * 2);
+
+        TokenBuffer read = TokenBuffer.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(buffer.getTokenCount(), read.getTokenCount());
+        assertEquals(buffer.getLineCount(), read.getLineCount());
+        assertEquals(buffer.getText(), read.getText());
+        for (int i = 0; i < buffer.getLineCount(); i++) {
+            assertEquals(buffer.getLineCheckpoint(i), read.getLineCheckpoint(i));
+            assertEquals(buffer.getLineOffset(i), read.getLineOffset(i));
+        }
+
+        StringSink original = new StringSink();
+        buffer.replay(original);
+        StringSink restored = new StringSink();
+        read.replay(restored);
+        assertEquals(original.out.toString(), restored.out.toString());
+    }
+
+    @Test
+    public void testReadInvalidData() {
+        try {
+            TokenBuffer.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 })));
+            fail("Invalid data should be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
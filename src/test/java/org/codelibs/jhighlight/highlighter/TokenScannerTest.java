@@ -0,0 +1,103 @@
+package org.codelibs.jhighlight.highlighter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.jhighlight.renderer.JavaXhtmlRenderer;
+import org.junit.Test;
+
+public class TokenScannerTest {
+
+    private static class RecordingSink implements TokenSink {
+        final List<String> lines = new ArrayList<>();
+        final List<String> tokens = new ArrayList<>();
+        final List<Byte> styles = new ArrayList<>();
+        char[] text;
+        int lineOffset;
+        int lineLength;
+        int covered;
+
+        public void startLine(char[] text, int offset, int length) {
+            this.text = text;
+            this.lineOffset = offset;
+            this.lineLength = length;
+            this.covered = 0;
+        }
+
+        public void token(byte style, int offset, int length) {
+            assertEquals("Tokens should be contiguous", lineOffset + covered, offset);
+            assertTrue("Token length should be positive", length > 0);
+            tokens.add(new String(text, offset, length));
+            styles.add(style);
+            covered += length;
+        }
+
+        public void endLine() {
+            assertEquals("Tokens should cover the line", lineLength, covered);
+            lines.add(new String(text, lineOffset, lineLength));
+        }
+    }
+
+    @Test
+    public void testScanReportsLinesAndTokens() throws IOException {
+        String code = "class A {\r\n\t/* a\n b */ int x;\n}";
+        RecordingSink sink = new RecordingSink();
+
+        TokenScanner.scan(new JavaHighlighter(), new StringReader(code), sink);
+
+        assertEquals(4, sink.lines.size());
+        assertEquals("class A {\n", sink.lines.get(0));
+        assertEquals("    /* a\n", sink.lines.get(1));
+        assertEquals(" b */ int x;\n", sink.lines.get(2));
+        assertEquals("}\n", sink.lines.get(3));
+
+        assertEquals("class", sink.tokens.get(0));
+        assertEquals(JavaHighlighter.KEYWORD_STYLE, (byte) sink.styles.get(0));
+        int comment = sink.tokens.indexOf(" b */");
+        assertTrue("Comment continuation should be a token", comment >= 0);
+        assertEquals(JavaHighlighter.JAVA_COMMENT_STYLE, (byte) sink.styles.get(comment));
+    }
+
+    @Test
+    public void testScanEmptySource() throws IOException {
+        RecordingSink sink = new RecordingSink();
+
+        TokenScanner.scan(new JavaHighlighter(), new StringReader(""), sink);
+
+        assertEquals(0, sink.lines.size());
+        assertEquals(0, sink.tokens.size());
+    }
+
+    @Test
+    public void testMulticastSharesOneScan() throws IOException {
+        String code = "<a href=\"x\">text</a>\n<!-- c -->";
+        RecordingSink first = new RecordingSink();
+        RecordingSink second = new RecordingSink();
+
+        TokenScanner.scan(new XmlHighlighter(), new StringReader(code), new MulticastTokenSink(first, second));
+
+        assertEquals(first.lines, second.lines);
+        assertEquals(first.tokens, second.tokens);
+        assertEquals(first.styles, second.styles);
+        assertEquals(2, first.lines.size());
+    }
+
+    @Test
+    public void testRendererTokenSinkMatchesFragment() throws IOException {
+        String code = "public class Test {\n    int x = 1 < 2;\n}";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        StringWriter out = new StringWriter();
+
+        renderer.tokenize(new StringReader(code), renderer.createTokenSink(out));
+
+        String fragment = renderer.highlight("Test.java", code, "UTF-8", true);
+        assertTrue("Fragment should end with the rendered tokens", fragment.endsWith(out.toString()));
+        assertTrue(out.toString().contains("&lt;"));
+    }
+}
@@ -0,0 +1,86 @@
+package org.codelibs.jhighlight.renderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.codelibs.jhighlight.highlighter.ExplicitStateHighlighter;
+import org.codelibs.jhighlight.highlighter.JavaHighlighter;
+import org.junit.Test;
+
+public class CustomHighlighterTest {
+
+    /**
+     * A highlighter that only implements the methods that were required
+     * before 2.0.1, every line is a single plain token.
+     */
+    private static class LineHighlighter implements ExplicitStateHighlighter {
+        private Reader reader;
+        private int length;
+
+        public void setReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        public byte getNextToken() throws IOException {
+            length = 0;
+            int c;
+            while ((c = reader.read()) != -1) {
+                length++;
+                if ('\n' == c) {
+                    break;
+                }
+            }
+            return JavaHighlighter.PLAIN_STYLE;
+        }
+
+        public int getTokenLength() {
+            return length;
+        }
+    }
+
+    private static class LineXhtmlRenderer extends JavaXhtmlRenderer {
+        protected ExplicitStateHighlighter getHighlighter() {
+            return new LineHighlighter();
+        }
+    }
+
+    private static final String CODE = "int a = 1;\nint b = 2;\n";
+
+    @Test
+    public void testHighlighterWithoutReset() throws IOException {
+        XhtmlRenderer renderer = new LineXhtmlRenderer();
+        String first = renderer.highlight("A.java", CODE, "UTF-8", true);
+        assertTrue(first, first.contains("int&nbsp;a&nbsp;=&nbsp;1;"));
+        assertTrue(first, first.contains("int&nbsp;b&nbsp;=&nbsp;2;"));
+        assertEquals(first, renderer.highlight("A.java", CODE, "UTF-8", true));
+
+        StringBuilder chars = new StringBuilder();
+        renderer.highlight("A.java", CODE, chars, true);
+        assertEquals(first, chars.toString());
+
+        StringWriter streamed = new StringWriter();
+        for (int i = 0; i < 2; i++) {
+            streamed.getBuffer().setLength(0);
+            Writer writer = renderer.createHighlightingWriter("A.java", streamed, true, 4);
+            writer.write(CODE);
+            writer.close();
+            assertEquals(first, streamed.toString());
+        }
+    }
+
+    @Test
+    public void testDocumentsNeedCheckpoints() throws IOException {
+        try {
+            new HighlightedDocument(new LineXhtmlRenderer(), CODE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(LineHighlighter.class.getName()));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.codelibs.jhighlight.renderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HighlightedDocumentTest {
+
+    private static String highlight(XhtmlRenderer renderer, String text, boolean fragment) throws IOException {
+        StringWriter out = new StringWriter();
+        renderer.highlight("Test", new StringReader(text), out, fragment);
+        return out.toString();
+    }
+
+    private static String write(HighlightedDocument document, boolean fragment) throws IOException {
+        StringWriter out = new StringWriter();
+        document.write("Test", out, fragment);
+        return out.toString();
+    }
+
+    private static List<String> getLines(HighlightedDocument document) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < document.getLineCount(); i++) {
+            lines.add(document.getLineXhtml(i));
+        }
+        return lines;
+    }
+
+    @Test
+    public void testInitialHighlighting() throws IOException {
+        String code = "/**\n * Doc\n */\npublic class Test {\r\n\tint x = 1;\r}\n";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        HighlightedDocument document = new HighlightedDocument(renderer, code);
+
+        assertEquals(6, document.getLineCount());
+        assertEquals(code, document.getText());
+        assertEquals(highlight(renderer, code, true), write(document, true));
+        assertEquals(highlight(renderer, code, false), write(document, false));
+    }
+
+    @Test
+    public void testEditOnlyChangesItsLine() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            code.append("int value").append(i).append(" = ").append(i).append(";\n");
+        }
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        HighlightedDocument document = new HighlightedDocument(renderer, code);
+
+        int offset = code.indexOf("value500");
+        HighlightedDocument.Change change = document.edit(offset, 0, "new_");
+        assertEquals(500, change.getFirstLine());
+        assertEquals(1, change.getRemovedLineCount());
+        assertEquals(1, change.getLines().size());
+        assertTrue(change.getLines().get(0).contains("new_value500"));
+        assertEquals(highlight(renderer, document.getText(), true), write(document, true));
+    }
+
+    @Test
+    public void testCommentChangesTheLinesUntilItEnds() throws IOException {
+        String code = "int a;\nint b;\nint c;\n/* end */\nint d;\nint e;\n";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        HighlightedDocument document = new HighlightedDocument(renderer, code);
+
+        HighlightedDocument.Change change = document.edit(code.indexOf("int b"), 0, "/* ");
+        assertEquals(0, change.getFirstLine());
+        assertEquals(4, change.getRemovedLineCount());
+        assertEquals(4, change.getLines().size());
+        assertTrue(change.getLines().get(2).contains("java_comment"));
+        assertEquals(highlight(renderer, document.getText(), true), write(document, true));
+
+        change = document.edit(document.getText().indexOf("/* "), 3, "");
+        assertEquals(4, change.getRemovedLineCount());
+        assertEquals(highlight(renderer, code, true), write(document, true));
+    }
+
+    @Test
+    public void testCarriageReturnJoinsWithInsertedLineFeed() throws IOException {
+        String code = "int a;\rint b;\n";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        HighlightedDocument document = new HighlightedDocument(renderer, code);
+        assertEquals(2, document.getLineCount());
+
+        document.edit(code.indexOf("int b"), 0, "\n");
+        assertEquals(2, document.getLineCount());
+        assertEquals(highlight(renderer, document.getText(), true), write(document, true));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testInvalidRange() throws IOException {
+        new HighlightedDocument(new JavaXhtmlRenderer(), "int a;").edit(4, 3, "");
+    }
+
+    @Test
+    public void testRandomEdits() throws IOException {
+        String[] xml = {"<!--V 'a' -->", "<!--B '", "'/-->", "<!--", "-->", "<a b=\"", "\">", "<![CDATA[", "]]>",
+            "{{v x}}", "\n", "\r\n", "\r", "text", " ", "'", "\""};
+        String[] java = {"/*", "*/", "/**", "@param", "//", "\"", "'", "\n", "\r\n", "\r", "int ", "x", "\t", " "};
+        Random random = new Random(11);
+        for (int round = 0; round < 40; round++) {
+            boolean is_xml = round % 2 == 0;
+            String[] vocabulary = is_xml ? xml : java;
+            XhtmlRenderer renderer = is_xml ? new XmlXhtmlRenderer() : new JavaXhtmlRenderer();
+            HighlightedDocument document = new HighlightedDocument(renderer, randomText(random, vocabulary, 60));
+            List<String> lines = getLines(document);
+
+            for (int edit = 0; edit < 50; edit++) {
+                String text = document.getText();
+                int offset = random.nextInt(text.length() + 1);
+                int length = random.nextInt(Math.min(10, text.length() - offset) + 1);
+                String replacement = randomText(random, vocabulary, 4);
+                HighlightedDocument.Change change = document.edit(offset, length, replacement);
+
+                String expected = text.substring(0, offset) + replacement + text.substring(offset + length);
+                assertEquals(expected, document.getText());
+                assertEquals(expected, highlight(renderer, expected, true), write(document, true));
+
+                List<String> patched = new ArrayList<>(lines.subList(0, change.getFirstLine()));
+                patched.addAll(change.getLines());
+                patched.addAll(lines.subList(change.getFirstLine() + change.getRemovedLineCount(), lines.size()));
+                lines = getLines(document);
+                assertEquals(lines, patched);
+            }
+        }
+    }
+
+    private static String randomText(Random random, String[] vocabulary, int maximum) {
+        StringBuilder text = new StringBuilder();
+        int count = random.nextInt(maximum + 1);
+        for (int i = 0; i < count; i++) {
+            text.append(vocabulary[random.nextInt(vocabulary.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -3,15 +3,30 @@ package org.codelibs.jhighlight.renderer;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import org.codelibs.jhighlight.highlighter.HighlighterSnapshot;
 import org.codelibs.jhighlight.highlighter.JavaHighlighter;
+import org.codelibs.jhighlight.highlighter.LineIndex;
 import org.junit.Test;
 
 public class JavaXhtmlRendererTest {
@@ -331,6 +346,242 @@ public class JavaXhtmlRendererTest {
                    result.contains(".java_keyword"));
     }
 
+    @Test
+    public void testConcurrentHighlighting() throws Exception {
+        final JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        final String[] codes = new String[8];
+        final String[] expected = new String[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = "/* file " + i + " */\npublic class Test" + i + " {\n    assert x > " + i + ";\n    /* open";
+            expected[i] = renderer.highlight("Test.java", codes[i], "UTF-8", true);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final int index = i % codes.length;
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return renderer.highlight("Test.java", codes[index], "UTF-8", true);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(expected[i % codes.length], results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCssClassDefinitionsAreCompiledOnce() {
+        TestableJavaXhtmlRenderer renderer = new TestableJavaXhtmlRenderer();
+
+        String css = renderer.getCssClassDefinitions();
+        assertSame(css, renderer.getCssClassDefinitions());
+        assertSame(css, new TestableJavaXhtmlRenderer().getCssClassDefinitions());
+
+        XhtmlRenderer.reloadCssClassDefinitions();
+        String reloaded = renderer.getCssClassDefinitions();
+        assertNotSame(css, reloaded);
+        assertEquals(css, reloaded);
+    }
+
+    @Test
+    public void testHeaderWithStatefulCharset() throws IOException {
+        String code = "public class Test { }";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        assertEquals(renderer.highlight("Test.java", code, "UTF-8", false),
+                     renderer.highlight("Test.java", code, "UTF-16", false));
+        assertEquals(renderer.highlight("Test.java", code, "UTF-8", true),
+                     renderer.highlight("Test.java", code, "UTF-16", true));
+    }
+
+    @Test
+    public void testOverriddenFooterIsUsed() throws IOException {
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer() {
+            @Override
+            protected String getXhtmlFooter() {
+                return "</code><p>footer</p></body></html>";
+            }
+        };
+
+        String result = renderer.highlight("Test.java", "int x;", "UTF-8", false);
+        assertTrue(result.endsWith("</code><p>footer</p></body></html>"));
+    }
+
+    @Test
+    public void testHighlightingWriter() throws IOException {
+        String code = "/* a\r\n * b */\r\npublic class Test {\n\tint x = 1;\r}";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        StringWriter out = new StringWriter();
+        Writer writer = renderer.createHighlightingWriter("Test.java", out, false, 4);
+        for (int i = 0; i < code.length(); i++) {
+            writer.write(code.charAt(i));
+        }
+        writer.close();
+
+        assertEquals(renderer.highlight("Test.java", code, "UTF-8", false), out.toString());
+    }
+
+    @Test
+    public void testHighlightingWriterWithLongLines() throws IOException {
+        StringBuilder code = new StringBuilder("int[] a = {");
+        for (int i = 0; i < 5000; i++) {
+            code.append(i).append(", ");
+        }
+        code.append("};\r\n// \"x\"\r\rint b;\r\n");
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        StringWriter out = new StringWriter();
+        Writer writer = renderer.createHighlightingWriter("Test.java", out, false, 16);
+        for (int i = 0; i < code.length(); i += 3) {
+            writer.write(code.substring(i, Math.min(code.length(), i + 3)));
+        }
+        writer.close();
+
+        assertEquals(renderer.highlight("Test.java", code.toString(), "UTF-8", false), out.toString());
+    }
+
+    @Test
+    public void testCompactLayout() throws IOException {
+        String code = "\n/**\n * Doc <b>\n */\npublic static class A {\n  int x = 1; // a & b\n}\n";
+        RenderOptions options = RenderOptions.DEFAULT.withCompact(true);
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        String result = renderer.highlight("A.java", code, "UTF-8", false, options);
+        assertTrue(result.startsWith("<!DOCTYPE html>\n"));
+        assertTrue(result.contains("<meta charset=\"UTF-8\">"));
+        assertTrue(result.contains("<title>A.java</title>"));
+        assertTrue(result.contains(".jh .kw {"));
+        assertTrue(result.endsWith("</pre>\n</body>\n</html>\n"));
+        assertFalse(result.contains("&nbsp;"));
+        assertFalse(result.contains("<br />"));
+
+        String fragment = renderer.highlight("A.java", code, "UTF-8", true, options);
+        assertTrue(fragment.endsWith(
+            "<pre class=\"jh\">\n" +
+            "\n" +
+            "<span class=\"dc\">/**\n * Doc &lt;b&gt;\n */</span>\n" +
+            "<span class=\"kw\">public static class</span> A <span class=\"sp\">{</span>\n" +
+            "  <span class=\"ty\">int</span> x <span class=\"op\">=</span> <span class=\"lt\">1</span><span class=\"sp\">;</span> <span class=\"cm\">// a &amp; b</span>\n" +
+            "<span class=\"sp\">}</span>\n" +
+            "</pre>\n"));
+
+        String xhtml = renderer.highlight("A.java", code, "UTF-8", true);
+        assertTrue("Compact layout should be smaller", fragment.length() < xhtml.length());
+    }
+
+    @Test
+    public void testCompactLayoutIsIdenticalForAllInputs() throws IOException {
+        String code = "class A {\n\tString s = \"caf\u00e9\";\n}\n";
+        RenderOptions options = RenderOptions.DEFAULT.withCompact(true);
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        String result = renderer.highlight("A.java", code, "UTF-8", false, options);
+        assertTrue(result.contains("caf&eacute;"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        renderer.highlight("A.java", new ByteArrayInputStream(code.getBytes("UTF-8")), bytes, "UTF-8", false, options);
+        assertEquals(result, bytes.toString("UTF-8"));
+
+        StringWriter chars = new StringWriter();
+        renderer.highlight("A.java", new StringReader(code), chars, true, options);
+        assertEquals(renderer.highlight("A.java", code, "UTF-8", true, options), chars.toString());
+
+        String minimal = renderer.highlight("A.java", code, "UTF-8", true, options.withMinimalEscaping(true));
+        assertTrue(minimal.contains("caf\u00e9"));
+    }
+
+    @Test
+    public void testCompactRenderOptions() {
+        RenderOptions compact = RenderOptions.DEFAULT.withCompact(true);
+        assertTrue(compact.isCompact());
+        assertFalse(RenderOptions.DEFAULT.isCompact());
+        assertEquals(RenderOptions.DEFAULT, compact.withCompact(false));
+        assertFalse(compact.equals(compact.withMinimalEscaping(true)));
+        assertFalse(compact.toString().equals(RenderOptions.DEFAULT.toString()));
+        assertFalse(compact.toString().equals(RenderOptions.DEFAULT.withMinimalEscaping(true).toString()));
+    }
+
+    @Test
+    public void testExternalStylesheet() throws IOException {
+        String code = "public class A { }\n";
+        RenderOptions options = RenderOptions.DEFAULT.withStylesheet("../jhighlight-java.css");
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        String inline = renderer.highlight("A.java", code, "UTF-8", false);
+        String linked = renderer.highlight("A.java", code, "UTF-8", false, options);
+        assertTrue(linked.contains("<link rel=\"stylesheet\" type=\"text/css\" href=\"../jhighlight-java.css\" />\n</head>"));
+        assertFalse(linked.contains("<style"));
+        assertEquals(inline.substring(inline.indexOf("</head>")), linked.substring(linked.indexOf("</head>")));
+        assertTrue(inline.contains(renderer.getStylesheet(options)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        renderer.highlight("A.java", new ByteArrayInputStream(code.getBytes("UTF-8")), bytes, "UTF-8", false, options);
+        assertEquals(linked, bytes.toString("UTF-8"));
+
+        StringWriter streamed = new StringWriter();
+        Writer writer = renderer.createHighlightingWriter("A.java", streamed, false, 4, options);
+        writer.write(code);
+        writer.close();
+        assertEquals(linked, streamed.toString());
+
+        assertEquals(renderer.highlight("A.java", code, "UTF-8", true), renderer.highlight("A.java", code, "UTF-8", true, options));
+
+        RenderOptions compact = options.withCompact(true);
+        String compactLinked = renderer.highlight("A.java", code, "UTF-8", false, compact);
+        assertTrue(compactLinked.contains("<link rel=\"stylesheet\" href=\"../jhighlight-java.css\">\n</head>"));
+        assertFalse(compactLinked.contains("<style>"));
+        assertTrue(renderer.getStylesheet(compact).contains(".jh .kw {"));
+        assertFalse(options.equals(RenderOptions.DEFAULT));
+        assertEquals(RenderOptions.DEFAULT, options.withStylesheet(null));
+    }
+
+    @Test
+    public void testThemes() throws IOException {
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        RenderOptions options = RenderOptions.DEFAULT;
+
+        String dark = renderer.getStylesheet(options, "dark");
+        assertNotNull(dark);
+        assertTrue(dark.contains(".java_keyword {\ncolor: rgb(86,156,214); font-weight: bold;\n}\n"));
+        assertSame(dark, renderer.getStylesheet(options, "dark"));
+        assertEquals(renderer.getStylesheet(options), renderer.getStylesheet(options, XhtmlRenderer.DEFAULT_THEME));
+        assertTrue(renderer.getStylesheet(options.withCompact(true), "dark").contains(".jh .kw {\ncolor: rgb(86,156,214);"));
+        assertNull(renderer.getStylesheet(options, "missing"));
+        assertTrue(XhtmlRenderer.isTheme("dark"));
+        assertTrue(XhtmlRenderer.isTheme(XhtmlRenderer.DEFAULT_THEME));
+        assertFalse(XhtmlRenderer.isTheme("missing"));
+        assertFalse(XhtmlRenderer.isTheme("../jhighlight"));
+        try {
+            renderer.getStylesheet(options, "dark-blue");
+            fail("Theme names can't contain dashes");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // every style of every language has a dark definition
+        for (XhtmlRenderer other : new XhtmlRenderer[]{renderer, new XmlXhtmlRenderer(), new CppXhtmlRenderer()}) {
+            String defaults = other.getStylesheet(options);
+            String themed = other.getStylesheet(options, "dark");
+            for (Object selector : other.getDefaultCssStyles().keySet()) {
+                String rule = selector + " {\n";
+                String default_rule = defaults.substring(defaults.indexOf(rule), defaults.indexOf("}", defaults.indexOf(rule)));
+                assertFalse(String.valueOf(selector), themed.contains(default_rule));
+            }
+        }
+
+        String linked = renderer.highlight("A.java", "class A { }\n", "UTF-8", false, options.withStylesheet("jhighlight-java.css"));
+        assertEquals(XhtmlRendererFactory.getStylesheetName("java"), "jhighlight-java.css");
+        assertEquals(XhtmlRendererFactory.getStylesheetName("java", "dark"), "jhighlight-java-dark.css");
+        assertFalse(linked.contains("rgb("));
+    }
+
     // Helper class to access protected methods
     private static class TestableJavaXhtmlRenderer extends JavaXhtmlRenderer {
         @Override
@@ -338,9 +589,94 @@ public class JavaXhtmlRendererTest {
             return super.getCssClass(style);
         }
 
+        @Override
+        public String getCssClassDefinitions() {
+            return super.getCssClassDefinitions();
+        }
+
         @Override
         public Map getDefaultCssStyles() {
             return super.getDefaultCssStyles();
         }
     }
+
+    @Test
+    public void testParallelScanning() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            code.append("/* comment ").append(i).append("\n * on two lines */\nint value").append(i).append(" = \"").append(i).append("\";\n");
+        }
+        RenderOptions parallel = RenderOptions.DEFAULT.withParallel(true);
+        assertTrue(parallel.isParallel());
+        assertNotSame(RenderOptions.DEFAULT, parallel);
+        assertEquals(RenderOptions.DEFAULT.toString(), parallel.toString());
+
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        String source = code.toString();
+        assertEquals(renderer.highlight("Test.java", source, "UTF-8", false),
+            renderer.highlight("Test.java", source, "UTF-8", false, parallel));
+
+        StringWriter sequential = new StringWriter();
+        renderer.tokenize(new StringReader(source), renderer.createTokenSink(sequential));
+        StringWriter chunked = new StringWriter();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            renderer.tokenize(source, renderer.createTokenSink(chunked), pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(sequential.toString(), chunked.toString());
+    }
+
+    @Test
+    public void testHighlightLines() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            code.append("/* comment ").append(i).append("\n * on two lines */\n\tint value").append(i).append(" = \"").append(i).append("\";\r\n");
+        }
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        LineIndex index = renderer.createLineIndex(code);
+        assertEquals(1500, index.getLineCount());
+
+        StringWriter complete = new StringWriter();
+        renderer.highlightLines("Test.java", code, index, 0, index.getLineCount(), complete, false, RenderOptions.DEFAULT);
+        assertEquals(renderer.highlight("Test.java", code.toString(), "UTF-8", false), complete.toString());
+
+        HighlightedDocument document = new HighlightedDocument(renderer, code);
+        for (int[] range : new int[][] {{0, 1}, {63, 65}, {64, 264}, {1001, 1500}, {700, 700}}) {
+            StringBuilder expected = new StringBuilder(renderer.getXhtmlHeaderFragment("Test.java"));
+            for (int line = range[0]; line < range[1]; line++) {
+                expected.append(document.getLineXhtml(line));
+            }
+            StringWriter page = new StringWriter();
+            renderer.highlightLines("Test.java", code, index, range[0], range[1], page, true, RenderOptions.DEFAULT);
+            assertEquals(expected.toString(), page.toString());
+        }
+    }
+
+    @Test
+    public void testResumedHighlighting() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            code.append("/* comment ").append(i).append("\n * on two lines */\n\tint value").append(i).append(" = \"").append(i).append("\";\n");
+        }
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        String header = renderer.getXhtmlHeaderFragment("Test.java");
+
+        StringBuilder parts = new StringBuilder(header);
+        HighlighterSnapshot snapshot = null;
+        int requests = 0;
+        do {
+            String token = null == snapshot ? null : snapshot.toToken();
+            StringWriter part = new StringWriter();
+            snapshot = renderer.highlightLines("Test.java", code, null == token ? null : HighlighterSnapshot.fromToken(token), 100, part, true, RenderOptions.DEFAULT);
+            assertTrue(part.toString().startsWith(header));
+            parts.append(part.toString().substring(header.length()));
+            requests++;
+        } while (snapshot.getOffset() < code.length());
+
+        assertEquals(9, requests);
+        assertEquals(900, snapshot.getLine());
+        assertEquals(renderer.highlight("Test.java", code.toString(), "UTF-8", true), parts.toString());
+    }
 }
@@ -1,14 +1,27 @@
 package org.codelibs.jhighlight.renderer;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
+import org.codelibs.jhighlight.highlighter.TokenSink;
 import org.junit.Test;
 
 /**
@@ -306,4 +319,180 @@ public class RendererEncodingTest {
         String result = output.toString("ISO-8859-1");
         assertNotNull("Result should not be null", result);
     }
+
+    @Test
+    public void testHighlightCharSequenceToAppendable() throws IOException {
+        String code = "public class Test {\n    String s = \"\u5f00\u59cb \ud83d\ude00\";\n}";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        StringBuilder builder = new StringBuilder();
+        renderer.highlight("Test.java", code, builder, false);
+        assertEquals(renderer.highlight("Test.java", code, "UTF-8", false), builder.toString());
+
+        StringBuffer buffer = new StringBuffer();
+        renderer.highlight("Test.java", code, buffer, true);
+        assertEquals(renderer.highlight("Test.java", code, "UTF-8", true), buffer.toString());
+    }
+
+    @Test
+    public void testHighlightReaderToWriter() throws IOException {
+        String code = "int x = 1;\r\n\tint y = 2;";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        StringWriter writer = new StringWriter();
+        renderer.highlight("Test.java", new StringReader(code), writer, true);
+        assertEquals(renderer.highlight("Test.java", code, "UTF-8", true), writer.toString());
+    }
+
+    @Test
+    public void testStringVariantReplacesUnmappableCharacters() throws IOException {
+        String code = "String s = \"\u20ac\u5f00\";";
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        renderer.highlight("Test.java", new ByteArrayInputStream(code.getBytes("ISO-8859-1")), output, "ISO-8859-1", true);
+
+        assertEquals(output.toString("ISO-8859-1"), renderer.highlight("Test.java", code, "ISO-8859-1", true));
+    }
+
+    @Test(expected = UnsupportedEncodingException.class)
+    public void testStringVariantWithUnknownEncoding() throws IOException {
+        new JavaXhtmlRenderer().highlight("Test.java", "int x;", "NO-SUCH-ENCODING", true);
+    }
+
+    @Test
+    public void testMinimalEscapingUTF8() throws IOException {
+        String code = "// caf\u00e9 \u00e0 la cr\u00e8me, \u03b1 \u2264 \u03b2, \u4e2d\u6587 \uD83D\uDE00\nString s = \"<&>\";\n";
+        RenderOptions options = RenderOptions.DEFAULT.withMinimalEscaping(true);
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        ByteArrayOutputStream minimal = new ByteArrayOutputStream();
+        renderer.highlight("Test.java", new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), minimal, "UTF-8", true, options);
+        ByteArrayOutputStream entities = new ByteArrayOutputStream();
+        renderer.highlight("Test.java", new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), entities, "UTF-8", true);
+
+        String result = minimal.toString("UTF-8");
+        assertTrue(result.contains("caf\u00e9&nbsp;\u00e0"));
+        assertTrue(result.contains("\u03b1&nbsp;\u2264&nbsp;\u03b2"));
+        assertTrue(result.contains("\u4e2d\u6587&nbsp;\uD83D\uDE00"));
+        assertTrue(result.contains("&quot;&lt;&amp;&gt;&quot;"));
+        assertTrue(entities.toString("UTF-8").contains("caf&eacute;"));
+        assertTrue("Minimal escaping should be smaller", minimal.size() < entities.size());
+
+        assertEquals(result, renderer.highlight("Test.java", code, "UTF-8", true, options));
+        StringBuilder chars = new StringBuilder();
+        renderer.highlight("Test.java", code, chars, true, options);
+        assertEquals(result, chars.toString());
+    }
+
+    @Test
+    public void testMinimalEscapingUnrepresentableCharacters() throws IOException {
+        String code = "// caf\u00e9 \u4e2d \uD83D\uDE00\n";
+        RenderOptions options = RenderOptions.DEFAULT.withMinimalEscaping(true);
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+
+        String latin1 = renderer.highlight("Test.java", code, "ISO-8859-1", true, options);
+        assertTrue(latin1.contains("caf\u00e9&nbsp;&#20013;&nbsp;&#128512;"));
+
+        String ascii = renderer.highlight("Test.java", code, "US-ASCII", true, options);
+        assertTrue(ascii.contains("caf&#233;&nbsp;&#20013;&nbsp;&#128512;"));
+    }
+
+    @Test
+    public void testRenderOptions() {
+        RenderOptions minimal = RenderOptions.DEFAULT.withMinimalEscaping(true);
+        assertTrue(minimal.isMinimalEscaping());
+        assertTrue(!RenderOptions.DEFAULT.isMinimalEscaping());
+        assertEquals(minimal, RenderOptions.DEFAULT.withMinimalEscaping(true));
+        assertEquals(RenderOptions.DEFAULT, minimal.withMinimalEscaping(false));
+        assertTrue(!minimal.toString().equals(RenderOptions.DEFAULT.toString()));
+    }
+
+    @Test
+    public void testBytesAreIdenticalToEncodedCharacters() throws IOException {
+        char[] long_line = new char[20000];
+        Arrays.fill(long_line, '\u00e9');
+        long_line[10000] = '\uD83D';
+        long_line[10001] = '\uDE00';
+        String[] codes = {
+            "// caf\u00e9 \u00e0 la cr\u00e8me, \u03b1 \u2264 \u03b2, \u4e2d\u6587 \uD83D\uDE00\nString s = \"<&>\";\n",
+            "int a\u00e9\u4e2d = 0; // \uD83D x \uDE00 \uD83D\n\tchar c = '\uD83D';",
+            "/* " + new String(long_line) + " */\nint x;",
+            ""
+        };
+        String[] encodings = {"UTF-8", "ISO-8859-1", "US-ASCII", "windows-1252"};
+        RenderOptions[] options = {RenderOptions.DEFAULT, RenderOptions.DEFAULT.withMinimalEscaping(true)};
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        // a custom token sink keeps the highlighting on the characters path
+        JavaXhtmlRenderer chars = new JavaXhtmlRenderer() {
+            public TokenSink createTokenSink(Writer out) {
+                return super.createTokenSink(out);
+            }
+        };
+
+        for (String code : codes) {
+            for (String encoding : encodings) {
+                for (RenderOptions option : options) {
+                    for (boolean fragment : new boolean[] {true, false}) {
+                        String message = encoding + ", " + option + ", fragment=" + fragment;
+
+                        ByteBuffer expected = ByteBuffer.allocate(200000);
+                        chars.highlight("Test.java", code, expected, encoding, fragment, option);
+                        ByteBuffer buffer = ByteBuffer.allocate(expected.position() + 10);
+                        buffer.position(3);
+                        renderer.highlight("Test.java", code, buffer, encoding, fragment, option);
+                        assertArrayEquals(message, Arrays.copyOf(expected.array(), expected.position()), Arrays.copyOfRange(buffer.array(), 3, buffer.position()));
+
+                        byte[] input = code.getBytes(encoding);
+                        ByteArrayOutputStream expected_stream = new ByteArrayOutputStream();
+                        chars.highlight("Test.java", new ByteArrayInputStream(input), expected_stream, encoding, fragment, option);
+                        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                        renderer.highlight("Test.java", new ByteArrayInputStream(input), stream, encoding, fragment, option);
+                        assertArrayEquals(message, expected_stream.toByteArray(), stream.toByteArray());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testByteBufferOverflow() throws IOException {
+        JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+        try {
+            renderer.highlight("Test.java", "public class Test {}", ByteBuffer.allocate(64), "UTF-8", false, RenderOptions.DEFAULT);
+            fail("The buffer is too small");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        renderer.highlight("Test.java", "public class Test {}", buffer, "UTF-8", true, RenderOptions.DEFAULT.withCompact(true));
+        assertEquals(renderer.highlight("Test.java", "public class Test {}", "UTF-8", true, RenderOptions.DEFAULT.withCompact(true)),
+            new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMappedFileIsIdenticalToStream() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            code.append("/* \u4e2d\u6587 ").append(i).append(" \ud83d\ude00 */\r\n\tString s").append(i).append(" = \"\u00e9t\u00e9 <&>\";\n");
+        }
+        Path file = Files.createTempFile("jhighlight-test", ".java");
+        try {
+            JavaXhtmlRenderer renderer = new JavaXhtmlRenderer();
+            for (String encoding : new String[] {"UTF-8", "ISO-8859-1", "UTF-16"}) {
+                byte[] bytes = code.toString().getBytes(encoding);
+                Files.write(file, bytes);
+                for (RenderOptions options : new RenderOptions[] {RenderOptions.DEFAULT, RenderOptions.DEFAULT.withCompact(true)}) {
+                    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                    renderer.highlight("Test.java", new ByteArrayInputStream(bytes), streamed, encoding, false, options);
+                    ByteArrayOutputStream mapped = new ByteArrayOutputStream();
+                    renderer.highlight("Test.java", file, mapped, encoding, false, options);
+                    assertArrayEquals(encoding, streamed.toByteArray(), mapped.toByteArray());
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
 }
@@ -0,0 +1,39 @@
+package org.codelibs.jhighlight.renderer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class RendererTest {
+
+    /** A renderer that only implements the byte and string based methods. */
+    private static class UpperCaseRenderer implements Renderer {
+        public void highlight(String name, InputStream in, OutputStream out, String encoding, boolean fragment) throws IOException {
+            out.write(highlight(name, new String(in.readAllBytes(), encoding), encoding, fragment).getBytes(encoding));
+        }
+
+        public String highlight(String name, String in, String encoding, boolean fragment) {
+            return (fragment ? "" : "<" + name + ">") + in.toUpperCase();
+        }
+    }
+
+    @Test
+    public void testReaderIsBridgedToTheStringMethod() throws IOException {
+        StringWriter out = new StringWriter();
+        new UpperCaseRenderer().highlight("A.txt", new StringReader("café"), out, false);
+        assertEquals("<A.txt>CAFÉ", out.toString());
+    }
+
+    @Test
+    public void testCharSequenceIsBridgedToTheStringMethod() throws IOException {
+        StringBuilder out = new StringBuilder("> ");
+        new UpperCaseRenderer().highlight("A.txt", new StringBuilder("abc"), out, true);
+        assertEquals("> ABC", out.toString());
+    }
+}
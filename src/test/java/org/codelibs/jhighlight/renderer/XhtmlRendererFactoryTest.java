@@ -8,6 +8,7 @@ import static org.codelibs.jhighlight.renderer.XhtmlRendererFactory.XML;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -333,4 +334,24 @@ public class XhtmlRendererFactoryTest {
         assertTrue("Full document should contain code element", result.contains("<code"));
         assertTrue("Full document should contain html element", result.contains("<html"));
     }
+
+    @Test
+    public void testRenderersAreShared() {
+        Renderer java = XhtmlRendererFactory.getRenderer(JAVA);
+
+        assertSame(java, XhtmlRendererFactory.getRenderer(JAVA));
+        assertSame(java, XhtmlRendererFactory.getRenderer("bsh"));
+        assertSame(java, XhtmlRendererFactory.getRenderer("JAVA"));
+        assertSame(java, XhtmlRendererFactory.getRenderer("Test.Java"));
+        assertSame(XhtmlRendererFactory.getRenderer(HTML), XhtmlRendererFactory.getRenderer("index.htm"));
+        assertSame(XhtmlRendererFactory.getRenderer(HTML), XhtmlRendererFactory.getRenderer(XML));
+        assertSame(XhtmlRendererFactory.getSupportedTypes(), XhtmlRendererFactory.getSupportedTypes());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testDeprecatedFactoryUsesSharedRenderers() {
+        assertSame(XhtmlRendererFactory.getRenderer(CPP), com.uwyn.jhighlight.renderer.XhtmlRendererFactory.getRenderer(CPP));
+        assertSame(XhtmlRendererFactory.getRenderer(GROOVY), com.uwyn.jhighlight.renderer.XhtmlRendererFactory.getRenderer("test.groovy"));
+    }
 }
@@ -1,13 +1,16 @@
 package org.codelibs.jhighlight.servlet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -184,8 +187,207 @@ public class HighlightFilterTest {
         assertEquals("/scripts/Script.groovy", chain.getLastRequestURI());
     }
 
+    @Test
+    public void testStreamingMatchesBuffered() throws IOException, ServletException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            code.append("/* line ").append(i).append(" \u00e9 */ public int x").append(i).append(" = ").append(i).append(";\n");
+        }
+
+        HighlightFilter streaming = new HighlightFilter();
+        Map<String, String> params = new HashMap<>();
+        params.put("streaming", "true");
+        params.put("bufferSize", "64");
+        streaming.init(new MockFilterConfig(params));
+
+        byte[] buffered_output = filterJavas(filter, code.toString());
+        byte[] streamed_output = filterJavas(streaming, code.toString());
+
+        assertTrue(buffered_output.length > code.length());
+        assertEquals(new String(buffered_output, "UTF-8"), new String(streamed_output, "UTF-8"));
+    }
+
+    @Test
+    public void testStreamingPassesErrorsThrough() throws IOException, ServletException {
+        HighlightFilter streaming = new HighlightFilter();
+        streaming.init(new MockFilterConfig(Collections.singletonMap("streaming", "true")));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRequestURI("/src/NotFound.javas");
+        request.setServletPath("/src/NotFound.javas");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        streaming.doFilter(request, response, new MockFilterChain("not found", HttpServletResponse.SC_NOT_FOUND));
+
+        assertEquals("not found", new String(response.getOutputBytes(), "UTF-8"));
+    }
+
+    @Test
+    public void testStreamingDropsTheContentLengthOfTheSource() throws IOException, ServletException {
+        HighlightFilter streaming = new HighlightFilter();
+        streaming.init(new MockFilterConfig(Collections.singletonMap("streaming", "true")));
+
+        for (int status : new int[] {HttpServletResponse.SC_OK, HttpServletResponse.SC_NOT_FOUND}) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setRequestURI("/src/Example.javas");
+            request.setServletPath("/src/Example.javas");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+
+            final byte[] source = "public class Example { }".getBytes("UTF-8");
+            streaming.doFilter(request, response, (req, res) -> {
+                HttpServletResponse http_response = (HttpServletResponse) res;
+                http_response.setStatus(status);
+                http_response.setContentLength(source.length);
+                http_response.setContentLengthLong(source.length);
+                http_response.setHeader("Content-Length", String.valueOf(source.length));
+                http_response.addHeader("content-length", String.valueOf(source.length));
+                http_response.getOutputStream().write(source);
+            });
+
+            if (HttpServletResponse.SC_OK == status) {
+                assertTrue(response.getOutputBytes().length > source.length);
+                assertEquals(0, response.contentLength);
+                assertNull(response.getHeader("Content-Length"));
+            } else {
+                assertEquals(source.length, response.getOutputBytes().length);
+                assertEquals(String.valueOf(source.length), response.getHeader("Content-Length"));
+            }
+        }
+    }
+
+    @Test
+    public void testExternalStylesheet() throws IOException, ServletException {
+        HighlightFilter linking = new HighlightFilter();
+        linking.init(new MockFilterConfig(Collections.singletonMap("stylesheet", "true")));
+
+        String document = new String(filterJavas(linking, "public class Example { }"), "UTF-8");
+        int start = document.indexOf("href=\"/jhighlight-java.css?v=");
+        assertTrue(start != -1);
+        assertFalse(document.contains("<style"));
+        String address = document.substring(start + 6, document.indexOf('"', start + 6));
+
+        String version = address.substring(address.indexOf("?v=") + 3);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRequestURI("/jhighlight-java.css");
+        request.setServletPath("/jhighlight-java.css");
+        request.setParameter("v", version);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain("unused");
+        linking.doFilter(request, response, chain);
+
+        assertFalse(chain.wasCalled());
+        assertEquals("text/css; charset=UTF-8", response.getContentType());
+        assertTrue(response.getHeader("Cache-Control").contains("max-age=31536000"));
+        String css = new String(response.getOutputBytes(), "UTF-8");
+        assertTrue(css.contains(".java_keyword {"));
+        String etag = response.getHeader("ETag");
+        assertEquals("\"" + version + "\"", etag);
+
+        MockHttpServletRequest revalidation = new MockHttpServletRequest();
+        revalidation.setRequestURI("/jhighlight-java.css");
+        revalidation.setServletPath("/jhighlight-java.css");
+        revalidation.setHeader("If-None-Match", etag);
+        MockHttpServletResponse not_modified = new MockHttpServletResponse();
+        linking.doFilter(revalidation, not_modified, new MockFilterChain("unused"));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, not_modified.getStatus());
+        assertEquals(0, not_modified.getOutputBytes().length);
+
+        MockHttpServletResponse unversioned = requestStylesheet(linking, "/jhighlight-java.css");
+        assertEquals("no-cache", unversioned.getHeader("Cache-Control"));
+        assertEquals(etag, unversioned.getHeader("ETag"));
+        assertEquals(css, new String(unversioned.getOutputBytes(), "UTF-8"));
+
+        MockHttpServletRequest outdated = new MockHttpServletRequest();
+        outdated.setRequestURI("/jhighlight-java.css");
+        outdated.setServletPath("/jhighlight-java.css");
+        outdated.setParameter("v", "0");
+        MockHttpServletResponse outdated_response = new MockHttpServletResponse();
+        linking.doFilter(outdated, outdated_response, new MockFilterChain("unused"));
+        assertEquals("no-cache", outdated_response.getHeader("Cache-Control"));
+        assertEquals(css, new String(outdated_response.getOutputBytes(), "UTF-8"));
+
+        MockHttpServletRequest unknown = new MockHttpServletRequest();
+        unknown.setRequestURI("/jhighlight-unknown.css");
+        unknown.setServletPath("/jhighlight-unknown.css");
+        MockFilterChain passed = new MockFilterChain("other");
+        linking.doFilter(unknown, new MockHttpServletResponse(), passed);
+        assertTrue(passed.wasCalled());
+
+        HighlightFilter streaming = new HighlightFilter();
+        Map<String, String> params = new HashMap<>();
+        params.put("stylesheet", "true");
+        params.put("streaming", "true");
+        streaming.init(new MockFilterConfig(params));
+        assertEquals(document, new String(filterJavas(streaming, "public class Example { }"), "UTF-8"));
+    }
+
+    @Test
+    public void testThemeStylesheets() throws IOException, ServletException {
+        HighlightFilter themed = new HighlightFilter();
+        Map<String, String> params = new HashMap<>();
+        params.put("stylesheet", "true");
+        params.put("themes", "dark");
+        themed.init(new MockFilterConfig(params));
+
+        MockHttpServletResponse light = requestStylesheet(themed, "/jhighlight-java.css");
+        MockHttpServletResponse dark = requestStylesheet(themed, "/jhighlight-java-dark.css");
+        String light_css = new String(light.getOutputBytes(), "UTF-8");
+        String dark_css = new String(dark.getOutputBytes(), "UTF-8");
+        assertTrue(dark_css.contains(".java_keyword {"));
+        assertFalse(light_css.equals(dark_css));
+        assertEquals(light.getHeader("ETag"), dark.getHeader("ETag"));
+
+        String document = new String(filterJavas(themed, "public class Example { }"), "UTF-8");
+        assertTrue(document.contains("?v=" + light.getHeader("ETag").replace("\"", "")));
+
+        MockHttpServletRequest unknown = new MockHttpServletRequest();
+        unknown.setRequestURI("/jhighlight-java-light.css");
+        unknown.setServletPath("/jhighlight-java-light.css");
+        MockFilterChain passed = new MockFilterChain("other");
+        themed.doFilter(unknown, new MockHttpServletResponse(), passed);
+        assertTrue(passed.wasCalled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownTheme() {
+        new HighlightFilter().init(new MockFilterConfig(Collections.singletonMap("themes", "dark, missing")));
+    }
+
+    private static MockHttpServletResponse requestStylesheet(HighlightFilter filter, String path) throws IOException, ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRequestURI(path);
+        request.setServletPath(path);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain("unused"));
+        return response;
+    }
+
+    private static byte[] filterJavas(HighlightFilter filter, String content) throws IOException, ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRequestURI("/src/Example.javas");
+        request.setServletPath("/src/Example.javas");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, new MockFilterChain(content));
+
+        return response.getOutputBytes();
+    }
+
     // Mock classes for testing
 
+    private static class MockFilterConfig implements FilterConfig {
+        private final Map<String, String> params;
+
+        MockFilterConfig(Map<String, String> params) {
+            this.params = params;
+        }
+
+        @Override public String getFilterName() { return "jhighlight"; }
+        @Override public jakarta.servlet.ServletContext getServletContext() { return null; }
+        @Override public String getInitParameter(String name) { return params.get(name); }
+        @Override public java.util.Enumeration<String> getInitParameterNames() { return Collections.enumeration(params.keySet()); }
+    }
+
     private static class MockServletRequest implements ServletRequest {
         @Override public Object getAttribute(String name) { return null; }
         @Override public java.util.Enumeration getAttributeNames() { return null; }
@@ -259,6 +461,8 @@ public class HighlightFilterTest {
         private String servletPath;
         private String pathTranslated;
         private StringBuffer requestURL = new StringBuffer();
+        private Map<String, String> headers = new HashMap<>();
+        private Map<String, String> parameters = new HashMap<>();
 
         public void setRequestURI(String uri) {
             this.requestURI = uri;
@@ -273,7 +477,16 @@ public class HighlightFilterTest {
         @Override public String getAuthType() { return null; }
         @Override public jakarta.servlet.http.Cookie[] getCookies() { return null; }
         @Override public long getDateHeader(String name) { return 0; }
-        @Override public String getHeader(String name) { return null; }
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public void setParameter(String name, String value) {
+            parameters.put(name, value);
+        }
+
+        @Override public String getParameter(String name) { return parameters.get(name); }
+        @Override public String getHeader(String name) { return headers.get(name); }
         @Override public java.util.Enumeration getHeaders(String name) { return null; }
         @Override public java.util.Enumeration getHeaderNames() { return null; }
         @Override public int getIntHeader(String name) { return 0; }
@@ -307,6 +520,7 @@ public class HighlightFilterTest {
         private int status = SC_OK;
         private String contentType;
         private int contentLength;
+        private Map<String, String> headers = new HashMap<>();
         private ByteArrayOutputStream output = new ByteArrayOutputStream();
 
         @Override
@@ -332,13 +546,14 @@ public class HighlightFilterTest {
         @Override public void sendRedirect(String location, int sc, boolean clearBuffer) { }
         @Override public void setDateHeader(String name, long date) { }
         @Override public void addDateHeader(String name, long date) { }
-        @Override public void setHeader(String name, String value) { }
+        @Override public void setHeader(String name, String value) { headers.put(name, value); }
         @Override public void addHeader(String name, String value) { }
         @Override public void setIntHeader(String name, int value) { }
         @Override public void addIntHeader(String name, int value) { }
         @Override public void setStatus(int sc) { this.status = sc; }
         @Override public int getStatus() { return this.status; }
-        @Override public String getHeader(String name) { return null; }
+        @Override public String getHeader(String name) { return headers.get(name); }
+        @Override public String getContentType() { return contentType; }
         @Override public java.util.Collection<String> getHeaders(String name) { return java.util.Collections.emptyList(); }
         @Override public java.util.Collection<String> getHeaderNames() { return java.util.Collections.emptyList(); }
         @Override public void setContentType(String type) { this.contentType = type; }
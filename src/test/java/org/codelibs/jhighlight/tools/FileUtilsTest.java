@@ -9,6 +9,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import org.junit.After;
@@ -234,4 +236,55 @@ public class FileUtilsTest {
         assertEquals(4, result.size());
         assertTrue(result.contains("root.java"));
     }
+
+    @Test
+    public void testGetFileList_OrderedAcrossDirectories() throws IOException {
+        new File(tempDir, "a-b").mkdir();
+        new File(tempDir, "a").mkdir();
+        new File(tempDir, "a.java").createNewFile();
+        new File(tempDir, "a-b" + File.separator + "x.java").createNewFile();
+        new File(tempDir, "a" + File.separator + "x.java").createNewFile();
+        new File(tempDir, "b.java").createNewFile();
+
+        ArrayList result = FileUtils.getFileList(tempDir, null, null);
+        ArrayList sorted = new ArrayList(result);
+        java.util.Collections.sort(sorted);
+        assertEquals(4, result.size());
+        assertEquals(sorted, result);
+    }
+
+    @Test
+    public void testVisitFiles_PrunedDirectories() throws IOException {
+        File svn = new File(tempDir, "module" + File.separator + ".svn");
+        svn.mkdirs();
+        new File(svn, "Entries.java").createNewFile();
+        new File(tempDir, "module" + File.separator + "Main.java").createNewFile();
+
+        final List<String> visited = new ArrayList<String>();
+        FileUtils.visitFiles(tempDir.toPath(), null, null, new Pattern[] { Pattern.compile(".*svn.*") }, true, new Consumer<String>() {
+            public void accept(String fileName) {
+                visited.add(fileName);
+            }
+        });
+        assertEquals(1, visited.size());
+        assertEquals("module" + File.separator + "Main.java", visited.get(0));
+    }
+
+    @Test
+    public void testGetFileList_Parallel() throws IOException {
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            File dir = new File(tempDir, "dir" + i);
+            dir.mkdir();
+            for (int j = 0; j < 10; j++) {
+                new File(dir, "File" + j + ".java").createNewFile();
+                expected.add("dir" + i + File.separator + "File" + j + ".java");
+            }
+            new File(dir, "notes.txt").createNewFile();
+        }
+
+        Pattern[] included = new Pattern[] { Pattern.compile(".*\\.java") };
+        List<String> result = FileUtils.getFileList(tempDir.toPath(), included, null, null);
+        assertEquals(expected, result);
+    }
 }
@@ -0,0 +1,96 @@
+package org.codelibs.jhighlight.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class LineReaderTest {
+
+    private static String currentLine(LineReader reader) {
+        return new String(reader.getLineBuffer(), 0, reader.getLineLength());
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        LineReader reader = new LineReader(new StringReader(""), 4);
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    public void testLineTerminatorsAreNormalized() throws IOException {
+        LineReader reader = new LineReader(new StringReader("a\nb\r\nc\rd"), 4);
+
+        assertTrue(reader.nextLine());
+        assertEquals("a\n", currentLine(reader));
+        assertTrue(reader.nextLine());
+        assertEquals("b\n", currentLine(reader));
+        assertTrue(reader.nextLine());
+        assertEquals("c\n", currentLine(reader));
+        assertTrue(reader.nextLine());
+        assertEquals("d\n", currentLine(reader));
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    public void testEmptyLines() throws IOException {
+        LineReader reader = new LineReader(new StringReader("\n\r\n"), 4);
+
+        assertTrue(reader.nextLine());
+        assertEquals("\n", currentLine(reader));
+        assertTrue(reader.nextLine());
+        assertEquals("\n", currentLine(reader));
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    public void testTabsAreExpanded() throws IOException {
+        LineReader reader = new LineReader(new StringReader("\tab\tc\t\td"), 4);
+
+        assertTrue(reader.nextLine());
+        assertEquals(StringUtils.convertTabsToSpaces("\tab\tc\t\td\n", 4), currentLine(reader));
+    }
+
+    @Test
+    public void testReadStopsAtEndOfLine() throws IOException {
+        LineReader reader = new LineReader(new StringReader("abc\ndef\n"), 4);
+        char[] buffer = new char[16];
+
+        assertEquals(-1, reader.read(buffer, 0, buffer.length));
+
+        assertTrue(reader.nextLine());
+        assertEquals(2, reader.read(buffer, 0, 2));
+        assertEquals(2, reader.read(buffer, 2, 14));
+        assertEquals("abc\n", new String(buffer, 0, 4));
+        assertEquals(-1, reader.read(buffer, 0, buffer.length));
+
+        assertTrue(reader.nextLine());
+        assertEquals(4, reader.read(buffer, 0, buffer.length));
+        assertEquals("def\n", new String(buffer, 0, 4));
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    public void testLongLines() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        LineReader reader = new LineReader(new StringReader(line + "\r\n" + line), 4);
+
+        assertTrue(reader.nextLine());
+        assertEquals(line + "\n", currentLine(reader));
+        assertTrue(reader.nextLine());
+        assertEquals(line + "\n", currentLine(reader));
+        assertFalse(reader.nextLine());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTabWidth() {
+        new LineReader(new StringReader(""), 0);
+    }
+}
@@ -0,0 +1,76 @@
+package org.codelibs.jhighlight.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileReaderTest {
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("jhighlight-test", ".txt");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static String readAll(Reader reader, int bufferSize) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int count;
+        while ((count = reader.read(buffer, 0, bufferSize)) != -1) {
+            text.append(buffer, 0, count);
+        }
+        reader.close();
+        return text.toString();
+    }
+
+    private void assertDecodedAsStream(byte[] bytes, Charset charset) throws IOException {
+        Files.write(file, bytes);
+        String expected = readAll(new InputStreamReader(new ByteArrayInputStream(bytes), charset), 8192);
+        for (int windowSize : new int[] {1, 2, 3, 5, 64, MappedFileReader.DEFAULT_WINDOW_SIZE}) {
+            for (int bufferSize : new int[] {1, 7, 8192}) {
+                assertEquals(charset + " " + windowSize + " " + bufferSize, expected,
+                    readAll(new MappedFileReader(file, charset, windowSize), bufferSize));
+            }
+        }
+    }
+
+    @Test
+    public void testCharactersAcrossWindows() throws IOException {
+        String text = "int a = 1;\r\n// été € 😀 中文\n\tString s = \"👍\";\n";
+        assertDecodedAsStream(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        assertDecodedAsStream(text.getBytes(StandardCharsets.UTF_16), StandardCharsets.UTF_16);
+        assertDecodedAsStream(text.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.ISO_8859_1);
+        assertDecodedAsStream(text.getBytes(Charset.forName("Shift_JIS")), Charset.forName("Shift_JIS"));
+    }
+
+    @Test
+    public void testMalformedInputIsReplaced() throws IOException {
+        assertDecodedAsStream(new byte[] {'a', (byte)0xC3, 'b', (byte)0xE2, (byte)0x82, '\n', (byte)0xF0, (byte)0x9F}, StandardCharsets.UTF_8);
+
+        byte[] bytes = new byte[5000];
+        new Random(1).nextBytes(bytes);
+        assertDecodedAsStream(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        assertDecodedAsStream(new byte[0], StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package org.codelibs.jhighlight.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class NameFilterTest {
+
+    private static final String[] NAMES = {
+        "Test.java", "test.JAVA", "src/Main.java", "Main.java.html", "Main.java.html.",
+        "page.html", "page.htm", ".java", "java", "archive.tar.gz", "svn/Foo.java",
+        "module/.svn/Entries.java", "CVS", "Foo.java\n", "a\nb.java", "a\rb.xml",
+        "tomcat/web.xml", "Jetty.groovy", "noextension", "dot.", "", "x.cpp", "x.c++"
+    };
+
+    private static final Pattern[] INCLUDED = {
+        Pattern.compile(".*\\.java$"),
+        Pattern.compile(".*\\.xml"),
+        Pattern.compile(".*\\.html$"),
+        null,
+        Pattern.compile(".*\\.cpp$"),
+        Pattern.compile(".*\\.c\\+\\+$"),
+        Pattern.compile(".*\\.GROOVY$", Pattern.CASE_INSENSITIVE),
+        Pattern.compile("(?<name>noext)ension")
+    };
+
+    private static final Pattern[] EXCLUDED = {
+        Pattern.compile(".*SCCS.*"),
+        Pattern.compile(".*svn.*"),
+        Pattern.compile(".*CVS.*"),
+        Pattern.compile(".*jetty.*"),
+        Pattern.compile(".*tomcat.*"),
+        Pattern.compile(".*\\.java\\.html\\.*"),
+        Pattern.compile("(.)\\1.*")
+    };
+
+    @Test
+    public void testSameResultsAsStringUtilsFilter() {
+        assertSameResults(INCLUDED, EXCLUDED);
+        assertSameResults(INCLUDED, null);
+        assertSameResults(null, EXCLUDED);
+        assertSameResults(null, null);
+        assertSameResults(new Pattern[0], null);
+    }
+
+    @Test
+    public void testExtensionLookup() {
+        NameFilter filter = new NameFilter(new Pattern[] { Pattern.compile(".*\\.java$") }, null);
+        assertTrue(filter.accepts("Test.java"));
+        assertTrue(filter.accepts("dir/Test.java"));
+        assertTrue(filter.accepts(".java"));
+        assertFalse(filter.accepts("Test.JAVA"));
+        assertFalse(filter.accepts("Test.java.html"));
+        assertFalse(filter.accepts("Test.java\n"));
+        assertFalse(filter.accepts(null));
+    }
+
+    @Test
+    public void testExcludedLocations() {
+        NameFilter filter = new NameFilter(null, new Pattern[] {
+            Pattern.compile(".*SCCS.*"), Pattern.compile(".*svn.*"), Pattern.compile(".*CVS.*") });
+        assertFalse(filter.accepts("SCCS/x.java"));
+        assertFalse(filter.accepts("a/.svn/x.java"));
+        assertFalse(filter.accepts("CVS/Entries"));
+        assertTrue(filter.accepts("src/x.java"));
+    }
+
+    private static void assertSameResults(Pattern[] included, Pattern[] excluded) {
+        NameFilter filter = new NameFilter(included, excluded);
+        for (String name : NAMES) {
+            assertEquals(name, StringUtils.filter(name, included, excluded), filter.accepts(name));
+        }
+        assertEquals(StringUtils.filter(null, included, excluded), filter.accepts(null));
+    }
+}
@@ -5,6 +5,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
@@ -41,6 +43,62 @@ public class StringUtilsTest {
         assertEquals("&forall;&exist;&empty;", StringUtils.encodeHtml("\u2200\u2203\u2205"));
     }
 
+    @Test
+    public void encodeHtmlCharRange() throws IOException {
+        char[] source = "x<b>a&c \u00e9\u03b2</b>x".toCharArray();
+        StringWriter out = new StringWriter();
+        StringUtils.encodeHtml(source, 1, source.length - 2, out);
+        assertEquals(StringUtils.encodeHtml("<b>a&c \u00e9\u03b2</b>"), out.toString());
+
+        out = new StringWriter();
+        StringUtils.encodeHtml(source, 5, 0, out);
+        assertEquals("", out.toString());
+
+        out = new StringWriter();
+        StringUtils.encodeHtml("plain".toCharArray(), 0, 5, out);
+        assertEquals("plain", out.toString());
+    }
+
+    @Test
+    public void encodeHtmlAppendable() throws IOException {
+        String source = "x < y && \u00e9t\u00e9 \u2666 \u4e2d\uD83D\uDE00";
+        String expected = StringUtils.encodeHtml(source);
+        assertEquals("x &lt; y &amp;&amp; &eacute;t&eacute; &diams; \u4e2d\uD83D\uDE00", expected);
+
+        StringBuilder builder = new StringBuilder("[");
+        StringUtils.encodeHtml(source, 0, source.length(), builder);
+        assertEquals("[" + expected, builder.toString());
+
+        builder.setLength(0);
+        char[] chars = ("--" + source + "--").toCharArray();
+        StringUtils.encodeHtml(chars, 2, source.length(), builder);
+        assertEquals(expected, builder.toString());
+
+        builder.setLength(0);
+        StringUtils.encodeHtml("<a>", 1, 3, builder);
+        assertEquals("a&gt;", builder.toString());
+    }
+
+    @Test
+    public void encodeHtmlIntoCharArray() {
+        String source = "\"quoted\" <tag> \u00a9 plain";
+        char[] chars = source.toCharArray();
+        int length = StringUtils.getEncodedHtmlLength(chars, 0, chars.length);
+        String expected = StringUtils.encodeHtml(source);
+        assertEquals(expected.length(), length);
+
+        char[] destination = new char[length + 3];
+        int end = StringUtils.encodeHtml(chars, 0, chars.length, destination, 3);
+        assertEquals(length + 3, end);
+        assertEquals(expected, new String(destination, 3, length));
+    }
+
+    @Test
+    public void encodeHtmlReturnsSameInstanceWhenUnchanged() {
+        String source = "nothing to encode \u4e2d";
+        assertTrue(source == StringUtils.encodeHtml(source));
+    }
+
     @Test
     public void testFilter_SinglePattern() {
         Pattern included = Pattern.compile(".*\\.java");